@@ -2,6 +2,7 @@ package app.lovable.lanchat;
 
 import android.os.Bundle;
 import com.getcapacitor.BridgeActivity;
+import com.getcapacitor.PluginHandle;
 import app.lovable.lanchat.plugins.LanDiscoveryPlugin;
 import app.lovable.lanchat.plugins.WebSocketServerPlugin;
 
@@ -13,5 +14,11 @@ public class MainActivity extends BridgeActivity {
         registerPlugin(WebSocketServerPlugin.class);
         
         super.onCreate(savedInstanceState);
+        
+        // Start the server and dial last run's peers while the web app is still loading
+        PluginHandle server = getBridge().getPlugin("WebSocketServer");
+        if (server != null) {
+            ((WebSocketServerPlugin) server.getInstance()).prewarm();
+        }
     }
 }
@@ -1,11 +1,13 @@
 package app.lovable.lanchat.plugins;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.ConnectivityManager;
-import android.net.LinkAddress;
 import android.net.LinkProperties;
 import android.net.Network;
-import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
 import android.net.wifi.WifiManager;
@@ -20,51 +22,176 @@ import com.getcapacitor.PluginCall;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
 
-import java.net.DatagramSocket;
-import java.net.Inet4Address;
+import org.json.JSONArray;
+
+import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.util.Collections;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 @CapacitorPlugin(name = "LanDiscovery")
 public class LanDiscoveryPlugin extends Plugin {
+    /** Native consumer of peer table changes, e.g. the WebSocket topology manager. */
+    interface PeersListener {
+        void onPeersChanged(PeerTable.Delta delta);
+    }
+    
     private static final String TAG = "LanDiscovery";
     private static final String SERVICE_TYPE = "_lanchat._tcp.";
+    // Not in the public SDK, but sent on every hotspot and tethering change
+    private static final String ACTION_WIFI_AP_STATE_CHANGED = "android.net.wifi.WIFI_AP_STATE_CHANGED";
+    private static final String ACTION_TETHER_STATE_CHANGED = "android.net.conn.TETHER_STATE_CHANGED";
+    private static final long ADDRESS_SCAN_DELAY_MS = 250;
+    private static final long ADDRESS_SETTLE_MS = 2_000;
+    private static final int DEFAULT_PEERS_CHANGED_DEBOUNCE_MS = 100;
+    // Re-registering makes every browser on the LAN resolve us again, so don't do it often
+    private static final long MIN_REREGISTER_INTERVAL_MS = 5_000;
+    private static final String PEER_CACHE_FILE = "peers.cache";
+    // Cached peers discovery hasn't seen again by then are dropped
+    private static final int DEFAULT_CACHED_PEER_TTL_MS = 10_000;
+    private static final long PEER_CACHE_SAVE_DELAY_MS = 2_000;
     
     private NsdManager nsdManager;
     private NsdManager.RegistrationListener registrationListener;
     private NsdManager.DiscoveryListener discoveryListener;
-    private NsdManager.ResolveListener resolveListener;
     
-    private ConcurrentHashMap<String, JSObject> discoveredPeers = new ConcurrentHashMap<>();
+    // One resolve at a time, driven from a thread of its own
+    private volatile ResolveScheduler<NsdServiceInfo> resolves = newResolveScheduler(
+            ResolveScheduler.DEFAULT_TTL_MS, ResolveScheduler.DEFAULT_TIMEOUT_MS);
+    private ScheduledFuture<?> resolveWakeup;
+    
+    private static final int SOURCE_NSD = 1;
+    private static final int SOURCE_BEACON = 1 << 1;
+    private static final int SOURCE_CACHE = 1 << 2;
+    
+    private final PeerTable peerTable = new PeerTable(PeerTable.DEFAULT_MAX_TOMBSTONES);
+    // Which sources currently see each peer; a peer is lost when none do
+    private final Map<String, Integer> peerSources = new HashMap<>();
+    // Changes are coalesced into one peersChanged event per debounce window
+    private volatile int peersChangedDebounceMs = DEFAULT_PEERS_CHANGED_DEBOUNCE_MS;
+    private volatile boolean peerEvents = false;
+    private ScheduledFuture<?> peersChangedPending;
+    private long peersChangedVersion;
+    private final LongAdder peersChangedEvents = new LongAdder();
+    private volatile PeersListener peersListener;
+    // Peers from the last run, in the table until discovery confirms or expires them
+    private volatile PeerCache peerCache;
+    private final Map<String, Long> cachedSeenAtMillis = new HashMap<>();
+    private ScheduledFuture<?> cachedPeerExpiry;
+    private ScheduledFuture<?> peerCacheSave;
+    private final LongAdder cachedPeersLoaded = new LongAdder();
+    private final LongAdder cachedPeersConfirmed = new LongAdder();
+    private final LongAdder cachedPeersExpired = new LongAdder();
     private String serviceName;
     private int servicePort;
+    private boolean advertising = false;
+    // TXT attributes we advertise, also carried in beacons
+    private volatile PeerAttributes ownAttributes = PeerAttributes.EMPTY;
+    private ScheduledFuture<?> reregistration;
+    private long lastRegisteredNanos;
+    private boolean reregisterPending = false;
+    
+    // Optional UDP beacons alongside NSD
+    private volatile BeaconDiscovery beacons;
+    private WifiManager.MulticastLock multicastLock;
     private boolean isDiscovering = false;
     private boolean isRegistered = false;
     
+    // Local addresses, rescanned when the network changes rather than on every getLocalIp
+    private volatile LocalAddresses localAddresses;
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private BroadcastReceiver tetherReceiver;
+    private ScheduledFuture<?> addressScan;
+    private final LongAdder addressChanges = new LongAdder();
+    
+    // Metrics; LongAdder-based so NSD callbacks never contend on them
+    private final LongAdder servicesFound = new LongAdder();
+    private final LongAdder servicesLost = new LongAdder();
+    private final LongAdder resolvesStarted = new LongAdder();
+    private final LongAdder resolvesSucceeded = new LongAdder();
+    private final LongAdder resolvesFailed = new LongAdder();
+    private final LatencyHistogram resolveLatency = new LatencyHistogram();
+    private final LatencyHistogram foundToResolved = new LatencyHistogram();
+    private final ConcurrentHashMap<String, Long> foundAtNanos = new ConcurrentHashMap<>();
+    private ScheduledExecutorService metricsTimer;
+    // Resolves, address scans and peersChanged events, all on one thread
+    private ScheduledExecutorService executor;
+    
     @Override
     public void load() {
         nsdManager = (NsdManager) getContext().getSystemService(Context.NSD_SERVICE);
+        watchNetwork();
+        scheduleAddressScan(0, false);
+        peerCache = new PeerCache(new File(getContext().getFilesDir(), PEER_CACHE_FILE),
+                PeerCache.DEFAULT_MAX_PEERS, PeerCache.DEFAULT_MAX_AGE_MS);
+        // Queued ahead of anything a native listener asks for, so it sees the cached peers too
+        executor().execute(this::loadPeerCache);
     }
     
     @PluginMethod
     public void startAdvertising(PluginCall call) {
         serviceName = call.getString("serviceName", "LANChat-" + System.currentTimeMillis());
         servicePort = call.getInt("port", 8765);
+        ownAttributes = mergeAttributes(new PeerAttributes(androidId(), null, SignalingCodec.PROTOCOL_VERSION,
+                new ArrayList<>(), new ArrayList<>(), PeerAttributes.UNKNOWN, servicePort),
+                call.getObject("attributes", new JSObject()));
+        advertising = true;
+        advertiseBeacon();
         
+        try {
+            registerService();
+            call.resolve();
+        } catch (Exception e) {
+            call.reject("Failed to register service", e);
+        }
+    }
+    
+    /**
+     * Change what we advertise without stopping. Beacons carry it right away;
+     * the NSD record is re-registered at most every few seconds.
+     */
+    @PluginMethod
+    public void updateAdvertisement(PluginCall call) {
+        if (!advertising) {
+            call.reject("Not advertising");
+            return;
+        }
+        PeerAttributes updated = mergeAttributes(ownAttributes, call.getData());
+        if (!updated.equals(ownAttributes)) {
+            ownAttributes = updated;
+            advertiseBeacon();
+            scheduleReregistration();
+        }
+        call.resolve();
+    }
+    
+    private synchronized void registerService() {
         NsdServiceInfo serviceInfo = new NsdServiceInfo();
         serviceInfo.setServiceName(serviceName);
         serviceInfo.setServiceType(SERVICE_TYPE);
         serviceInfo.setPort(servicePort);
+        for (Map.Entry<String, String> entry : ownAttributes.toTxt().entrySet()) {
+            serviceInfo.setAttribute(entry.getKey(), entry.getValue());
+        }
         
         registrationListener = new NsdManager.RegistrationListener() {
             @Override
             public void onServiceRegistered(NsdServiceInfo info) {
                 serviceName = info.getServiceName();
                 isRegistered = true;
+                // NSD may have renamed us to resolve a conflict
+                advertiseBeacon();
                 Log.d(TAG, "Service registered: " + serviceName);
             }
             
@@ -77,6 +204,7 @@ public class LanDiscoveryPlugin extends Plugin {
             public void onServiceUnregistered(NsdServiceInfo info) {
                 isRegistered = false;
                 Log.d(TAG, "Service unregistered");
+                onUnregisteredForUpdate();
             }
             
             @Override
@@ -84,15 +212,75 @@ public class LanDiscoveryPlugin extends Plugin {
                 Log.e(TAG, "Unregistration failed: " + errorCode);
             }
         };
-        
+        lastRegisteredNanos = System.nanoTime();
+        nsdManager.registerService(serviceInfo, NsdManager.PROTOCOL_DNS_SD, registrationListener);
+    }
+    
+    /** Re-register with the new TXT record once the minimum interval has passed. */
+    private synchronized void scheduleReregistration() {
+        if (reregistration != null || !isRegistered) {
+            return;
+        }
+        long sinceMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRegisteredNanos);
         try {
-            nsdManager.registerService(serviceInfo, NsdManager.PROTOCOL_DNS_SD, registrationListener);
-            call.resolve();
+            reregistration = executor().schedule(this::reregister,
+                    Math.max(0, MIN_REREGISTER_INTERVAL_MS - sinceMs), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            reregistration = null;
+        }
+    }
+    
+    private synchronized void reregister() {
+        reregistration = null;
+        if (!advertising || !isRegistered || registrationListener == null) {
+            return;
+        }
+        // Register again only once the old record is gone, or NSD renames us to avoid the conflict
+        reregisterPending = true;
+        try {
+            nsdManager.unregisterService(registrationListener);
         } catch (Exception e) {
-            call.reject("Failed to register service", e);
+            reregisterPending = false;
+            Log.e(TAG, "Error re-registering service", e);
+        }
+    }
+    
+    private synchronized void onUnregisteredForUpdate() {
+        if (!reregisterPending) {
+            return;
+        }
+        reregisterPending = false;
+        if (advertising) {
+            try {
+                registerService();
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to register service", e);
+            }
         }
     }
     
+    /** {@code base} with whatever {@code options} sets; deviceId, protocol version and port stay ours. */
+    private static PeerAttributes mergeAttributes(PeerAttributes base, JSObject options) {
+        String displayName = options.has("displayName") ? options.getString("displayName") : base.displayName;
+        List<String> codecs = options.has("codecs") ? stringList(options, "codecs") : base.codecs;
+        List<String> framing = options.has("framing") ? stringList(options, "framing") : base.framing;
+        int connections = options.getInteger("connections", base.connections);
+        return new PeerAttributes(base.deviceId, displayName, base.protocolVersion, codecs, framing,
+                connections, base.port);
+    }
+    
+    private static List<String> stringList(JSObject options, String key) {
+        List<String> values = new ArrayList<>();
+        JSONArray array = options.optJSONArray(key);
+        for (int i = 0; array != null && i < array.length(); i++) {
+            String value = array.optString(i, "");
+            if (!value.isEmpty()) {
+                values.add(value);
+            }
+        }
+        return values;
+    }
+    
     @PluginMethod
     public void stopAdvertising(PluginCall call) {
         if (registrationListener != null && isRegistered) {
@@ -103,6 +291,14 @@ public class LanDiscoveryPlugin extends Plugin {
             }
         }
         isRegistered = false;
+        advertising = false;
+        synchronized (this) {
+            if (reregistration != null) {
+                reregistration.cancel(false);
+                reregistration = null;
+            }
+        }
+        advertiseBeacon();
         call.resolve();
     }
     
@@ -127,16 +323,27 @@ public class LanDiscoveryPlugin extends Plugin {
                 if (serviceInfo.getServiceName().equals(serviceName)) {
                     return;
                 }
-                resolveService(serviceInfo);
+                servicesFound.increment();
+                String name = serviceInfo.getServiceName();
+                long now = System.nanoTime();
+                foundAtNanos.putIfAbsent(name, now);
+                ResolveScheduler.Address cached = resolves.onFound(name, serviceInfo, now);
+                if (cached != null) {
+                    // Flapped lost and found within the TTL; no need to ask the network again.
+                    // The table still has its last attributes, which beacons may have made newer than ours
+                    onPeerResolved(name, cached.host, cached.port, null, now);
+                    return;
+                }
+                scheduleResolves(0);
             }
             
             @Override
             public void onServiceLost(NsdServiceInfo serviceInfo) {
                 String peerId = serviceInfo.getServiceName();
-                JSObject peer = discoveredPeers.remove(peerId);
-                if (peer != null) {
-                    notifyListeners("peerLost", peer);
-                }
+                servicesLost.increment();
+                foundAtNanos.remove(peerId);
+                resolves.onLost(peerId);
+                removePeer(peerId, SOURCE_NSD);
                 Log.d(TAG, "Service lost: " + peerId);
             }
             
@@ -158,6 +365,20 @@ public class LanDiscoveryPlugin extends Plugin {
             }
         };
         
+        scheduleMetricsEvent(call.getInt("metricsIntervalMs", 0));
+        peersChangedDebounceMs = Math.max(0, call.getInt("peersChangedDebounceMs", DEFAULT_PEERS_CHANGED_DEBOUNCE_MS));
+        // The per-peer events are only sent to callers that still ask for them
+        peerEvents = call.getBoolean("peerEvents", false);
+        // Resolved addresses are reused for resolveCacheTtlMs when a service flaps
+        resolves = newResolveScheduler(
+                call.getInt("resolveCacheTtlMs", (int) ResolveScheduler.DEFAULT_TTL_MS),
+                call.getInt("resolveTimeoutMs", (int) ResolveScheduler.DEFAULT_TIMEOUT_MS));
+        JSObject beaconOptions = call.getObject("beacon", new JSObject());
+        if (beaconOptions.getBoolean("enabled", false)) {
+            startBeacons(beaconOptions);
+        }
+        scheduleCachedPeerExpiry(Math.max(0, call.getInt("cachedPeerTtlMs", DEFAULT_CACHED_PEER_TTL_MS)));
+        
         try {
             nsdManager.discoverServices(SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD, discoveryListener);
             call.resolve();
@@ -166,29 +387,63 @@ public class LanDiscoveryPlugin extends Plugin {
         }
     }
     
-    private void resolveService(NsdServiceInfo serviceInfo) {
+    private static ResolveScheduler<NsdServiceInfo> newResolveScheduler(long ttlMs, long timeoutMs) {
+        return new ResolveScheduler<>(ttlMs, timeoutMs, new Backoff(50, 2_000, new Random()));
+    }
+    
+    /** Run the resolve queue after {@code delayMs}, replacing any earlier wakeup. */
+    private synchronized void scheduleResolves(long delayMs) {
+        if (resolveWakeup != null) {
+            resolveWakeup.cancel(false);
+        }
+        try {
+            resolveWakeup = executor().schedule(this::pumpResolves, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            resolveWakeup = null;
+        }
+    }
+    
+    private void pumpResolves() {
+        ResolveScheduler<NsdServiceInfo> scheduler = resolves;
+        long now = System.nanoTime();
+        ResolveScheduler.Entry<NsdServiceInfo> next = scheduler.poll(now);
+        if (next != null) {
+            resolveService(scheduler, next.service, now);
+        }
+        long delayNanos = scheduler.delayNanos(now);
+        if (delayNanos >= 0) {
+            scheduleResolves(Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayNanos)));
+        }
+    }
+    
+    private void resolveService(ResolveScheduler<NsdServiceInfo> scheduler, NsdServiceInfo serviceInfo,
+            long startNanos) {
+        String name = serviceInfo.getServiceName();
+        resolvesStarted.increment();
         NsdManager.ResolveListener resolver = new NsdManager.ResolveListener() {
             @Override
             public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
-                Log.e(TAG, "Resolve failed: " + errorCode);
+                long now = System.nanoTime();
+                resolvesFailed.increment();
+                resolveLatency.record(now - startNanos);
+                boolean busy = errorCode == NsdManager.FAILURE_ALREADY_ACTIVE;
+                boolean retrying = scheduler.onFailed(name, busy, now);
+                Log.w(TAG, "Resolve failed for " + name + ": " + errorCode + (retrying ? ", retrying" : ""));
+                scheduleResolves(0);
             }
             
             @Override
             public void onServiceResolved(NsdServiceInfo serviceInfo) {
                 InetAddress host = serviceInfo.getHost();
                 int port = serviceInfo.getPort();
-                String name = serviceInfo.getServiceName();
                 
-                JSObject peer = new JSObject();
-                peer.put("id", name);
-                peer.put("name", name);
-                peer.put("ip", host.getHostAddress());
-                peer.put("port", port);
-                
-                discoveredPeers.put(name, peer);
-                notifyListeners("peerFound", peer);
-                
-                Log.d(TAG, "Service resolved: " + name + " at " + host.getHostAddress() + ":" + port);
+                long now = System.nanoTime();
+                resolvesSucceeded.increment();
+                resolveLatency.record(now - startNanos);
+                PeerAttributes attributes = PeerAttributes.fromTxt(serviceInfo.getAttributes());
+                scheduler.onResolved(name, host.getHostAddress(), port, now);
+                scheduleResolves(0);
+                onPeerResolved(name, host.getHostAddress(), port, attributes, now);
             }
         };
         
@@ -196,6 +451,332 @@ public class LanDiscoveryPlugin extends Plugin {
             nsdManager.resolveService(serviceInfo, resolver);
         } catch (Exception e) {
             Log.e(TAG, "Error resolving service", e);
+            scheduler.onFailed(name, false, startNanos);
+        }
+    }
+    
+    private void onPeerResolved(String name, String ip, int port, PeerAttributes attributes, long nowNanos) {
+        Long foundAt = foundAtNanos.remove(name);
+        if (foundAt != null) {
+            foundToResolved.record(nowNanos - foundAt);
+        }
+        
+        addPeer(name, ip, port, attributes, SOURCE_NSD);
+        Log.d(TAG, "Service resolved: " + name + " at " + ip + ":" + port);
+    }
+    
+    /**
+     * {@code source} sees the peer; it counts as changed if it is new or its
+     * address or attributes changed. Null attributes keep the known ones.
+     */
+    private void addPeer(String name, String ip, int port, PeerAttributes attributes, int source) {
+        boolean changed;
+        synchronized (peerSources) {
+            int sources = peerSources.merge(name, source, (a, b) -> a | b);
+            // Seen again, so it now stays for as long as discovery sees it
+            if (source != SOURCE_CACHE && (sources & SOURCE_CACHE) != 0) {
+                peerSources.put(name, sources & ~SOURCE_CACHE);
+                cachedSeenAtMillis.remove(name);
+                cachedPeersConfirmed.increment();
+            }
+            changed = peerTable.put(name, ip, port, attributes);
+        }
+        if (changed) {
+            if (peerEvents) {
+                notifyListeners("peerFound", peerJson(name, ip, port, attributes));
+            }
+            schedulePeersChanged();
+        }
+    }
+    
+    /** {@code source} no longer sees the peer; it is removed once no source does. */
+    private void removePeer(String name, int source) {
+        PeerTable.Peer lost = null;
+        synchronized (peerSources) {
+            Integer sources = peerSources.get(name);
+            if (sources == null) {
+                return;
+            }
+            int remaining = sources & ~source;
+            if (remaining == 0) {
+                peerSources.remove(name);
+                cachedSeenAtMillis.remove(name);
+                lost = peerTable.remove(name);
+            } else {
+                peerSources.put(name, remaining);
+            }
+        }
+        if (lost != null) {
+            if (peerEvents) {
+                notifyListeners("peerLost", peerJson(lost.name, lost.ip, lost.port, lost.attributes));
+            }
+            schedulePeersChanged();
+        }
+    }
+    
+    /** The first change in a quiet period schedules the event; later ones ride along with it. */
+    private synchronized void schedulePeersChanged() {
+        if (peersChangedPending != null) {
+            return;
+        }
+        try {
+            peersChangedPending = executor().schedule(
+                    this::emitPeersChanged, peersChangedDebounceMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            peersChangedPending = null;
+        }
+    }
+    
+    private void emitPeersChanged() {
+        PeerTable.Delta delta;
+        synchronized (this) {
+            peersChangedPending = null;
+            delta = peerTable.since(peersChangedVersion);
+            peersChangedVersion = delta.version;
+        }
+        // Everything in the window may have cancelled out
+        if (!delta.isEmpty()) {
+            PeersListener listener = peersListener;
+            if (listener != null) {
+                listener.onPeersChanged(delta);
+            }
+            peersChangedEvents.increment();
+            notifyListeners("peersChanged", deltaJson(delta));
+            schedulePeerCacheSave(PEER_CACHE_SAVE_DELAY_MS);
+        }
+    }
+    
+    /** Put the peers from the last run in the table, unless discovery got to them first. */
+    private void loadPeerCache() {
+        PeerCache cache = peerCache;
+        if (cache == null) {
+            return;
+        }
+        for (PeerCache.Entry entry : cache.load(System.currentTimeMillis())) {
+            synchronized (peerSources) {
+                if (peerSources.containsKey(entry.name)) {
+                    continue;
+                }
+                cachedSeenAtMillis.put(entry.name, entry.lastSeenMillis);
+            }
+            cachedPeersLoaded.increment();
+            addPeer(entry.name, entry.ip, entry.port, entry.attributes, SOURCE_CACHE);
+        }
+    }
+    
+    private synchronized void scheduleCachedPeerExpiry(long delayMs) {
+        if (cachedPeerExpiry != null) {
+            cachedPeerExpiry.cancel(false);
+        }
+        try {
+            cachedPeerExpiry = executor().schedule(this::expireCachedPeers, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            cachedPeerExpiry = null;
+        }
+    }
+    
+    /** Drop the cached peers discovery hasn't confirmed. */
+    private void expireCachedPeers() {
+        List<String> unconfirmed = new ArrayList<>();
+        synchronized (peerSources) {
+            for (Map.Entry<String, Integer> entry : peerSources.entrySet()) {
+                if ((entry.getValue() & SOURCE_CACHE) != 0) {
+                    unconfirmed.add(entry.getKey());
+                }
+            }
+        }
+        for (String name : unconfirmed) {
+            cachedPeersExpired.increment();
+            removePeer(name, SOURCE_CACHE);
+        }
+    }
+    
+    private synchronized void schedulePeerCacheSave(long delayMs) {
+        if (peerCacheSave != null && delayMs > 0) {
+            return;
+        }
+        if (peerCacheSave != null) {
+            peerCacheSave.cancel(false);
+        }
+        try {
+            peerCacheSave = executor().schedule(this::savePeerCache, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            peerCacheSave = null;
+        }
+    }
+    
+    /** Snapshot the table; peers only known from the cache keep the time they were last really seen. */
+    private void savePeerCache() {
+        synchronized (this) {
+            peerCacheSave = null;
+        }
+        PeerCache cache = peerCache;
+        if (cache == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<PeerCache.Entry> entries = new ArrayList<>();
+        synchronized (peerSources) {
+            for (PeerTable.Peer peer : peerTable.snapshot()) {
+                Long seenAt = cachedSeenAtMillis.get(peer.name);
+                entries.add(new PeerCache.Entry(peer.name, peer.ip, peer.port, peer.attributes,
+                        seenAt != null ? seenAt : now));
+            }
+        }
+        try {
+            cache.save(entries);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save the peer cache", e);
+        }
+    }
+    
+    /**
+     * Get the same batched changes as peersChanged, starting with the whole
+     * table as a reset; null stops them. Called on the discovery thread.
+     */
+    void setPeersListener(PeersListener listener) {
+        peersListener = listener;
+        if (listener != null) {
+            try {
+                executor().execute(() -> {
+                    if (peersListener == listener) {
+                        listener.onPeersChanged(peerTable.since(Long.MAX_VALUE));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Discovery is shutting down; no peers to report");
+            }
+        }
+    }
+    
+    private static JSObject peerJson(String name, String ip, int port, PeerAttributes attributes) {
+        JSObject peer = new JSObject();
+        peer.put("id", name);
+        peer.put("name", name);
+        peer.put("ip", ip);
+        peer.put("port", port);
+        if (attributes != null && !attributes.isEmpty()) {
+            peer.put("attributes", attributesJson(attributes));
+        }
+        return peer;
+    }
+    
+    private static JSObject attributesJson(PeerAttributes attributes) {
+        JSObject result = new JSObject();
+        if (attributes.deviceId != null) {
+            result.put("deviceId", attributes.deviceId);
+        }
+        if (attributes.displayName != null) {
+            result.put("displayName", attributes.displayName);
+        }
+        if (attributes.protocolVersion != PeerAttributes.UNKNOWN) {
+            result.put("protocolVersion", attributes.protocolVersion);
+        }
+        result.put("codecs", new JSArray(attributes.codecs));
+        result.put("framing", new JSArray(attributes.framing));
+        if (attributes.connections != PeerAttributes.UNKNOWN) {
+            result.put("connections", attributes.connections);
+        }
+        if (attributes.port != PeerAttributes.UNKNOWN) {
+            result.put("port", attributes.port);
+        }
+        return result;
+    }
+    
+    private static JSArray peersJson(List<PeerTable.Peer> peers) {
+        JSArray array = new JSArray();
+        for (PeerTable.Peer peer : peers) {
+            array.put(peerJson(peer.name, peer.ip, peer.port, peer.attributes));
+        }
+        return array;
+    }
+    
+    private static JSObject deltaJson(PeerTable.Delta delta) {
+        JSObject result = new JSObject();
+        result.put("version", delta.version);
+        result.put("reset", delta.reset);
+        result.put("added", peersJson(delta.added));
+        result.put("updated", peersJson(delta.updated));
+        result.put("removed", peersJson(delta.removed));
+        return result;
+    }
+    
+    private void startBeacons(JSObject options) {
+        stopBeacons();
+        try {
+            String groupAddress = options.getString("multicastGroup");
+            // A numeric address, so this never goes to DNS
+            InetAddress group = groupAddress != null ? InetAddress.getByName(groupAddress) : null;
+            BeaconDiscovery engine = new BeaconDiscovery(
+                    options.getInteger("port", BeaconDiscovery.DEFAULT_PORT), group, null,
+                    options.getInteger("minIntervalMs", BeaconDiscovery.DEFAULT_MIN_INTERVAL_MS),
+                    options.getInteger("maxIntervalMs", BeaconDiscovery.DEFAULT_MAX_INTERVAL_MS),
+                    new BeaconEvents());
+            // Many devices drop broadcast and multicast datagrams without this
+            WifiManager wifiManager = (WifiManager) getContext().getApplicationContext()
+                    .getSystemService(Context.WIFI_SERVICE);
+            if (wifiManager != null) {
+                multicastLock = wifiManager.createMulticastLock(TAG);
+                multicastLock.setReferenceCounted(false);
+                multicastLock.acquire();
+            }
+            engine.start();
+            beacons = engine;
+            advertiseBeacon();
+            Log.d(TAG, "Beacon discovery started");
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Beacon discovery unavailable", e);
+            releaseMulticastLock();
+        }
+    }
+    
+    private void stopBeacons() {
+        BeaconDiscovery engine = beacons;
+        beacons = null;
+        if (engine != null) {
+            engine.stop();
+            // The engine forgets its peers without events, so drop what only it was seeing
+            List<String> seenByBeacon = new ArrayList<>();
+            synchronized (peerSources) {
+                for (Map.Entry<String, Integer> entry : peerSources.entrySet()) {
+                    if ((entry.getValue() & SOURCE_BEACON) != 0) {
+                        seenByBeacon.add(entry.getKey());
+                    }
+                }
+            }
+            for (String name : seenByBeacon) {
+                removePeer(name, SOURCE_BEACON);
+            }
+        }
+        releaseMulticastLock();
+    }
+    
+    private void releaseMulticastLock() {
+        if (multicastLock != null && multicastLock.isHeld()) {
+            multicastLock.release();
+        }
+        multicastLock = null;
+    }
+    
+    /** Bring the beacon in line with what we advertise over NSD. */
+    private void advertiseBeacon() {
+        BeaconDiscovery engine = beacons;
+        if (engine != null) {
+            engine.advertise(advertising ? serviceName : null, androidId(), servicePort, ownAttributes.toTxt());
+        }
+    }
+    
+    private class BeaconEvents implements BeaconDiscovery.Listener {
+        @Override
+        public void onPeerFound(BeaconDiscovery.Peer peer) {
+            addPeer(peer.name, peer.ip, peer.port, PeerAttributes.fromTxt(peer.attributes), SOURCE_BEACON);
+            Log.d(TAG, "Beacon from " + peer.name + " at " + peer.ip + ":" + peer.port);
+        }
+        
+        @Override
+        public void onPeerLost(BeaconDiscovery.Peer peer) {
+            removePeer(peer.name, SOURCE_BEACON);
+            Log.d(TAG, "Beacons stopped: " + peer.name);
         }
     }
     
@@ -209,210 +790,248 @@ public class LanDiscoveryPlugin extends Plugin {
             }
         }
         isDiscovering = false;
+        scheduleMetricsEvent(0);
+        resolves.clear();
+        stopBeacons();
         call.resolve();
     }
     
     @PluginMethod
-    public void getDiscoveredPeers(PluginCall call) {
-        JSArray peersArray = new JSArray();
-        for (JSObject peer : discoveredPeers.values()) {
-            peersArray.put(peer);
+    public void getMetrics(PluginCall call) {
+        call.resolve(metrics());
+    }
+    
+    private synchronized void scheduleMetricsEvent(int intervalMs) {
+        if (metricsTimer != null) {
+            metricsTimer.shutdownNow();
+            metricsTimer = null;
         }
-        
+        if (intervalMs > 0) {
+            metricsTimer = Executors.newSingleThreadScheduledExecutor();
+            metricsTimer.scheduleWithFixedDelay(
+                    () -> notifyListeners("metrics", metrics()), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private JSObject metrics() {
+        JSObject result = new JSObject();
+        result.put("servicesFound", servicesFound.sum());
+        result.put("servicesLost", servicesLost.sum());
+        result.put("resolvesStarted", resolvesStarted.sum());
+        result.put("resolvesSucceeded", resolvesSucceeded.sum());
+        result.put("resolvesFailed", resolvesFailed.sum());
+        ResolveScheduler<NsdServiceInfo> scheduler = resolves;
+        result.put("resolveRetries", scheduler.retries());
+        result.put("resolveCacheHits", scheduler.cacheHits());
+        result.put("resolveQueue", scheduler.queued());
+        result.put("resolveLatency", MetricsJson.latency(resolveLatency));
+        result.put("foundToResolved", MetricsJson.latency(foundToResolved));
+        result.put("peers", peerTable.size());
+        result.put("peerTableVersion", peerTable.version());
+        result.put("peersChangedEvents", peersChangedEvents.sum());
+        result.put("addressChanges", addressChanges.sum());
+        JSObject cacheMetrics = new JSObject();
+        cacheMetrics.put("loaded", cachedPeersLoaded.sum());
+        cacheMetrics.put("confirmed", cachedPeersConfirmed.sum());
+        cacheMetrics.put("expired", cachedPeersExpired.sum());
+        result.put("peerCache", cacheMetrics);
+        BeaconDiscovery engine = beacons;
+        if (engine != null) {
+            JSObject beaconMetrics = new JSObject();
+            beaconMetrics.put("sent", engine.beaconsSent.sum());
+            beaconMetrics.put("received", engine.beaconsReceived.sum());
+            beaconMetrics.put("peers", engine.peers().size());
+            result.put("beacons", beaconMetrics);
+        }
+        return result;
+    }
+    
+    @PluginMethod
+    public void getDiscoveredPeers(PluginCall call) {
         JSObject result = new JSObject();
-        result.put("peers", peersArray);
+        result.put("peers", peersJson(peerTable.snapshot()));
         call.resolve(result);
     }
     
+    /** Adds, updates and removes since {@code version}; 0 or an unknown version gets the whole table. */
+    @PluginMethod
+    public void getPeersSince(PluginCall call) {
+        call.resolve(deltaJson(peerTable.since(call.getLong("version", 0L))));
+    }
+    
     @PluginMethod
     public void getLocalIp(PluginCall call) {
-        String ip = getLocalIpAddress();
+        String ip = localAddresses().preferredIp();
         JSObject result = new JSObject();
         result.put("ip", ip != null ? ip : "0.0.0.0");
-        Log.d(TAG, "getLocalIp returning: " + (ip != null ? ip : "0.0.0.0"));
         call.resolve(result);
     }
     
     @PluginMethod
-    public void getDeviceId(PluginCall call) {
-        // Get persistent Android ID
-        String androidId = Settings.Secure.getString(
-            getContext().getContentResolver(), 
-            Settings.Secure.ANDROID_ID
-        );
-        
-        // Get device manufacturer and model
-        String deviceName = Build.MANUFACTURER + " " + Build.MODEL;
-        
+    public void getLocalAddresses(PluginCall call) {
+        call.resolve(addressesJson(localAddresses()));
+    }
+    
+    /** The cached addresses; only the first call before the initial scan finishes scans inline. */
+    private LocalAddresses localAddresses() {
+        LocalAddresses snapshot = localAddresses;
+        if (snapshot == null) {
+            snapshot = LocalAddresses.scan();
+            localAddresses = snapshot;
+        }
+        return snapshot;
+    }
+    
+    private static JSObject addressesJson(LocalAddresses snapshot) {
+        JSArray addresses = new JSArray();
+        for (LocalAddresses.Address address : snapshot.addresses) {
+            JSObject entry = new JSObject();
+            entry.put("ip", address.ip);
+            entry.put("interface", address.interfaceName);
+            entry.put("kind", address.kind.jsName());
+            entry.put("prefixLength", address.prefixLength);
+            addresses.put(entry);
+        }
+        String ip = snapshot.preferredIp();
         JSObject result = new JSObject();
-        result.put("deviceId", androidId != null ? androidId : "unknown");
-        result.put("deviceName", deviceName);
-        Log.d(TAG, "getDeviceId returning: " + androidId + ", " + deviceName);
-        call.resolve(result);
+        result.put("ip", ip != null ? ip : "0.0.0.0");
+        result.put("addresses", addresses);
+        return result;
     }
     
-    private String getLocalIpAddress() {
-        Log.d(TAG, "=== Starting IP detection ===");
-        
-        try {
-            // Method 1: Socket-based detection (MOST RELIABLE - gets actual routing IP)
-            String socketIp = getIpBySocket();
-            if (socketIp != null && !socketIp.equals("0.0.0.0")) {
-                Log.d(TAG, "Using socket-based IP: " + socketIp);
-                return socketIp;
-            }
-            
-            // Method 2: Check hotspot/tethering interfaces
-            String hotspotIp = getHotspotIp();
-            if (hotspotIp != null) {
-                Log.d(TAG, "Using hotspot IP: " + hotspotIp);
-                return hotspotIp;
-            }
-            
-            // Method 3: Try ConnectivityManager (API 23+) for active network
-            ConnectivityManager cm = (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
-            if (cm != null && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-                Network activeNetwork = cm.getActiveNetwork();
-                if (activeNetwork != null) {
-                    LinkProperties linkProperties = cm.getLinkProperties(activeNetwork);
-                    if (linkProperties != null) {
-                        List<LinkAddress> linkAddresses = linkProperties.getLinkAddresses();
-                        for (LinkAddress linkAddress : linkAddresses) {
-                            InetAddress addr = linkAddress.getAddress();
-                            if (addr instanceof Inet4Address && !addr.isLoopbackAddress()) {
-                                String ip = addr.getHostAddress();
-                                Log.d(TAG, "Found IP via ConnectivityManager: " + ip);
-                                return ip;
-                            }
-                        }
-                    }
-                }
-            }
-            
-            // Method 4: Try WiFi Manager
-            WifiManager wifiManager = (WifiManager) getContext().getApplicationContext().getSystemService(Context.WIFI_SERVICE);
-            if (wifiManager != null && wifiManager.isWifiEnabled()) {
-                int ipInt = wifiManager.getConnectionInfo().getIpAddress();
-                if (ipInt != 0) {
-                    String ip = String.format("%d.%d.%d.%d",
-                            (ipInt & 0xff),
-                            (ipInt >> 8 & 0xff),
-                            (ipInt >> 16 & 0xff),
-                            (ipInt >> 24 & 0xff));
-                    Log.d(TAG, "Found IP via WifiManager: " + ip);
-                    return ip;
+    /**
+     * Rescan addresses when the network changes. Hotspot and USB tethering
+     * don't show up as networks to ConnectivityManager, so their state
+     * broadcasts are watched as well.
+     */
+    private void watchNetwork() {
+        ConnectivityManager cm = (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm != null) {
+            networkCallback = new ConnectivityManager.NetworkCallback() {
+                @Override
+                public void onAvailable(Network network) {
+                    onNetworkChanged();
                 }
-            }
-            
-            // Method 5: Enumerate all network interfaces
-            String fallbackIp = null;
-            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces != null && interfaces.hasMoreElements()) {
-                NetworkInterface ni = interfaces.nextElement();
-                String interfaceName = ni.getName().toLowerCase();
                 
-                if (ni.isLoopback() || !ni.isUp()) {
-                    continue;
+                @Override
+                public void onLost(Network network) {
+                    onNetworkChanged();
                 }
                 
-                Log.d(TAG, "Checking interface: " + interfaceName);
-                
-                Enumeration<InetAddress> addresses = ni.getInetAddresses();
-                while (addresses.hasMoreElements()) {
-                    InetAddress addr = addresses.nextElement();
-                    if (addr instanceof Inet4Address && !addr.isLoopbackAddress()) {
-                        String ip = addr.getHostAddress();
-                        Log.d(TAG, "  Found IPv4: " + ip + " on " + interfaceName);
-                        
-                        // Prefer hotspot/tethering interfaces
-                        if (interfaceName.startsWith("ap") || 
-                            interfaceName.startsWith("swlan") ||
-                            interfaceName.startsWith("rndis") ||
-                            interfaceName.contains("softap") ||
-                            interfaceName.contains("wlan1")) {
-                            Log.d(TAG, "Using hotspot/tethering IP from " + interfaceName + ": " + ip);
-                            return ip;
-                        }
-                        
-                        // Then prefer WiFi
-                        if (interfaceName.startsWith("wlan")) {
-                            Log.d(TAG, "Using WiFi IP from " + interfaceName + ": " + ip);
-                            return ip;
-                        }
-                        
-                        if (fallbackIp == null) {
-                            fallbackIp = ip;
-                        }
-                    }
+                @Override
+                public void onLinkPropertiesChanged(Network network, LinkProperties linkProperties) {
+                    onNetworkChanged();
                 }
+            };
+            try {
+                cm.registerNetworkCallback(new NetworkRequest.Builder().build(), networkCallback);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Cannot watch network changes", e);
+                networkCallback = null;
             }
-            
-            if (fallbackIp != null) {
-                Log.d(TAG, "Using fallback IP: " + fallbackIp);
-                return fallbackIp;
+        }
+        
+        tetherReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onNetworkChanged();
             }
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting local IP", e);
+        };
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(ACTION_WIFI_AP_STATE_CHANGED);
+        filter.addAction(ACTION_TETHER_STATE_CHANGED);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            getContext().registerReceiver(tetherReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            getContext().registerReceiver(tetherReceiver, filter);
         }
-        Log.w(TAG, "Could not determine local IP address");
-        return null;
+    }
+    
+    private void onNetworkChanged() {
+        scheduleAddressScan(ADDRESS_SCAN_DELAY_MS, true);
     }
     
     /**
-     * Get IP by opening a socket to an external server.
-     * This is the most reliable method as it returns the IP the system would use for routing.
+     * Rescan after {@code delayMs}, replacing any pending scan; {@code settle}
+     * rescans once more a little later, since an interface often comes up
+     * before it gets its address.
      */
-    private String getIpBySocket() {
-        DatagramSocket socket = null;
+    private synchronized void scheduleAddressScan(long delayMs, boolean settle) {
+        if (addressScan != null) {
+            addressScan.cancel(false);
+        }
         try {
-            socket = new DatagramSocket();
-            socket.connect(InetAddress.getByName("8.8.8.8"), 10002);
-            String ip = socket.getLocalAddress().getHostAddress();
-            Log.d(TAG, "Socket-based IP detection: " + ip);
-            if (ip != null && !ip.equals("0.0.0.0") && !ip.startsWith("127.")) {
-                return ip;
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Socket-based IP detection failed", e);
-        } finally {
-            if (socket != null) {
-                socket.close();
-            }
+            addressScan = executor().schedule(() -> {
+                rescanAddresses();
+                if (settle) {
+                    scheduleAddressScan(ADDRESS_SETTLE_MS, false);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            addressScan = null;
         }
-        return null;
     }
     
-    private String getHotspotIp() {
-        try {
-            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
-            while (interfaces != null && interfaces.hasMoreElements()) {
-                NetworkInterface ni = interfaces.nextElement();
-                String name = ni.getName().toLowerCase();
-                
-                // Common hotspot interface names across devices
-                boolean isHotspotInterface = 
-                    name.startsWith("ap") ||
-                    name.startsWith("swlan") ||
-                    name.contains("softap") ||
-                    name.equals("wlan1") ||
-                    name.startsWith("rndis");
-                
-                if (isHotspotInterface && ni.isUp() && !ni.isLoopback()) {
-                    Enumeration<InetAddress> addresses = ni.getInetAddresses();
-                    while (addresses.hasMoreElements()) {
-                        InetAddress addr = addresses.nextElement();
-                        if (addr instanceof Inet4Address && !addr.isLoopbackAddress()) {
-                            String ip = addr.getHostAddress();
-                            Log.d(TAG, "Found hotspot IP via " + name + ": " + ip);
-                            return ip;
-                        }
-                    }
-                }
+    private void rescanAddresses() {
+        LocalAddresses scanned = LocalAddresses.scan();
+        LocalAddresses previous = localAddresses;
+        localAddresses = scanned;
+        if (previous != null && !previous.equals(scanned)) {
+            addressChanges.increment();
+            Log.d(TAG, "Local address changed: " + scanned.preferredIp());
+            notifyListeners("localAddressChanged", addressesJson(scanned));
+        }
+    }
+    
+    @Override
+    protected void handleOnStop() {
+        // The process may not get another chance before it is killed
+        schedulePeerCacheSave(0);
+    }
+    
+    @Override
+    protected void handleOnDestroy() {
+        ConnectivityManager cm = (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm != null && networkCallback != null) {
+            cm.unregisterNetworkCallback(networkCallback);
+            networkCallback = null;
+        }
+        if (tetherReceiver != null) {
+            getContext().unregisterReceiver(tetherReceiver);
+            tetherReceiver = null;
+        }
+        stopBeacons();
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error checking hotspot interfaces", e);
         }
-        return null;
     }
-}
\ No newline at end of file
+    
+    private synchronized ScheduledExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor();
+        }
+        return executor;
+    }
+    
+    @PluginMethod
+    public void getDeviceId(PluginCall call) {
+        // Get persistent Android ID
+        String androidId = androidId();
+        
+        // Get device manufacturer and model
+        String deviceName = Build.MANUFACTURER + " " + Build.MODEL;
+        
+        JSObject result = new JSObject();
+        result.put("deviceId", androidId != null ? androidId : "unknown");
+        result.put("deviceName", deviceName);
+        Log.d(TAG, "getDeviceId returning: " + androidId + ", " + deviceName);
+        call.resolve(result);
+    }
+    
+    private String androidId() {
+        return Settings.Secure.getString(getContext().getContentResolver(), Settings.Secure.ANDROID_ID);
+    }
+}
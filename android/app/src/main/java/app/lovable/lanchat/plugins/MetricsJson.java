@@ -0,0 +1,33 @@
+package app.lovable.lanchat.plugins;
+
+import com.getcapacitor.JSObject;
+
+/** Shared JSON shapes for the getMetrics results of both plugins. */
+final class MetricsJson {
+    private MetricsJson() {
+    }
+
+    static JSObject traffic(TrafficCounters traffic) {
+        JSObject json = new JSObject();
+        json.put("messagesIn", traffic.messagesIn.sum());
+        json.put("bytesIn", traffic.bytesIn.sum());
+        json.put("messagesOut", traffic.messagesOut.sum());
+        json.put("bytesOut", traffic.bytesOut.sum());
+        return json;
+    }
+
+    static JSObject latency(LatencyHistogram histogram) {
+        JSObject json = new JSObject();
+        json.put("count", histogram.count());
+        json.put("meanMs", round(histogram.meanMs()));
+        json.put("p50Ms", round(histogram.percentileMs(0.5)));
+        json.put("p90Ms", round(histogram.percentileMs(0.9)));
+        json.put("p99Ms", round(histogram.percentileMs(0.99)));
+        json.put("maxMs", round(histogram.maxMs()));
+        return json;
+    }
+
+    static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+}
@@ -1,131 +1,1750 @@
 package app.lovable.lanchat.plugins;
 
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.Settings;
 import android.util.Log;
 
 import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
+import com.getcapacitor.PluginHandle;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
 
 import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.PingFrame;
 import org.java_websocket.handshake.ClientHandshake;
-import org.java_websocket.server.WebSocketServer;
+import org.java_websocket.handshake.Handshakedata;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.handshake.ServerHandshake;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.net.URI;
-import java.util.concurrent.ConcurrentHashMap;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.SocketFactory;
 
 @CapacitorPlugin(name = "WebSocketServer")
 public class WebSocketServerPlugin extends Plugin {
     private static final String TAG = "WebSocketServer";
+    private static final int DEFAULT_QUEUE_CAPACITY = 256;
+    private static final int DEFAULT_BATCH_SIZE = 32;
+    private static final int DEFAULT_BATCH_DELAY_MS = 20;
+    // Application close code for the socket that lost the duplicate-connection tie-break
+    private static final int CLOSE_DUPLICATE = 4001;
+    // ...and for a link closed to stay within the connection budget; the dialer backs off
+    private static final int CLOSE_TOPOLOGY = 4002;
+    private static final int DEFAULT_REBALANCE_INTERVAL_MS = 5000;
+    private static final long REBALANCE_DELAY_MS = 200;
+    private static final int DEFAULT_PING_INTERVAL_MS = 2000;
+    private static final int DEFAULT_MAX_MISSED_PONGS = 3;
+    private static final int DEFAULT_PEER_STATS_INTERVAL_MS = 5000;
+    private static final int DEFAULT_ACK_WINDOW = 1024;
+    private static final int DEFAULT_ACK_DELAY_MS = 200;
+    private static final int DEFAULT_ACK_EVERY = 64;
+    private static final int DEFAULT_RETRANSMIT_TIMEOUT_MS = 3000;
+    // Options of the last start(), for prewarm() on the next launch
+    private static final String START_OPTIONS_FILE = "server-options.json";
     
     private LANChatServer server;
-    private ConcurrentHashMap<String, WebSocket> serverClients = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, WebSocketClient> peerConnections = new ConcurrentHashMap<>();
+    // Guards starting and stopping the server, which prewarm() does off the plugin thread
+    private final Object startLock = new Object();
+    // Set while a prewarmed server waits for JS to start it with the same options
+    private Object prewarmedOptions;
+    private volatile boolean prewarmed = false;
+    private final long createdNanos = System.nanoTime();
+    // When the first peer connected after launch, for time-to-first-peer; 0 until then
+    private final AtomicLong firstPeerNanos = new AtomicLong();
+    private final PeerRegistry peers = new PeerRegistry();
     private int serverPort = 8765;
+    private boolean binaryFrames = true;
+    private boolean compression = true;
+    private SocketTuning tuning = SocketTuning.defaults();
+    private int compressionThreshold = DeflateExtension.DEFAULT_THRESHOLD;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private Set<String> coalescedTypes = new HashSet<>(Arrays.asList("typing"));
+    private ScheduledExecutorService executor;
+    private InboundBatcher inboundBatcher;
+    private int maxMissedPongs = DEFAULT_MAX_MISSED_PONGS;
+    private ScheduledFuture<?> pingTask;
+    private ScheduledFuture<?> peerStatsTask;
+    private ScheduledFuture<?> metricsTask;
+    private volatile Outbox outbox;
+    private volatile MeshRelay relay;
+    private volatile FileTransfers fileTransfers;
+    // Which discovered devices to link to directly; null when every peer is connected to
+    private volatile MeshTopology topology;
+    private ScheduledFuture<?> rebalanceTask;
+    private ScheduledFuture<?> rebalanceSoon;
+    private boolean acks = true;
+    private int ackWindow = DEFAULT_ACK_WINDOW;
+    private int ackEvery = DEFAULT_ACK_EVERY;
+    private long retransmitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_RETRANSMIT_TIMEOUT_MS);
+    private long holeResendNanos = TimeUnit.MILLISECONDS.toNanos(2 * DEFAULT_ACK_DELAY_MS);
+    private ScheduledFuture<?> ackTask;
+    // Topic subscriptions exchanged with peers that advertise them, so publish() skips the rest
+    private boolean topics = true;
+    // Topics JS subscribed this device to; kept across restarts of the server; guarded by itself
+    private final Set<String> localTopics = new LinkedHashSet<>();
+    // What each connection subscribed to; dropped with the connection
+    private final TopicIndex<WebSocket> remoteTopics = new TopicIndex<>(TopicIndex.DEFAULT_MAX_TOPICS);
+    // Topics wanted behind each relaying connection, so published relay frames only go where they're wanted
+    private final TopicRoutes<WebSocket> topicRoutes =
+            new TopicRoutes<>(TopicRoutes.DEFAULT_MAX_ROUTES, MeshRelay.Limits.DEFAULT_MAX_TTL);
+    // Sequencing state by device id; outlives connections so unacked messages survive a reconnect.
+    // Each stop starts a new epoch, so peers reset their state when we restart
+    private final ReliableSessions sessions = new ReliableSessions(new Random()::nextLong, System::currentTimeMillis);
+    // Acknowledged sequence numbers not yet reported to JS, by device id; guarded by itself
+    private final Map<String, JSObject> deliveries = new LinkedHashMap<>();
+    
+    // Metrics; LongAdder-based so the send and receive paths never contend on them
+    private final TrafficCounters traffic = new TrafficCounters();
+    private final LatencyHistogram sendLatency = new LatencyHistogram();
+    private final LongAdder sendFailures = new LongAdder();
+    // Queues, drains and frames every outgoing message
+    private final PeerSender sender = new PeerSender(this::executor, traffic, sendLatency, sendFailures);
+    private final LongAdder connects = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder reconnectAttempts = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    // Outgoing connections we keep up, by ip:port, redialed with jittered backoff
+    private final PeerDials dials = new PeerDials(new PeerDials.Dialer() {
+        @Override
+        public boolean connected(PeerDial dial) {
+            return peers.get(dial.clientId) != null || peers.findByHost(dial.ip) != null;
+        }
+        
+        @Override
+        public WebSocketClient newClient(PeerDial dial) throws URISyntaxException {
+            return newDialClient(dial);
+        }
+    }, this::executor, reconnects, reconnectAttempts);
+    private final LongAdder retransmits = new LongAdder();
+    private final LongAdder acksSent = new LongAdder();
+    private final LongAdder topologyDials = new LongAdder();
+    private final LongAdder topologyDrops = new LongAdder();
+    private final LongAdder relayedSends = new LongAdder();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder publishSkipped = new LongAdder();
+    private final LongAdder topicFiltered = new LongAdder();
     
     @PluginMethod
     public void start(PluginCall call) {
-        int port = call.getInt("port", 8765);
+        JSObject options = call.getData();
+        synchronized (startLock) {
+            // MainActivity already started us with these very options; keep the links it made
+            if (server != null && plain(options).equals(prewarmedOptions)) {
+                prewarmedOptions = null;
+                JSObject result = startResult();
+                result.put("prewarmed", true);
+                call.resolve(result);
+                return;
+            }
+            prewarmedOptions = null;
+            try {
+                startServer(options);
+            } catch (IllegalArgumentException e) {
+                call.reject(e.getMessage());
+                return;
+            } catch (Exception e) {
+                call.reject("Failed to start server", e);
+                return;
+            }
+        }
+        saveStartOptions(options);
+        call.resolve(startResult());
+    }
+    
+    /**
+     * What start() resolves with: the port, and the framing this server
+     * negotiates with peers that offer it, for the app to advertise.
+     */
+    private JSObject startResult() {
+        JSArray framing = new JSArray();
+        if (binaryFrames) {
+            framing.put("binary");
+        }
+        if (relay != null) {
+            framing.put("relay");
+        }
+        if (acks) {
+            framing.put("ack");
+        }
+        if (fileTransfers != null) {
+            framing.put("file");
+        }
+        if (topics) {
+            framing.put("topic");
+        }
+        JSObject result = new JSObject();
+        result.put("port", serverPort);
+        result.put("framing", framing);
+        result.put("topology", topology != null);
+        return result;
+    }
+    
+    /**
+     * Start the server the way JS last did, before the web app has even
+     * loaded, so links to the peers discovery cached come up meanwhile. A
+     * later start() with the same options keeps this server. Does nothing if
+     * the server was never started or was stopped since. Called by MainActivity.
+     */
+    public void prewarm() {
+        try {
+            executor().execute(() -> {
+                JSObject options = loadStartOptions();
+                if (options == null) {
+                    return;
+                }
+                synchronized (startLock) {
+                    if (server != null) {
+                        return;
+                    }
+                    try {
+                        startServer(options);
+                        prewarmedOptions = plain(options);
+                        prewarmed = true;
+                        Log.d(TAG, "WebSocket server prewarmed on port " + serverPort);
+                    } catch (Exception e) {
+                        Log.w(TAG, "Could not prewarm the server", e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Server is shutting down; not prewarming");
+        }
+    }
+    
+    /** Everything start() does short of resolving the call; callers hold startLock. */
+    private void startServer(JSObject options) throws Exception {
+        int port = options.getInteger("port", 8765);
         serverPort = port;
+        // Exchanged in the handshake so each device pair keeps a single socket
+        String deviceId = options.getString("deviceId");
+        if (deviceId == null) {
+            deviceId = Settings.Secure.getString(getContext().getContentResolver(), Settings.Secure.ANDROID_ID);
+        }
+        peers.setLocalDeviceId(deviceId);
+        // Multi-hop relay between peers that advertise it; every hop bounds what it forwards
+        JSObject relayOptions = options.getJSObject("relay", new JSObject());
+        MeshRelay.Limits relayDefaults = MeshRelay.Limits.defaults();
+        relay = relayOptions.getBoolean("enabled", true) && deviceId != null
+                ? new MeshRelay(deviceId, new MeshRelay.Limits(
+                        relayOptions.getInteger("defaultTtl", relayDefaults.defaultTtl),
+                        relayOptions.getInteger("maxTtl", relayDefaults.maxTtl),
+                        relayOptions.getInteger("ratePerSec", relayDefaults.ratePerSec),
+                        relayOptions.getInteger("burst", relayDefaults.burst),
+                        relayOptions.getInteger("seenCapacity", relayDefaults.seenCapacity),
+                        relayOptions.getInteger("maxFrameBytes", relayDefaults.maxFrameBytes)),
+                        this::relayNeighbors, System::nanoTime, new Random())
+                : null;
+        // Per-device sequence numbers with batched acks; unacked messages are resent after a reconnect
+        JSObject ackOptions = options.getJSObject("acks", new JSObject());
+        acks = ackOptions.getBoolean("enabled", true);
+        ackWindow = Math.max(1, ackOptions.getInteger("window", DEFAULT_ACK_WINDOW));
+        ackEvery = Math.max(1, ackOptions.getInteger("ackEvery", DEFAULT_ACK_EVERY));
+        int ackDelayMs = Math.max(10, ackOptions.getInteger("ackDelayMs", DEFAULT_ACK_DELAY_MS));
+        holeResendNanos = TimeUnit.MILLISECONDS.toNanos(2L * ackDelayMs);
+        retransmitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+                Math.max(2L * ackDelayMs, ackOptions.getInteger("retransmitTimeoutMs", DEFAULT_RETRANSMIT_TIMEOUT_MS)));
+        sessions.setLimits(ackOptions.getInteger("maxSessions", ReliableSessions.DEFAULT_MAX_SESSIONS),
+                ackOptions.getInteger("sessionTtlMs", (int) ReliableSessions.DEFAULT_TTL_MS));
+        scheduleAckTimer(acks ? ackDelayMs : 0);
+        // Native file transfer in binary chunks, received into files/transfers
+        JSObject fileOptions = options.getJSObject("files", new JSObject());
+        if (fileTransfers != null) {
+            fileTransfers.shutdown();
+        }
+        fileTransfers = fileOptions.getBoolean("enabled", true)
+                ? new FileTransfers(new File(getContext().getFilesDir(), "transfers"),
+                        fileOptions.getInteger("chunkSize", FileTransfers.DEFAULT_CHUNK_SIZE),
+                        fileOptions.getInteger("windowChunks", FileTransfers.DEFAULT_WINDOW_CHUNKS),
+                        fileOptions.getInteger("progressIntervalMs", FileTransfers.DEFAULT_PROGRESS_INTERVAL_MS),
+                        new TransferEvents())
+                : null;
+        topics = options.getBoolean("topics", true);
+        // Bounded-degree mesh fed by LanDiscovery; other devices are reached through the relay
+        JSObject topologyOptions = options.getJSObject("topology", new JSObject());
+        startTopology(topologyOptions.getBoolean("enabled", false) && deviceId != null && relay != null
+                ? new MeshTopology(deviceId,
+                        topologyOptions.getInteger("maxDegree", MeshTopology.DEFAULT_MAX_DEGREE),
+                        topologyOptions.getInteger("cooldownMs", (int) MeshTopology.DEFAULT_COOLDOWN_MS))
+                : null,
+                topologyOptions.getInteger("rebalanceIntervalMs", DEFAULT_REBALANCE_INTERVAL_MS));
+        // Binary signaling frames are only used with peers that advertise them in the handshake
+        binaryFrames = options.getBoolean("binaryFrames", true);
+        // permessage-deflate is negotiated per connection; messages under the threshold go out as-is
+        compression = options.getBoolean("compression", true);
+        compressionThreshold = options.getInteger("compressionThreshold", DeflateExtension.DEFAULT_THRESHOLD);
+        // Threading and socket options; outgoing clients from connectToPeer use them too
+        JSObject tuningOptions = options.getJSObject("tuning", new JSObject());
+        SocketTuning defaults = SocketTuning.defaults();
+        tuning = new SocketTuning(
+                tuningOptions.getInteger("decoderThreads", defaults.decoderThreads),
+                tuningOptions.getBoolean("tcpNoDelay", defaults.tcpNoDelay),
+                tuningOptions.getInteger("receiveBufferSize", defaults.receiveBufferSize),
+                tuningOptions.getInteger("sendBufferSize", defaults.sendBufferSize),
+                tuningOptions.getBoolean("reuseAddr", defaults.reuseAddr),
+                tuningOptions.getInteger("connectionLostTimeoutSec", defaults.connectionLostTimeoutSec),
+                tuningOptions.getInteger("maxFrameSize", defaults.maxFrameSize));
+        queueCapacity = options.getInteger("queueCapacity", DEFAULT_QUEUE_CAPACITY);
+        try {
+            overflowPolicy = OutboundQueue.OverflowPolicy.fromString(options.getString("overflowPolicy"));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown overflowPolicy: " + options.getString("overflowPolicy"), e);
+        }
+        JSONArray coalesce = options.optJSONArray("coalesceTypes");
+        if (coalesce != null) {
+            Set<String> types = new HashSet<>();
+            for (int i = 0; i < coalesce.length(); i++) {
+                types.add(coalesce.optString(i));
+            }
+            coalescedTypes = types;
+        }
+        sender.setCoalescedTypes(coalescedTypes);
+        // Opt-in: deliver inbound messages as batched messagesReceived events
+        flushInbound();
+        if (options.getBoolean("batchInbound", false)) {
+            inboundBatcher = new InboundBatcher(
+                    options.getInteger("inboundBatchSize", DEFAULT_BATCH_SIZE),
+                    options.getInteger("inboundBatchDelayMs", DEFAULT_BATCH_DELAY_MS),
+                    executor(),
+                    this::notifyBatch);
+        } else {
+            inboundBatcher = null;
+        }
+        // Liveness pings double as RTT/jitter/loss probes; 0 disables them
+        maxMissedPongs = Math.max(1, options.getInteger("maxMissedPongs", DEFAULT_MAX_MISSED_PONGS));
+        schedulePeerMonitoring(
+                options.getInteger("pingIntervalMs", DEFAULT_PING_INTERVAL_MS),
+                options.getInteger("peerStatsIntervalMs", DEFAULT_PEER_STATS_INTERVAL_MS));
+        // Dropped outgoing connections are redialed with jittered exponential backoff
+        dials.configure(new Backoff(
+                options.getInteger("reconnectBaseDelayMs", PeerDials.DEFAULT_BASE_DELAY_MS),
+                options.getInteger("reconnectMaxDelayMs", PeerDials.DEFAULT_MAX_DELAY_MS),
+                new Random()),
+                options.getInteger("maxReconnectAttempts", PeerDials.DEFAULT_MAX_ATTEMPTS));
+        scheduleMetricsEvent(options.getInteger("metricsIntervalMs", 0));
+        // Messages for devices that are away are kept on disk until they reconnect; 0 disables
+        openOutbox(options.getInteger("outboxMaxMessages", Outbox.DEFAULT_MAX_MESSAGES),
+                options.getInteger("outboxMaxAgeMs", (int) Outbox.DEFAULT_MAX_AGE_MS));
+        
+        if (server != null) {
+            server.stop();
+        }
+        
+        server = new LANChatServer(new InetSocketAddress(port), tuning, newDraft(compression, compressionThreshold));
+        server.start();
+        
+        Log.d(TAG, "WebSocket server started on port " + port);
+    }
+    
+    /**
+     * JSON as maps and lists, so the same settings compare equal whatever
+     * order their keys were written in.
+     */
+    private static Object plain(Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            Map<String, Object> map = new HashMap<>();
+            for (Iterator<String> keys = object.keys(); keys.hasNext(); ) {
+                String key = keys.next();
+                map.put(key, plain(object.opt(key)));
+            }
+            return map;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            List<Object> list = new ArrayList<>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                list.add(plain(array.opt(i)));
+            }
+            return list;
+        }
+        return value;
+    }
+    
+    private void saveStartOptions(JSObject options) {
+        File file = new File(getContext().getFilesDir(), START_OPTIONS_FILE);
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(options.toString().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save start options", e);
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+        }
+    }
+    
+    /** The options of the last start(), or null if there were none or the server was stopped. */
+    private JSObject loadStartOptions() {
+        File file = new File(getContext().getFilesDir(), START_OPTIONS_FILE);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    break;
+                }
+                offset += read;
+            }
+            return new JSObject(new String(data, 0, offset, StandardCharsets.UTF_8));
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Could not read start options", e);
+            return null;
+        }
+    }
+    
+    @PluginMethod
+    public void stop(PluginCall call) {
+        try {
+            // Stop redialing, then close all peer connections; server-side ones close with the server
+            dials.clear();
+            for (WebSocket conn : peers.all()) {
+                if (((PeerLink) conn.getAttachment()).outbound) {
+                    conn.close();
+                }
+            }
+            
+            synchronized (startLock) {
+                if (server != null) {
+                    server.stop();
+                    server = null;
+                }
+                prewarmedOptions = null;
+            }
+            // Stopped on purpose, so the next launch shouldn't bring it back by itself
+            new File(getContext().getFilesDir(), START_OPTIONS_FILE).delete();
+            
+            flushInbound();
+            inboundBatcher = null;
+            startTopology(null, 0);
+            watchDiscovery(false);
+            schedulePeerMonitoring(0, 0);
+            scheduleMetricsEvent(0);
+            scheduleAckTimer(0);
+            // Nothing resends unacked messages once stopped
+            sessions.clear();
+            if (fileTransfers != null) {
+                fileTransfers.shutdown();
+                fileTransfers = null;
+            }
+            synchronized (this) {
+                if (executor != null) {
+                    executor.shutdownNow();
+                    executor = null;
+                }
+            }
+            
+            call.resolve();
+            Log.d(TAG, "WebSocket server stopped");
+        } catch (Exception e) {
+            call.reject("Failed to stop server", e);
+        }
+    }
+    
+    @PluginMethod
+    public void send(PluginCall call) {
+        String clientId = call.getString("clientId");
+        String data = call.getString("data");
+        
+        if (clientId == null || data == null) {
+            call.reject("clientId and data are required");
+            return;
+        }
+        
+        JSObject result = sendOne(clientId, data, null);
+        String error = result.getString("error");
+        if (error != null) {
+            call.reject(error);
+        } else {
+            call.resolve(result);
+        }
+    }
+    
+    /**
+     * Send many messages in one bridge call, e.g. trickled ICE candidates or
+     * receipts for a whole conversation. Each connection's messages are queued
+     * before its writer runs, so they go to the socket together.
+     */
+    @PluginMethod
+    public void sendBatch(PluginCall call) {
+        JSArray entries = call.getArray("entries");
+        
+        if (entries == null) {
+            call.reject("entries is required");
+            return;
+        }
+        
+        Set<WebSocket> drains = new HashSet<>();
+        JSArray results = new JSArray();
+        int sent = 0;
+        int failed = 0;
+        for (int i = 0; i < entries.length(); i++) {
+            JSONObject entry = entries.optJSONObject(i);
+            String clientId = entry != null ? entry.optString("clientId", null) : null;
+            String data = entry != null ? entry.optString("data", null) : null;
+            JSObject result = clientId != null && data != null
+                    ? sendOne(clientId, data, drains)
+                    : new JSObject().put("error", "clientId and data are required");
+            if (clientId != null) {
+                result.put("clientId", clientId);
+            }
+            boolean ok = !result.has("error");
+            result.put("ok", ok);
+            if (ok) {
+                sent++;
+            } else {
+                failed++;
+            }
+            results.put(result);
+        }
+        sender.startDrains(drains);
+        
+        JSObject result = new JSObject();
+        result.put("results", results);
+        result.put("sent", sent);
+        result.put("failed", failed);
+        call.resolve(result);
+    }
+    
+    /**
+     * Relay, store or queue one message, the way send() does. Connections
+     * whose writer must be started are added to {@code drains} instead if it
+     * isn't null, for the caller to start once it has queued everything.
+     *
+     * @return what send() resolves with, or an object with just an error
+     */
+    private JSObject sendOne(String clientId, String data, Set<WebSocket> drains) {
+        JSObject result = new JSObject();
+        WebSocket target = findConnection(clientId);
+        OutboundMessage message = new OutboundMessage(data);
+        String relayTo = target == null ? roomDeviceId(clientId) : null;
+        if (relayTo != null) {
+            // In the room but outside our budget: a neighbor carries it
+            long messageId = relay.originate(data, relayTo, Integer.MAX_VALUE);
+            relayedSends.increment();
+            result.put("relayed", true);
+            result.put("messageId", Long.toHexString(messageId));
+            result.put("deviceId", relayTo);
+            return result;
+        }
+        long storedId = storeForLater(clientId, target, message);
+        if (storedId > 0) {
+            // Matched up with its seq by the outboxFlushed event once it goes out
+            result.put("stored", true);
+            result.put("storedId", storedId);
+            return result;
+        }
+        if (target == null) {
+            sendFailures.increment();
+            return result.put("error", "Client not found: " + clientId);
+        }
+        PeerLink link = target.getAttachment();
+        long seq = sender.sequence(link, message);
+        if (seq < 0) {
+            sendFailures.increment();
+            return result.put("error", "Unacknowledged window full: " + clientId);
+        }
+        
+        OutboundQueue.Result queued = sender.enqueue(target, message, drains);
+        if (seq > 0) {
+            // Sequenced messages stay in the window until acked, so a dropped one is resent rather than lost
+            result.put("seq", seq);
+            result.put("deviceId", link.deviceId);
+            return result;
+        }
+        switch (queued) {
+            case REJECTED:
+                return result.put("error", "Send queue full: " + clientId);
+            case OVERFLOW_DISCONNECT:
+                return result.put("error", "Send queue overflow, disconnected: " + clientId);
+            default:
+                return result;
+        }
+    }
+    
+    @PluginMethod
+    public void broadcast(PluginCall call) {
+        String data = call.getString("data");
+        
+        if (data == null) {
+            call.reject("data is required");
+            return;
+        }
+        
+        MeshRelay mesh = relay;
+        if (topology != null && mesh != null) {
+            // Not everyone is a neighbor, so flood it through the mesh instead
+            mesh.originate(data, null, Integer.MAX_VALUE);
+            call.resolve();
+            return;
+        }
+        
+        // One connection per peer, whichever side dialed it
+        sender.broadcast(peers.primaries(), new OutboundMessage(data));
+        call.resolve();
+    }
+    
+    @PluginMethod
+    public void multicast(PluginCall call) {
+        JSArray clientIds = call.getArray("clientIds");
+        String data = call.getString("data");
+        
+        if (clientIds == null || data == null) {
+            call.reject("clientIds and data are required");
+            return;
+        }
+        
+        List<String> targets = new ArrayList<>(clientIds.length());
+        for (int i = 0; i < clientIds.length(); i++) {
+            targets.add(clientIds.optString(i));
+        }
+        PeerSender.Multicast sent = sender.multicast(peers, targets, new OutboundMessage(data),
+                (clientId, target, message) -> storeForLater(clientId, target, message) > 0);
+        
+        JSObject result = new JSObject();
+        result.put("queued", new JSArray(sent.queued));
+        result.put("stored", new JSArray(sent.stored));
+        result.put("failed", new JSArray(sent.failed));
+        call.resolve(result);
+    }
+    
+    /**
+     * Device id for a client id, alias or device id that discovery sees in
+     * the room, if the topology manager is on; null otherwise.
+     */
+    private String roomDeviceId(String clientId) {
+        MeshTopology manager = topology;
+        if (manager == null || relay == null) {
+            return null;
+        }
+        String deviceId = peers.deviceIdOf(clientId);
+        MeshTopology.Candidate candidate = manager.find(deviceId != null ? deviceId : clientId);
+        return candidate != null ? candidate.deviceId : null;
+    }
+    
+    /** Open connection for a client id (or any id its device has used, or the device id itself). */
+    private WebSocket findConnection(String clientId) {
+        return peers.get(clientId);
+    }
+    
+    @PluginMethod
+    public void getQueueStats(PluginCall call) {
+        JSArray queues = new JSArray();
+        int totalDepth = 0;
+        long totalDropped = 0;
+        
+        for (WebSocket conn : peers.all()) {
+            PeerLink link = conn.getAttachment();
+            OutboundQueue queue = link.queue;
+            JSObject stats = new JSObject();
+            stats.put("clientId", link.clientId);
+            stats.put("depth", queue.depth());
+            stats.put("capacity", queue.capacity());
+            stats.put("sent", queue.sent());
+            stats.put("dropped", queue.dropped());
+            stats.put("coalesced", queue.coalesced());
+            stats.put("rejected", queue.rejected());
+            queues.put(stats);
+            
+            totalDepth += queue.depth();
+            totalDropped += queue.dropped();
+        }
+        
+        JSObject result = new JSObject();
+        result.put("queues", queues);
+        result.put("totalDepth", totalDepth);
+        result.put("totalDropped", totalDropped);
+        Outbox box = outbox;
+        if (box != null) {
+            result.put("outbox", outboxStats(box));
+        }
+        call.resolve(result);
+    }
+    
+    private JSObject outboxStats(Outbox box) {
+        JSArray devices = new JSArray();
+        int pending = 0;
+        for (Map.Entry<String, Integer> entry : box.pendingByDevice().entrySet()) {
+            JSObject device = new JSObject();
+            device.put("deviceId", entry.getKey());
+            device.put("pending", entry.getValue());
+            devices.put(device);
+            pending += entry.getValue();
+        }
+        
+        JSObject stats = new JSObject();
+        stats.put("devices", devices);
+        stats.put("pending", pending);
+        stats.put("stored", box.stored());
+        stats.put("forwarded", box.forwarded());
+        stats.put("dropped", box.dropped());
+        stats.put("expired", box.expired());
+        return stats;
+    }
+    
+    private synchronized void openOutbox(int maxMessages, long maxAgeMs) {
+        outbox = null;
+        if (maxMessages <= 0) {
+            return;
+        }
+        try {
+            outbox = new Outbox(new File(getContext().getFilesDir(), "outbox"), maxMessages, maxAgeMs,
+                    Outbox.DEFAULT_SEGMENT_BYTES, System::currentTimeMillis);
+        } catch (IOException e) {
+            Log.w(TAG, "Outbox unavailable, unreachable peers will be rejected: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Put a message in the outbox if its device is unreachable, or if older
+     * stored messages for it are still being flushed so it stays behind them.
+     *
+     * @return the stored message's id; 0 means send it (or fail) as usual
+     */
+    private long storeForLater(String clientId, WebSocket target, OutboundMessage message) {
+        Outbox box = outbox;
+        if (box == null || (message.type != null && coalescedTypes.contains(message.type))) {
+            // Typing indicators are stale by the time the peer is back
+            return 0;
+        }
+        String deviceId = target != null
+                ? ((PeerLink) target.getAttachment()).deviceId
+                : peers.deviceIdOf(clientId);
+        if (deviceId == null && box.pending(clientId) > 0) {
+            // A device id with messages left from an earlier run
+            deviceId = clientId;
+        }
+        if (deviceId == null || (target != null && box.pending(deviceId) == 0)) {
+            return 0;
+        }
+        
+        long storedId;
+        try {
+            storedId = box.append(deviceId, message.text);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store message for " + deviceId + ": " + e.getMessage());
+            return 0;
+        }
+        if (target != null) {
+            scheduleOutboxFlush(box, deviceId);
+        }
+        return storedId;
+    }
+    
+    private void scheduleOutboxFlush(Outbox box, String deviceId) {
+        if (box.markFlushing(deviceId)) {
+            continueOutboxFlush(box, deviceId, 0);
+        }
+    }
+    
+    private void continueOutboxFlush(Outbox box, String deviceId, long delayMs) {
+        try {
+            executor().schedule(() -> flushOutbox(box, deviceId), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            box.doneFlushing(deviceId);
+        }
+    }
+    
+    /**
+     * Send a device's stored messages in order, one batch per run and one
+     * socket write per batch; see {@link PeerSender#sendStored} for when
+     * they leave the outbox. JS learns the seq each one went out under from
+     * the outboxFlushed event, so messagesDelivered can be matched to it.
+     */
+    private void flushOutbox(Outbox box, String deviceId) {
+        WebSocket conn = peers.get(deviceId);
+        if (conn == null) {
+            box.doneFlushing(deviceId);
+            return;
+        }
+        if (conn.hasBufferedData()) {
+            continueOutboxFlush(box, deviceId, PeerSender.BACKPRESSURE_RETRY_MS);
+            return;
+        }
+        
+        PeerLink link = conn.getAttachment();
+        int limit = link.session != null
+                ? Math.min(PeerSender.DRAIN_BATCH, link.session.available())
+                : PeerSender.DRAIN_BATCH;
+        if (limit <= 0) {
+            // Window full; wait for the peer's acks
+            continueOutboxFlush(box, deviceId, TimeUnit.NANOSECONDS.toMillis(holeResendNanos));
+            return;
+        }
+        
+        JSArray flushed = new JSArray();
+        int sent = sender.sendStored(conn, box, deviceId, limit, (storedId, seq) -> {
+            JSObject entry = new JSObject();
+            entry.put("storedId", storedId);
+            entry.put("seq", seq);
+            flushed.put(entry);
+        });
+        if (flushed.length() > 0) {
+            JSObject event = new JSObject();
+            event.put("deviceId", deviceId);
+            event.put("messages", flushed);
+            notifyListeners("outboxFlushed", event);
+        }
+        if (sent < 0) {
+            box.doneFlushing(deviceId);
+        } else if (sent > 0) {
+            continueOutboxFlush(box, deviceId, 0);
+        } else if (box.pending(deviceId) > 0) {
+            // Live sends took the rest of the window
+            continueOutboxFlush(box, deviceId, TimeUnit.NANOSECONDS.toMillis(holeResendNanos));
+        } else {
+            box.doneFlushing(deviceId);
+            // A message stored while we were releasing the claim would otherwise wait for the next connect
+            if (box.pending(deviceId) > 0) {
+                scheduleOutboxFlush(box, deviceId);
+            }
+        }
+    }
+    
+    private Draft newDraft(boolean compress, int threshold) {
+        return tuning.draft(compress ? new DeflateExtension(threshold) : null);
+    }
+    
+    /** Whether permessage-deflate was negotiated on this connection. */
+    private static boolean isCompressed(WebSocket conn) {
+        // A client's own getDraft() is the template it was built with, not the negotiated copy
+        Draft draft = conn instanceof WebSocketClient
+                ? ((WebSocketClient) conn).getConnection().getDraft()
+                : conn.getDraft();
+        return draft instanceof Draft_6455
+                && ((Draft_6455) draft).getExtension() instanceof PerMessageDeflateExtension;
+    }
+    
+    /**
+     * Common open handling for server-side and outgoing connections: attach the
+     * per-connection state, register it, and close whichever socket lost if the
+     * device was already connected the other way.
+     */
+    private void onPeerOpen(WebSocket conn, String clientId, boolean outbound, Handshakedata handshake) {
+        String deviceId = handshake.getFieldValue(PeerRegistry.DEVICE_HEADER);
+        if (deviceId.isEmpty()) {
+            deviceId = null;
+        }
+        int version = binaryFrames
+                ? SignalingCodec.negotiate(handshake.getFieldValue(SignalingCodec.PROTOCOL_HEADER))
+                : 0;
+        boolean relays = relay != null && handshake.hasFieldValue(RelayFrame.HEADER);
+        ReliableSession session = acks && deviceId != null && !deviceId.equals(peers.localDeviceId())
+                && handshake.hasFieldValue(ReliableFrame.HEADER)
+                ? sessions.open(deviceId, ackWindow)
+                : null;
+        FileTransfers.Peer files = fileTransfers != null && deviceId != null
+                && handshake.hasFieldValue(FileFrame.HEADER)
+                ? new FilePeer(conn, deviceId)
+                : null;
+        int topicVersion = topics ? TopicFrame.negotiate(handshake.getFieldValue(TopicFrame.HEADER)) : 0;
+        boolean filtersTopics = topicVersion > 0;
+        boolean routesTopics = relays && topicVersion >= TopicFrame.ROUTES_VERSION;
+        PeerLink link = new PeerLink(clientId, deviceId, outbound, version,
+                new OutboundQueue(queueCapacity, overflowPolicy, coalescedTypes),
+                relays, new RelayNeighbor(conn), session, files, filtersTopics, routesTopics);
+        conn.setAttachment(link);
+        
+        if (deviceId != null && deviceId.equals(peers.localDeviceId())) {
+            Log.d(TAG, "Closing connection to self: " + clientId);
+            conn.close(CLOSE_DUPLICATE, "Connected to self");
+            return;
+        }
+        
+        WebSocket redundant = peers.add(conn);
+        if (redundant != null) {
+            closeRedundant(redundant);
+            if (redundant == conn) {
+                return;
+            }
+        }
+        
+        connects.increment();
+        firstPeerNanos.compareAndSet(0, System.nanoTime());
+        MeshTopology manager = topology;
+        if (manager != null && deviceId != null) {
+            manager.onConnected(deviceId);
+            scheduleRebalance(REBALANCE_DELAY_MS);
+        }
+        flushInbound();
+        JSObject data = new JSObject();
+        data.put("clientId", clientId);
+        if (deviceId != null) {
+            data.put("deviceId", deviceId);
+        }
+        data.put("acks", session != null);
+        notifyListeners("clientConnected", data);
+        
+        Log.d(TAG, (outbound ? "Connected to peer: " : "Client connected: ") + clientId);
+        
+        if (filtersTopics) {
+            // Until it hears our topics the peer sends us nothing published
+            List<String> subscribed;
+            synchronized (localTopics) {
+                subscribed = new ArrayList<>(localTopics);
+            }
+            if (!subscribed.isEmpty()) {
+                sender.enqueue(conn, OutboundMessage.binary(TopicFrame.encode(TopicFrame.SUBSCRIBE, subscribed)));
+            }
+            if (routesTopics) {
+                advertiseRoutes();
+            }
+        }
+        if (session != null && session.unackedCount() > 0) {
+            // Whatever the previous connection didn't get acked goes out again first
+            scheduleRetransmit(conn, link, System.nanoTime(), 0);
+        }
+        FileTransfers transfers = fileTransfers;
+        if (transfers != null && files != null) {
+            transfers.onConnected(files);
+        }
+        
+        Outbox box = outbox;
+        if (box != null && deviceId != null) {
+            scheduleOutboxFlush(box, deviceId);
+        }
+    }
+    
+    /** Close the losing socket of a device pair, moving anything still queued to the survivor. */
+    private void closeRedundant(WebSocket redundant) {
+        PeerLink link = redundant.getAttachment();
+        Log.d(TAG, "Closing duplicate connection to " + link.deviceId + ": " + link.clientId);
+        
+        // A socket replaced under the same client id may have no device id
+        WebSocket survivor = peers.get(link.deviceId != null ? link.deviceId : link.clientId);
+        for (OutboundMessage message : link.queue.takeAll()) {
+            if (survivor != null) {
+                sender.enqueue(survivor, message);
+            }
+        }
+        redundant.close(CLOSE_DUPLICATE, "Duplicate connection");
+    }
+    
+    private void onPeerClose(WebSocket conn) {
+        PeerLink link = conn.getAttachment();
+        if (link == null) {
+            return;
+        }
+        link.queue.clear();
+        if (link.topics) {
+            remoteTopics.removeAll(conn);
+            topicRoutes.remove(conn);
+            advertiseRoutes();
+        }
+        if (link.session != null) {
+            sessions.release(link.deviceId);
+        }
+        MeshRelay mesh = relay;
+        if (mesh != null) {
+            mesh.forget(link.neighbor);
+        }
+        FileTransfers transfers = fileTransfers;
+        if (transfers != null && link.files != null) {
+            transfers.onDisconnected(link.files);
+        }
+        // A redundant socket closing doesn't mean the device went away
+        if (!peers.remove(conn)) {
+            WebSocket survivor = peers.get(link.deviceId);
+            PeerLink survivorLink = survivor != null ? survivor.getAttachment() : null;
+            if (transfers != null && survivorLink != null && survivorLink.files != null) {
+                transfers.onConnected(survivorLink.files);
+            }
+            return;
+        }
+        
+        disconnects.increment();
+        MeshTopology manager = topology;
+        if (manager != null && link.deviceId != null) {
+            manager.onDisconnected(link.deviceId);
+            scheduleRebalance(REBALANCE_DELAY_MS);
+        }
+        flushInbound();
+        JSObject data = new JSObject();
+        data.put("clientId", link.clientId);
+        if (link.deviceId != null) {
+            data.put("deviceId", link.deviceId);
+        }
+        notifyListeners("clientDisconnected", data);
+        
+        Log.d(TAG, (link.outbound ? "Disconnected from peer: " : "Client disconnected: ") + link.clientId);
+    }
+    
+    /** Single background thread for queue drains and timers. */
+    private synchronized ScheduledExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor();
+        }
+        return executor;
+    }
+    
+    private void notifyBinaryMessage(WebSocket conn, ByteBuffer bytes) {
+        PeerLink link = conn.getAttachment();
+        link.traffic.recordIn(bytes.remaining());
+        traffic.recordIn(bytes.remaining());
+        if (RelayFrame.isRelayFrame(bytes)) {
+            onRelayFrame(link, bytes);
+            return;
+        }
+        if (ReliableFrame.isReliableFrame(bytes)) {
+            onReliableFrame(conn, link, bytes);
+            return;
+        }
+        if (FileFrame.isFileFrame(bytes)) {
+            onFileFrame(link, bytes);
+            return;
+        }
+        if (TopicFrame.isTopicFrame(bytes)) {
+            onTopicFrame(conn, link, bytes);
+            return;
+        }
+        String message;
+        try {
+            message = SignalingCodec.decode(bytes);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Dropping malformed binary frame from " + link.clientId + ": " + e.getMessage());
+            return;
+        }
+        deliver(link, message, null, 0);
+    }
+    
+    private void notifyMessage(PeerLink link, String message) {
+        // UTF-16 length; exact for the ASCII JSON we exchange and free to compute
+        link.traffic.recordIn(message.length());
+        traffic.recordIn(message.length());
+        deliver(link, message, null, 0);
+    }
+    
+    /** Forward a relay frame if it is for others, and deliver it if it is for us, without a JS round trip. */
+    private void onRelayFrame(PeerLink link, ByteBuffer bytes) {
+        MeshRelay mesh = relay;
+        if (mesh == null) {
+            return;
+        }
+        RelayFrame frame = mesh.receive(bytes, link.neighbor);
+        if (frame == null) {
+            return;
+        }
+        if (frame.topic != null && !isSubscribed(frame.topic)) {
+            // Forwarded for subscribers further on, but not for us
+            topicFiltered.increment();
+            return;
+        }
+        String message;
+        try {
+            message = frame.innerJson();
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Dropping malformed relayed message from " + frame.origin + ": " + e.getMessage());
+            return;
+        }
+        deliver(link, message, frame, 0);
+    }
+    
+    /**
+     * A peer changed what it, or devices behind it, subscribe to; anything
+     * past its limit is ignored. Other relaying peers hear what changed for
+     * them.
+     */
+    private void onTopicFrame(WebSocket conn, PeerLink link, ByteBuffer bytes) {
+        TopicFrame frame;
+        try {
+            frame = TopicFrame.parse(bytes);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Dropping malformed topic frame from " + link.clientId + ": " + e.getMessage());
+            return;
+        }
+        if (frame.op == TopicFrame.ROUTE) {
+            if (link.routesTopics) {
+                topicRoutes.update(conn, frame);
+            }
+        } else {
+            for (String topic : frame.topics) {
+                if (frame.op == TopicFrame.SUBSCRIBE) {
+                    remoteTopics.subscribe(conn, topic);
+                } else {
+                    remoteTopics.unsubscribe(conn, topic);
+                }
+            }
+        }
+        advertiseRoutes();
+    }
+    
+    /** Tell relaying peers that route topics which subscribers they can now reach through us. */
+    private void advertiseRoutes() {
+        if (relay == null) {
+            return;
+        }
+        List<WebSocket> neighbors = new ArrayList<>();
+        for (WebSocket conn : peers.primaries()) {
+            if (conn.isOpen()) {
+                neighbors.add(conn);
+            }
+        }
+        topicRoutes.advertise(neighbors, conn -> ((PeerLink) conn.getAttachment()).routesTopics, remoteTopics,
+                (conn, changes) -> {
+                    for (ByteBuffer frame : TopicFrame.encodeRoutes(changes)) {
+                        sender.enqueue(conn, OutboundMessage.binary(frame));
+                    }
+                });
+    }
+    
+    private boolean isSubscribed(String topic) {
+        synchronized (localTopics) {
+            return localTopics.contains(topic);
+        }
+    }
+    
+    /**
+     * Hand a message to JS; {@code relayed} is set for messages that came
+     * through the mesh and {@code seq} for sequenced ones, which the sender
+     * learns about from our ack.
+     */
+    private void deliver(PeerLink link, String message, RelayFrame relayed, long seq) {
+        InboundBatcher.Entry entry = InboundBatcher.Entry.of(link, message, relayed, seq);
+        InboundBatcher batcher = inboundBatcher;
+        if (batcher != null) {
+            batcher.add(entry);
+            return;
+        }
+        notifyListeners("messageReceived", toJS(entry));
+    }
+    
+    private static JSObject toJS(InboundBatcher.Entry entry) {
+        JSObject data = new JSObject();
+        data.put("clientId", entry.clientId);
+        data.put("data", entry.message);
+        if (entry.origin != null) {
+            data.put("origin", entry.origin);
+            data.put("hops", entry.hops);
+        }
+        if (entry.seq > 0) {
+            data.put("seq", entry.seq);
+        }
+        return data;
+    }
+    
+    /** Take the acks a frame carries, then deliver its message if it is the next one in order. */
+    private void onReliableFrame(WebSocket conn, PeerLink link, ByteBuffer bytes) {
+        ReliableSession session = link.session;
+        if (session == null) {
+            return;
+        }
+        ReliableFrame frame;
+        try {
+            frame = ReliableFrame.parse(bytes);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Dropping malformed frame from " + link.clientId + ": " + e.getMessage());
+            return;
+        }
+        if (frame.ack != null) {
+            onAck(conn, link, frame.ack);
+        }
+        if (frame.kind != ReliableFrame.DATA) {
+            return;
+        }
+        
+        String message;
+        try {
+            message = frame.innerJson();
+        } catch (IllegalArgumentException e) {
+            // Still consumes its sequence number, or everything after it would wait forever
+            Log.w(TAG, "Dropping malformed message from " + link.clientId + ": " + e.getMessage());
+            message = null;
+        }
+        for (ReliableSession.Delivery delivery : session.onData(frame.epoch, frame.seq, frame.floor, message)) {
+            if (delivery.message != null) {
+                deliver(link, delivery.message, null, delivery.seq);
+            }
+        }
+        if (session.ackDue(ackEvery)) {
+            sendAck(conn, session);
+        }
+    }
+    
+    private void onAck(WebSocket conn, PeerLink link, ReliableSession.Ack ack) {
+        long now = System.nanoTime();
+        List<Long> acked = link.session.onAck(ack, now - holeResendNanos);
+        if (!acked.isEmpty()) {
+            synchronized (deliveries) {
+                JSObject entry = deliveries.get(link.deviceId);
+                if (entry == null) {
+                    entry = new JSObject();
+                    entry.put("deviceId", link.deviceId);
+                    entry.put("seqs", new JSArray());
+                    deliveries.put(link.deviceId, entry);
+                }
+                entry.put("clientId", link.clientId);
+                JSArray seqs = (JSArray) entry.opt("seqs");
+                for (Long seq : acked) {
+                    seqs.put(seq);
+                }
+            }
+        }
+        if (ack.ranges.length > 0) {
+            // The peer is missing something before what it got; resend the holes
+            scheduleRetransmit(conn, link, now - retransmitTimeoutNanos, 0);
+        }
+    }
+    
+    private void sendAck(WebSocket conn, ReliableSession session) {
+        ReliableSession.Ack ack = session.takeAck();
+        if (ack == null) {
+            return;
+        }
+        BinaryFrame frame = new BinaryFrame();
+        frame.setPayload(ReliableFrame.ack(ack));
+        try {
+            conn.sendFrame(frame);
+            acksSent.increment();
+        } catch (WebsocketNotConnectedException e) {
+            session.ackLost();
+        }
+    }
+    
+    private synchronized void scheduleAckTimer(int intervalMs) {
+        if (ackTask != null) {
+            ackTask.cancel(false);
+            ackTask = null;
+        }
+        if (intervalMs > 0) {
+            ackTask = executor().scheduleWithFixedDelay(
+                    this::onAckTimer, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Send the acks that weren't piggybacked on data, resend what has gone
+     * unacknowledged too long, and report newly delivered messages to JS in
+     * one event.
+     */
+    private void onAckTimer() {
+        sessions.evictExpired();
+        long now = System.nanoTime();
+        for (WebSocket conn : peers.primaries()) {
+            PeerLink link = conn.getAttachment();
+            if (link.session == null || !conn.isOpen()) {
+                continue;
+            }
+            sendAck(conn, link.session);
+            retransmit(conn, link, now - retransmitTimeoutNanos);
+        }
+        
+        JSArray delivered;
+        synchronized (deliveries) {
+            if (deliveries.isEmpty()) {
+                return;
+            }
+            delivered = new JSArray();
+            for (JSObject entry : deliveries.values()) {
+                delivered.put(entry);
+            }
+            deliveries.clear();
+        }
+        JSObject data = new JSObject();
+        data.put("deliveries", delivered);
+        notifyListeners("messagesDelivered", data);
+    }
+    
+    private void scheduleRetransmit(WebSocket conn, PeerLink link, long sentBeforeNanos, long delayMs) {
+        try {
+            executor().schedule(() -> retransmit(conn, link, sentBeforeNanos), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Stopping; the window is resent on the next connection
+        }
+    }
+    
+    /**
+     * Resend unacknowledged messages last sent before {@code sentBeforeNanos},
+     * oldest first, in batches with the same backpressure as a drain.
+     */
+    private void retransmit(WebSocket conn, PeerLink link, long sentBeforeNanos) {
+        if (!conn.isOpen() || link.redundant) {
+            return;
+        }
+        if (conn.hasBufferedData()) {
+            scheduleRetransmit(conn, link, sentBeforeNanos, PeerSender.BACKPRESSURE_RETRY_MS);
+            return;
+        }
+        List<ReliableSession.Pending> due =
+                link.session.due(sentBeforeNanos, System.nanoTime(), PeerSender.DRAIN_BATCH);
+        if (due.isEmpty()) {
+            return;
+        }
+        
+        List<Framedata> frames = new ArrayList<>(due.size());
+        long bytes = 0;
+        for (ReliableSession.Pending pending : due) {
+            DataFrame frame = PeerSender.toFrame(link, pending.message);
+            bytes += frame.getPayloadData().remaining();
+            frames.add(frame);
+        }
+        try {
+            conn.sendFrame(frames);
+        } catch (WebsocketNotConnectedException e) {
+            return;
+        }
+        retransmits.add(frames.size());
+        link.traffic.recordOut(frames.size(), bytes);
+        traffic.recordOut(frames.size(), bytes);
+        if (due.size() == PeerSender.DRAIN_BATCH) {
+            scheduleRetransmit(conn, link, sentBeforeNanos, 0);
+        }
+    }
+    
+    @PluginMethod
+    public void relay(PluginCall call) {
+        String data = call.getString("data");
+        
+        if (data == null) {
+            call.reject("data is required");
+            return;
+        }
+        MeshRelay mesh = relay;
+        if (mesh == null) {
+            call.reject("Relay is disabled");
+            return;
+        }
+        
+        long messageId = mesh.originate(data, call.getString("deviceId"), call.getInt("ttl", 0));
+        JSObject result = new JSObject();
+        result.put("messageId", Long.toHexString(messageId));
+        call.resolve(result);
+    }
+    
+    /**
+     * Subscribe this device to topics (rooms, call ids, ...). Peers are told
+     * natively, and from then on send us what is published to them.
+     */
+    @PluginMethod
+    public void subscribe(PluginCall call) {
+        updateTopics(call, TopicFrame.SUBSCRIBE);
+    }
+    
+    @PluginMethod
+    public void unsubscribe(PluginCall call) {
+        updateTopics(call, TopicFrame.UNSUBSCRIBE);
+    }
+    
+    private void updateTopics(PluginCall call, int op) {
+        JSArray requested = call.getArray("topics");
+        if (requested == null) {
+            call.reject("topics is required");
+            return;
+        }
+        List<String> changed = new ArrayList<>();
+        JSArray rejected = new JSArray();
+        synchronized (localTopics) {
+            for (int i = 0; i < requested.length(); i++) {
+                String topic = requested.optString(i);
+                if (op == TopicFrame.UNSUBSCRIBE) {
+                    if (localTopics.remove(topic)) {
+                        changed.add(topic);
+                    }
+                } else if (!TopicIndex.isValid(topic) || (!localTopics.contains(topic)
+                        && localTopics.size() >= TopicIndex.DEFAULT_MAX_TOPICS)) {
+                    rejected.put(topic);
+                } else if (localTopics.add(topic)) {
+                    changed.add(topic);
+                }
+            }
+        }
+        
+        if (!changed.isEmpty()) {
+            ByteBuffer frame = TopicFrame.encode(op, changed);
+            for (WebSocket conn : peers.all()) {
+                if (conn.isOpen() && ((PeerLink) conn.getAttachment()).topics) {
+                    sender.enqueue(conn, OutboundMessage.binary(frame.duplicate()));
+                }
+            }
+        }
+        
+        JSObject result = new JSObject();
+        result.put("topics", new JSArray(currentTopics()));
+        result.put("rejected", rejected);
+        call.resolve(result);
+    }
+    
+    private List<String> currentTopics() {
+        synchronized (localTopics) {
+            return new ArrayList<>(localTopics);
+        }
+    }
+    
+    /**
+     * Send a message to the peers subscribed to a topic. Peers that don't
+     * do topic subscriptions get it regardless, as with broadcast, and
+     * filter it themselves. With the topology manager on, subscribers may
+     * be more than a hop away: if a relaying peer has one behind it, or
+     * doesn't say, the message goes through the relay instead, to the
+     * neighbors that want it and from there on towards the subscribers.
+     * Relaying peers that don't route topics still get every such message.
+     */
+    @PluginMethod
+    public void publish(PluginCall call) {
+        String topic = call.getString("topic");
+        String data = call.getString("data");
+        
+        if (topic == null || data == null) {
+            call.reject("topic and data are required");
+            return;
+        }
+        
+        published.increment();
+        MeshRelay mesh = relay;
+        if (topology != null && mesh != null && reachesBeyondNeighbors(topic)) {
+            mesh.originate(data, null, Integer.MAX_VALUE, topic);
+            JSObject result = new JSObject();
+            result.put("relayed", true);
+            call.resolve(result);
+            return;
+        }
+        
+        OutboundMessage message = new OutboundMessage(data);
+        Set<WebSocket> drains = new HashSet<>();
+        int sent = 0;
+        int skipped = 0;
+        for (WebSocket conn : peers.primaries()) {
+            if (!conn.isOpen()) {
+                continue;
+            }
+            PeerLink link = conn.getAttachment();
+            if (link.topics && !remoteTopics.isSubscribed(conn, topic)) {
+                skipped++;
+                continue;
+            }
+            OutboundQueue.Result queued = sender.enqueue(conn, message, drains);
+            if (queued != OutboundQueue.Result.REJECTED && queued != OutboundQueue.Result.OVERFLOW_DISCONNECT) {
+                sent++;
+            }
+        }
+        sender.startDrains(drains);
+        publishSkipped.add(skipped);
         
-        try {
-            if (server != null) {
-                server.stop();
+        JSObject result = new JSObject();
+        result.put("sent", sent);
+        result.put("skipped", skipped);
+        call.resolve(result);
+    }
+    
+    /** Whether a relaying peer has a subscriber to {@code topic} behind it, or can't tell us. */
+    private boolean reachesBeyondNeighbors(String topic) {
+        for (WebSocket conn : peers.primaries()) {
+            PeerLink link = conn.getAttachment();
+            if (conn.isOpen() && link.relays && (!link.routesTopics || topicRoutes.reaches(conn, topic))) {
+                return true;
             }
-            
-            server = new LANChatServer(new InetSocketAddress(port));
-            server.start();
-            
-            JSObject result = new JSObject();
-            result.put("port", port);
-            call.resolve(result);
-            
-            Log.d(TAG, "WebSocket server started on port " + port);
-        } catch (Exception e) {
-            call.reject("Failed to start server", e);
         }
+        return false;
     }
     
-    @PluginMethod
-    public void stop(PluginCall call) {
-        try {
-            // Close all peer connections
-            for (WebSocketClient client : peerConnections.values()) {
-                client.close();
+    private List<MeshRelay.Neighbor> relayNeighbors() {
+        List<WebSocket> primaries = peers.primaries();
+        List<MeshRelay.Neighbor> neighbors = new ArrayList<>(primaries.size());
+        for (WebSocket conn : primaries) {
+            if (conn.isOpen()) {
+                neighbors.add(((PeerLink) conn.getAttachment()).neighbor);
             }
-            peerConnections.clear();
-            serverClients.clear();
-            
-            if (server != null) {
-                server.stop();
-                server = null;
+        }
+        return neighbors;
+    }
+    
+    /** A connection as the relay sees it; writes go through the connection's queue like any send. */
+    private class RelayNeighbor implements MeshRelay.Neighbor {
+        private final WebSocket conn;
+        
+        RelayNeighbor(WebSocket conn) {
+            this.conn = conn;
+        }
+        
+        @Override
+        public String deviceId() {
+            return ((PeerLink) conn.getAttachment()).deviceId;
+        }
+        
+        @Override
+        public boolean relays() {
+            return ((PeerLink) conn.getAttachment()).relays;
+        }
+        
+        @Override
+        public boolean wants(String topic) {
+            PeerLink link = conn.getAttachment();
+            if (!link.topics || remoteTopics.isSubscribed(conn, topic)) {
+                return true;
             }
-            
-            call.resolve();
-            Log.d(TAG, "WebSocket server stopped");
-        } catch (Exception e) {
-            call.reject("Failed to stop server", e);
+            return link.relays && (!link.routesTopics || topicRoutes.reaches(conn, topic));
+        }
+        
+        @Override
+        public void sendRelay(ByteBuffer frame) {
+            sender.enqueue(conn, OutboundMessage.binary(frame));
+        }
+        
+        @Override
+        public void sendPlain(String json) {
+            sender.enqueue(conn, new OutboundMessage(json));
         }
     }
     
+    private void notifyBatch(List<InboundBatcher.Entry> entries) {
+        JSArray batch = new JSArray();
+        for (InboundBatcher.Entry entry : entries) {
+            batch.put(toJS(entry));
+        }
+        
+        JSObject data = new JSObject();
+        data.put("messages", batch);
+        notifyListeners("messagesReceived", data);
+    }
+    
+    /** Deliver pending batched messages, so they reach JS before a connect/disconnect event. */
+    private void flushInbound() {
+        InboundBatcher batcher = inboundBatcher;
+        if (batcher != null) {
+            batcher.flush();
+        }
+    }
+    
+    /**
+     * Send a file path or content:// URI natively in binary chunks, without
+     * the data passing through JS. Progress and the outcome come as
+     * transfer events; a dropped connection resumes where it stopped.
+     */
     @PluginMethod
-    public void send(PluginCall call) {
+    public void sendFile(PluginCall call) {
         String clientId = call.getString("clientId");
-        String data = call.getString("data");
+        String path = call.getString("path");
         
-        if (clientId == null || data == null) {
-            call.reject("clientId and data are required");
+        if (clientId == null || path == null) {
+            call.reject("clientId and path are required");
             return;
         }
-        
-        // Try server clients first
-        WebSocket serverClient = serverClients.get(clientId);
-        if (serverClient != null && serverClient.isOpen()) {
-            serverClient.send(data);
-            call.resolve();
+        FileTransfers transfers = fileTransfers;
+        if (transfers == null) {
+            call.reject("File transfer is disabled");
+            return;
+        }
+        WebSocket target = findConnection(clientId);
+        if (target == null) {
+            call.reject("Client not found: " + clientId);
+            return;
+        }
+        PeerLink link = target.getAttachment();
+        if (link.files == null) {
+            call.reject("Peer does not accept files: " + clientId);
             return;
         }
         
-        // Try peer connections
-        WebSocketClient peerClient = peerConnections.get(clientId);
-        if (peerClient != null && peerClient.isOpen()) {
-            peerClient.send(data);
-            call.resolve();
+        Uri uri = Uri.parse(path);
+        String name = call.getString("name");
+        String mimeType = call.getString("mimeType");
+        FileChannel channel;
+        long size;
+        try {
+            if ("content".equals(uri.getScheme())) {
+                ParcelFileDescriptor descriptor = getContext().getContentResolver().openFileDescriptor(uri, "r");
+                if (descriptor == null) {
+                    throw new FileNotFoundException(path);
+                }
+                channel = new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel();
+                size = descriptor.getStatSize();
+                if (name == null) {
+                    name = uri.getLastPathSegment();
+                }
+                if (mimeType == null) {
+                    mimeType = getContext().getContentResolver().getType(uri);
+                }
+            } else {
+                File file = new File("file".equals(uri.getScheme()) ? uri.getPath() : path);
+                channel = new FileInputStream(file).getChannel();
+                size = channel.size();
+                if (name == null) {
+                    name = file.getName();
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            call.reject("Cannot read " + path, e);
+            return;
+        }
+        if (size < 0) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Not sending it anyway
+            }
+            call.reject("Cannot send a file of unknown size: " + path);
             return;
         }
         
-        call.reject("Client not found: " + clientId);
+        FileTransfers.Transfer transfer = transfers.send(link.files, channel, size,
+                name != null ? name : "file", mimeType != null ? mimeType : "application/octet-stream");
+        JSObject result = new JSObject();
+        result.put("transferId", Long.toHexString(transfer.id));
+        result.put("size", size);
+        result.put("name", transfer.name);
+        call.resolve(result);
     }
     
     @PluginMethod
-    public void broadcast(PluginCall call) {
-        String data = call.getString("data");
+    public void cancelTransfer(PluginCall call) {
+        String transferId = call.getString("transferId");
         
-        if (data == null) {
-            call.reject("data is required");
+        if (transferId == null) {
+            call.reject("transferId is required");
+            return;
+        }
+        FileTransfers transfers = fileTransfers;
+        long id;
+        try {
+            id = new BigInteger(transferId, 16).longValue();
+        } catch (NumberFormatException e) {
+            call.reject("Invalid transferId: " + transferId);
+            return;
+        }
+        if (transfers == null || !transfers.cancel(id)) {
+            call.reject("Transfer not found: " + transferId);
+            return;
+        }
+        call.resolve();
+    }
+    
+    private void onFileFrame(PeerLink link, ByteBuffer bytes) {
+        FileTransfers transfers = fileTransfers;
+        if (transfers == null || link.files == null) {
             return;
         }
+        try {
+            transfers.onFrame(link.files, bytes);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Dropping malformed file frame from " + link.clientId + ": " + e.getMessage());
+        }
+    }
+    
+    private static JSObject transferJson(FileTransfers.Transfer transfer) {
+        JSObject data = new JSObject();
+        data.put("transferId", Long.toHexString(transfer.id));
+        data.put("direction", transfer.outgoing ? "send" : "receive");
+        data.put("deviceId", transfer.deviceId);
+        data.put("name", transfer.name);
+        data.put("mimeType", transfer.mimeType);
+        data.put("size", transfer.size);
+        data.put("bytes", transfer.bytes);
+        return data;
+    }
+    
+    private class TransferEvents implements FileTransfers.Listener {
+        @Override
+        public void onStarted(FileTransfers.Transfer transfer) {
+            notifyListeners("transferStarted", transferJson(transfer));
+        }
         
-        // Send to all server clients
-        for (WebSocket client : serverClients.values()) {
-            if (client.isOpen()) {
-                client.send(data);
-            }
+        @Override
+        public void onProgress(FileTransfers.Transfer transfer) {
+            notifyListeners("transferProgress", transferJson(transfer));
         }
         
-        // Send to all peer connections
-        for (WebSocketClient client : peerConnections.values()) {
-            if (client.isOpen()) {
-                client.send(data);
+        @Override
+        public void onCompleted(FileTransfers.Transfer transfer) {
+            JSObject data = transferJson(transfer);
+            if (!transfer.outgoing) {
+                data.put("path", transfer.file.getAbsolutePath());
             }
+            notifyListeners("transferCompleted", data);
+            Log.d(TAG, "Transfer " + Long.toHexString(transfer.id) + " completed: " + transfer.name);
         }
         
-        call.resolve();
+        @Override
+        public void onFailed(FileTransfers.Transfer transfer, String error) {
+            JSObject data = transferJson(transfer);
+            data.put("error", error);
+            notifyListeners("transferFailed", data);
+            Log.w(TAG, "Transfer " + Long.toHexString(transfer.id) + " failed: " + error);
+        }
+    }
+    
+    /** A connection as file transfers see it; chunks bypass the message queue and go straight to the socket. */
+    private class FilePeer implements FileTransfers.Peer {
+        private final WebSocket conn;
+        private final String deviceId;
+        
+        FilePeer(WebSocket conn, String deviceId) {
+            this.conn = conn;
+            this.deviceId = deviceId;
+        }
+        
+        @Override
+        public String deviceId() {
+            return deviceId;
+        }
+        
+        @Override
+        public boolean send(ByteBuffer frame) {
+            int bytes = frame.remaining();
+            BinaryFrame binary = new BinaryFrame();
+            binary.setPayload(frame);
+            try {
+                // Copied into the library's own buffer before this returns
+                conn.sendFrame(binary);
+            } catch (WebsocketNotConnectedException e) {
+                return false;
+            }
+            PeerLink link = conn.getAttachment();
+            link.traffic.recordOut(bytes);
+            traffic.recordOut(bytes);
+            return true;
+        }
     }
     
     @PluginMethod
@@ -140,63 +1759,447 @@ public class WebSocketServerPlugin extends Plugin {
         
         String clientId = ip + ":" + port;
         
-        // Don't reconnect if already connected
-        if (peerConnections.containsKey(clientId)) {
+        // Don't reconnect if already connected, in either direction
+        WebSocket existing = peers.get(clientId);
+        if (existing == null) {
+            existing = peers.findByHost(ip);
+        }
+        if (existing != null) {
+            PeerLink link = existing.getAttachment();
             JSObject result = new JSObject();
             result.put("clientId", clientId);
+            if (link.deviceId != null) {
+                peers.alias(clientId, link.deviceId);
+                result.put("deviceId", link.deviceId);
+            }
+            result.put("state", PeerDial.State.OPEN.jsName());
             call.resolve(result);
             return;
         }
         
         try {
-            URI uri = new URI("ws://" + ip + ":" + port);
-            WebSocketClient client = new WebSocketClient(uri) {
-                @Override
-                public void onOpen(ServerHandshake handshake) {
-                    peerConnections.put(clientId, this);
-                    
-                    JSObject data = new JSObject();
-                    data.put("clientId", clientId);
-                    notifyListeners("clientConnected", data);
-                    
-                    Log.d(TAG, "Connected to peer: " + clientId);
-                }
-                
-                @Override
-                public void onMessage(String message) {
-                    JSObject data = new JSObject();
-                    data.put("clientId", clientId);
-                    data.put("data", message);
-                    notifyListeners("messageReceived", data);
-                }
-                
-                @Override
-                public void onClose(int code, String reason, boolean remote) {
-                    peerConnections.remove(clientId);
-                    
-                    JSObject data = new JSObject();
-                    data.put("clientId", clientId);
-                    notifyListeners("clientDisconnected", data);
-                    
-                    Log.d(TAG, "Disconnected from peer: " + clientId);
-                }
-                
-                @Override
-                public void onError(Exception ex) {
-                    Log.e(TAG, "Peer connection error: " + ex.getMessage());
-                }
-            };
-            
-            client.connect();
-            
             JSObject result = new JSObject();
             result.put("clientId", clientId);
+            PeerDial.State state = dials.ensure(clientId, ip, port,
+                    call.getBoolean("compression", compression),
+                    call.getInt("compressionThreshold", compressionThreshold));
+            result.put("state", state.jsName());
             call.resolve(result);
         } catch (Exception e) {
             call.reject("Failed to connect to peer", e);
         }
     }
     
+    /** The client for a connect attempt of {@code dials}; runs with its lock held. */
+    private WebSocketClient newDialClient(PeerDial dial) throws URISyntaxException {
+        URI uri = new URI("ws://" + dial.ip + ":" + dial.port);
+        Map<String, String> headers = new HashMap<>();
+        if (binaryFrames) {
+            headers.put(SignalingCodec.PROTOCOL_HEADER, String.valueOf(SignalingCodec.PROTOCOL_VERSION));
+        }
+        if (peers.localDeviceId() != null) {
+            headers.put(PeerRegistry.DEVICE_HEADER, peers.localDeviceId());
+        }
+        if (relay != null) {
+            headers.put(RelayFrame.HEADER, String.valueOf(RelayFrame.VERSION));
+        }
+        if (acks) {
+            headers.put(ReliableFrame.HEADER, String.valueOf(ReliableFrame.VERSION));
+        }
+        if (fileTransfers != null) {
+            headers.put(FileFrame.HEADER, String.valueOf(FileFrame.VERSION));
+        }
+        if (topics) {
+            headers.put(TopicFrame.HEADER, String.valueOf(TopicFrame.VERSION));
+        }
+        Draft draft = newDraft(dial.compression, dial.compressionThreshold);
+        WebSocketClient client = new WebSocketClient(uri, draft, headers) {
+            @Override
+            public void onOpen(ServerHandshake handshake) {
+                dials.opened(dial, this);
+                onPeerOpen(this, dial.clientId, true, handshake);
+            }
+            
+            @Override
+            public void onMessage(String message) {
+                notifyMessage(getAttachment(), message);
+            }
+            
+            @Override
+            public void onMessage(ByteBuffer bytes) {
+                notifyBinaryMessage(this, bytes);
+            }
+            
+            @Override
+            public void onWebsocketPong(WebSocket conn, Framedata f) {
+                onPong(conn, f);
+            }
+            
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+                onPeerClose(this);
+                onDialClosed(dial, this, code);
+            }
+            
+            @Override
+            public void onError(Exception ex) {
+                Log.e(TAG, "Peer connection error: " + ex.getMessage());
+            }
+        };
+        
+        tuning.applyTo(client);
+        SocketFactory socketFactory = tuning.socketFactory();
+        if (socketFactory != null) {
+            client.setSocketFactory(socketFactory);
+        }
+        
+        return client;
+    }
+    
+    private void onDialClosed(PeerDial dial, WebSocketClient client, int code) {
+        PeerLink link = client.getAttachment();
+        MeshTopology manager = topology;
+        if (code == CLOSE_TOPOLOGY && manager != null && link != null && link.deviceId != null) {
+            // Over the peer's budget; it is reached through the relay until the cooldown ends
+            manager.onRefused(link.deviceId, System.nanoTime());
+        }
+        // Closed on purpose, or the device is reachable over its own connection to us
+        boolean retry = code != CloseFrame.NORMAL && code != CLOSE_DUPLICATE && code != CLOSE_TOPOLOGY;
+        long delay = dials.closed(dial, client, retry);
+        if (delay >= 0) {
+            Log.d(TAG, "Reconnecting to " + dial.clientId + " in " + delay + " ms");
+        }
+    }
+    
+    /**
+     * Swap the topology manager; null goes back to dialing every device
+     * discovery finds. Either way devices come from LanDiscovery directly.
+     */
+    private void startTopology(MeshTopology manager, int rebalanceIntervalMs) {
+        synchronized (this) {
+            if (rebalanceTask != null) {
+                rebalanceTask.cancel(false);
+                rebalanceTask = null;
+            }
+            topology = manager;
+            if (manager != null) {
+                for (WebSocket conn : peers.primaries()) {
+                    PeerLink link = conn.getAttachment();
+                    if (link.deviceId != null) {
+                        manager.onConnected(link.deviceId);
+                    }
+                }
+                if (rebalanceIntervalMs > 0) {
+                    // RTTs change without any event, so look again now and then
+                    rebalanceTask = executor().scheduleWithFixedDelay(this::rebalance,
+                            rebalanceIntervalMs, rebalanceIntervalMs, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        watchDiscovery(true);
+    }
+    
+    /** Follow LanDiscovery's peer table, or stop; logs once if there is none to follow. */
+    private void watchDiscovery(boolean watch) {
+        PluginHandle handle = getBridge() != null ? getBridge().getPlugin("LanDiscovery") : null;
+        Plugin discovery = handle != null ? handle.getInstance() : null;
+        if (discovery instanceof LanDiscoveryPlugin) {
+            ((LanDiscoveryPlugin) discovery).setPeersListener(watch ? this::onPeersChanged : null);
+        } else if (topology != null) {
+            Log.w(TAG, "LanDiscovery not available; topology has no devices to choose from");
+        }
+    }
+    
+    /**
+     * Discovered devices become topology candidates, or without topology
+     * are dialed as they appear, so the peers cached from the last run come
+     * up before JS has even started. Those without a device id in their TXT
+     * record are left to JS. Devices that expired lose their ack session
+     * unless they are still connected.
+     */
+    private void onPeersChanged(PeerTable.Delta delta) {
+        for (PeerTable.Peer peer : delta.removed) {
+            if (peer.attributes.deviceId != null) {
+                sessions.expire(peer.attributes.deviceId);
+            }
+        }
+        MeshTopology manager = topology;
+        if (manager == null) {
+            for (PeerTable.Peer peer : delta.added) {
+                if (peer.attributes.deviceId != null) {
+                    dialDiscovered(peer.attributes.deviceId, peer.ip, peer.port);
+                }
+            }
+            return;
+        }
+        if (delta.reset) {
+            manager.clearCandidates();
+        }
+        for (PeerTable.Peer peer : delta.removed) {
+            if (peer.attributes.deviceId != null) {
+                manager.remove(peer.attributes.deviceId);
+            }
+        }
+        List<PeerTable.Peer> changed = new ArrayList<>(delta.added);
+        changed.addAll(delta.updated);
+        for (PeerTable.Peer peer : changed) {
+            if (peer.attributes.deviceId != null) {
+                manager.upsert(new MeshTopology.Candidate(peer.attributes.deviceId, peer.ip, peer.port,
+                        peer.attributes.connections));
+            }
+        }
+        scheduleRebalance(REBALANCE_DELAY_MS);
+    }
+    
+    /** Dial a discovered device unless we are already linked to it, in either direction. */
+    private void dialDiscovered(String deviceId, String ip, int port) {
+        if (peers.get(deviceId) != null || peers.findByHost(ip) != null) {
+            return;
+        }
+        try {
+            dials.ensure(ip + ":" + port, ip, port, compression, compressionThreshold);
+        } catch (URISyntaxException e) {
+            Log.w(TAG, "Bad address for " + deviceId + ": " + ip);
+        }
+    }
+    
+    /** Rebalance once things settle, e.g. after several devices connect together. */
+    private synchronized void scheduleRebalance(long delayMs) {
+        if (topology == null || (rebalanceSoon != null && !rebalanceSoon.isDone())) {
+            return;
+        }
+        try {
+            rebalanceSoon = executor().schedule(this::rebalance, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            rebalanceSoon = null;
+        }
+    }
+    
+    /** Dial the devices the manager wants and close the links it can do without. */
+    private void rebalance() {
+        MeshTopology manager = topology;
+        if (manager == null) {
+            return;
+        }
+        for (WebSocket conn : peers.primaries()) {
+            PeerLink link = conn.getAttachment();
+            if (link.deviceId != null) {
+                manager.onRtt(link.deviceId, link.health.rttMs());
+            }
+        }
+        MeshTopology.Plan plan = manager.plan(System.nanoTime());
+        for (MeshTopology.Candidate candidate : plan.dial) {
+            if (peers.get(candidate.deviceId) != null || peers.findByHost(candidate.ip) != null) {
+                continue;
+            }
+            try {
+                dials.ensure(candidate.ip + ":" + candidate.port, candidate.ip, candidate.port,
+                        compression, compressionThreshold);
+                topologyDials.increment();
+            } catch (URISyntaxException e) {
+                Log.w(TAG, "Bad address for " + candidate.deviceId + ": " + candidate.ip);
+            }
+        }
+        for (String deviceId : plan.drop) {
+            WebSocket conn = peers.get(deviceId);
+            if (conn == null) {
+                continue;
+            }
+            PeerLink link = conn.getAttachment();
+            if (link.outbound) {
+                dials.cancel(link.clientId);
+            }
+            topologyDrops.increment();
+            Log.d(TAG, "Closing " + link.clientId + " to stay within the connection budget");
+            conn.close(CLOSE_TOPOLOGY, "Over connection budget");
+        }
+    }
+    
+    @PluginMethod
+    public void getPeerStats(PluginCall call) {
+        JSObject result = new JSObject();
+        result.put("peers", peerStats());
+        call.resolve(result);
+    }
+    
+    private synchronized void schedulePeerMonitoring(int pingIntervalMs, int statsIntervalMs) {
+        if (pingTask != null) {
+            pingTask.cancel(false);
+            pingTask = null;
+        }
+        if (peerStatsTask != null) {
+            peerStatsTask.cancel(false);
+            peerStatsTask = null;
+        }
+        if (pingIntervalMs > 0) {
+            pingTask = executor().scheduleWithFixedDelay(
+                    this::pingPeers, pingIntervalMs, pingIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        if (statsIntervalMs > 0) {
+            peerStatsTask = executor().scheduleWithFixedDelay(() -> {
+                JSObject data = new JSObject();
+                data.put("peers", peerStats());
+                notifyListeners("peerStats", data);
+            }, statsIntervalMs, statsIntervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /** Send the next timestamped ping on every connection, dropping ones that stopped answering. */
+    private void pingPeers() {
+        long now = System.nanoTime();
+        for (WebSocket conn : peers.all()) {
+            PeerLink link = conn.getAttachment();
+            if (!conn.isOpen()) {
+                continue;
+            }
+            ByteBuffer payload = link.health.nextPing(now);
+            if (link.health.consecutiveMissed() >= maxMissedPongs) {
+                Log.w(TAG, "No pong from " + link.clientId + " for " + maxMissedPongs + " pings, closing");
+                conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Ping timeout");
+                continue;
+            }
+            PingFrame ping = new PingFrame();
+            ping.setPayload(payload);
+            try {
+                conn.sendFrame(ping);
+            } catch (WebsocketNotConnectedException e) {
+                // Closed in the meantime; onClose cleans up
+            }
+        }
+    }
+    
+    private void onPong(WebSocket conn, Framedata frame) {
+        PeerLink link = conn.getAttachment();
+        if (link != null) {
+            link.health.onPong(frame.getPayloadData(), System.nanoTime());
+        }
+    }
+    
+    private JSArray peerStats() {
+        JSArray result = new JSArray();
+        long now = System.nanoTime();
+        for (WebSocket conn : peers.primaries()) {
+            PeerLink link = conn.getAttachment();
+            PeerHealth health = link.health;
+            JSObject stats = new JSObject();
+            stats.put("clientId", link.clientId);
+            if (link.deviceId != null) {
+                stats.put("deviceId", link.deviceId);
+            }
+            if (health.rttMs() >= 0) {
+                stats.put("rttMs", MetricsJson.round(health.rttMs()));
+                stats.put("minRttMs", MetricsJson.round(health.minRttMs()));
+                stats.put("jitterMs", MetricsJson.round(health.jitterMs()));
+            }
+            stats.put("loss", MetricsJson.round(health.loss()));
+            stats.put("pingsSent", health.pingsSent());
+            stats.put("pongsReceived", health.pongsReceived());
+            stats.put("missedPongs", health.consecutiveMissed());
+            if (health.lastPongNanos() != 0) {
+                stats.put("lastPongAgoMs", TimeUnit.NANOSECONDS.toMillis(now - health.lastPongNanos()));
+            }
+            result.put(stats);
+        }
+        return result;
+    }
+    
+    @PluginMethod
+    public void getMetrics(PluginCall call) {
+        call.resolve(metrics());
+    }
+    
+    private synchronized void scheduleMetricsEvent(int intervalMs) {
+        if (metricsTask != null) {
+            metricsTask.cancel(false);
+            metricsTask = null;
+        }
+        if (intervalMs > 0) {
+            metricsTask = executor().scheduleWithFixedDelay(
+                    () -> notifyListeners("metrics", metrics()), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    private JSObject metrics() {
+        JSArray perPeer = new JSArray();
+        for (WebSocket conn : peers.all()) {
+            PeerLink link = conn.getAttachment();
+            JSObject peer = MetricsJson.traffic(link.traffic);
+            peer.put("clientId", link.clientId);
+            if (link.deviceId != null) {
+                peer.put("deviceId", link.deviceId);
+            }
+            perPeer.put(peer);
+        }
+        
+        JSObject result = new JSObject();
+        result.put("totals", MetricsJson.traffic(traffic));
+        result.put("peers", perPeer);
+        result.put("sendFailures", sendFailures.sum());
+        result.put("connects", connects.sum());
+        result.put("disconnects", disconnects.sum());
+        result.put("reconnectAttempts", reconnectAttempts.sum());
+        result.put("reconnects", reconnects.sum());
+        result.put("sendLatency", MetricsJson.latency(sendLatency));
+        MeshRelay mesh = relay;
+        if (mesh != null) {
+            JSObject relayed = new JSObject();
+            relayed.put("originated", mesh.originated.sum());
+            relayed.put("delivered", mesh.delivered.sum());
+            relayed.put("forwarded", mesh.forwarded.sum());
+            relayed.put("duplicates", mesh.duplicates.sum());
+            relayed.put("expired", mesh.expired.sum());
+            relayed.put("rateLimited", mesh.rateLimited.sum());
+            relayed.put("filtered", mesh.filtered.sum());
+            relayed.put("rejected", mesh.rejected.sum());
+            result.put("relay", relayed);
+        }
+        if (acks) {
+            JSObject acked = new JSObject();
+            acked.put("unacked", sessions.unackedCount());
+            acked.put("sessions", sessions.size());
+            acked.put("sessionsEvicted", sessions.evicted.sum());
+            acked.put("retransmits", retransmits.sum());
+            acked.put("acksSent", acksSent.sum());
+            result.put("acks", acked);
+        }
+        MeshTopology manager = topology;
+        if (manager != null) {
+            JSObject links = new JSObject();
+            links.put("known", manager.known());
+            links.put("degree", manager.degree());
+            links.put("dials", topologyDials.sum());
+            links.put("drops", topologyDrops.sum());
+            links.put("relayedSends", relayedSends.sum());
+            result.put("topology", links);
+        }
+        JSObject topicStats = new JSObject();
+        topicStats.put("subscribed", currentTopics().size());
+        topicStats.put("remoteSubscriptions", remoteTopics.size());
+        topicStats.put("routes", topicRoutes.size());
+        topicStats.put("published", published.sum());
+        topicStats.put("skipped", publishSkipped.sum());
+        topicStats.put("filtered", topicFiltered.sum());
+        result.put("topics", topicStats);
+        JSObject warmStart = new JSObject();
+        warmStart.put("prewarmed", prewarmed);
+        long firstPeer = firstPeerNanos.get();
+        if (firstPeer != 0) {
+            warmStart.put("firstPeerMs", TimeUnit.NANOSECONDS.toMillis(firstPeer - createdNanos));
+        }
+        result.put("warmStart", warmStart);
+        FileTransfers transfers = fileTransfers;
+        if (transfers != null) {
+            JSObject files = new JSObject();
+            files.put("active", transfers.active().size());
+            files.put("bytesSent", transfers.bytesSent.sum());
+            files.put("bytesReceived", transfers.bytesReceived.sum());
+            files.put("completed", transfers.completed.sum());
+            files.put("failed", transfers.failed.sum());
+            result.put("files", files);
+        }
+        return result;
+    }
+    
     @PluginMethod
     public void disconnectFromPeer(PluginCall call) {
         String clientId = call.getString("clientId");
@@ -206,9 +2209,11 @@ public class WebSocketServerPlugin extends Plugin {
             return;
         }
         
-        WebSocketClient client = peerConnections.remove(clientId);
-        if (client != null) {
-            client.close();
+        dials.cancel(clientId);
+        WebSocket conn = findConnection(clientId);
+        if (conn != null) {
+            dials.cancel(((PeerLink) conn.getAttachment()).clientId);
+            conn.close();
         }
         
         call.resolve();
@@ -217,57 +2222,91 @@ public class WebSocketServerPlugin extends Plugin {
     @PluginMethod
     public void getConnectedClients(PluginCall call) {
         JSArray clients = new JSArray();
+        JSArray details = new JSArray();
         
-        for (String clientId : serverClients.keySet()) {
-            clients.put(clientId);
+        for (WebSocket conn : peers.primaries()) {
+            PeerLink link = conn.getAttachment();
+            clients.put(link.clientId);
+            
+            JSObject peer = new JSObject();
+            peer.put("clientId", link.clientId);
+            if (link.deviceId != null) {
+                peer.put("deviceId", link.deviceId);
+            }
+            peer.put("outbound", link.outbound);
+            peer.put("compression", isCompressed(conn));
+            details.put(peer);
         }
         
-        for (String clientId : peerConnections.keySet()) {
-            clients.put(clientId);
-        }
+        JSArray pending = new JSArray();
+        dials.forEachPending(dial -> {
+            JSObject entry = new JSObject();
+            entry.put("clientId", dial.clientId);
+            entry.put("state", dial.state.jsName());
+            entry.put("attempts", dial.attempts);
+            pending.put(entry);
+        });
         
         JSObject result = new JSObject();
         result.put("clients", clients);
+        result.put("peers", details);
+        result.put("pending", pending);
         call.resolve(result);
     }
     
-    private class LANChatServer extends WebSocketServer {
-        public LANChatServer(InetSocketAddress address) {
-            super(address);
+    private class LANChatServer extends TunedWebSocketServer {
+        public LANChatServer(InetSocketAddress address, SocketTuning tuning, Draft draft) {
+            super(address, tuning, Collections.singletonList(draft));
+        }
+        
+        @Override
+        public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(WebSocket conn, Draft draft,
+                ClientHandshake request) throws InvalidDataException {
+            ServerHandshakeBuilder builder = super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
+            if (binaryFrames && request.hasFieldValue(SignalingCodec.PROTOCOL_HEADER)) {
+                builder.put(SignalingCodec.PROTOCOL_HEADER, String.valueOf(SignalingCodec.PROTOCOL_VERSION));
+            }
+            if (request.hasFieldValue(PeerRegistry.DEVICE_HEADER) && peers.localDeviceId() != null) {
+                builder.put(PeerRegistry.DEVICE_HEADER, peers.localDeviceId());
+            }
+            if (request.hasFieldValue(RelayFrame.HEADER) && relay != null) {
+                builder.put(RelayFrame.HEADER, String.valueOf(RelayFrame.VERSION));
+            }
+            if (request.hasFieldValue(ReliableFrame.HEADER) && acks) {
+                builder.put(ReliableFrame.HEADER, String.valueOf(ReliableFrame.VERSION));
+            }
+            if (request.hasFieldValue(FileFrame.HEADER) && fileTransfers != null) {
+                builder.put(FileFrame.HEADER, String.valueOf(FileFrame.VERSION));
+            }
+            if (request.hasFieldValue(TopicFrame.HEADER) && topics) {
+                builder.put(TopicFrame.HEADER, String.valueOf(TopicFrame.VERSION));
+            }
+            return builder;
         }
         
         @Override
         public void onOpen(WebSocket conn, ClientHandshake handshake) {
-            String clientId = conn.getRemoteSocketAddress().toString();
-            serverClients.put(clientId, conn);
-            
-            JSObject data = new JSObject();
-            data.put("clientId", clientId);
-            notifyListeners("clientConnected", data);
-            
-            Log.d(TAG, "Client connected: " + clientId);
+            onPeerOpen(conn, conn.getRemoteSocketAddress().toString(), false, handshake);
         }
         
         @Override
         public void onClose(WebSocket conn, int code, String reason, boolean remote) {
-            String clientId = conn.getRemoteSocketAddress().toString();
-            serverClients.remove(clientId);
-            
-            JSObject data = new JSObject();
-            data.put("clientId", clientId);
-            notifyListeners("clientDisconnected", data);
-            
-            Log.d(TAG, "Client disconnected: " + clientId);
+            onPeerClose(conn);
         }
         
         @Override
         public void onMessage(WebSocket conn, String message) {
-            String clientId = conn.getRemoteSocketAddress().toString();
-            
-            JSObject data = new JSObject();
-            data.put("clientId", clientId);
-            data.put("data", message);
-            notifyListeners("messageReceived", data);
+            notifyMessage(conn.getAttachment(), message);
+        }
+        
+        @Override
+        public void onWebsocketPong(WebSocket conn, Framedata f) {
+            onPong(conn, f);
+        }
+        
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message) {
+            notifyBinaryMessage(conn, message);
         }
         
         @Override
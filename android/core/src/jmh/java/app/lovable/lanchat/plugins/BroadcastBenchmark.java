@@ -0,0 +1,76 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.WebSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One broadcast of a chat message through {@link PeerSender}: the
+ * registry's primary connections are looked up, the message is queued on
+ * each, and each queue is drained into the frames its connection writes.
+ * {@code sharedMessage} is what broadcast() does; {@code messagePerConnection}
+ * serializes per connection, as sending to each client separately would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"4", "16", "64"})
+    int peers;
+
+    @Param({"true", "false"})
+    boolean binaryFrames;
+
+    private final PeerRegistry registry = new PeerRegistry();
+    // Drains run here rather than on a writer thread
+    private final PeerSender sender =
+            new PeerSender(() -> null, new TrafficCounters(), new LatencyHistogram(), new LongAdder());
+    private final Set<WebSocket> drains = new HashSet<>();
+    private String json;
+
+    @Setup
+    public void setUp() throws Exception {
+        json = SignalingSamples.chat();
+        for (int i = 0; i < peers; i++) {
+            registry.add(Connections.open("10.0.0." + i + ":8765", "device-" + i, binaryFrames ? 1 : 0));
+        }
+    }
+
+    @Benchmark
+    public void sharedMessage() {
+        sender.broadcast(registry.primaries(), new OutboundMessage(json), drains);
+        drainAll();
+    }
+
+    @Benchmark
+    public void messagePerConnection() {
+        for (WebSocket conn : registry.primaries()) {
+            sender.enqueue(conn, new OutboundMessage(json), drains);
+        }
+        drainAll();
+    }
+
+    private void drainAll() {
+        for (WebSocket conn : drains) {
+            sender.drain(conn);
+        }
+        drains.clear();
+    }
+}
@@ -0,0 +1,73 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.TextFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What permessage-deflate costs on real signaling payloads: the sender's
+ * deflate and the receiver's inflate, for the JSON text frames and the
+ * binary codec frames. What it buys, the wire size with and without it, is
+ * printed once per payload. Frames are compressed whatever their size, so
+ * small payloads show what the threshold saves us from.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeflateBenchmark {
+    @Param({"offer", "ice", "typing", "seen", "chat"})
+    String message;
+
+    @Param({"true", "false"})
+    boolean binaryFrames;
+
+    private ByteBuffer payload;
+    private DataFrame compressed;
+
+    @Setup
+    public void setUp() throws Exception {
+        String json = SignalingSamples.byName(message);
+        payload = (binaryFrames ? SignalingCodec.encode(json)
+                : ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8))).asReadOnlyBuffer();
+        compressed = deflate();
+        System.out.printf("%s %s: %d B, %d B deflated%n", message, binaryFrames ? "binary" : "JSON",
+                payload.remaining(), compressed.getPayloadData().remaining());
+    }
+
+    @Benchmark
+    public DataFrame deflate() {
+        DataFrame frame = binaryFrames ? new BinaryFrame() : new TextFrame();
+        frame.setPayload(payload.duplicate());
+        frame.setFin(true);
+        new DeflateExtension(0).encodeFrame(frame);
+        return frame;
+    }
+
+    @Benchmark
+    public DataFrame inflate() throws Exception {
+        DataFrame frame = binaryFrames ? new BinaryFrame() : new TextFrame();
+        frame.setPayload(compressed.getPayloadData().duplicate());
+        frame.setFin(true);
+        frame.setRSV1(true);
+        new DeflateExtension(0).decodeFrame(frame);
+        return frame;
+    }
+}
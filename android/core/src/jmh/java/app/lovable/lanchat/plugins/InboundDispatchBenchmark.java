@@ -0,0 +1,105 @@
+package app.lovable.lanchat.plugins;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per received message of getting from the frame the socket hands us
+ * to the JSON string JS gets: the plugin's check of the first byte against
+ * each frame type, parsing the envelope and decoding the inner message.
+ * Relay forwarding and ack bookkeeping are left out. {@code batched} also
+ * hands each message to an {@link InboundBatcher}, as batchInbound does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InboundDispatchBenchmark {
+    private static final String CLIENT_ID = "10.0.0.1:8765";
+
+    @Param({"text", "signaling", "relay", "reliable"})
+    String frame;
+
+    private ByteBuffer bytes;
+    private boolean text;
+    private ScheduledExecutorService timer;
+    private InboundBatcher batcher;
+    private PeerLink link;
+    private Blackhole batches;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws Exception {
+        String json = SignalingSamples.iceCandidate();
+        ByteBuffer signaling = SignalingCodec.encode(json);
+        switch (frame) {
+            case "text":
+                bytes = ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+                text = true;
+                break;
+            case "signaling":
+                bytes = signaling;
+                break;
+            case "relay":
+                bytes = RelayFrame.encode(4, 42L, "device-a", null, true, signaling);
+                break;
+            default:
+                bytes = ReliableFrame.data(7L, 1, 1, null, true, signaling);
+        }
+        timer = Executors.newSingleThreadScheduledExecutor();
+        batches = blackhole;
+        batcher = new InboundBatcher(32, 20, timer, batch -> batches.consume(batch));
+        link = Connections.open(CLIENT_ID, "device-a", 1).getAttachment();
+    }
+
+    @TearDown
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Benchmark
+    public String dispatch() {
+        return decode(bytes.duplicate());
+    }
+
+    @Benchmark
+    public void batched() {
+        batcher.add(InboundBatcher.Entry.of(link, decode(bytes.duplicate()), null, 0));
+    }
+
+    /** The same chain of checks as the plugin's notifyBinaryMessage. */
+    private String decode(ByteBuffer in) {
+        if (text) {
+            // The library decodes text frames before onMessage
+            return StandardCharsets.UTF_8.decode(in).toString();
+        }
+        if (RelayFrame.isRelayFrame(in)) {
+            return RelayFrame.parse(in).innerJson();
+        }
+        if (ReliableFrame.isReliableFrame(in)) {
+            return ReliableFrame.parse(in).innerJson();
+        }
+        if (FileFrame.isFileFrame(in) || TopicFrame.isTopicFrame(in)) {
+            return null;
+        }
+        return SignalingCodec.decode(in);
+    }
+}
@@ -0,0 +1,59 @@
+package app.lovable.lanchat.plugins;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of the per-message metrics on the send path, one traffic record plus
+ * one latency sample, with several threads hammering the same counters,
+ * next to a plain AtomicLong version of the same bookkeeping. Pass
+ * {@code -t 1}, {@code -t 8} and so on to see how it scales.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class MetricsBenchmark {
+    private final TrafficCounters traffic = new TrafficCounters();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong samples = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    /** Varies the recorded sizes and latencies per thread, as real traffic would. */
+    @State(Scope.Thread)
+    public static class Sample {
+        int next;
+    }
+
+    @Benchmark
+    public void longAdders(Sample sample) {
+        int i = sample.next++;
+        traffic.recordOut(200 + (i & 1023));
+        latency.record(50_000L + (i & 0xFFFF));
+    }
+
+    @Benchmark
+    public void atomicLongs(Sample sample) {
+        int i = sample.next++;
+        messages.incrementAndGet();
+        bytes.addAndGet(200 + (i & 1023));
+        samples.incrementAndGet();
+        totalNanos.addAndGet(50_000L + (i & 0xFFFF));
+    }
+}
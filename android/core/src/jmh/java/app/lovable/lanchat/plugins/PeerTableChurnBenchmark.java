@@ -0,0 +1,87 @@
+package app.lovable.lanchat.plugins;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovery events against a table of {@code peers} devices, each followed
+ * by the delta a listener would fetch: a device leaving while another
+ * arrives, a device advertising a new connection count, and a re-resolve
+ * that reports nothing new.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerTableChurnBenchmark {
+    @Param({"16", "128", "512"})
+    int peers;
+
+    private PeerTable table;
+    private PeerAttributes attributes;
+    private long seenVersion;
+    // The table holds peers first .. first + peers - 1
+    private int first;
+    private int tick;
+
+    @Setup
+    public void setUp() {
+        table = new PeerTable(PeerTable.DEFAULT_MAX_TOMBSTONES);
+        attributes = new PeerAttributes("device", "Ada", 2, Arrays.asList("deflate"),
+                Arrays.asList("binary", "relay", "ack", "file"), 0, 8765);
+        for (int i = 0; i < peers; i++) {
+            table.put(name(i), ip(i), 8765, attributes);
+        }
+        seenVersion = table.version();
+    }
+
+    @Benchmark
+    public PeerTable.Delta churn() {
+        table.remove(name(first));
+        table.put(name(first + peers), ip(first + peers), 8765, attributes);
+        first++;
+        return delta();
+    }
+
+    @Benchmark
+    public PeerTable.Delta loadUpdate() {
+        int peer = first + tick % peers;
+        // A different count on every visit, so each put is a real change
+        table.put(name(peer), ip(peer), 8765, attributes.withConnections(tick++ / peers));
+        return delta();
+    }
+
+    @Benchmark
+    public boolean unchanged() {
+        int peer = first + tick++ % peers;
+        return table.put(name(peer), ip(peer), 8765, attributes);
+    }
+
+    private PeerTable.Delta delta() {
+        PeerTable.Delta delta = table.since(seenVersion);
+        seenVersion = delta.version;
+        return delta;
+    }
+
+    private static String name(int i) {
+        return "lanchat-" + i;
+    }
+
+    private static String ip(int i) {
+        return "10.0." + ((i >> 8) & 0xFF) + "." + (i & 0xFF);
+    }
+}
@@ -0,0 +1,69 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.WebSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Messages per second through the send path short of the socket: resolve
+ * the client id in the registry, queue the message with {@link PeerSender},
+ * claim the drain and build the frames the connection would write, for the
+ * signaling messages a call exchanges.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendBenchmark {
+    private static final int CONNECTIONS = 8;
+
+    @Param({"offer", "ice", "chat", "typing"})
+    String message;
+
+    @Param({"true", "false"})
+    boolean binaryFrames;
+
+    private final PeerRegistry registry = new PeerRegistry();
+    // Drains run here rather than on a writer thread
+    private final PeerSender sender =
+            new PeerSender(() -> null, new TrafficCounters(), new LatencyHistogram(), new LongAdder());
+    private final Set<WebSocket> drains = new HashSet<>();
+    private final String[] clientIds = new String[CONNECTIONS];
+    private String json;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        json = SignalingSamples.byName(message);
+        for (int i = 0; i < CONNECTIONS; i++) {
+            clientIds[i] = "10.0.0." + i + ":8765";
+            registry.add(Connections.open(clientIds[i], "device-" + i, binaryFrames ? 1 : 0));
+        }
+    }
+
+    @Benchmark
+    public void send(Blackhole blackhole) {
+        WebSocket conn = registry.get(clientIds[next++ & (CONNECTIONS - 1)]);
+        blackhole.consume(sender.enqueue(conn, new OutboundMessage(json), drains));
+        if (drains.remove(conn)) {
+            sender.drain(conn);
+        }
+    }
+}
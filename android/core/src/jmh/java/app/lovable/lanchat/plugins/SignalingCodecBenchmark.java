@@ -0,0 +1,63 @@
+package app.lovable.lanchat.plugins;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The binary signaling codec against the JSON text path: the text path's
+ * UTF-8 round trip, the same plus a JSON parse (what any native consumer of
+ * the message pays), and the codec's encode plus decode. Wire sizes are
+ * printed once per payload.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignalingCodecBenchmark {
+    @Param({"offer", "ice", "typing", "seen", "chat"})
+    String message;
+
+    private String json;
+
+    @Setup
+    public void setUp() throws Exception {
+        json = SignalingSamples.byName(message);
+        System.out.printf("%s: %d B as JSON, %d B binary%n", message,
+                json.getBytes(StandardCharsets.UTF_8).length, SignalingCodec.encode(json).remaining());
+    }
+
+    /** The text path: UTF-8 encode on the sender and decode on the receiver. */
+    @Benchmark
+    public String text() {
+        byte[] wire = json.getBytes(StandardCharsets.UTF_8);
+        return new String(wire, StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public JSONObject textAndParse() {
+        return new JSONObject(text());
+    }
+
+    /** The binary path, including rebuilding the JSON string handed to the WebView. */
+    @Benchmark
+    public Object binary() throws Exception {
+        ByteBuffer frame = SignalingCodec.encode(json);
+        return SignalingCodec.decode(frame);
+    }
+}
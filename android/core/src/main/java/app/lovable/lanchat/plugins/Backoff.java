@@ -0,0 +1,29 @@
+package app.lovable.lanchat.plugins;
+
+import java.util.Random;
+
+/**
+ * Jittered exponential backoff: retry {@code n} waits between half and all of
+ * {@code min(max, base * 2^(n-1))}. The random half keeps a room of phones
+ * that lost the same hotspot from redialing in lockstep; the fixed half keeps
+ * retries from bunching up right after the drop.
+ */
+final class Backoff {
+    private final long baseMs;
+    private final long maxMs;
+    private final Random random;
+
+    Backoff(long baseMs, long maxMs, Random random) {
+        this.baseMs = Math.max(1, baseMs);
+        this.maxMs = Math.max(this.baseMs, maxMs);
+        this.random = random;
+    }
+
+    /** Delay before retry number {@code attempt}, counting from 1. */
+    long delayMs(int attempt) {
+        int shift = Math.min(Math.max(attempt, 1) - 1, 30);
+        long ceiling = Math.min(maxMs, baseMs << shift);
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half + 1));
+    }
+}
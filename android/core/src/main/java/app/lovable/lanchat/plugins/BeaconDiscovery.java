@@ -0,0 +1,404 @@
+package app.lovable.lanchat.plugins;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Peer discovery by UDP beacons, in plain Java so two instances can find
+ * each other over loopback in a test.
+ *
+ * Each instance broadcasts a {@link BeaconFrame} to every interface's
+ * broadcast address (or sends it to a multicast group, or to fixed targets)
+ * and listens on the same port. Beacons start every {@code minIntervalMs}
+ * and double up to {@code maxIntervalMs}; hearing a device for the first
+ * time drops back to the fast interval and answers within a few ms, so two
+ * devices find each other in one round trip instead of waiting out the
+ * other's interval. A peer is lost when it says goodbye or when
+ * {@value #EXPIRY_INTERVALS} of the intervals it announced pass without a
+ * beacon.
+ *
+ * Everything runs on one thread that sleeps in {@code receive()} until the
+ * next beacon or expiry is due.
+ */
+final class BeaconDiscovery {
+    static final int DEFAULT_PORT = 8766;
+    static final int DEFAULT_MIN_INTERVAL_MS = 250;
+    static final int DEFAULT_MAX_INTERVAL_MS = 4_000;
+    static final int EXPIRY_INTERVALS = 3;
+    private static final long EXPIRY_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long ANSWER_DELAY_MAX_MS = 30;
+    private static final long TARGETS_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    interface Listener {
+        /** A new peer, or a known one whose attributes changed. */
+        void onPeerFound(Peer peer);
+
+        void onPeerLost(Peer peer);
+    }
+
+    static final class Peer {
+        final String name;
+        final String deviceId;
+        final String ip;
+        final int port;
+        final int protocolVersion;
+        /** TXT-style attributes from its latest beacon. */
+        final Map<String, String> attributes;
+        /** nanoTime of the first beacon heard from it. */
+        final long foundNanos;
+        volatile int lastSeq;
+        volatile long expiresNanos;
+
+        Peer(String name, String deviceId, String ip, int port, int protocolVersion, Map<String, String> attributes,
+                long foundNanos) {
+            this.name = name;
+            this.deviceId = deviceId;
+            this.ip = ip;
+            this.port = port;
+            this.protocolVersion = protocolVersion;
+            this.attributes = attributes;
+            this.foundNanos = foundNanos;
+        }
+    }
+
+    final LongAdder beaconsSent = new LongAdder();
+    final LongAdder beaconsReceived = new LongAdder();
+
+    private final int listenPort;
+    private final InetAddress group;
+    private final List<InetSocketAddress> fixedTargets;
+    private final int minIntervalMs;
+    private final int maxIntervalMs;
+    private final Listener listener;
+    private final Random random = new Random();
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    private volatile DatagramSocket socket;
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    // Advertised identity; name is null while not advertising
+    private volatile String name;
+    private volatile String deviceId = "";
+    private volatile int port;
+    private volatile Map<String, String> attributes = Collections.emptyMap();
+    /** nanoTime another thread wants the next beacon by, or 0. */
+    private final AtomicLong beaconRequest = new AtomicLong();
+
+    // Guarded by send()
+    private int seq;
+    // Written on the beacon thread only
+    private volatile int intervalMs;
+    private long nextBeaconNanos;
+    private List<InetSocketAddress> targets = Collections.emptyList();
+    private long targetsRefreshedNanos;
+
+    /**
+     * @param group multicast group to send to and join, or null to broadcast
+     * @param targets where to send beacons instead of the broadcast addresses, or null
+     */
+    BeaconDiscovery(int listenPort, InetAddress group, List<InetSocketAddress> targets, int minIntervalMs,
+            int maxIntervalMs, Listener listener) {
+        this.listenPort = listenPort;
+        this.group = group;
+        this.fixedTargets = targets;
+        this.minIntervalMs = Math.max(10, minIntervalMs);
+        this.maxIntervalMs = Math.max(this.minIntervalMs, maxIntervalMs);
+        this.listener = listener;
+    }
+
+    /** Bind the socket and start beaconing; a no-op if already running. */
+    synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        DatagramSocket bound;
+        if (group != null) {
+            MulticastSocket multicast = new MulticastSocket(null);
+            multicast.setReuseAddress(true);
+            multicast.bind(new InetSocketAddress(listenPort));
+            multicast.joinGroup(new InetSocketAddress(group, 0), null);
+            bound = multicast;
+        } else {
+            bound = new DatagramSocket(null);
+            bound.setReuseAddress(true);
+            bound.setBroadcast(true);
+            bound.bind(new InetSocketAddress(listenPort));
+        }
+        socket = bound;
+        running = true;
+        intervalMs = minIntervalMs;
+        nextBeaconNanos = System.nanoTime();
+        thread = new Thread(this::run, "BeaconDiscovery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Say goodbye if advertising, then close the socket; peers are forgotten without events. */
+    void stop() {
+        DatagramSocket closing;
+        Thread stopping;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            closing = socket;
+            stopping = thread;
+            socket = null;
+            thread = null;
+        }
+        if (name != null) {
+            send(closing, true);
+        }
+        closing.close();
+        stopping.interrupt();
+        peers.clear();
+    }
+
+    /**
+     * Advertise {@code name} with the server's {@code port}, or stop
+     * advertising with a goodbye if {@code name} is null. Listening
+     * continues either way.
+     */
+    void advertise(String name, String deviceId, int port) {
+        advertise(name, deviceId, port, Collections.emptyMap());
+    }
+
+    /** As above, with attributes carried in every beacon; changing them sends one right away. */
+    void advertise(String name, String deviceId, int port, Map<String, String> attributes) {
+        String previous = this.name;
+        if (name == null && previous != null) {
+            DatagramSocket current = socket;
+            if (current != null) {
+                send(current, true);
+            }
+        }
+        this.deviceId = deviceId != null ? deviceId : "";
+        this.port = port;
+        this.attributes = attributes;
+        this.name = name;
+        if (name != null) {
+            requestBeacon(0);
+        }
+    }
+
+    List<Peer> peers() {
+        return new ArrayList<>(peers.values());
+    }
+
+    /** The bound port, e.g. when started with port 0. */
+    int localPort() {
+        DatagramSocket current = socket;
+        return current != null ? current.getLocalPort() : -1;
+    }
+
+    private void run() {
+        byte[] buffer = new byte[BeaconFrame.MAX_BYTES + 1];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (running) {
+            DatagramSocket current = socket;
+            if (current == null) {
+                break;
+            }
+            long now = System.nanoTime();
+            long requested = beaconRequest.getAndSet(0);
+            if (requested != 0 && requested - nextBeaconNanos < 0) {
+                intervalMs = minIntervalMs;
+                nextBeaconNanos = requested;
+            }
+            if (now - nextBeaconNanos >= 0) {
+                if (name != null) {
+                    send(current, false);
+                }
+                intervalMs = Math.min(maxIntervalMs, intervalMs * 2);
+                // +-10% so devices that started together drift apart
+                long jitter = (long) ((random.nextDouble() - 0.5) * intervalMs / 5);
+                nextBeaconNanos = now + TimeUnit.MILLISECONDS.toNanos(intervalMs + jitter);
+            }
+            long wakeNanos = expirePeers(now);
+            if (nextBeaconNanos - wakeNanos < 0) {
+                wakeNanos = nextBeaconNanos;
+            }
+            try {
+                current.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(wakeNanos - now)));
+                packet.setLength(buffer.length);
+                current.receive(packet);
+            } catch (SocketTimeoutException e) {
+                continue;
+            } catch (IOException e) {
+                if (running) {
+                    // Interface went away; retry after a beat rather than spinning
+                    sleepQuietly(minIntervalMs);
+                }
+                continue;
+            }
+            onDatagram(packet, System.nanoTime());
+        }
+    }
+
+    private void onDatagram(DatagramPacket packet, long nowNanos) {
+        BeaconFrame beacon = BeaconFrame.parse(
+                ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+        if (beacon == null) {
+            return;
+        }
+        String ownName = name;
+        if (beacon.name.equals(ownName) || (!deviceId.isEmpty() && beacon.deviceId.equals(deviceId))) {
+            return;
+        }
+        beaconsReceived.increment();
+        Peer known = peers.get(beacon.name);
+        if (beacon.leaving) {
+            if (known != null && peers.remove(beacon.name, known)) {
+                listener.onPeerLost(known);
+            }
+            return;
+        }
+        String ip = packet.getAddress().getHostAddress();
+        Peer peer = known;
+        if (known != null && known.port == beacon.port && known.ip.equals(ip)
+                && !known.attributes.equals(beacon.attributes)) {
+            // Same address with new attributes: an update, not a new peer
+            peer = new Peer(beacon.name, beacon.deviceId, ip, beacon.port, beacon.version, beacon.attributes,
+                    known.foundNanos);
+            peers.put(beacon.name, peer);
+            listener.onPeerFound(peer);
+        } else if (known == null || known.port != beacon.port || !known.ip.equals(ip)) {
+            peer = new Peer(beacon.name, beacon.deviceId, ip, beacon.port, beacon.version, beacon.attributes,
+                    nowNanos);
+            peers.put(beacon.name, peer);
+            if (known != null) {
+                listener.onPeerLost(known);
+            }
+            listener.onPeerFound(peer);
+            // Answer so the newcomer hears about us now, not at our next slow beacon
+            requestBeacon(ANSWER_DELAY_MAX_MS);
+        }
+        peer.lastSeq = beacon.seq;
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(minIntervalMs, beacon.intervalMs));
+        peer.expiresNanos = nowNanos + EXPIRY_INTERVALS * intervalNanos + EXPIRY_SLACK_NANOS;
+    }
+
+    /** Drop peers whose beacons stopped; returns when the next one would expire. */
+    private long expirePeers(long nowNanos) {
+        long next = nowNanos + TimeUnit.MILLISECONDS.toNanos(maxIntervalMs);
+        for (Iterator<Peer> it = peers.values().iterator(); it.hasNext(); ) {
+            Peer peer = it.next();
+            if (nowNanos - peer.expiresNanos >= 0) {
+                it.remove();
+                listener.onPeerLost(peer);
+            } else if (peer.expiresNanos - next < 0) {
+                next = peer.expiresNanos;
+            }
+        }
+        return next;
+    }
+
+    /** Go back to the fast interval, with the next beacon within {@code maxDelayMs}. */
+    private void requestBeacon(long maxDelayMs) {
+        long delay = maxDelayMs > 0 ? (long) (random.nextDouble() * maxDelayMs) : 0;
+        long due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        // 0 means no request, so never store it
+        beaconRequest.accumulateAndGet(due == 0 ? 1 : due,
+                (current, requested) -> current == 0 || requested - current < 0 ? requested : current);
+        DatagramSocket bound = socket;
+        if (bound != null && Thread.currentThread() != thread) {
+            // receive() only notices the new schedule when it returns, so hand it an empty datagram
+            try {
+                bound.send(new DatagramPacket(new byte[0], 0,
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), bound.getLocalPort())));
+            } catch (IOException e) {
+                // Closing; nothing to wake
+            }
+        }
+    }
+
+    private synchronized void send(DatagramSocket via, boolean leaving) {
+        String ownName = name;
+        if (ownName == null) {
+            return;
+        }
+        ByteBuffer beacon = BeaconFrame.encode(leaving, port, intervalMs, seq++, ownName, deviceId,
+                leaving ? Collections.emptyMap() : attributes);
+        for (InetSocketAddress target : targets()) {
+            try {
+                via.send(new DatagramPacket(beacon.array(), beacon.arrayOffset() + beacon.position(),
+                        beacon.remaining(), target));
+                beaconsSent.increment();
+            } catch (IOException e) {
+                // Unreachable interface; the others may still work
+            }
+        }
+    }
+
+    private List<InetSocketAddress> targets() {
+        if (fixedTargets != null) {
+            return fixedTargets;
+        }
+        if (group != null) {
+            return Collections.singletonList(new InetSocketAddress(group, listenPort));
+        }
+        long now = System.nanoTime();
+        if (targets.isEmpty() || now - targetsRefreshedNanos >= TARGETS_REFRESH_NANOS) {
+            targets = broadcastTargets(listenPort);
+            targetsRefreshedNanos = now;
+        }
+        return targets;
+    }
+
+    /** The broadcast address of every IPv4 interface that is up, hotspot ones included. */
+    static List<InetSocketAddress> broadcastTargets(int port) {
+        List<InetSocketAddress> result = new ArrayList<>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface ni = interfaces.nextElement();
+                if (ni.isLoopback() || !ni.isUp()) {
+                    continue;
+                }
+                for (InterfaceAddress address : ni.getInterfaceAddresses()) {
+                    InetAddress broadcast = address.getBroadcast();
+                    if (address.getAddress() instanceof Inet4Address && broadcast != null) {
+                        result.add(new InetSocketAddress(broadcast, port));
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            // Fall through to the limited broadcast address
+        }
+        if (result.isEmpty()) {
+            result.add(new InetSocketAddress("255.255.255.255", port));
+        }
+        return result;
+    }
+
+    private static void sleepQuietly(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package app.lovable.lanchat.plugins;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * UDP discovery beacon.
+ *
+ * <pre>
+ * byte[2] "LB"
+ * byte    version
+ * byte    flags: 1 = leaving, 2 = has attributes
+ * short   WebSocket server port
+ * short   sender's current beacon interval in ms, capped at 65535
+ * int     sequence number, per sender
+ * string  service name, the peer's id (varint length + UTF-8)
+ * string  device id
+ * byte    attribute count, then a key string and a value string for each
+ * </pre>
+ *
+ * The attributes are the same key/values as the DNS-SD TXT record (see
+ * {@link PeerAttributes}). Beacons without the flag end after the device id;
+ * older parsers stop reading there either way.
+ */
+final class BeaconFrame {
+    static final int VERSION = 1;
+    /** Largest beacon we send or accept; fits any LAN MTU. */
+    static final int MAX_BYTES = 512;
+
+    private static final byte MAGIC_0 = 'L';
+    private static final byte MAGIC_1 = 'B';
+    private static final int FLAG_LEAVING = 1;
+    private static final int FLAG_ATTRIBUTES = 1 << 1;
+
+    final int version;
+    final boolean leaving;
+    final int port;
+    final int intervalMs;
+    final int seq;
+    final String name;
+    final String deviceId;
+    final Map<String, String> attributes;
+
+    private BeaconFrame(int version, boolean leaving, int port, int intervalMs, int seq, String name,
+            String deviceId, Map<String, String> attributes) {
+        this.version = version;
+        this.leaving = leaving;
+        this.port = port;
+        this.intervalMs = intervalMs;
+        this.seq = seq;
+        this.name = name;
+        this.deviceId = deviceId;
+        this.attributes = attributes;
+    }
+
+    static ByteBuffer encode(boolean leaving, int port, int intervalMs, int seq, String name, String deviceId) {
+        return encode(leaving, port, intervalMs, seq, name, deviceId, Collections.emptyMap());
+    }
+
+    /**
+     * Attributes that would take the beacon past {@link #MAX_BYTES} are left out.
+     *
+     * @throws IllegalArgumentException if the names alone don't fit
+     */
+    static ByteBuffer encode(boolean leaving, int port, int intervalMs, int seq, String name, String deviceId,
+            Map<String, String> attributes) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] deviceBytes = deviceId.getBytes(StandardCharsets.UTF_8);
+        // 12 bytes of header, up to 2 of each length and 1 for the attribute count
+        int size = 17 + nameBytes.length + deviceBytes.length;
+        if (size > MAX_BYTES) {
+            throw new IllegalArgumentException("Beacon too large: " + name);
+        }
+        Map<byte[], byte[]> included = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            int entrySize = 4 + key.length + value.length;
+            if (size + entrySize <= MAX_BYTES && included.size() < 0x7F) {
+                included.put(key, value);
+                size += entrySize;
+            }
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(MAGIC_0).put(MAGIC_1);
+        out.put((byte) VERSION);
+        out.put((byte) ((leaving ? FLAG_LEAVING : 0) | FLAG_ATTRIBUTES));
+        out.putShort((short) port);
+        out.putShort((short) Math.min(0xFFFF, Math.max(0, intervalMs)));
+        out.putInt(seq);
+        putString(out, nameBytes);
+        putString(out, deviceBytes);
+        out.put((byte) included.size());
+        for (Map.Entry<byte[], byte[]> entry : included.entrySet()) {
+            putString(out, entry.getKey());
+            putString(out, entry.getValue());
+        }
+        out.flip();
+        return out;
+    }
+
+    /** @return null if the datagram isn't a beacon we understand */
+    static BeaconFrame parse(ByteBuffer datagram) {
+        ByteBuffer in = datagram.duplicate();
+        try {
+            if (in.remaining() > MAX_BYTES || in.get() != MAGIC_0 || in.get() != MAGIC_1) {
+                return null;
+            }
+            int version = in.get() & 0xFF;
+            if (version == 0 || version > VERSION) {
+                return null;
+            }
+            int flags = in.get() & 0xFF;
+            int port = in.getShort() & 0xFFFF;
+            int intervalMs = in.getShort() & 0xFFFF;
+            int seq = in.getInt();
+            String name = getString(in);
+            String deviceId = getString(in);
+            if (name == null || deviceId == null || name.isEmpty()) {
+                return null;
+            }
+            Map<String, String> attributes = Collections.emptyMap();
+            if ((flags & FLAG_ATTRIBUTES) != 0) {
+                int count = in.get() & 0x7F;
+                attributes = new LinkedHashMap<>();
+                for (int i = 0; i < count; i++) {
+                    String key = getString(in);
+                    String value = getString(in);
+                    if (key == null || value == null) {
+                        return null;
+                    }
+                    attributes.put(key, value);
+                }
+            }
+            return new BeaconFrame(version, (flags & FLAG_LEAVING) != 0, port, intervalMs, seq, name, deviceId,
+                    attributes);
+        } catch (BufferUnderflowException e) {
+            return null;
+        }
+    }
+
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        int value = bytes.length;
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 14) {
+                return null;
+            }
+            int b = in.get() & 0xFF;
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > in.remaining()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
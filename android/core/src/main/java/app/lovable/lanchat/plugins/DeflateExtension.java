@@ -0,0 +1,48 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.extensions.IExtension;
+import org.java_websocket.extensions.permessage_deflate.PerMessageDeflateExtension;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.FramedataImpl1;
+
+import java.nio.ByteBuffer;
+
+/**
+ * permessage-deflate that leaves messages under {@code threshold} bytes
+ * uncompressed, so SDP offers shrink while typing and chat frames don't pay
+ * for a deflate round trip. File transfer frames are never compressed.
+ *
+ * The stock extension sizes and compresses the payload's whole backing array,
+ * which breaks on the shared read-only views {@link OutboundMessage} hands
+ * out, and forgets its threshold when the draft is copied for each
+ * connection. Both are handled here.
+ */
+final class DeflateExtension extends PerMessageDeflateExtension {
+    static final int DEFAULT_THRESHOLD = 1024;
+
+    DeflateExtension(int threshold) {
+        setThreshold(Math.max(0, threshold));
+    }
+
+    @Override
+    public void encodeFrame(Framedata frame) {
+        if (!(frame instanceof DataFrame)) {
+            return;
+        }
+        ByteBuffer payload = frame.getPayloadData();
+        // File chunks are mostly media that is already compressed
+        if (payload.remaining() < getThreshold() || FileFrame.isFileFrame(payload)) {
+            return;
+        }
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        ((FramedataImpl1) frame).setPayload(ByteBuffer.wrap(bytes));
+        super.encodeFrame(frame);
+    }
+
+    @Override
+    public IExtension copyInstance() {
+        return new DeflateExtension(getThreshold());
+    }
+}
@@ -0,0 +1,176 @@
+package app.lovable.lanchat.plugins;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format for file transfers.
+ *
+ * <pre>
+ * byte    0xE0 | version
+ * byte    kind
+ * long    transfer id, random per transfer at the sender
+ * offer:  long size, int chunk size, string name, string MIME type (varint length + UTF-8)
+ * accept: long offset to start from, i.e. what the receiver already has
+ * chunk:  long offset, then the file bytes
+ * ack:    long bytes written so far, all contiguous from 0
+ * cancel: string reason
+ * </pre>
+ */
+final class FileFrame {
+    /** Handshake header advertising that a peer accepts file transfers. */
+    static final String HEADER = "X-LanChat-File";
+    static final int VERSION = 1;
+    /** Bytes in front of a chunk's data. */
+    static final int CHUNK_HEADER_BYTES = 18;
+
+    static final int OFFER = 1;
+    static final int ACCEPT = 2;
+    static final int CHUNK = 3;
+    static final int ACK = 4;
+    static final int CANCEL = 5;
+
+    private static final int MAGIC = 0xE0;
+
+    final int kind;
+    final long transferId;
+    /** Size for offers; offset for accept, chunk and ack frames. */
+    final long value;
+    final int chunkSize;
+    final String name;
+    /** MIME type for offers, reason for cancels. */
+    final String text;
+    /** Read-only view of a chunk's data. */
+    final ByteBuffer data;
+
+    private FileFrame(int kind, long transferId, long value, int chunkSize, String name, String text,
+            ByteBuffer data) {
+        this.kind = kind;
+        this.transferId = transferId;
+        this.value = value;
+        this.chunkSize = chunkSize;
+        this.name = name;
+        this.text = text;
+        this.data = data;
+    }
+
+    static boolean isFileFrame(ByteBuffer frame) {
+        return frame.remaining() > 0 && (frame.get(frame.position()) & 0xF0) == MAGIC;
+    }
+
+    static ByteBuffer offer(long transferId, long size, int chunkSize, String name, String mimeType) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] typeBytes = mimeType.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(22 + 10 + nameBytes.length + typeBytes.length);
+        header(out, OFFER, transferId);
+        out.putLong(size);
+        out.putInt(chunkSize);
+        putString(out, nameBytes);
+        putString(out, typeBytes);
+        out.flip();
+        return out;
+    }
+
+    static ByteBuffer accept(long transferId, long offset) {
+        return offset(ACCEPT, transferId, offset);
+    }
+
+    static ByteBuffer ack(long transferId, long written) {
+        return offset(ACK, transferId, written);
+    }
+
+    static ByteBuffer cancel(long transferId, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer out = ByteBuffer.allocate(10 + 5 + reasonBytes.length);
+        header(out, CANCEL, transferId);
+        putString(out, reasonBytes);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Write a chunk header at the start of {@code buffer}, which the caller
+     * then fills with file data from {@link #CHUNK_HEADER_BYTES} on.
+     */
+    static void chunkHeader(ByteBuffer buffer, long transferId, long offset) {
+        buffer.clear();
+        header(buffer, CHUNK, transferId);
+        buffer.putLong(offset);
+    }
+
+    /** @throws IllegalArgumentException if the frame is truncated or not one we understand */
+    static FileFrame parse(ByteBuffer frame) {
+        ByteBuffer in = frame.duplicate();
+        try {
+            int header = in.get() & 0xFF;
+            if ((header & 0xF0) != MAGIC || (header & 0x0F) > VERSION) {
+                throw new IllegalArgumentException("Unsupported header: " + header);
+            }
+            int kind = in.get() & 0xFF;
+            long transferId = in.getLong();
+            switch (kind) {
+                case OFFER:
+                    long size = in.getLong();
+                    int chunkSize = in.getInt();
+                    return new FileFrame(kind, transferId, size, chunkSize, getString(in), getString(in), null);
+                case ACCEPT:
+                case ACK:
+                    return new FileFrame(kind, transferId, in.getLong(), 0, null, null, null);
+                case CHUNK:
+                    long offset = in.getLong();
+                    return new FileFrame(kind, transferId, offset, 0, null, null, in.slice().asReadOnlyBuffer());
+                case CANCEL:
+                    return new FileFrame(kind, transferId, 0, 0, null, getString(in), null);
+                default:
+                    throw new IllegalArgumentException("Unknown kind: " + kind);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+    }
+
+    private static ByteBuffer offset(int kind, long transferId, long offset) {
+        ByteBuffer out = ByteBuffer.allocate(18);
+        header(out, kind, transferId);
+        out.putLong(offset);
+        out.flip();
+        return out;
+    }
+
+    private static void header(ByteBuffer out, int kind, long transferId) {
+        out.put((byte) (MAGIC | VERSION));
+        out.put((byte) kind);
+        out.putLong(transferId);
+    }
+
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        int value = bytes.length;
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new IllegalArgumentException("Malformed length");
+            }
+            int b = in.get() & 0xFF;
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("Truncated string");
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
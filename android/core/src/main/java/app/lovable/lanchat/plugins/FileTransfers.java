@@ -0,0 +1,546 @@
+package app.lovable.lanchat.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chunked file transfers over binary frames, independent of the plugin so it
+ * can be exercised with in-memory peers and temporary files.
+ *
+ * The sender reads each chunk from a {@link FileChannel} straight into one
+ * reused direct buffer behind the frame header, and keeps at most
+ * {@code windowChunks} chunks unacknowledged, so memory stays flat however
+ * large the file is. The receiver writes chunks at their offset into a
+ * {@code .part} file and acks what it has written. When a connection drops,
+ * outgoing transfers wait for the device to come back and offer again; the
+ * receiver answers with the length of its partial file, and the transfer
+ * picks up from there.
+ *
+ * Disk reads happen on a thread of their own so large transfers don't hold
+ * up the plugin's timers; writes happen on the thread that received the
+ * chunk, which pushes back on the sender through TCP if the disk is slow.
+ */
+final class FileTransfers {
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    static final int DEFAULT_WINDOW_CHUNKS = 16;
+    static final int DEFAULT_PROGRESS_INTERVAL_MS = 250;
+    private static final String PART_SUFFIX = ".part";
+
+    /** A connection to the device on the other end. */
+    interface Peer {
+        /** Device id; transfers resume with whichever connection has the same one. */
+        String deviceId();
+
+        /** Hand a frame to the connection; false if it is closed. The buffer may be reused afterwards. */
+        boolean send(ByteBuffer frame);
+    }
+
+    interface Listener {
+        /** An incoming transfer was accepted; {@link Transfer#bytes} is where it resumes. */
+        void onStarted(Transfer transfer);
+
+        void onProgress(Transfer transfer);
+
+        void onCompleted(Transfer transfer);
+
+        void onFailed(Transfer transfer, String error);
+    }
+
+    static final class Transfer {
+        final long id;
+        final boolean outgoing;
+        final String deviceId;
+        final String name;
+        final String mimeType;
+        final long size;
+        /** Acknowledged bytes for outgoing transfers, written bytes for incoming ones. */
+        volatile long bytes;
+        /** Incoming: the partial file, then the finished one. */
+        volatile File file;
+
+        private final FileChannel channel;
+        private final int chunkSize;
+        private Peer peer;
+        private boolean accepted;
+        private long sent;
+        private boolean pumping;
+        private boolean done;
+        private long lastProgressNanos;
+
+        Transfer(long id, boolean outgoing, String deviceId, String name, String mimeType, long size,
+                FileChannel channel, int chunkSize, Peer peer) {
+            this.id = id;
+            this.outgoing = outgoing;
+            this.deviceId = deviceId;
+            this.name = name;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+            this.peer = peer;
+        }
+    }
+
+    final LongAdder bytesSent = new LongAdder();
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder completed = new LongAdder();
+    final LongAdder failed = new LongAdder();
+
+    private final File directory;
+    private final int chunkSize;
+    private final int windowChunks;
+    private final long progressIntervalNanos;
+    private final Listener listener;
+    private final Random random = new Random();
+    private final Map<Long, Transfer> outgoing = new ConcurrentHashMap<>();
+    // Keyed by sender device id and transfer id
+    private final Map<String, Transfer> incoming = new ConcurrentHashMap<>();
+    private ExecutorService reader;
+    // Only touched on the reader thread
+    private ByteBuffer chunkBuffer;
+
+    FileTransfers(File directory, int chunkSize, int windowChunks, int progressIntervalMs, Listener listener) {
+        this.directory = directory;
+        this.chunkSize = Math.max(1024, chunkSize);
+        this.windowChunks = Math.max(1, windowChunks);
+        this.progressIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, progressIntervalMs));
+        this.listener = listener;
+    }
+
+    /**
+     * Start sending {@code channel}, positioned anywhere; it is read by offset
+     * and closed when the transfer ends.
+     */
+    Transfer send(Peer peer, FileChannel channel, long size, String name, String mimeType) {
+        Transfer transfer = new Transfer(random.nextLong(), true, peer.deviceId(), name, mimeType, size,
+                channel, chunkSize, peer);
+        outgoing.put(transfer.id, transfer);
+        offer(transfer);
+        return transfer;
+    }
+
+    /** Stop a transfer in either direction and tell the peer; false if there is no such transfer. */
+    boolean cancel(long transferId) {
+        Transfer transfer = outgoing.get(transferId);
+        if (transfer == null) {
+            for (Transfer candidate : incoming.values()) {
+                if (candidate.id == transferId) {
+                    transfer = candidate;
+                    break;
+                }
+            }
+        }
+        if (transfer == null) {
+            return false;
+        }
+        Peer peer;
+        synchronized (transfer) {
+            peer = transfer.peer;
+        }
+        if (peer != null) {
+            peer.send(FileFrame.cancel(transferId, "Cancelled"));
+        }
+        fail(transfer, "Cancelled");
+        return true;
+    }
+
+    List<Transfer> active() {
+        List<Transfer> transfers = new ArrayList<>(outgoing.values());
+        transfers.addAll(incoming.values());
+        return transfers;
+    }
+
+    /** A connection to a device opened; its waiting outgoing transfers are offered again. */
+    void onConnected(Peer peer) {
+        for (Transfer transfer : outgoing.values()) {
+            boolean reoffer;
+            synchronized (transfer) {
+                reoffer = transfer.peer == null && transfer.deviceId.equals(peer.deviceId());
+                if (reoffer) {
+                    transfer.peer = peer;
+                }
+            }
+            if (reoffer) {
+                offer(transfer);
+            }
+        }
+    }
+
+    /**
+     * A connection closed. Outgoing transfers on it wait for the device to
+     * reconnect; incoming ones are closed, leaving their partial file to
+     * resume from.
+     */
+    void onDisconnected(Peer peer) {
+        for (Transfer transfer : outgoing.values()) {
+            synchronized (transfer) {
+                if (transfer.peer == peer) {
+                    transfer.peer = null;
+                    transfer.accepted = false;
+                }
+            }
+        }
+        for (Map.Entry<String, Transfer> entry : incoming.entrySet()) {
+            Transfer transfer = entry.getValue();
+            synchronized (transfer) {
+                if (transfer.peer != peer) {
+                    continue;
+                }
+                incoming.remove(entry.getKey(), transfer);
+                transfer.done = true;
+                closeQuietly(transfer.channel);
+            }
+        }
+    }
+
+    /** Handle a file frame from {@code from}. */
+    void onFrame(Peer from, ByteBuffer bytes) {
+        FileFrame frame = FileFrame.parse(bytes);
+        switch (frame.kind) {
+            case FileFrame.OFFER:
+                onOffer(from, frame);
+                break;
+            case FileFrame.CHUNK:
+                onChunk(from, frame);
+                break;
+            case FileFrame.ACCEPT:
+                onAccept(from, frame);
+                break;
+            case FileFrame.ACK:
+                onAck(from, frame);
+                break;
+            case FileFrame.CANCEL:
+                Transfer transfer = outgoing.get(frame.transferId);
+                if (transfer == null) {
+                    transfer = incoming.get(key(from.deviceId(), frame.transferId));
+                }
+                if (transfer != null) {
+                    fail(transfer, "Cancelled by peer: " + frame.text);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Fail every transfer and stop the reader thread. */
+    synchronized void shutdown() {
+        for (Transfer transfer : active()) {
+            fail(transfer, "Stopped");
+        }
+        if (reader != null) {
+            reader.shutdownNow();
+            reader = null;
+        }
+    }
+
+    private void offer(Transfer transfer) {
+        Peer peer;
+        synchronized (transfer) {
+            peer = transfer.peer;
+        }
+        if (peer != null) {
+            peer.send(FileFrame.offer(transfer.id, transfer.size, transfer.chunkSize, transfer.name,
+                    transfer.mimeType));
+        }
+    }
+
+    private void onOffer(Peer from, FileFrame frame) {
+        String key = key(from.deviceId(), frame.transferId);
+        Transfer transfer = incoming.get(key);
+        if (transfer == null) {
+            File part = new File(directory, safeName(from.deviceId()) + "-" + Long.toHexString(frame.transferId)
+                    + PART_SUFFIX);
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Cannot create " + directory);
+                }
+                long have = Math.min(part.length(), frame.value);
+                if (directory.getUsableSpace() < frame.value - have) {
+                    from.send(FileFrame.cancel(frame.transferId, "Not enough space"));
+                    return;
+                }
+                FileChannel channel = new RandomAccessFile(part, "rw").getChannel();
+                transfer = new Transfer(frame.transferId, false, from.deviceId(), frame.name, frame.text,
+                        frame.value, channel, frame.chunkSize, from);
+                transfer.file = part;
+                transfer.bytes = have;
+            } catch (IOException e) {
+                from.send(FileFrame.cancel(frame.transferId, "Cannot write: " + e.getMessage()));
+                return;
+            }
+            incoming.put(key, transfer);
+        }
+        synchronized (transfer) {
+            transfer.peer = from;
+        }
+        from.send(FileFrame.accept(transfer.id, transfer.bytes));
+        listener.onStarted(transfer);
+        if (transfer.bytes == transfer.size) {
+            finishIncoming(key, transfer);
+        }
+    }
+
+    private void onChunk(Peer from, FileFrame frame) {
+        String key = key(from.deviceId(), frame.transferId);
+        Transfer transfer = incoming.get(key);
+        if (transfer == null) {
+            return;
+        }
+        long written;
+        synchronized (transfer) {
+            if (transfer.done) {
+                return;
+            }
+            // Anything but the next offset is a resend of what we already have
+            if (frame.value == transfer.bytes) {
+                int length = frame.data.remaining();
+                if (transfer.bytes + length > transfer.size) {
+                    from.send(FileFrame.cancel(transfer.id, "Chunk past end of file"));
+                    fail(transfer, "Peer sent more than it offered");
+                    return;
+                }
+                try {
+                    ByteBuffer data = frame.data.duplicate();
+                    long position = transfer.bytes;
+                    while (data.hasRemaining()) {
+                        position += transfer.channel.write(data, position);
+                    }
+                } catch (IOException e) {
+                    from.send(FileFrame.cancel(transfer.id, "Write failed"));
+                    fail(transfer, "Write failed: " + e.getMessage());
+                    return;
+                }
+                transfer.bytes += length;
+                bytesReceived.add(length);
+            }
+            written = transfer.bytes;
+        }
+        from.send(FileFrame.ack(transfer.id, written));
+        if (written == transfer.size) {
+            finishIncoming(key, transfer);
+        } else {
+            progress(transfer);
+        }
+    }
+
+    private void finishIncoming(String key, Transfer transfer) {
+        synchronized (transfer) {
+            if (transfer.done) {
+                return;
+            }
+            transfer.done = true;
+            incoming.remove(key, transfer);
+            closeQuietly(transfer.channel);
+            File target = uniqueFile(directory, safeName(transfer.name));
+            if (transfer.file.renameTo(target)) {
+                transfer.file = target;
+            }
+        }
+        completed.increment();
+        listener.onCompleted(transfer);
+    }
+
+    private void onAccept(Peer from, FileFrame frame) {
+        Transfer transfer = outgoing.get(frame.transferId);
+        if (transfer == null) {
+            from.send(FileFrame.cancel(frame.transferId, "Unknown transfer"));
+            return;
+        }
+        synchronized (transfer) {
+            if (transfer.peer != from || frame.value < 0 || frame.value > transfer.size) {
+                return;
+            }
+            transfer.accepted = true;
+            transfer.bytes = frame.value;
+            transfer.sent = frame.value;
+        }
+        if (frame.value == transfer.size) {
+            finishOutgoing(transfer);
+        } else {
+            schedulePump(transfer);
+        }
+    }
+
+    private void onAck(Peer from, FileFrame frame) {
+        Transfer transfer = outgoing.get(frame.transferId);
+        if (transfer == null) {
+            return;
+        }
+        synchronized (transfer) {
+            if (transfer.peer != from || frame.value <= transfer.bytes || frame.value > transfer.sent) {
+                return;
+            }
+            transfer.bytes = frame.value;
+        }
+        if (frame.value == transfer.size) {
+            finishOutgoing(transfer);
+        } else {
+            progress(transfer);
+            schedulePump(transfer);
+        }
+    }
+
+    private void finishOutgoing(Transfer transfer) {
+        synchronized (transfer) {
+            if (transfer.done) {
+                return;
+            }
+            transfer.done = true;
+            outgoing.remove(transfer.id);
+            closeQuietly(transfer.channel);
+        }
+        completed.increment();
+        listener.onCompleted(transfer);
+    }
+
+    private void schedulePump(Transfer transfer) {
+        synchronized (transfer) {
+            if (transfer.pumping || transfer.done) {
+                return;
+            }
+            transfer.pumping = true;
+        }
+        try {
+            reader().execute(() -> pump(transfer));
+        } catch (RejectedExecutionException e) {
+            synchronized (transfer) {
+                transfer.pumping = false;
+            }
+        }
+    }
+
+    /** Send chunks until the window is full; acks schedule the next run. */
+    private void pump(Transfer transfer) {
+        if (chunkBuffer == null) {
+            chunkBuffer = ByteBuffer.allocateDirect(FileFrame.CHUNK_HEADER_BYTES + chunkSize);
+        }
+        ByteBuffer buffer = chunkBuffer;
+        long window = (long) windowChunks * transfer.chunkSize;
+        while (true) {
+            Peer peer;
+            long offset;
+            int length;
+            synchronized (transfer) {
+                if (transfer.done || !transfer.accepted || transfer.peer == null
+                        || transfer.sent >= transfer.size || transfer.sent - transfer.bytes >= window) {
+                    transfer.pumping = false;
+                    return;
+                }
+                peer = transfer.peer;
+                offset = transfer.sent;
+                length = (int) Math.min(transfer.chunkSize, transfer.size - offset);
+                // Claimed before sending, since the ack can come back before send() returns
+                transfer.sent = offset + length;
+            }
+            FileFrame.chunkHeader(buffer, transfer.id, offset);
+            buffer.limit(FileFrame.CHUNK_HEADER_BYTES + length);
+            try {
+                long position = offset;
+                while (buffer.hasRemaining()) {
+                    int read = transfer.channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("File shrank during transfer");
+                    }
+                    position += read;
+                }
+            } catch (IOException e) {
+                synchronized (transfer) {
+                    transfer.pumping = false;
+                }
+                peer.send(FileFrame.cancel(transfer.id, "Read failed"));
+                fail(transfer, "Read failed: " + e.getMessage());
+                return;
+            }
+            buffer.flip();
+            if (!peer.send(buffer)) {
+                synchronized (transfer) {
+                    transfer.pumping = false;
+                }
+                return;
+            }
+            bytesSent.add(length);
+        }
+    }
+
+    private void progress(Transfer transfer) {
+        long now = System.nanoTime();
+        synchronized (transfer) {
+            if (now - transfer.lastProgressNanos < progressIntervalNanos) {
+                return;
+            }
+            transfer.lastProgressNanos = now;
+        }
+        listener.onProgress(transfer);
+    }
+
+    private void fail(Transfer transfer, String error) {
+        synchronized (transfer) {
+            if (transfer.done) {
+                return;
+            }
+            transfer.done = true;
+            closeQuietly(transfer.channel);
+        }
+        if (transfer.outgoing) {
+            outgoing.remove(transfer.id);
+        } else {
+            incoming.remove(key(transfer.deviceId, transfer.id), transfer);
+            // A cancelled transfer won't be resumed
+            if (transfer.file != null && transfer.file.getName().endsWith(PART_SUFFIX)) {
+                transfer.file.delete();
+            }
+        }
+        failed.increment();
+        listener.onFailed(transfer, error);
+    }
+
+    private synchronized ExecutorService reader() {
+        if (reader == null) {
+            reader = Executors.newSingleThreadExecutor();
+        }
+        return reader;
+    }
+
+    private static String key(String deviceId, long transferId) {
+        return deviceId + "/" + transferId;
+    }
+
+    /** A file name without path separators or leading dots. */
+    static String safeName(String name) {
+        String cleaned = name.replaceAll("[\\\\/:*?\"<>|\\x00-\\x1F]", "_").replaceAll("^\\.+", "");
+        return cleaned.isEmpty() ? "file" : cleaned;
+    }
+
+    private static File uniqueFile(File directory, String name) {
+        File file = new File(directory, name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; file.exists(); i++) {
+            file = new File(directory, base + " (" + i + ")" + extension);
+        }
+        return file;
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package app.lovable.lanchat.plugins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects inbound messages and hands them over in batches, either once
+ * {@code maxMessages} are pending or {@code maxDelayMs} after the first one
+ * arrived, whichever comes first.
+ *
+ * Batches are delivered while holding the batcher's lock, so a timer flush and
+ * a size flush can never overtake each other and per-connection order holds.
+ */
+final class InboundBatcher {
+    interface Sink {
+        void onBatch(List<Entry> batch);
+    }
+
+    /** One received message with what JS needs besides its data. */
+    static final class Entry {
+        final String clientId;
+        final String message;
+        /** Sending device of a relayed message, or null if it came straight from the neighbor. */
+        final String origin;
+        final int hops;
+        /** Sequence number the sender gets an ack for, or 0. */
+        final long seq;
+
+        Entry(String clientId, String message, String origin, int hops, long seq) {
+            this.clientId = clientId;
+            this.message = message;
+            this.origin = origin;
+            this.hops = hops;
+            this.seq = seq;
+        }
+
+        /**
+         * A message from {@code link}, under the client id it cached when the
+         * connection opened; {@code relayed} is set for messages that came
+         * through the mesh.
+         */
+        static Entry of(PeerLink link, String message, RelayFrame relayed, long seq) {
+            return new Entry(link.clientId, message,
+                    relayed != null ? relayed.origin : null, relayed != null ? relayed.hops + 1 : 0, seq);
+        }
+    }
+
+    private final int maxMessages;
+    private final long maxDelayMs;
+    private final ScheduledExecutorService timer;
+    private final Sink sink;
+
+    private List<Entry> pending = new ArrayList<>();
+    private ScheduledFuture<?> pendingFlush;
+
+    InboundBatcher(int maxMessages, long maxDelayMs, ScheduledExecutorService timer, Sink sink) {
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxDelayMs = Math.max(0, maxDelayMs);
+        this.timer = timer;
+        this.sink = sink;
+    }
+
+    synchronized void add(Entry entry) {
+        pending.add(entry);
+        if (pending.size() >= maxMessages) {
+            flush();
+        } else if (pendingFlush == null) {
+            try {
+                pendingFlush = timer.schedule(this::flush, maxDelayMs, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Shutting down; deliver now rather than lose the message
+                flush();
+            }
+        }
+    }
+
+    synchronized void flush() {
+        if (pendingFlush != null) {
+            pendingFlush.cancel(false);
+            pendingFlush = null;
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<Entry> batch = pending;
+        pending = new ArrayList<>(maxMessages);
+        sink.onBatch(batch);
+    }
+}
@@ -0,0 +1,134 @@
+package app.lovable.lanchat.plugins;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The device's usable IPv4 addresses, classified by interface name.
+ *
+ * Built from one pass over {@link NetworkInterface}, without opening a
+ * socket, so it is cheap enough to rebuild whenever the network changes and
+ * can be cached in between.
+ */
+final class LocalAddresses {
+    /** Interface kinds, in the order a LAN peer is most likely to reach us on. */
+    enum Kind {
+        HOTSPOT, WIFI, TETHER, ETHERNET, OTHER, CELLULAR;
+
+        String jsName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    static final class Address {
+        final String ip;
+        final String interfaceName;
+        final Kind kind;
+        final int prefixLength;
+
+        Address(String ip, String interfaceName, Kind kind, int prefixLength) {
+            this.ip = ip;
+            this.interfaceName = interfaceName;
+            this.kind = kind;
+            this.prefixLength = prefixLength;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Address)) {
+                return false;
+            }
+            Address that = (Address) other;
+            return ip.equals(that.ip) && interfaceName.equals(that.interfaceName) && kind == that.kind
+                    && prefixLength == that.prefixLength;
+        }
+
+        @Override
+        public int hashCode() {
+            return ip.hashCode() * 31 + interfaceName.hashCode();
+        }
+    }
+
+    static final LocalAddresses EMPTY = new LocalAddresses(Collections.emptyList());
+
+    /** Best first. */
+    final List<Address> addresses;
+
+    LocalAddresses(List<Address> addresses) {
+        List<Address> sorted = new ArrayList<>(addresses);
+        // Stable, so interfaces of the same kind keep the system's order
+        Collections.sort(sorted, (a, b) -> a.kind.compareTo(b.kind));
+        this.addresses = Collections.unmodifiableList(sorted);
+    }
+
+    /** The address to advertise, or null if there is none. */
+    String preferredIp() {
+        return addresses.isEmpty() ? null : addresses.get(0).ip;
+    }
+
+    /** Every IPv4 address on an interface that is up, loopback excluded. */
+    static LocalAddresses scan() {
+        List<Address> found = new ArrayList<>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface ni = interfaces.nextElement();
+                if (ni.isLoopback() || !ni.isUp()) {
+                    continue;
+                }
+                Kind kind = classify(ni.getName());
+                for (InterfaceAddress address : ni.getInterfaceAddresses()) {
+                    InetAddress ip = address.getAddress();
+                    if (ip instanceof Inet4Address && !ip.isLoopbackAddress()) {
+                        found.add(new Address(ip.getHostAddress(), ni.getName(), kind,
+                                address.getNetworkPrefixLength()));
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            // Whatever was found before the failure is still usable
+        }
+        return new LocalAddresses(found);
+    }
+
+    /** Guess the kind from the interface name; vendors disagree, so this is a heuristic. */
+    static Kind classify(String interfaceName) {
+        String name = interfaceName.toLowerCase(Locale.ROOT);
+        if (name.startsWith("ap") || name.startsWith("swlan") || name.contains("softap") || name.equals("wlan1")) {
+            return Kind.HOTSPOT;
+        }
+        if (name.startsWith("wlan")) {
+            return Kind.WIFI;
+        }
+        if (name.startsWith("rndis") || name.startsWith("usb") || name.startsWith("ncm")
+                || name.startsWith("bt-pan") || name.startsWith("bnep")) {
+            return Kind.TETHER;
+        }
+        if (name.startsWith("eth")) {
+            return Kind.ETHERNET;
+        }
+        if (name.startsWith("rmnet") || name.startsWith("ccmni") || name.startsWith("pdp")
+                || name.startsWith("v4-rmnet")) {
+            return Kind.CELLULAR;
+        }
+        return Kind.OTHER;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof LocalAddresses && addresses.equals(((LocalAddresses) other).addresses);
+    }
+
+    @Override
+    public int hashCode() {
+        return addresses.hashCode();
+    }
+}
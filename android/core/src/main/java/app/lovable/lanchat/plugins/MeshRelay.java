@@ -0,0 +1,274 @@
+package app.lovable.lanchat.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Multi-hop forwarding of {@link RelayFrame}s, independent of the plugin so
+ * it can be exercised with plain sockets.
+ *
+ * A frame is delivered locally when it is addressed to this device or to
+ * everyone, and forwarded when it is addressed to someone else or to
+ * everyone and has TTL left. If the destination is a direct neighbor it only
+ * goes there; otherwise it is flooded to every relaying neighbor except the
+ * one it came from. Each hop bounds the work it does for others: a seen-set
+ * drops duplicates, incoming TTLs are clamped, oversized frames are dropped
+ * and every neighbor gets a token bucket for frames we forward on its behalf.
+ *
+ * A frame published to a topic only goes to neighbors that want it: plain
+ * neighbors when they subscribed, relaying ones when they subscribed or
+ * have a subscriber behind them (see {@link TopicRoutes}). Interest we
+ * can't know still floods: relaying neighbors that don't route topics get
+ * every topic frame. Routes take a round trip per hop to spread after a
+ * link opens or a subscription changes, and frames published meanwhile may
+ * miss the new subscriber.
+ */
+final class MeshRelay {
+    /** What the relay needs from a connection. */
+    interface Neighbor {
+        /** Device id from the handshake, or null. */
+        String deviceId();
+
+        /** Whether the peer advertised relay support; others only get plain messages. */
+        boolean relays();
+
+        /**
+         * Whether the peer wants messages published to {@code topic}, or for
+         * a relaying peer whether a device behind it might; true when it
+         * can't tell.
+         */
+        boolean wants(String topic);
+
+        void sendRelay(ByteBuffer frame);
+
+        void sendPlain(String json);
+    }
+
+    static final class Limits {
+        static final int DEFAULT_TTL = 4;
+        static final int DEFAULT_MAX_TTL = 8;
+        static final int DEFAULT_RATE_PER_SEC = 50;
+        static final int DEFAULT_BURST = 100;
+        static final int DEFAULT_SEEN_CAPACITY = 4096;
+        static final int DEFAULT_MAX_FRAME_BYTES = 64 * 1024;
+
+        final int defaultTtl;
+        final int maxTtl;
+        /** Frames per second forwarded on behalf of one neighbor; 0 means no limit. */
+        final int ratePerSec;
+        final int burst;
+        final int seenCapacity;
+        final int maxFrameBytes;
+
+        Limits(int defaultTtl, int maxTtl, int ratePerSec, int burst, int seenCapacity, int maxFrameBytes) {
+            this.maxTtl = Math.max(1, Math.min(255, maxTtl));
+            this.defaultTtl = Math.max(1, Math.min(this.maxTtl, defaultTtl));
+            this.ratePerSec = Math.max(0, ratePerSec);
+            this.burst = Math.max(1, burst);
+            this.seenCapacity = Math.max(32, seenCapacity);
+            this.maxFrameBytes = Math.max(256, maxFrameBytes);
+        }
+
+        static Limits defaults() {
+            return new Limits(DEFAULT_TTL, DEFAULT_MAX_TTL, DEFAULT_RATE_PER_SEC, DEFAULT_BURST,
+                    DEFAULT_SEEN_CAPACITY, DEFAULT_MAX_FRAME_BYTES);
+        }
+    }
+
+    private static final class TokenBucket {
+        private double tokens;
+        private long lastNanos;
+
+        TokenBucket(int burst, long nowNanos) {
+            tokens = burst;
+            lastNanos = nowNanos;
+        }
+
+        boolean tryTake(int ratePerSec, int burst, long nowNanos) {
+            tokens = Math.min(burst, tokens + (nowNanos - lastNanos) * ratePerSec / 1e9);
+            lastNanos = nowNanos;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    final LongAdder originated = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    /** Sends of other devices' frames to our neighbors. */
+    final LongAdder forwarded = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+    /** Frames for others that arrived with no TTL left to forward them. */
+    final LongAdder expired = new LongAdder();
+    final LongAdder rateLimited = new LongAdder();
+    /** Topic frames not sent to a neighbor because nobody there wants the topic. */
+    final LongAdder filtered = new LongAdder();
+    /** Malformed or oversized frames. */
+    final LongAdder rejected = new LongAdder();
+
+    private final String localDeviceId;
+    private final Limits limits;
+    private final Supplier<List<? extends Neighbor>> neighbors;
+    private final LongSupplier nanoClock;
+    private final Random random;
+    private final SeenSet seen;
+    private final Map<Neighbor, TokenBucket> buckets = new HashMap<>();
+
+    MeshRelay(String localDeviceId, Limits limits, Supplier<List<? extends Neighbor>> neighbors,
+            LongSupplier nanoClock, Random random) {
+        this.localDeviceId = localDeviceId;
+        this.limits = limits;
+        this.neighbors = neighbors;
+        this.nanoClock = nanoClock;
+        this.random = random;
+        this.seen = new SeenSet(limits.seenCapacity);
+    }
+
+    /**
+     * Send a message of our own into the mesh.
+     *
+     * @param destination device id, or null for every device in range
+     * @param ttl hops the message may travel, 0 for the default
+     * @return the message id
+     */
+    long originate(String json, String destination, int ttl) {
+        return originate(json, destination, ttl, null);
+    }
+
+    /**
+     * Same, published to {@code topic}; receivers deliver it only if they
+     * subscribed to it.
+     */
+    long originate(String json, String destination, int ttl, String topic) {
+        long messageId = random.nextLong();
+        seen.add(key(localDeviceId, messageId));
+        ByteBuffer inner = SignalingCodec.encode(json);
+        boolean binary = inner != null;
+        if (!binary) {
+            inner = ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+        }
+        int hops = ttl > 0 ? Math.min(ttl, limits.maxTtl) : limits.defaultTtl;
+        ByteBuffer frame = RelayFrame.encode(hops, messageId, localDeviceId, destination, topic, binary, inner)
+                .asReadOnlyBuffer();
+        originated.increment();
+        route(frame, localDeviceId, destination, topic, json, null);
+        return messageId;
+    }
+
+    /**
+     * Handle a relay frame from a neighbor: forward it if it is for someone
+     * else, and hand it back if it should be delivered here.
+     *
+     * @return the frame to deliver locally, or null
+     */
+    RelayFrame receive(ByteBuffer bytes, Neighbor from) {
+        if (bytes.remaining() > limits.maxFrameBytes) {
+            rejected.increment();
+            return null;
+        }
+        RelayFrame frame;
+        try {
+            frame = RelayFrame.parse(bytes);
+        } catch (IllegalArgumentException e) {
+            rejected.increment();
+            return null;
+        }
+        if (frame.origin.equals(localDeviceId) || !seen.add(key(frame.origin, frame.messageId))) {
+            duplicates.increment();
+            return null;
+        }
+
+        boolean forUs = frame.destination == null || frame.destination.equals(localDeviceId);
+        boolean forOthers = frame.destination == null || !forUs;
+        if (forOthers) {
+            if (Math.min(frame.ttl, limits.maxTtl) <= 1) {
+                expired.increment();
+            } else if (!allow(from)) {
+                rateLimited.increment();
+            } else {
+                ByteBuffer next = RelayFrame.nextHop(bytes, limits.maxTtl);
+                forwarded.add(route(next, frame.origin, frame.destination, frame.topic, null, from));
+            }
+        }
+        if (forUs) {
+            delivered.increment();
+            return frame;
+        }
+        return null;
+    }
+
+    /** Drop per-neighbor state once its connection closed. */
+    synchronized void forget(Neighbor neighbor) {
+        buckets.remove(neighbor);
+    }
+
+    /**
+     * Fan a frame out. A neighbor without relay support only gets the plain
+     * message, and only when it is the destination or the message is for
+     * everyone; {@code json} is decoded lazily for that case. Frames with a
+     * topic skip neighbors that don't want it.
+     *
+     * @return how many neighbors it was sent to
+     */
+    private int route(ByteBuffer frame, String origin, String destination, String topic, String json,
+            Neighbor from) {
+        List<? extends Neighbor> targets = neighbors.get();
+        if (destination != null) {
+            for (Neighbor neighbor : targets) {
+                if (neighbor != from && destination.equals(neighbor.deviceId())) {
+                    if (neighbor.relays()) {
+                        neighbor.sendRelay(frame.duplicate());
+                    } else {
+                        neighbor.sendPlain(json != null ? json : RelayFrame.parse(frame).innerJson());
+                    }
+                    return 1;
+                }
+            }
+        }
+        int sent = 0;
+        for (Neighbor neighbor : targets) {
+            if (neighbor == from || origin.equals(neighbor.deviceId())) {
+                continue;
+            }
+            if (topic != null && !neighbor.wants(topic)) {
+                filtered.increment();
+                continue;
+            }
+            if (neighbor.relays()) {
+                neighbor.sendRelay(frame.duplicate());
+                sent++;
+            } else if (destination == null) {
+                json = json != null ? json : RelayFrame.parse(frame).innerJson();
+                neighbor.sendPlain(json);
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    private synchronized boolean allow(Neighbor from) {
+        if (limits.ratePerSec == 0 || from == null) {
+            return true;
+        }
+        long now = nanoClock.getAsLong();
+        TokenBucket bucket = buckets.get(from);
+        if (bucket == null) {
+            bucket = new TokenBucket(limits.burst, now);
+            buckets.put(from, bucket);
+        }
+        return bucket.tryTake(limits.ratePerSec, limits.burst, now);
+    }
+
+    private static long key(String origin, long messageId) {
+        return messageId ^ (origin.hashCode() * 0x9E3779B97F4A7C15L);
+    }
+}
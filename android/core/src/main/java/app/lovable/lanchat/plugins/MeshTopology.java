@@ -0,0 +1,232 @@
+package app.lovable.lanchat.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses which discovered devices to keep a direct connection to, so a
+ * large room forms a bounded-degree mesh instead of a full one. Independent
+ * of the sockets, so it can be driven from tests with a fake clock.
+ *
+ * Every device sorts the device ids it knows, itself included, into a ring
+ * and always links to the ids on either side of it; as long as devices see
+ * the same room, that alone keeps everyone reachable through the relay. The
+ * rest of the {@code maxDegree} budget goes to the best other devices by
+ * RTT and advertised load, with a bonus for links that are already up so
+ * the mesh doesn't churn on every new measurement. Links are only dropped
+ * when there are more than the budget allows, worst first, never a ring link.
+ *
+ * Exactly one side of each pair dials, picked by {@link #dials}, so two
+ * devices never race to connect to each other. A device that closed our
+ * link for being over its budget is left alone for {@code cooldownMs}.
+ */
+final class MeshTopology {
+    static final int DEFAULT_MAX_DEGREE = 6;
+    static final long DEFAULT_COOLDOWN_MS = 30_000;
+    /** Assumed for devices we have no RTT for yet. */
+    static final double UNKNOWN_RTT_MS = 50;
+    /** Each connection a device advertises costs as much as this much RTT. */
+    static final double LOAD_COST_MS = 10;
+    /** Share of its cost an existing link keeps, so a slightly better device doesn't replace it. */
+    static final double CONNECTED_DISCOUNT = 0.7;
+
+    static final class Candidate {
+        final String deviceId;
+        final String ip;
+        final int port;
+        /** Connections it advertises, or -1 if unknown. */
+        final int load;
+
+        Candidate(String deviceId, String ip, int port, int load) {
+            this.deviceId = deviceId;
+            this.ip = ip;
+            this.port = port;
+            this.load = load;
+        }
+    }
+
+    static final class Plan {
+        /** Devices we should dial now. */
+        final List<Candidate> dial;
+        /** Connected devices to close, worst first. */
+        final List<String> drop;
+
+        Plan(List<Candidate> dial, List<String> drop) {
+            this.dial = dial;
+            this.drop = drop;
+        }
+
+        boolean isEmpty() {
+            return dial.isEmpty() && drop.isEmpty();
+        }
+    }
+
+    private final String localId;
+    private final int maxDegree;
+    private final long cooldownNanos;
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    private final Set<String> connected = new HashSet<>();
+    private final Map<String, Double> rttMs = new HashMap<>();
+    private final Map<String, Long> coolUntilNanos = new HashMap<>();
+
+    /** @param maxDegree at least 2, the two ring links */
+    MeshTopology(String localId, int maxDegree, long cooldownMs) {
+        this.localId = localId;
+        this.maxDegree = Math.max(2, maxDegree);
+        this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, cooldownMs));
+    }
+
+    /**
+     * Whether {@code a} is the one to dial {@code b}. Symmetric, so both
+     * sides agree, and spread so that no id dials more than its share.
+     */
+    static boolean dials(String a, String b) {
+        boolean aFirst = a.compareTo(b) < 0;
+        String low = aFirst ? a : b;
+        String high = aFirst ? b : a;
+        boolean lowDials = ((low + '|' + high).hashCode() & 1) == 0;
+        return aFirst == lowDials;
+    }
+
+    /** A device was discovered, or its address or load changed. */
+    synchronized void upsert(Candidate candidate) {
+        if (!candidate.deviceId.equals(localId)) {
+            candidates.put(candidate.deviceId, candidate);
+        }
+    }
+
+    /** Forget every candidate, e.g. before discovery reports the whole room again. */
+    synchronized void clearCandidates() {
+        candidates.clear();
+    }
+
+    /** Discovery lost the device; an open link to it stays until it closes. */
+    synchronized void remove(String deviceId) {
+        candidates.remove(deviceId);
+        coolUntilNanos.remove(deviceId);
+    }
+
+    synchronized void onConnected(String deviceId) {
+        connected.add(deviceId);
+    }
+
+    synchronized void onDisconnected(String deviceId) {
+        connected.remove(deviceId);
+        rttMs.remove(deviceId);
+    }
+
+    synchronized void onRtt(String deviceId, double rtt) {
+        if (rtt >= 0) {
+            rttMs.put(deviceId, rtt);
+        }
+    }
+
+    /** The device closed our link to stay within its budget; don't dial it again for a while. */
+    synchronized void onRefused(String deviceId, long nowNanos) {
+        coolUntilNanos.put(deviceId, nowNanos + cooldownNanos);
+    }
+
+    /** Candidate with this device id or ip:port, or null. */
+    synchronized Candidate find(String id) {
+        Candidate candidate = candidates.get(id);
+        if (candidate != null) {
+            return candidate;
+        }
+        for (Candidate c : candidates.values()) {
+            if (id.equals(c.ip + ":" + c.port)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    synchronized int known() {
+        return candidates.size();
+    }
+
+    synchronized int degree() {
+        return connected.size();
+    }
+
+    /** The ids on either side of us in the ring; one or none in rooms of two or one. */
+    synchronized Set<String> ringNeighbors() {
+        TreeSet<String> ring = new TreeSet<>(candidates.keySet());
+        Set<String> neighbors = new LinkedHashSet<>();
+        if (ring.isEmpty()) {
+            return neighbors;
+        }
+        String next = ring.higher(localId);
+        String previous = ring.lower(localId);
+        neighbors.add(next != null ? next : ring.first());
+        neighbors.add(previous != null ? previous : ring.last());
+        return neighbors;
+    }
+
+    /** Devices we want a direct link to: the ring neighbors, then the cheapest others within budget. */
+    synchronized Set<String> desired() {
+        Set<String> desired = ringNeighbors();
+        List<String> others = new ArrayList<>(candidates.keySet());
+        others.removeAll(desired);
+        Collections.sort(others, (a, b) -> Double.compare(cost(a), cost(b)));
+        for (String id : others) {
+            if (desired.size() >= maxDegree) {
+                break;
+            }
+            desired.add(id);
+        }
+        return desired;
+    }
+
+    synchronized Plan plan(long nowNanos) {
+        Set<String> desired = desired();
+        List<Candidate> dial = new ArrayList<>();
+        for (String id : desired) {
+            Long coolUntil = coolUntilNanos.get(id);
+            if (coolUntil != null && nowNanos - coolUntil < 0) {
+                continue;
+            }
+            if (!connected.contains(id) && dials(localId, id)) {
+                dial.add(candidates.get(id));
+            }
+        }
+
+        List<String> drop = new ArrayList<>();
+        int excess = connected.size() - maxDegree;
+        if (excess > 0) {
+            Set<String> ring = ringNeighbors();
+            List<String> droppable = new ArrayList<>();
+            for (String id : connected) {
+                if (!ring.contains(id)) {
+                    droppable.add(id);
+                }
+            }
+            // Links we don't want go first, then the most expensive
+            Collections.sort(droppable, (a, b) -> {
+                boolean wantA = desired.contains(a);
+                boolean wantB = desired.contains(b);
+                if (wantA != wantB) {
+                    return wantA ? 1 : -1;
+                }
+                return Double.compare(cost(b), cost(a));
+            });
+            drop.addAll(droppable.subList(0, Math.min(excess, droppable.size())));
+        }
+        return new Plan(dial, drop);
+    }
+
+    private double cost(String id) {
+        Double rtt = rttMs.get(id);
+        Candidate candidate = candidates.get(id);
+        int load = candidate != null ? candidate.load : -1;
+        double cost = (rtt != null ? rtt : UNKNOWN_RTT_MS) + Math.max(0, load) * LOAD_COST_MS;
+        return connected.contains(id) ? cost * CONNECTED_DISCOUNT : cost;
+    }
+}
@@ -0,0 +1,73 @@
+package app.lovable.lanchat.plugins;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One message on its way out, shared by every connection it is sent to.
+ *
+ * The UTF-8 text payload and the binary signaling frame are each built at
+ * most once, the first time a connection needs that form, and every
+ * connection then writes its own view of the same bytes. Fan-out to N peers
+ * therefore costs one serialization per wire format instead of N.
+ */
+final class OutboundMessage {
+    final String type;
+    final String text;
+    /** When the web layer handed it over, for send-path latency. */
+    final long createdNanos = System.nanoTime();
+
+    private ByteBuffer utf8;
+    private ByteBuffer binary;
+    private boolean binaryEncoded;
+    private String subject;
+    private boolean subjectRead;
+
+    OutboundMessage(String text) {
+        this.text = text;
+        this.type = SignalingCodec.peekType(text);
+    }
+
+    private OutboundMessage(ByteBuffer frame) {
+        this.text = null;
+        this.type = null;
+        this.binary = frame.asReadOnlyBuffer();
+        this.binaryEncoded = true;
+    }
+
+    /** A ready-made binary frame, e.g. a relay frame, sent as-is to every connection. */
+    static OutboundMessage binary(ByteBuffer frame) {
+        return new OutboundMessage(frame);
+    }
+
+    /**
+     * The message a receipt refers to, or null. Coalescing only merges
+     * messages of the same type about the same subject, so a receipt for one
+     * message never replaces the receipt for another.
+     */
+    synchronized String subject() {
+        if (!subjectRead) {
+            subject = text != null ? SignalingCodec.peekMessageId(text) : null;
+            subjectRead = true;
+        }
+        return subject;
+    }
+
+    /** A fresh view of the UTF-8 payload; callers may consume it. */
+    synchronized ByteBuffer textPayload() {
+        if (utf8 == null) {
+            utf8 = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        }
+        return utf8.duplicate();
+    }
+
+    /** A fresh view of the binary signaling frame, or null if the message has to go out as text. */
+    synchronized ByteBuffer binaryPayload() {
+        if (!binaryEncoded) {
+            ByteBuffer frame = SignalingCodec.encode(text);
+            binary = frame != null ? frame.asReadOnlyBuffer() : null;
+            binaryEncoded = true;
+        }
+        return binary != null ? binary.duplicate() : null;
+    }
+}
@@ -0,0 +1,151 @@
+package app.lovable.lanchat.plugins;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Bounded queue of frames waiting to be written to one connection.
+ *
+ * Messages whose type is in the coalesced set (typing by default) replace
+ * any queued message of the same type and {@link OutboundMessage#subject()},
+ * so a slow peer only ever gets the latest one; receipts for different
+ * messages are all kept. When the queue is full the {@link OverflowPolicy} decides what gives.
+ * All methods are synchronized; the queue is touched by the plugin call
+ * thread and the writer thread only.
+ */
+final class OutboundQueue {
+    enum OverflowPolicy {
+        DROP_OLDEST, REJECT, DISCONNECT;
+
+        /** Parses the JS-facing names ("drop-oldest", "reject", "disconnect"). */
+        static OverflowPolicy fromString(String value) {
+            if (value == null) {
+                return DROP_OLDEST;
+            }
+            return valueOf(value.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        }
+    }
+
+    enum Result { QUEUED, COALESCED, DROPPED_OLDEST, REJECTED, OVERFLOW_DISCONNECT }
+
+    private final ArrayDeque<OutboundMessage> items = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Set<String> coalescedTypes;
+
+    private boolean draining;
+    private long sent;
+    private long dropped;
+    private long coalesced;
+    private long rejected;
+
+    OutboundQueue(int capacity, OverflowPolicy policy, Set<String> coalescedTypes) {
+        this.capacity = Math.max(1, capacity);
+        this.policy = policy;
+        this.coalescedTypes = coalescedTypes;
+    }
+
+    synchronized Result offer(OutboundMessage item) {
+        if (item.type != null && coalescedTypes.contains(item.type)) {
+            String subject = item.subject();
+            Iterator<OutboundMessage> it = items.iterator();
+            while (it.hasNext()) {
+                OutboundMessage queued = it.next();
+                if (item.type.equals(queued.type) && Objects.equals(subject, queued.subject())) {
+                    // Re-append rather than replace in place, so it stays ordered after newer messages
+                    it.remove();
+                    items.addLast(item);
+                    coalesced++;
+                    return Result.COALESCED;
+                }
+            }
+        }
+
+        if (items.size() < capacity) {
+            items.addLast(item);
+            return Result.QUEUED;
+        }
+
+        switch (policy) {
+            case REJECT:
+                rejected++;
+                return Result.REJECTED;
+            case DISCONNECT:
+                dropped += items.size() + 1;
+                items.clear();
+                return Result.OVERFLOW_DISCONNECT;
+            default:
+                items.pollFirst();
+                items.addLast(item);
+                dropped++;
+                return Result.DROPPED_OLDEST;
+        }
+    }
+
+    /**
+     * Claim the drain for the writer thread.
+     *
+     * @return true if the caller must schedule a drain, false if one is pending
+     */
+    synchronized boolean markDraining() {
+        if (draining) {
+            return false;
+        }
+        draining = true;
+        return true;
+    }
+
+    /** Next item to write, or null after releasing the drain claim. */
+    synchronized OutboundMessage poll() {
+        OutboundMessage item = items.pollFirst();
+        if (item == null) {
+            draining = false;
+        } else {
+            sent++;
+        }
+        return item;
+    }
+
+    /** Drop everything still queued and release the drain claim, e.g. once the connection closed. */
+    synchronized void clear() {
+        dropped += items.size();
+        items.clear();
+        draining = false;
+    }
+
+    /** Remove and return everything queued, e.g. to move it to another connection. */
+    synchronized List<OutboundMessage> takeAll() {
+        List<OutboundMessage> taken = new ArrayList<>(items);
+        items.clear();
+        return taken;
+    }
+
+    synchronized int depth() {
+        return items.size();
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    synchronized long sent() {
+        return sent;
+    }
+
+    synchronized long dropped() {
+        return dropped;
+    }
+
+    synchronized long coalesced() {
+        return coalesced;
+    }
+
+    synchronized long rejected() {
+        return rejected;
+    }
+}
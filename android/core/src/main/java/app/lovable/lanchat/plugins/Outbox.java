@@ -0,0 +1,277 @@
+package app.lovable.lanchat.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Store-and-forward queue for devices that are currently unreachable: one
+ * {@link SegmentLog} per destination device under {@code dir}, named by the
+ * hex of the device id. Logs left over from an earlier run are reopened, so
+ * messages survive the app being killed while a peer is away.
+ *
+ * Retention is bounded two ways: at most {@code maxMessages} per device
+ * (the oldest are dropped to make room) and nothing older than
+ * {@code maxAgeMs} is ever handed out.
+ *
+ * Each stored message has an id, unique for the life of this object, that
+ * the caller can match up with how the message was eventually sent. Messages
+ * left from an earlier run get new ids when they are reopened.
+ */
+final class Outbox {
+    static final int DEFAULT_MAX_MESSAGES = 500;
+    static final long DEFAULT_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
+    static final int DEFAULT_SEGMENT_BYTES = 256 * 1024;
+
+    private final File dir;
+    private final int maxMessages;
+    private final long maxAgeMs;
+    private final int segmentBytes;
+    private final LongSupplier clock;
+    private final Map<String, Destination> destinations = new HashMap<>();
+
+    private long nextId = 1;
+    private long stored;
+    private long forwarded;
+    private long dropped;
+    private long expired;
+
+    private static final class Destination {
+        final SegmentLog log;
+        /** Ids of the stored messages, oldest first. */
+        final ArrayDeque<Long> ids = new ArrayDeque<>();
+        /** Messages handed out by peek and not yet removed. */
+        int inFlight;
+        boolean flushing;
+
+        Destination(SegmentLog log) {
+            this.log = log;
+        }
+
+        /** Consume {@code count} messages from the head of the log. */
+        void advance(int count) {
+            log.advance(count);
+            for (int i = 0; i < count && !ids.isEmpty(); i++) {
+                ids.removeFirst();
+            }
+        }
+    }
+
+    Outbox(File dir, int maxMessages, long maxAgeMs, int segmentBytes, LongSupplier clock) throws IOException {
+        this.dir = dir;
+        this.maxMessages = Math.max(1, maxMessages);
+        this.maxAgeMs = maxAgeMs;
+        this.segmentBytes = segmentBytes;
+        this.clock = clock;
+
+        File[] existing = dir.listFiles(File::isDirectory);
+        if (existing != null) {
+            for (File logDir : existing) {
+                String deviceId = decode(logDir.getName());
+                if (deviceId != null) {
+                    SegmentLog log = new SegmentLog(logDir, segmentBytes);
+                    if (log.size() > 0) {
+                        Destination destination = new Destination(log);
+                        for (int i = 0; i < log.size(); i++) {
+                            destination.ids.addLast(nextId++);
+                        }
+                        destinations.put(deviceId, destination);
+                    } else {
+                        log.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Store a message for {@code deviceId}, dropping its oldest if the device is at the limit.
+     *
+     * @return the message's id
+     */
+    synchronized long append(String deviceId, String message) throws IOException {
+        Destination destination = destinations.get(deviceId);
+        if (destination == null) {
+            destination = new Destination(new SegmentLog(new File(dir, encode(deviceId)), segmentBytes));
+            destinations.put(deviceId, destination);
+        }
+        SegmentLog log = destination.log;
+        log.append(message.getBytes(StandardCharsets.UTF_8), clock.getAsLong());
+        long id = nextId++;
+        destination.ids.addLast(id);
+        stored++;
+        if (log.size() > maxMessages) {
+            int excess = log.size() - maxMessages;
+            destination.advance(excess);
+            dropped += excess;
+            // Whatever was in flight and got dropped must not be removed a second time
+            destination.inFlight = Math.max(0, destination.inFlight - excess);
+        }
+        return id;
+    }
+
+    /**
+     * The next {@code max} messages for a device, oldest first. They stay
+     * stored until {@link #remove} is called for them; expired ones are
+     * dropped on the way. Only the flush holding the claim may call this.
+     */
+    synchronized List<String> peek(String deviceId, int max) {
+        Destination destination = destinations.get(deviceId);
+        List<String> messages = new ArrayList<>();
+        if (destination == null) {
+            return messages;
+        }
+        SegmentLog log = destination.log;
+        long oldest = maxAgeMs > 0 ? clock.getAsLong() - maxAgeMs : Long.MIN_VALUE;
+        while (messages.isEmpty() && log.size() > 0) {
+            int stale = 0;
+            for (SegmentLog.Record record : log.peek(max)) {
+                if (messages.isEmpty() && record.timestampMillis < oldest) {
+                    stale++;
+                } else {
+                    messages.add(new String(record.data, StandardCharsets.UTF_8));
+                }
+            }
+            if (stale > 0) {
+                destination.advance(stale);
+                expired += stale;
+            }
+        }
+        destination.inFlight = messages.size();
+        release(deviceId, destination);
+        return messages;
+    }
+
+    /** Ids of the messages the last peek handed out, in the same order. */
+    synchronized List<Long> peekedIds(String deviceId) {
+        Destination destination = destinations.get(deviceId);
+        List<Long> ids = new ArrayList<>();
+        if (destination == null) {
+            return ids;
+        }
+        for (Long id : destination.ids) {
+            if (ids.size() >= destination.inFlight) {
+                break;
+            }
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    /** Forget the messages the last peek handed out, once they have been sent. */
+    synchronized void remove(String deviceId) {
+        Destination destination = destinations.get(deviceId);
+        if (destination != null) {
+            remove(deviceId, destination.inFlight);
+        }
+    }
+
+    /**
+     * Forget the first {@code count} messages the last peek handed out; the
+     * rest are handed out again by the next one.
+     */
+    synchronized void remove(String deviceId, int count) {
+        Destination destination = destinations.get(deviceId);
+        if (destination == null) {
+            return;
+        }
+        int removed = Math.min(count, destination.inFlight);
+        destination.advance(removed);
+        forwarded += removed;
+        destination.inFlight = 0;
+        release(deviceId, destination);
+    }
+
+    synchronized int pending(String deviceId) {
+        Destination destination = destinations.get(deviceId);
+        return destination != null ? destination.log.size() : 0;
+    }
+
+    /** Messages waiting per device. */
+    synchronized Map<String, Integer> pendingByDevice() {
+        Map<String, Integer> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Destination> entry : destinations.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().log.size());
+        }
+        return result;
+    }
+
+    /**
+     * Claim the flush for a device, like {@link OutboundQueue#markDraining}.
+     *
+     * @return true if the caller must schedule a flush, false if one is pending
+     */
+    synchronized boolean markFlushing(String deviceId) {
+        Destination destination = destinations.get(deviceId);
+        if (destination == null || destination.flushing) {
+            return false;
+        }
+        destination.flushing = true;
+        return true;
+    }
+
+    /** Release the flush claim; messages handed out but not removed will be handed out again. */
+    synchronized void doneFlushing(String deviceId) {
+        Destination destination = destinations.get(deviceId);
+        if (destination != null) {
+            destination.flushing = false;
+            destination.inFlight = 0;
+        }
+    }
+
+    synchronized long stored() {
+        return stored;
+    }
+
+    synchronized long forwarded() {
+        return forwarded;
+    }
+
+    /** Messages dropped to stay within maxMessages. */
+    synchronized long dropped() {
+        return dropped;
+    }
+
+    synchronized long expired() {
+        return expired;
+    }
+
+    /** An emptied log takes no disk space; drop the directory too. */
+    private void release(String deviceId, Destination destination) {
+        if (destination.log.size() == 0) {
+            destination.log.delete();
+            destinations.remove(deviceId);
+        }
+    }
+
+    static String encode(String deviceId) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : deviceId.getBytes(StandardCharsets.UTF_8)) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    static String decode(String name) {
+        if (name.isEmpty() || name.length() % 2 != 0) {
+            return null;
+        }
+        byte[] bytes = new byte[name.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(name.charAt(2 * i), 16);
+            int lo = Character.digit(name.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,182 @@
+package app.lovable.lanchat.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a device tells others about itself before they connect: identity,
+ * protocol version, what it can speak and how busy it is.
+ *
+ * Carried as DNS-SD TXT attributes and in UDP beacons, both as short
+ * key=value strings. Parsing is lenient: unknown keys are ignored and a
+ * missing or malformed value reads as unknown, so older and newer devices
+ * can still see each other.
+ */
+final class PeerAttributes {
+    static final String KEY_DEVICE_ID = "id";
+    static final String KEY_DISPLAY_NAME = "dn";
+    static final String KEY_PROTOCOL_VERSION = "v";
+    static final String KEY_CODECS = "c";
+    static final String KEY_FRAMING = "f";
+    static final String KEY_CONNECTIONS = "n";
+    static final String KEY_PORT = "p";
+    /** DNS-SD limit for one key=value string. */
+    static final int MAX_ENTRY_BYTES = 255;
+    static final int UNKNOWN = -1;
+
+    static final PeerAttributes EMPTY = new PeerAttributes(
+            null, null, UNKNOWN, Collections.emptyList(), Collections.emptyList(), UNKNOWN, UNKNOWN);
+
+    final String deviceId;
+    final String displayName;
+    final int protocolVersion;
+    /** e.g. "deflate". */
+    final List<String> codecs;
+    /** e.g. "binary", "relay", "ack", "file". */
+    final List<String> framing;
+    /** Open WebSocket connections when last advertised. */
+    final int connections;
+    final int port;
+
+    PeerAttributes(String deviceId, String displayName, int protocolVersion, List<String> codecs,
+            List<String> framing, int connections, int port) {
+        this.deviceId = deviceId;
+        this.displayName = displayName;
+        this.protocolVersion = protocolVersion;
+        this.codecs = Collections.unmodifiableList(new ArrayList<>(codecs));
+        this.framing = Collections.unmodifiableList(new ArrayList<>(framing));
+        this.connections = connections;
+        this.port = port;
+    }
+
+    PeerAttributes withConnections(int connections) {
+        return new PeerAttributes(deviceId, displayName, protocolVersion, codecs, framing, connections, port);
+    }
+
+    /**
+     * Entries in a stable order, leaving out unknown values. A value too long
+     * for its entry is cut at a list item, or dropped if it isn't a list.
+     */
+    Map<String, String> toTxt() {
+        Map<String, String> txt = new LinkedHashMap<>();
+        putString(txt, KEY_DEVICE_ID, deviceId);
+        putString(txt, KEY_DISPLAY_NAME, displayName);
+        putInt(txt, KEY_PROTOCOL_VERSION, protocolVersion);
+        putList(txt, KEY_CODECS, codecs);
+        putList(txt, KEY_FRAMING, framing);
+        putInt(txt, KEY_CONNECTIONS, connections);
+        putInt(txt, KEY_PORT, port);
+        return txt;
+    }
+
+    /**
+     * @param txt values as {@code byte[]} (from NsdServiceInfo) or String;
+     *            null values are treated as missing
+     */
+    static PeerAttributes fromTxt(Map<String, ?> txt) {
+        if (txt == null || txt.isEmpty()) {
+            return EMPTY;
+        }
+        return new PeerAttributes(
+                string(txt.get(KEY_DEVICE_ID)),
+                string(txt.get(KEY_DISPLAY_NAME)),
+                integer(txt.get(KEY_PROTOCOL_VERSION)),
+                list(txt.get(KEY_CODECS)),
+                list(txt.get(KEY_FRAMING)),
+                integer(txt.get(KEY_CONNECTIONS)),
+                integer(txt.get(KEY_PORT)));
+    }
+
+    boolean isEmpty() {
+        return equals(EMPTY);
+    }
+
+    private static void putString(Map<String, String> txt, String key, String value) {
+        if (value != null && !value.isEmpty() && fits(key, value)) {
+            txt.put(key, value);
+        }
+    }
+
+    private static void putInt(Map<String, String> txt, String key, int value) {
+        if (value >= 0) {
+            txt.put(key, Integer.toString(value));
+        }
+    }
+
+    private static void putList(Map<String, String> txt, String key, List<String> values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (value.isEmpty() || value.indexOf(',') >= 0) {
+                continue;
+            }
+            String next = joined.length() == 0 ? value : joined + "," + value;
+            if (!fits(key, next)) {
+                break;
+            }
+            joined.setLength(0);
+            joined.append(next);
+        }
+        if (joined.length() > 0) {
+            txt.put(key, joined.toString());
+        }
+    }
+
+    private static boolean fits(String key, String value) {
+        return key.length() + 1 + value.getBytes(StandardCharsets.UTF_8).length <= MAX_ENTRY_BYTES;
+    }
+
+    private static String string(Object value) {
+        if (value instanceof byte[]) {
+            String s = new String((byte[]) value, StandardCharsets.UTF_8);
+            return s.isEmpty() ? null : s;
+        }
+        if (value instanceof String && !((String) value).isEmpty()) {
+            return (String) value;
+        }
+        return null;
+    }
+
+    private static int integer(Object value) {
+        String s = string(value);
+        if (s == null) {
+            return UNKNOWN;
+        }
+        try {
+            return Math.max(UNKNOWN, Integer.parseInt(s.trim()));
+        } catch (NumberFormatException e) {
+            return UNKNOWN;
+        }
+    }
+
+    private static List<String> list(Object value) {
+        String s = string(value);
+        if (s == null) {
+            return Collections.emptyList();
+        }
+        List<String> values = new ArrayList<>();
+        for (String item : Arrays.asList(s.split(","))) {
+            if (!item.trim().isEmpty()) {
+                values.add(item.trim());
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof PeerAttributes)) {
+            return false;
+        }
+        return toTxt().equals(((PeerAttributes) other).toTxt());
+    }
+
+    @Override
+    public int hashCode() {
+        return toTxt().hashCode();
+    }
+}
@@ -0,0 +1,190 @@
+package app.lovable.lanchat.plugins;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The peers seen last time, kept in one small file so that after a restart
+ * we can dial them straight away instead of waiting for discovery.
+ *
+ * The file is written whole to a temporary file and renamed over the old
+ * one, so a crash leaves either snapshot intact. Layout: "LC", a version
+ * byte, the CRC32 of the body as an int, then the body: an unsigned short
+ * count and, per peer, the name, ip, port, last-seen time in ms and its TXT
+ * attributes as key/value strings. A file that doesn't check out reads as
+ * empty; the cache is only ever a head start.
+ */
+final class PeerCache {
+    static final int DEFAULT_MAX_PEERS = 64;
+    /** Past this the room has most likely moved on. */
+    static final long DEFAULT_MAX_AGE_MS = 6 * 60 * 60 * 1000L;
+    static final int VERSION = 1;
+    private static final byte MAGIC_0 = 'L';
+    private static final byte MAGIC_1 = 'C';
+    private static final int HEADER_BYTES = 7;
+    /** Far more than maxPeers entries can take; anything bigger isn't ours. */
+    private static final int MAX_FILE_BYTES = 1024 * 1024;
+
+    static final class Entry {
+        final String name;
+        final String ip;
+        final int port;
+        final PeerAttributes attributes;
+        final long lastSeenMillis;
+
+        Entry(String name, String ip, int port, PeerAttributes attributes, long lastSeenMillis) {
+            this.name = name;
+            this.ip = ip;
+            this.port = port;
+            this.attributes = attributes;
+            this.lastSeenMillis = lastSeenMillis;
+        }
+    }
+
+    private final File file;
+    private final int maxPeers;
+    private final long maxAgeMs;
+
+    PeerCache(File file, int maxPeers, long maxAgeMs) {
+        this.file = file;
+        this.maxPeers = Math.max(1, maxPeers);
+        this.maxAgeMs = maxAgeMs;
+    }
+
+    /** Peers seen within maxAgeMs of {@code nowMillis}, most recent first. */
+    List<Entry> load(long nowMillis) {
+        byte[] data;
+        try {
+            data = read();
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = decode(data);
+        List<Entry> fresh = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (nowMillis - entry.lastSeenMillis <= maxAgeMs) {
+                fresh.add(entry);
+            }
+        }
+        return fresh;
+    }
+
+    /** Replace the snapshot with the {@code maxPeers} most recently seen of {@code entries}. */
+    void save(List<Entry> entries) throws IOException {
+        List<Entry> newest = new ArrayList<>(entries);
+        Collections.sort(newest, (a, b) -> Long.compare(b.lastSeenMillis, a.lastSeenMillis));
+        if (newest.size() > maxPeers) {
+            newest = newest.subList(0, maxPeers);
+        }
+        byte[] data = encode(newest);
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    static byte[] encode(List<Entry> entries) {
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+        try (DataOutputStream body = new DataOutputStream(bodyBytes)) {
+            int count = Math.min(entries.size(), 0xFFFF);
+            body.writeShort(count);
+            for (Entry entry : entries.subList(0, count)) {
+                body.writeUTF(entry.name);
+                body.writeUTF(entry.ip);
+                body.writeShort(entry.port);
+                body.writeLong(entry.lastSeenMillis);
+                Map<String, String> txt = entry.attributes.toTxt();
+                body.writeByte(txt.size());
+                for (Map.Entry<String, String> attribute : txt.entrySet()) {
+                    body.writeUTF(attribute.getKey());
+                    body.writeUTF(attribute.getValue());
+                }
+            }
+        } catch (IOException e) {
+            // Not thrown by an in-memory stream
+            throw new IllegalStateException(e);
+        }
+        byte[] payload = bodyBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(HEADER_BYTES + payload.length)
+                .put(MAGIC_0).put(MAGIC_1).put((byte) VERSION)
+                .putInt((int) crc.getValue())
+                .put(payload)
+                .array();
+    }
+
+    /** The entries in {@code data}, or none if it is damaged or from a newer version. */
+    static List<Entry> decode(byte[] data) {
+        if (data.length < HEADER_BYTES || data[0] != MAGIC_0 || data[1] != MAGIC_1 || data[2] != VERSION) {
+            return Collections.emptyList();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data, HEADER_BYTES, data.length - HEADER_BYTES);
+        if ((int) crc.getValue() != ByteBuffer.wrap(data, 3, 4).getInt()) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(data, HEADER_BYTES, data.length - HEADER_BYTES))) {
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                String ip = in.readUTF();
+                int port = in.readUnsignedShort();
+                long lastSeen = in.readLong();
+                int attributeCount = in.readUnsignedByte();
+                Map<String, String> txt = new LinkedHashMap<>();
+                for (int j = 0; j < attributeCount; j++) {
+                    txt.put(in.readUTF(), in.readUTF());
+                }
+                entries.add(new Entry(name, ip, port, PeerAttributes.fromTxt(txt), lastSeen));
+            }
+        } catch (IOException e) {
+            return Collections.emptyList();
+        }
+        return entries;
+    }
+
+    private byte[] read() throws IOException {
+        long length = file.length();
+        if (length <= 0 || length > MAX_FILE_BYTES) {
+            throw new IOException("No usable snapshot in " + file);
+        }
+        byte[] data = new byte[(int) length];
+        try (InputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Truncated " + file);
+                }
+                offset += read;
+            }
+        }
+        return data;
+    }
+}
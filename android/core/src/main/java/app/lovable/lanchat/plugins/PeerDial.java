@@ -0,0 +1,48 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.client.WebSocketClient;
+
+import java.util.Locale;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * An outgoing connection we want to keep up: at most one connect attempt in
+ * flight, and retries with backoff after it drops. Guarded by its
+ * {@link PeerDials}.
+ */
+final class PeerDial {
+    enum State {
+        CONNECTING, OPEN, BACKOFF;
+
+        String jsName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    final String clientId;
+    final String ip;
+    final int port;
+    final boolean compression;
+    final int compressionThreshold;
+
+    State state = State.CONNECTING;
+    /** Failed attempts since the last successful open. */
+    int attempts;
+    WebSocketClient client;
+    ScheduledFuture<?> retry;
+
+    PeerDial(String clientId, String ip, int port, boolean compression, int compressionThreshold) {
+        this.clientId = clientId;
+        this.ip = ip;
+        this.port = port;
+        this.compression = compression;
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    void cancelRetry() {
+        if (retry != null) {
+            retry.cancel(false);
+            retry = null;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.client.WebSocketClient;
+
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * The outgoing connections we keep up, by client id: at most one connect
+ * attempt in flight per peer however often it is asked for, and jittered
+ * backoff retries after an attempt fails or an open connection drops.
+ * Independent of the plugin, which only builds the clients.
+ *
+ * Clients report back through {@link #opened} and {@link #closed}; reports
+ * from a client that was cancelled or superseded are ignored.
+ */
+final class PeerDials {
+    static final int DEFAULT_BASE_DELAY_MS = 500;
+    static final int DEFAULT_MAX_DELAY_MS = 30000;
+    static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+    interface Dialer {
+        /** Whether the peer is connected some other way, e.g. it dialed us, so there is no need to. */
+        boolean connected(PeerDial dial);
+
+        /** A client for {@code dial}, not yet connecting, that reports back to this table. */
+        WebSocketClient newClient(PeerDial dial) throws URISyntaxException;
+    }
+
+    private final Dialer dialer;
+    private final Supplier<ScheduledExecutorService> scheduler;
+    private final LongAdder reconnects;
+    private final LongAdder reconnectAttempts;
+    private final Map<String, PeerDial> dials = new HashMap<>();
+    private Backoff backoff = new Backoff(DEFAULT_BASE_DELAY_MS, DEFAULT_MAX_DELAY_MS, new Random());
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    /**
+     * @param scheduler thread retries run on; null once stopped, when
+     *     dropped connections are given up
+     */
+    PeerDials(Dialer dialer, Supplier<ScheduledExecutorService> scheduler, LongAdder reconnects,
+            LongAdder reconnectAttempts) {
+        this.dialer = dialer;
+        this.scheduler = scheduler;
+        this.reconnects = reconnects;
+        this.reconnectAttempts = reconnectAttempts;
+    }
+
+    /** @param maxAttempts retries after which a peer is given up; 0 retries forever */
+    synchronized void configure(Backoff backoff, int maxAttempts) {
+        this.backoff = backoff;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Keep {@code clientId} connected. Calls while an attempt is in flight
+     * or the connection is open join it; a call during backoff skips the
+     * rest of the wait, e.g. when the peer was just rediscovered.
+     *
+     * @return the dial's state after the call
+     */
+    synchronized PeerDial.State ensure(String clientId, String ip, int port, boolean compression,
+            int compressionThreshold) throws URISyntaxException {
+        PeerDial dial = dials.get(clientId);
+        if (dial == null) {
+            dial = new PeerDial(clientId, ip, port, compression, compressionThreshold);
+            dial(dial);
+            dials.put(clientId, dial);
+        } else if (dial.state == PeerDial.State.BACKOFF) {
+            dial.cancelRetry();
+            dial(dial);
+        }
+        return dial.state;
+    }
+
+    /** Start a connect attempt for {@code dial}. */
+    private void dial(PeerDial dial) throws URISyntaxException {
+        WebSocketClient client = dialer.newClient(dial);
+        dial.client = client;
+        dial.state = PeerDial.State.CONNECTING;
+        client.connect();
+    }
+
+    synchronized void opened(PeerDial dial, WebSocketClient client) {
+        if (dial.client != client) {
+            return;
+        }
+        if (dial.attempts > 0) {
+            reconnects.increment();
+        }
+        dial.state = PeerDial.State.OPEN;
+        dial.attempts = 0;
+    }
+
+    /**
+     * A client of {@code dial} closed, or failed to connect.
+     *
+     * @param retry false if it was closed on purpose, and the peer shouldn't be redialed
+     * @return the delay before the retry, or -1 if there won't be one
+     */
+    synchronized long closed(PeerDial dial, WebSocketClient client, boolean retry) {
+        if (dials.get(dial.clientId) != dial || dial.client != client) {
+            return -1;
+        }
+        if (!retry) {
+            dials.remove(dial.clientId);
+            return -1;
+        }
+        dial.attempts++;
+        dial.client = null;
+        if (maxAttempts > 0 && dial.attempts > maxAttempts) {
+            dials.remove(dial.clientId);
+            return -1;
+        }
+        ScheduledExecutorService executor = scheduler.get();
+        if (executor == null) {
+            dials.remove(dial.clientId);
+            return -1;
+        }
+        long delay = backoff.delayMs(dial.attempts);
+        dial.state = PeerDial.State.BACKOFF;
+        reconnectAttempts.increment();
+        try {
+            dial.retry = executor.schedule(() -> retry(dial), delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            dials.remove(dial.clientId);
+            return -1;
+        }
+        return delay;
+    }
+
+    private synchronized void retry(PeerDial dial) {
+        if (dials.get(dial.clientId) != dial || dial.state != PeerDial.State.BACKOFF) {
+            return;
+        }
+        dial.retry = null;
+        // The peer may have reached us in the meantime
+        if (dialer.connected(dial)) {
+            dials.remove(dial.clientId);
+            return;
+        }
+        try {
+            dial(dial);
+        } catch (URISyntaxException e) {
+            dials.remove(dial.clientId);
+        }
+    }
+
+    /** Stop keeping {@code clientId} connected; an attempt in flight is abandoned. */
+    synchronized void cancel(String clientId) {
+        PeerDial dial = dials.remove(clientId);
+        if (dial == null) {
+            return;
+        }
+        dial.cancelRetry();
+        if (dial.client != null && dial.state == PeerDial.State.CONNECTING) {
+            dial.client.close();
+        }
+    }
+
+    /** Stop redialing everything; open connections are left to the caller. */
+    synchronized void clear() {
+        for (PeerDial dial : dials.values()) {
+            dial.cancelRetry();
+        }
+        dials.clear();
+    }
+
+    synchronized PeerDial.State stateOf(String clientId) {
+        PeerDial dial = dials.get(clientId);
+        return dial != null ? dial.state : null;
+    }
+
+    /** Hand {@code visit} each dial that is connecting or waiting to retry, under the table's lock. */
+    synchronized void forEachPending(Consumer<PeerDial> visit) {
+        for (PeerDial dial : dials.values()) {
+            if (dial.state != PeerDial.State.OPEN) {
+                visit.accept(dial);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package app.lovable.lanchat.plugins;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Link quality for one connection, measured with our own timestamped pings.
+ *
+ * RTT is smoothed like TCP's SRTT (1/8 gain) and jitter follows RFC 3550
+ * (1/16 gain on the change between consecutive samples). Loss is the share
+ * of unanswered pings among the last {@value #LOSS_WINDOW}. A ping counts as
+ * missed if its pong hasn't arrived by the time the next one is due.
+ */
+final class PeerHealth {
+    static final int PING_PAYLOAD_BYTES = 12;
+    private static final int LOSS_WINDOW = 32;
+
+    private int nextSeq;
+    private int awaitedSeq = -1;
+    private long lossHistory;
+    private int lossSamples;
+    private int consecutiveMissed;
+
+    private long pingsSent;
+    private long pongsReceived;
+    private double srttMs = -1;
+    private double jitterMs;
+    private double lastRttMs = -1;
+    private double minRttMs = -1;
+    private long lastPongNanos;
+
+    /**
+     * Close out the previous ping and build the payload for the next one.
+     *
+     * @return payload for a PingFrame; the peer echoes it in its pong
+     */
+    synchronized ByteBuffer nextPing(long nowNanos) {
+        if (awaitedSeq >= 0) {
+            recordOutcome(true);
+            consecutiveMissed++;
+        }
+        int seq = nextSeq++ & Integer.MAX_VALUE;
+        awaitedSeq = seq;
+        pingsSent++;
+
+        ByteBuffer payload = ByteBuffer.allocate(PING_PAYLOAD_BYTES);
+        payload.putInt(seq).putLong(nowNanos);
+        payload.flip();
+        return payload;
+    }
+
+    /**
+     * Account for a pong.
+     *
+     * @return false if the payload isn't one of our pings, e.g. the library's own keepalive
+     */
+    synchronized boolean onPong(ByteBuffer payload, long nowNanos) {
+        if (payload == null || payload.remaining() != PING_PAYLOAD_BYTES) {
+            return false;
+        }
+        ByteBuffer view = payload.duplicate();
+        int seq = view.getInt();
+        long sentNanos = view.getLong();
+        long elapsed = nowNanos - sentNanos;
+        if (elapsed < 0) {
+            return false;
+        }
+
+        pongsReceived++;
+        lastPongNanos = nowNanos;
+        if (seq == awaitedSeq) {
+            recordOutcome(false);
+            awaitedSeq = -1;
+        }
+        // Late pongs were already counted as lost, but still prove the peer is alive
+        consecutiveMissed = 0;
+
+        double rtt = elapsed / 1_000_000.0;
+        if (srttMs < 0) {
+            srttMs = rtt;
+        } else {
+            srttMs += (rtt - srttMs) / 8;
+            jitterMs += (Math.abs(rtt - lastRttMs) - jitterMs) / 16;
+        }
+        lastRttMs = rtt;
+        minRttMs = minRttMs < 0 ? rtt : Math.min(minRttMs, rtt);
+        return true;
+    }
+
+    /** Pings in a row that went unanswered. */
+    synchronized int consecutiveMissed() {
+        return consecutiveMissed;
+    }
+
+    /** Smoothed RTT in ms, or -1 before the first pong. */
+    synchronized double rttMs() {
+        return srttMs;
+    }
+
+    synchronized double jitterMs() {
+        return jitterMs;
+    }
+
+    synchronized double minRttMs() {
+        return minRttMs;
+    }
+
+    /** Fraction of recent pings that went unanswered, 0..1. */
+    synchronized double loss() {
+        if (lossSamples == 0) {
+            return 0;
+        }
+        long window = lossHistory & ((1L << lossSamples) - 1);
+        return (double) Long.bitCount(window) / lossSamples;
+    }
+
+    synchronized long pingsSent() {
+        return pingsSent;
+    }
+
+    synchronized long pongsReceived() {
+        return pongsReceived;
+    }
+
+    /** nanoTime of the last pong, or 0 if none arrived yet. */
+    synchronized long lastPongNanos() {
+        return lastPongNanos;
+    }
+
+    private void recordOutcome(boolean lost) {
+        lossHistory = (lossHistory << 1) | (lost ? 1 : 0);
+        lossSamples = Math.min(LOSS_WINDOW, lossSamples + 1);
+    }
+}
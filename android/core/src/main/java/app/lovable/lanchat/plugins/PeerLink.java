@@ -0,0 +1,69 @@
+package app.lovable.lanchat.plugins;
+
+/**
+ * Per-connection state, stored as the WebSocket attachment so the send and
+ * receive paths don't need a map lookup to find it.
+ */
+final class PeerLink {
+    /** Id reported to the web layer, computed once when the connection opens. */
+    final String clientId;
+
+    /** Device id the peer sent in the handshake, or null for peers that don't send one. */
+    final String deviceId;
+
+    /** True if we dialed this connection, false if the peer connected to our server. */
+    final boolean outbound;
+
+    /** Binary framing version agreed in the handshake; 0 means text only. */
+    final int protocolVersion;
+
+    /** Frames waiting for the writer thread. */
+    final OutboundQueue queue;
+
+    /** True if the peer advertised relay support in the handshake. */
+    final boolean relays;
+
+    /** This connection as seen by the mesh relay. */
+    final MeshRelay.Neighbor neighbor;
+
+    /** Sequencing state of the peer's device if both sides negotiated native acks, otherwise null. */
+    final ReliableSession session;
+
+    /** This connection as seen by file transfers, or null if the peer doesn't accept files. */
+    final FileTransfers.Peer files;
+
+    /** True if the peer exchanges topic subscriptions, so it only wants what it subscribed to. */
+    final boolean topics;
+
+    /** True if the peer relays and exchanges {@link TopicRoutes}, so we know what devices behind it want. */
+    final boolean routesTopics;
+
+    /** Messages and bytes exchanged over this connection. */
+    final TrafficCounters traffic = new TrafficCounters();
+
+    /** RTT, jitter and loss from our pings. */
+    final PeerHealth health = new PeerHealth();
+
+    /** Set once another socket to the same device won the tie-break; this one is closing. */
+    volatile boolean redundant;
+
+    PeerLink(String clientId, String deviceId, boolean outbound, int protocolVersion, OutboundQueue queue,
+            boolean relays, MeshRelay.Neighbor neighbor, ReliableSession session, FileTransfers.Peer files,
+            boolean topics, boolean routesTopics) {
+        this.clientId = clientId;
+        this.deviceId = deviceId;
+        this.outbound = outbound;
+        this.protocolVersion = protocolVersion;
+        this.queue = queue;
+        this.relays = relays;
+        this.neighbor = neighbor;
+        this.session = session;
+        this.files = files;
+        this.topics = topics;
+        this.routesTopics = routesTopics;
+    }
+
+    boolean binaryFrames() {
+        return protocolVersion > 0;
+    }
+}
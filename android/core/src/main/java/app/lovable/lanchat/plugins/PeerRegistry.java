@@ -0,0 +1,248 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.WebSocket;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every open connection, server-side and outgoing, keyed by the device on the
+ * other end.
+ *
+ * Peers exchange device ids in the WebSocket handshake. When two phones dial
+ * each other at the same time the pair ends up with two sockets; the registry
+ * keeps exactly one per device and tells the caller which one to close. Both
+ * sides apply the same rule (keep the socket dialed by the smaller device id),
+ * so they always agree on the survivor. Connections from peers that don't send
+ * a device id are tracked on their own, as before.
+ *
+ * Client ids handed to the web layer stay address-based. While a device is
+ * connected every client id it used resolves to its current connection; once
+ * it is gone its last client id and the addresses we dialed it at still name
+ * it, for the most recent {@link #MAX_KNOWN_DEVICES} devices.
+ */
+final class PeerRegistry {
+    /** Handshake header carrying the sender's device id (ANDROID_ID). */
+    static final String DEVICE_HEADER = "X-LanChat-Device";
+    /** Devices remembered after they disconnect; device ids come from an unauthenticated header. */
+    static final int MAX_KNOWN_DEVICES = 256;
+
+    private final Map<String, WebSocket> connections = new HashMap<>();
+    private final Map<String, String> primaryByDevice = new HashMap<>();
+    private final Map<String, String> deviceByAlias = new HashMap<>();
+    /** Client id of each device's latest connection, kept after it disconnects; least recent first. */
+    private final Map<String, String> lastClientByDevice = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            if (size() <= MAX_KNOWN_DEVICES) {
+                return false;
+            }
+            deviceByLastClient.remove(eldest.getValue());
+            return true;
+        }
+    };
+    private final Map<String, String> deviceByLastClient = new HashMap<>();
+    /** Addresses the app dialed devices at, kept after they disconnect. */
+    private final Map<String, String> dialedAliases = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_KNOWN_DEVICES;
+        }
+    };
+
+    private volatile String localDeviceId;
+
+    void setLocalDeviceId(String deviceId) {
+        localDeviceId = deviceId;
+    }
+
+    String localDeviceId() {
+        return localDeviceId;
+    }
+
+    /**
+     * Register a newly opened connection.
+     *
+     * @return the connection made redundant by this one, which the caller
+     *         should close, or null. May be {@code conn} itself, or an older
+     *         socket that had the same client id.
+     */
+    synchronized WebSocket add(WebSocket conn) {
+        PeerLink link = conn.getAttachment();
+        WebSocket replaced = connections.put(link.clientId, conn);
+        if (replaced == conn || (replaced != null && ((PeerLink) replaced.getAttachment()).redundant)) {
+            replaced = null;
+        }
+        if (replaced != null) {
+            // Same address redialed before the old socket closed; the new one takes over
+            PeerLink old = replaced.getAttachment();
+            old.redundant = true;
+            if (old.deviceId != null && !old.deviceId.equals(link.deviceId)
+                    && link.clientId.equals(primaryByDevice.get(old.deviceId))) {
+                primaryByDevice.remove(old.deviceId);
+            }
+        }
+        if (link.deviceId == null) {
+            return replaced;
+        }
+        deviceByAlias.put(link.clientId, link.deviceId);
+        String previousClientId = lastClientByDevice.remove(link.deviceId);
+        if (previousClientId != null) {
+            deviceByLastClient.remove(previousClientId);
+        }
+        lastClientByDevice.put(link.deviceId, link.clientId);
+        deviceByLastClient.put(link.clientId, link.deviceId);
+
+        WebSocket current = connection(primaryByDevice.get(link.deviceId));
+        if (current == null || current == conn) {
+            primaryByDevice.put(link.deviceId, link.clientId);
+            return replaced;
+        }
+
+        WebSocket loser = preferred(conn, current) ? current : conn;
+        WebSocket winner = loser == conn ? current : conn;
+        ((PeerLink) loser.getAttachment()).redundant = true;
+        primaryByDevice.put(link.deviceId, ((PeerLink) winner.getAttachment()).clientId);
+        return loser;
+    }
+
+    /**
+     * Forget a closed connection.
+     *
+     * @return true if its peer is now gone, false if it was a redundant socket
+     *         and the device is still reachable through another one
+     */
+    synchronized boolean remove(WebSocket conn) {
+        PeerLink link = conn.getAttachment();
+        if (link == null || connections.get(link.clientId) != conn) {
+            return false;
+        }
+        connections.remove(link.clientId);
+        if (link.deviceId == null) {
+            return true;
+        }
+        if (!link.clientId.equals(primaryByDevice.get(link.deviceId))) {
+            return false;
+        }
+
+        primaryByDevice.remove(link.deviceId);
+        Iterator<Map.Entry<String, String>> it = deviceByAlias.entrySet().iterator();
+        while (it.hasNext()) {
+            if (link.deviceId.equals(it.next().getValue())) {
+                it.remove();
+            }
+        }
+        return true;
+    }
+
+    /** Make {@code clientId} resolve to the device's connection, e.g. an ip:port the app dialed. */
+    synchronized void alias(String clientId, String deviceId) {
+        deviceByAlias.put(clientId, deviceId);
+        dialedAliases.remove(clientId);
+        dialedAliases.put(clientId, deviceId);
+    }
+
+    /**
+     * The device behind a client id, alias or device id, whether or not it is
+     * connected right now; null if the id was never seen with a device id.
+     */
+    synchronized String deviceIdOf(String id) {
+        String deviceId = deviceByAlias.get(id);
+        if (deviceId == null) {
+            deviceId = deviceByLastClient.get(id);
+        }
+        if (deviceId == null) {
+            deviceId = dialedAliases.get(id);
+        }
+        if (deviceId == null && lastClientByDevice.containsKey(id)) {
+            deviceId = id;
+        }
+        return deviceId;
+    }
+
+    /** The connection carrying traffic for a client id, alias or device id, if open. */
+    synchronized WebSocket get(String id) {
+        String deviceId = deviceByAlias.get(id);
+        if (deviceId == null && primaryByDevice.containsKey(id)) {
+            deviceId = id;
+        }
+        WebSocket conn = deviceId != null
+                ? connection(primaryByDevice.get(deviceId))
+                : connection(id);
+        return conn != null && conn.isOpen() ? conn : null;
+    }
+
+    /** An identified connection to the device at {@code host}, if there is one. */
+    synchronized WebSocket findByHost(String host) {
+        for (String clientId : primaryByDevice.values()) {
+            WebSocket conn = connections.get(clientId);
+            InetSocketAddress remote = conn != null ? conn.getRemoteSocketAddress() : null;
+            if (remote != null && remote.getAddress() != null
+                    && host.equals(remote.getAddress().getHostAddress())) {
+                return conn;
+            }
+        }
+        return null;
+    }
+
+    /** One open connection per peer: what broadcast should write to. */
+    synchronized List<WebSocket> primaries() {
+        List<WebSocket> result = new ArrayList<>(connections.size());
+        for (WebSocket conn : connections.values()) {
+            if (!((PeerLink) conn.getAttachment()).redundant) {
+                result.add(conn);
+            }
+        }
+        return result;
+    }
+
+    synchronized List<WebSocket> all() {
+        return new ArrayList<>(connections.values());
+    }
+
+    synchronized void clear() {
+        connections.clear();
+        primaryByDevice.clear();
+        deviceByAlias.clear();
+        lastClientByDevice.clear();
+        deviceByLastClient.clear();
+        dialedAliases.clear();
+    }
+
+    /** How many devices and dialed addresses {@link #deviceIdOf} remembers. */
+    synchronized int knownCount() {
+        return lastClientByDevice.size() + dialedAliases.size();
+    }
+
+    private WebSocket connection(String clientId) {
+        return clientId != null ? connections.get(clientId) : null;
+    }
+
+    /** Whether {@code candidate} should win over {@code current} for the same device. */
+    private boolean preferred(WebSocket candidate, WebSocket current) {
+        String preferredDialer = preferredDialer(((PeerLink) candidate.getAttachment()).deviceId);
+        String candidateDialer = dialer(candidate);
+        String currentDialer = dialer(current);
+        if (candidateDialer.equals(currentDialer)) {
+            // Same side dialed twice, e.g. a reconnect; the older socket is the stale one
+            return true;
+        }
+        return candidateDialer.equals(preferredDialer);
+    }
+
+    private String preferredDialer(String remoteDeviceId) {
+        String local = localDeviceId != null ? localDeviceId : "";
+        return local.compareTo(remoteDeviceId) <= 0 ? local : remoteDeviceId;
+    }
+
+    private String dialer(WebSocket conn) {
+        PeerLink link = conn.getAttachment();
+        String local = localDeviceId != null ? localDeviceId : "";
+        return link.outbound ? local : link.deviceId;
+    }
+}
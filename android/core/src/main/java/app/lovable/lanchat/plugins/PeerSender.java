@@ -0,0 +1,339 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.DataFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.TextFrame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The send path short of the bridge: queue messages on a connection's
+ * {@link PeerLink}, start its writer, and drain the queue into frames on
+ * the writer thread, with broadcast and multicast on top. Independent of
+ * the plugin, so benchmarks and the swarm simulator send the same way.
+ *
+ * Each connection has at most one drain pending, claimed through
+ * {@link OutboundQueue#markDraining()}. A drain hands the library up to
+ * {@link #DRAIN_BATCH} frames in one sendFrame call, so it writes them
+ * under a single lock, and backs off while the library still holds
+ * unflushed data, so a slow peer backs up into its bounded queue instead
+ * of the library's unbounded one.
+ */
+final class PeerSender {
+    /** Frames handed to the library per drain pass before checking whether it has flushed them. */
+    static final int DRAIN_BATCH = 32;
+    static final long BACKPRESSURE_RETRY_MS = 5;
+
+    /** Where the plugin keeps messages for devices that are out of reach. */
+    interface Store {
+        /** @return true if the message was stored instead of sent */
+        boolean storeForLater(String clientId, WebSocket target, OutboundMessage message);
+    }
+
+    /** Told which sequence number each stored message went out under. */
+    interface Sequenced {
+        void sequenced(long storedId, long seq);
+    }
+
+    /** What a multicast did with each client id. */
+    static final class Multicast {
+        final List<String> queued = new ArrayList<>();
+        final List<String> stored = new ArrayList<>();
+        final List<String> failed = new ArrayList<>();
+    }
+
+    private final Supplier<ScheduledExecutorService> writer;
+    private final TrafficCounters traffic;
+    private final LatencyHistogram sendLatency;
+    private final LongAdder sendFailures;
+    private volatile Set<String> coalescedTypes = Collections.emptySet();
+
+    /**
+     * @param writer thread drains run on; null once stopped, when queued
+     *     messages are dropped
+     */
+    PeerSender(Supplier<ScheduledExecutorService> writer, TrafficCounters traffic, LatencyHistogram sendLatency,
+            LongAdder sendFailures) {
+        this.writer = writer;
+        this.traffic = traffic;
+        this.sendLatency = sendLatency;
+        this.sendFailures = sendFailures;
+    }
+
+    /** Types that are coalesced in the queues, and so never sequenced. */
+    void setCoalescedTypes(Set<String> types) {
+        coalescedTypes = types;
+    }
+
+    /** Queue a message for the connection's writer. */
+    OutboundQueue.Result enqueue(WebSocket conn, OutboundMessage message) {
+        return enqueue(conn, message, null);
+    }
+
+    /**
+     * Same, but a writer that needs starting is added to {@code drains} if
+     * it isn't null, for the caller to start with {@link #startDrains} once
+     * it has queued everything.
+     */
+    OutboundQueue.Result enqueue(WebSocket conn, OutboundMessage message, Set<WebSocket> drains) {
+        PeerLink link = conn.getAttachment();
+        if (sequence(link, message) < 0) {
+            sendFailures.increment();
+            return OutboundQueue.Result.REJECTED;
+        }
+        OutboundQueue.Result result = link.queue.offer(message);
+
+        if (result == OutboundQueue.Result.OVERFLOW_DISCONNECT) {
+            sendFailures.increment();
+            conn.close(CloseFrame.TRY_AGAIN_LATER, "Outbound queue overflow");
+        } else if (result == OutboundQueue.Result.REJECTED) {
+            sendFailures.increment();
+        } else if (link.queue.markDraining()) {
+            if (drains != null) {
+                drains.add(conn);
+            } else {
+                scheduleDrain(conn, 0);
+            }
+        }
+        return result;
+    }
+
+    void startDrains(Collection<WebSocket> drains) {
+        for (WebSocket conn : drains) {
+            scheduleDrain(conn, 0);
+        }
+    }
+
+    /**
+     * Queue one shared message on every open connection; each writes a view
+     * of the same encoded bytes.
+     *
+     * @return how many connections took it
+     */
+    int broadcast(Collection<WebSocket> connections, OutboundMessage message) {
+        Set<WebSocket> drains = new HashSet<>();
+        int queued = broadcast(connections, message, drains);
+        startDrains(drains);
+        return queued;
+    }
+
+    /** Same, adding the writers to start to {@code drains} as {@link #enqueue} does. */
+    int broadcast(Collection<WebSocket> connections, OutboundMessage message, Set<WebSocket> drains) {
+        int queued = 0;
+        for (WebSocket conn : connections) {
+            if (conn.isOpen() && accepted(enqueue(conn, message, drains))) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Queue one shared message for each client id, resolved through
+     * {@code peers} the way send() resolves one. Ids that resolve to the
+     * same connection queue it once. {@code store}, if not null, gets each
+     * id first and may keep the message for later instead.
+     */
+    Multicast multicast(PeerRegistry peers, List<String> clientIds, OutboundMessage message, Store store) {
+        Multicast result = new Multicast();
+        Map<WebSocket, OutboundQueue.Result> queued = new HashMap<>();
+        Set<WebSocket> drains = new HashSet<>();
+        for (String clientId : clientIds) {
+            WebSocket target = peers.get(clientId);
+            if (store != null && store.storeForLater(clientId, target, message)) {
+                result.stored.add(clientId);
+                continue;
+            }
+            if (target == null) {
+                sendFailures.increment();
+                result.failed.add(clientId);
+                continue;
+            }
+            OutboundQueue.Result sent = queued.get(target);
+            if (sent == null) {
+                sent = enqueue(target, message, drains);
+                queued.put(target, sent);
+            }
+            (accepted(sent) ? result.queued : result.failed).add(clientId);
+        }
+        startDrains(drains);
+        return result;
+    }
+
+    /**
+     * Give a message the next sequence number of the device behind this
+     * connection, if it has native acks. Coalesced types such as typing stay
+     * unsequenced: resending stale ones is worse than losing them.
+     *
+     * @return the sequence number, 0 if the message isn't sequenced, -1 if the window is full
+     */
+    long sequence(PeerLink link, OutboundMessage message) {
+        ReliableSession session = link.session;
+        if (session == null || message.text == null
+                || (message.type != null && coalescedTypes.contains(message.type))) {
+            return 0;
+        }
+        long seq = session.seqOf(message);
+        return seq > 0 ? seq : session.assign(message, System.nanoTime());
+    }
+
+    void scheduleDrain(WebSocket conn, long delayMs) {
+        PeerLink link = conn.getAttachment();
+        ScheduledExecutorService executor = writer.get();
+        if (executor == null) {
+            link.queue.clear();
+            return;
+        }
+        try {
+            executor.schedule(() -> drain(conn), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            link.queue.clear();
+        }
+    }
+
+    /** One drain pass on the calling thread; the writer runs these. */
+    void drain(WebSocket conn) {
+        PeerLink link = conn.getAttachment();
+        if (!conn.isOpen()) {
+            link.queue.clear();
+            return;
+        }
+        if (conn.hasBufferedData()) {
+            scheduleDrain(conn, BACKPRESSURE_RETRY_MS);
+            return;
+        }
+
+        List<Framedata> frames = new ArrayList<>(DRAIN_BATCH);
+        List<OutboundMessage> messages = new ArrayList<>(DRAIN_BATCH);
+        int[] bytes = new int[DRAIN_BATCH];
+        boolean more = true;
+        while (frames.size() < DRAIN_BATCH) {
+            OutboundMessage message = link.queue.poll();
+            if (message == null) {
+                more = false;
+                break;
+            }
+            DataFrame frame = toFrame(link, message);
+            // Measured before sending: the client-side masking consumes the payload
+            bytes[frames.size()] = frame.getPayloadData().remaining();
+            frames.add(frame);
+            messages.add(message);
+        }
+        if (!frames.isEmpty()) {
+            try {
+                conn.sendFrame(frames);
+            } catch (WebsocketNotConnectedException e) {
+                sendFailures.add(frames.size() + link.queue.depth());
+                link.queue.clear();
+                return;
+            }
+            long now = System.nanoTime();
+            for (int i = 0; i < frames.size(); i++) {
+                link.traffic.recordOut(bytes[i]);
+                traffic.recordOut(bytes[i]);
+                sendLatency.record(now - messages.get(i).createdNanos);
+            }
+        }
+        if (more) {
+            scheduleDrain(conn, 0);
+        }
+    }
+
+    /**
+     * Send up to {@code max} of a device's stored messages over {@code conn}
+     * in one socket write, skipping the queue so nothing sent since can get
+     * ahead of them. Only the flush holding the outbox claim may call this.
+     *
+     * With native acks each message gets a sequence number, reported to
+     * {@code sequenced}, and leaves the outbox right away: the session
+     * resends it on the next connection if this write fails, and keeping it
+     * stored too would send it a second time under a new number. Without
+     * acks messages leave the outbox only once the socket took them.
+     *
+     * @return messages written, 0 if there were none or the window is full,
+     *     -1 if the connection is gone
+     */
+    int sendStored(WebSocket conn, Outbox box, String deviceId, int max, Sequenced sequenced) {
+        PeerLink link = conn.getAttachment();
+        List<String> batch = box.peek(deviceId, max);
+        List<Long> ids = box.peekedIds(deviceId);
+        List<Framedata> frames = new ArrayList<>(batch.size());
+        long bytes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            OutboundMessage message = new OutboundMessage(batch.get(i));
+            long seq = sequence(link, message);
+            if (seq < 0) {
+                // Live sends filled the window since the caller looked
+                break;
+            }
+            if (seq > 0) {
+                sequenced.sequenced(ids.get(i), seq);
+            }
+            DataFrame frame = toFrame(link, message);
+            bytes += frame.getPayloadData().remaining();
+            frames.add(frame);
+        }
+        if (link.session != null) {
+            box.remove(deviceId, frames.size());
+        }
+        if (frames.isEmpty()) {
+            return 0;
+        }
+        try {
+            conn.sendFrame(frames);
+        } catch (WebsocketNotConnectedException e) {
+            return -1;
+        }
+        if (link.session == null) {
+            box.remove(deviceId, frames.size());
+        }
+        link.traffic.recordOut(frames.size(), bytes);
+        traffic.recordOut(frames.size(), bytes);
+        return frames.size();
+    }
+
+    /**
+     * Wrap the message's shared payload in a frame for this connection: the
+     * binary signaling frame when the peer negotiated binary framing and the
+     * message could be encoded, otherwise the original JSON text. Going through
+     * sendFrame instead of send(String) skips the per-connection UTF-8 encode.
+     * Sequenced messages are wrapped with their sequence number and whatever
+     * ack we owe the peer.
+     */
+    static DataFrame toFrame(PeerLink link, OutboundMessage message) {
+        ByteBuffer binary = link.binaryFrames() || message.text == null ? message.binaryPayload() : null;
+        ReliableSession session = link.session;
+        long seq = session != null ? session.seqOf(message) : -1;
+        if (seq > 0) {
+            session.markSent(seq, System.nanoTime());
+            BinaryFrame frame = new BinaryFrame();
+            frame.setPayload(ReliableFrame.data(session.localEpoch, seq, session.floor(), session.takeAck(),
+                    binary != null, binary != null ? binary : message.textPayload()));
+            return frame;
+        }
+        DataFrame frame = binary != null ? new BinaryFrame() : new TextFrame();
+        frame.setPayload(binary != null ? binary : message.textPayload());
+        return frame;
+    }
+
+    private static boolean accepted(OutboundQueue.Result result) {
+        return result != OutboundQueue.Result.REJECTED && result != OutboundQueue.Result.OVERFLOW_DISCONNECT;
+    }
+}
@@ -0,0 +1,187 @@
+package app.lovable.lanchat.plugins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Discovered peers with a version that goes up on every change, so callers
+ * can ask for just what changed since the version they last saw.
+ *
+ * Removed peers leave a tombstone carrying the version of the removal and
+ * of the add before it. A delta skips peers that were both added and
+ * removed after the caller's version, so a found-then-lost flap between two
+ * queries doesn't show up at all. Only the newest {@code maxTombstones} are
+ * kept; a caller older than the oldest one dropped gets the whole table with
+ * {@link Delta#reset} set instead.
+ */
+final class PeerTable {
+    static final int DEFAULT_MAX_TOMBSTONES = 256;
+
+    static final class Peer {
+        final String name;
+        final String ip;
+        final int port;
+        final PeerAttributes attributes;
+        /** Version this peer was last added at, after not being in the table. */
+        final long addedVersion;
+        /** Version of the last change, including removal. */
+        final long version;
+        final boolean removed;
+
+        Peer(String name, String ip, int port, PeerAttributes attributes, long addedVersion, long version,
+                boolean removed) {
+            this.name = name;
+            this.ip = ip;
+            this.port = port;
+            this.attributes = attributes;
+            this.addedVersion = addedVersion;
+            this.version = version;
+            this.removed = removed;
+        }
+    }
+
+    static final class Delta {
+        /** Pass this to the next {@link #since} call. */
+        final long version;
+        /** The caller's version was too old; {@link #added} is the whole table and anything else is gone. */
+        final boolean reset;
+        final List<Peer> added;
+        final List<Peer> updated;
+        /** Last known state of each removed peer. */
+        final List<Peer> removed;
+
+        Delta(long version, boolean reset, List<Peer> added, List<Peer> updated, List<Peer> removed) {
+            this.version = version;
+            this.reset = reset;
+            this.added = added;
+            this.updated = updated;
+            this.removed = removed;
+        }
+
+        boolean isEmpty() {
+            return !reset && added.isEmpty() && updated.isEmpty() && removed.isEmpty();
+        }
+    }
+
+    private final int maxTombstones;
+    private final Map<String, Peer> peers = new HashMap<>();
+    private long version;
+    private int live;
+    private int tombstones;
+    /** Deltas since a version below this may miss removals. */
+    private long floorVersion;
+
+    PeerTable(int maxTombstones) {
+        this.maxTombstones = Math.max(1, maxTombstones);
+    }
+
+    synchronized boolean put(String name, String ip, int port) {
+        return put(name, ip, port, null);
+    }
+
+    /**
+     * Add or update a peer; returns false if it was already there with the
+     * same address and attributes. Null attributes keep the ones it has.
+     */
+    synchronized boolean put(String name, String ip, int port, PeerAttributes attributes) {
+        Peer previous = peers.get(name);
+        if (attributes == null) {
+            attributes = previous != null ? previous.attributes : PeerAttributes.EMPTY;
+        }
+        if (previous != null && !previous.removed && previous.ip.equals(ip) && previous.port == port
+                && previous.attributes.equals(attributes)) {
+            return false;
+        }
+        version++;
+        long addedVersion = version;
+        if (previous == null || previous.removed) {
+            live++;
+            if (previous != null) {
+                tombstones--;
+            }
+        } else {
+            addedVersion = previous.addedVersion;
+        }
+        peers.put(name, new Peer(name, ip, port, attributes, addedVersion, version, false));
+        return true;
+    }
+
+    /** Returns the removed peer, or null if it wasn't in the table. */
+    synchronized Peer remove(String name) {
+        Peer previous = peers.get(name);
+        if (previous == null || previous.removed) {
+            return null;
+        }
+        version++;
+        live--;
+        tombstones++;
+        peers.put(name, new Peer(name, previous.ip, previous.port, previous.attributes, previous.addedVersion,
+                version, true));
+        if (tombstones > maxTombstones) {
+            pruneOldestTombstone();
+        }
+        return previous;
+    }
+
+    synchronized Delta since(long sinceVersion) {
+        List<Peer> added = new ArrayList<>();
+        List<Peer> updated = new ArrayList<>();
+        List<Peer> removed = new ArrayList<>();
+        // A version from before a restart, or older than what we still remember
+        boolean reset = sinceVersion > version || sinceVersion < floorVersion;
+        for (Peer peer : peers.values()) {
+            if (reset) {
+                if (!peer.removed) {
+                    added.add(peer);
+                }
+                continue;
+            }
+            if (peer.version <= sinceVersion) {
+                continue;
+            }
+            boolean newToCaller = peer.addedVersion > sinceVersion;
+            if (peer.removed) {
+                if (!newToCaller) {
+                    removed.add(peer);
+                }
+            } else if (newToCaller) {
+                added.add(peer);
+            } else {
+                updated.add(peer);
+            }
+        }
+        return new Delta(version, reset, added, updated, removed);
+    }
+
+    synchronized List<Peer> snapshot() {
+        List<Peer> result = new ArrayList<>(live);
+        for (Peer peer : peers.values()) {
+            if (!peer.removed) {
+                result.add(peer);
+            }
+        }
+        return result;
+    }
+
+    synchronized int size() {
+        return live;
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    private void pruneOldestTombstone() {
+        Peer oldest = null;
+        for (Peer peer : peers.values()) {
+            if (peer.removed && (oldest == null || peer.version < oldest.version)) {
+                oldest = peer;
+            }
+        }
+        peers.remove(oldest.name);
+        tombstones--;
+        floorVersion = Math.max(floorVersion, oldest.version);
+    }
+}
@@ -0,0 +1,167 @@
+package app.lovable.lanchat.plugins;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary envelope for messages relayed across several hops.
+ *
+ * <pre>
+ * byte    0xC0 | version
+ * byte    TTL, hops left including the next one
+ * byte    hops taken so far
+ * byte    flags: 1 = has destination, 2 = inner payload is a binary signaling frame, 4 = has topic
+ * long    message id, random per message at the origin
+ * string  origin device id (varint length + UTF-8)
+ * string  destination device id, if flagged
+ * string  topic, if flagged (version 2)
+ * ...     inner payload: a {@link SignalingCodec} frame or UTF-8 JSON text
+ * </pre>
+ *
+ * The high nibble differs from the signaling frames' 0xB0, so a receiver
+ * can tell the two apart from the first byte. Frames without a topic are
+ * still written as version 1, so devices that predate topics keep relaying
+ * everything else.
+ */
+final class RelayFrame {
+    /** Handshake header advertising that a peer understands and forwards relay frames. */
+    static final String HEADER = "X-LanChat-Relay";
+    static final int VERSION = 2;
+
+    private static final int MAGIC = 0xC0;
+    private static final int TTL_OFFSET = 1;
+    private static final int HOPS_OFFSET = 2;
+    private static final int FLAG_DESTINATION = 1;
+    private static final int FLAG_BINARY = 1 << 1;
+    private static final int FLAG_TOPIC = 1 << 2;
+
+    final int ttl;
+    final int hops;
+    final long messageId;
+    final String origin;
+    /** Device the message is for, or null for every device in range. */
+    final String destination;
+    /** Topic it was published to, or null; only subscribers of the topic deliver it. */
+    final String topic;
+    final boolean innerBinary;
+    /** Read-only view of the inner payload. */
+    final ByteBuffer inner;
+
+    private RelayFrame(int ttl, int hops, long messageId, String origin, String destination, String topic,
+            boolean innerBinary, ByteBuffer inner) {
+        this.ttl = ttl;
+        this.hops = hops;
+        this.messageId = messageId;
+        this.origin = origin;
+        this.destination = destination;
+        this.topic = topic;
+        this.innerBinary = innerBinary;
+        this.inner = inner;
+    }
+
+    static boolean isRelayFrame(ByteBuffer frame) {
+        return frame.remaining() > 0 && (frame.get(frame.position()) & 0xF0) == MAGIC;
+    }
+
+    static ByteBuffer encode(int ttl, long messageId, String origin, String destination,
+            boolean innerBinary, ByteBuffer inner) {
+        return encode(ttl, messageId, origin, destination, null, innerBinary, inner);
+    }
+
+    static ByteBuffer encode(int ttl, long messageId, String origin, String destination, String topic,
+            boolean innerBinary, ByteBuffer inner) {
+        byte[] originBytes = origin.getBytes(StandardCharsets.UTF_8);
+        byte[] destinationBytes = destination != null ? destination.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] topicBytes = topic != null ? topic.getBytes(StandardCharsets.UTF_8) : null;
+        ByteBuffer out = ByteBuffer.allocate(12 + 5 + originBytes.length
+                + (destinationBytes != null ? 5 + destinationBytes.length : 0)
+                + (topicBytes != null ? 5 + topicBytes.length : 0) + inner.remaining());
+        out.put((byte) (MAGIC | (topicBytes != null ? VERSION : 1)));
+        out.put((byte) Math.min(255, Math.max(0, ttl)));
+        out.put((byte) 0);
+        out.put((byte) ((destinationBytes != null ? FLAG_DESTINATION : 0) | (innerBinary ? FLAG_BINARY : 0)
+                | (topicBytes != null ? FLAG_TOPIC : 0)));
+        out.putLong(messageId);
+        putString(out, originBytes);
+        if (destinationBytes != null) {
+            putString(out, destinationBytes);
+        }
+        if (topicBytes != null) {
+            putString(out, topicBytes);
+        }
+        out.put(inner.duplicate());
+        out.flip();
+        return out;
+    }
+
+    /** @throws IllegalArgumentException if the frame is truncated or not a relay frame we understand */
+    static RelayFrame parse(ByteBuffer frame) {
+        ByteBuffer in = frame.duplicate();
+        try {
+            int header = in.get() & 0xFF;
+            if ((header & 0xF0) != MAGIC || (header & 0x0F) > VERSION) {
+                throw new IllegalArgumentException("Unsupported relay header: " + header);
+            }
+            int ttl = in.get() & 0xFF;
+            int hops = in.get() & 0xFF;
+            int flags = in.get() & 0xFF;
+            long messageId = in.getLong();
+            String origin = getString(in);
+            String destination = (flags & FLAG_DESTINATION) != 0 ? getString(in) : null;
+            String topic = (flags & FLAG_TOPIC) != 0 ? getString(in) : null;
+            return new RelayFrame(ttl, hops, messageId, origin, destination, topic,
+                    (flags & FLAG_BINARY) != 0, in.slice().asReadOnlyBuffer());
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated relay frame", e);
+        }
+    }
+
+    /** A copy of {@code frame} for the next hop: one less TTL (capped at {@code maxTtl} first), one more hop. */
+    static ByteBuffer nextHop(ByteBuffer frame, int maxTtl) {
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame.duplicate());
+        copy.flip();
+        int ttl = Math.min(copy.get(TTL_OFFSET) & 0xFF, maxTtl);
+        copy.put(TTL_OFFSET, (byte) Math.max(0, ttl - 1));
+        copy.put(HOPS_OFFSET, (byte) Math.min(255, (copy.get(HOPS_OFFSET) & 0xFF) + 1));
+        return copy.asReadOnlyBuffer();
+    }
+
+    /** The inner message as the JSON string the web layer expects. */
+    String innerJson() {
+        return innerBinary
+                ? SignalingCodec.decode(inner)
+                : StandardCharsets.UTF_8.decode(inner.duplicate()).toString();
+    }
+
+    private static void putString(ByteBuffer out, byte[] bytes) {
+        int value = bytes.length;
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new IllegalArgumentException("Malformed length");
+            }
+            int b = in.get() & 0xFF;
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("Truncated string");
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
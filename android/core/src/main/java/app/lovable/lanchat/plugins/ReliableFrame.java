@@ -0,0 +1,172 @@
+package app.lovable.lanchat.plugins;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format for sequenced messages and their acknowledgements.
+ *
+ * <pre>
+ * byte    0xD0 | version
+ * byte    kind (1 = data, 2 = ack) | 0x10 ack piggybacked on data | 0x20 inner is a binary signaling frame
+ * data:   long epoch, varint seq, varint floor, [ack], inner payload
+ * ack:    long epoch being acked, varint cumulative, varint range count,
+ *         then per range: varint gap after the previous one, varint length
+ * </pre>
+ *
+ * The epoch identifies one sender instance, so a restarted peer's sequence
+ * numbers are never confused with the previous run's. Floor is the sender's
+ * oldest unacknowledged sequence number: everything below it was already
+ * acknowledged, which lets a receiver that lost its state resume there.
+ */
+final class ReliableFrame {
+    /** Handshake header advertising sequenced delivery with native acks. */
+    static final String HEADER = "X-LanChat-Ack";
+    static final int VERSION = 1;
+    static final int MAX_ACK_RANGES = 8;
+
+    static final int DATA = 1;
+    static final int ACK = 2;
+
+    private static final int MAGIC = 0xD0;
+    private static final int KIND_MASK = 0x0F;
+    private static final int FLAG_PIGGYBACK = 0x10;
+    private static final int FLAG_BINARY = 0x20;
+
+    final int kind;
+    final long epoch;
+    final long seq;
+    final long floor;
+    /** Ack carried by this frame, or null. */
+    final ReliableSession.Ack ack;
+    final boolean innerBinary;
+    final ByteBuffer inner;
+
+    private ReliableFrame(int kind, long epoch, long seq, long floor, ReliableSession.Ack ack,
+            boolean innerBinary, ByteBuffer inner) {
+        this.kind = kind;
+        this.epoch = epoch;
+        this.seq = seq;
+        this.floor = floor;
+        this.ack = ack;
+        this.innerBinary = innerBinary;
+        this.inner = inner;
+    }
+
+    static boolean isReliableFrame(ByteBuffer frame) {
+        return frame.remaining() > 0 && (frame.get(frame.position()) & 0xF0) == MAGIC;
+    }
+
+    static ByteBuffer data(long epoch, long seq, long floor, ReliableSession.Ack ack,
+            boolean innerBinary, ByteBuffer inner) {
+        ByteBuffer out = ByteBuffer.allocate(2 + 8 + 20 + (ack != null ? ackSize(ack) : 0) + inner.remaining());
+        out.put((byte) (MAGIC | VERSION));
+        out.put((byte) (DATA | (ack != null ? FLAG_PIGGYBACK : 0) | (innerBinary ? FLAG_BINARY : 0)));
+        out.putLong(epoch);
+        putVarint(out, seq);
+        putVarint(out, floor);
+        if (ack != null) {
+            putAck(out, ack);
+        }
+        out.put(inner.duplicate());
+        out.flip();
+        return out;
+    }
+
+    static ByteBuffer ack(ReliableSession.Ack ack) {
+        ByteBuffer out = ByteBuffer.allocate(2 + ackSize(ack));
+        out.put((byte) (MAGIC | VERSION));
+        out.put((byte) ACK);
+        putAck(out, ack);
+        out.flip();
+        return out;
+    }
+
+    /** @throws IllegalArgumentException if the frame is truncated or not one we understand */
+    static ReliableFrame parse(ByteBuffer frame) {
+        ByteBuffer in = frame.duplicate();
+        try {
+            int header = in.get() & 0xFF;
+            if ((header & 0xF0) != MAGIC || (header & 0x0F) > VERSION) {
+                throw new IllegalArgumentException("Unsupported header: " + header);
+            }
+            int flags = in.get() & 0xFF;
+            int kind = flags & KIND_MASK;
+            if (kind == ACK) {
+                return new ReliableFrame(ACK, 0, 0, 0, getAck(in), false, null);
+            }
+            if (kind != DATA) {
+                throw new IllegalArgumentException("Unknown kind: " + kind);
+            }
+            long epoch = in.getLong();
+            long seq = getVarint(in);
+            long floor = getVarint(in);
+            ReliableSession.Ack ack = (flags & FLAG_PIGGYBACK) != 0 ? getAck(in) : null;
+            return new ReliableFrame(DATA, epoch, seq, floor, ack, (flags & FLAG_BINARY) != 0,
+                    in.slice().asReadOnlyBuffer());
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+    }
+
+    /** The inner message as the JSON string the web layer expects. */
+    String innerJson() {
+        return innerBinary
+                ? SignalingCodec.decode(inner)
+                : StandardCharsets.UTF_8.decode(inner.duplicate()).toString();
+    }
+
+    private static int ackSize(ReliableSession.Ack ack) {
+        return 8 + 10 + 1 + ack.ranges.length * 10;
+    }
+
+    private static void putAck(ByteBuffer out, ReliableSession.Ack ack) {
+        out.putLong(ack.epoch);
+        putVarint(out, ack.cumulative);
+        putVarint(out, ack.ranges.length / 2);
+        long previous = ack.cumulative;
+        for (int i = 0; i < ack.ranges.length; i += 2) {
+            putVarint(out, ack.ranges[i] - previous);
+            putVarint(out, ack.ranges[i + 1] - ack.ranges[i]);
+            previous = ack.ranges[i + 1];
+        }
+    }
+
+    private static ReliableSession.Ack getAck(ByteBuffer in) {
+        long epoch = in.getLong();
+        long cumulative = getVarint(in);
+        long count = getVarint(in);
+        if (count > MAX_ACK_RANGES) {
+            throw new IllegalArgumentException("Too many ack ranges: " + count);
+        }
+        long[] ranges = new long[(int) count * 2];
+        long previous = cumulative;
+        for (int i = 0; i < ranges.length; i += 2) {
+            ranges[i] = previous + getVarint(in);
+            ranges[i + 1] = ranges[i] + getVarint(in);
+            previous = ranges[i + 1];
+        }
+        return new ReliableSession.Ack(epoch, cumulative, ranges);
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
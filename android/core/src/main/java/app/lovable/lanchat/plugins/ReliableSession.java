@@ -0,0 +1,240 @@
+package app.lovable.lanchat.plugins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Sequencing and acknowledgement state for one remote device, kept across
+ * reconnects so unacknowledged messages can be sent again on the next
+ * connection.
+ *
+ * Outgoing messages get consecutive sequence numbers and stay in a bounded
+ * window until the peer acknowledges them. Incoming messages are delivered
+ * exactly once and in order: duplicates at or below the cumulative ack are
+ * dropped and anything past a gap is held until the gap fills. Acks are not
+ * sent per message; the receiver accumulates them and the caller decides when
+ * to send one, piggybacked on data or on its own.
+ */
+final class ReliableSession {
+    /** Cumulative ack plus up to {@link ReliableFrame#MAX_ACK_RANGES} received ranges past it. */
+    static final class Ack {
+        final long epoch;
+        final long cumulative;
+        /** Inclusive start/end pairs, ascending, all above {@link #cumulative}. */
+        final long[] ranges;
+
+        Ack(long epoch, long cumulative, long[] ranges) {
+            this.epoch = epoch;
+            this.cumulative = cumulative;
+            this.ranges = ranges;
+        }
+    }
+
+    static final class Pending {
+        final long seq;
+        final OutboundMessage message;
+        /** When it was last handed to a connection; 0 means due now. */
+        long sentNanos;
+
+        Pending(long seq, OutboundMessage message, long sentNanos) {
+            this.seq = seq;
+            this.message = message;
+            this.sentNanos = sentNanos;
+        }
+    }
+
+    static final class Delivery {
+        final long seq;
+        final String message;
+
+        Delivery(long seq, String message) {
+            this.seq = seq;
+            this.message = message;
+        }
+    }
+
+    final long localEpoch;
+    private final int window;
+
+    private long nextSeq = 1;
+    private final TreeMap<Long, Pending> unacked = new TreeMap<>();
+    private final Map<OutboundMessage, Pending> byMessage = new IdentityHashMap<>();
+
+    private long peerEpoch;
+    private long received;
+    private final TreeMap<Long, String> outOfOrder = new TreeMap<>();
+    private int unackedReceived;
+    private boolean ackPending;
+
+    ReliableSession(long localEpoch, int window) {
+        this.localEpoch = localEpoch;
+        this.window = Math.max(1, window);
+    }
+
+    /** Give {@code message} the next sequence number; -1 if the window is full. */
+    synchronized long assign(OutboundMessage message, long nowNanos) {
+        if (unacked.size() >= window) {
+            return -1;
+        }
+        Pending pending = new Pending(nextSeq++, message, nowNanos);
+        unacked.put(pending.seq, pending);
+        byMessage.put(message, pending);
+        return pending.seq;
+    }
+
+    /** Sequence number of a message that is still unacknowledged, or -1. */
+    synchronized long seqOf(OutboundMessage message) {
+        Pending pending = byMessage.get(message);
+        return pending != null ? pending.seq : -1;
+    }
+
+    synchronized void markSent(long seq, long nowNanos) {
+        Pending pending = unacked.get(seq);
+        if (pending != null) {
+            pending.sentNanos = nowNanos;
+        }
+    }
+
+    /** Lowest sequence number still unacknowledged, or the next one to be assigned. */
+    synchronized long floor() {
+        return unacked.isEmpty() ? nextSeq : unacked.firstKey();
+    }
+
+    synchronized int unackedCount() {
+        return unacked.size();
+    }
+
+    /** How many more messages fit in the window. */
+    synchronized int available() {
+        return window - unacked.size();
+    }
+
+    /**
+     * Up to {@code max} unacknowledged messages last sent before
+     * {@code sentBeforeNanos}, oldest first, stamped as sent now.
+     */
+    synchronized List<Pending> due(long sentBeforeNanos, long nowNanos, int max) {
+        List<Pending> due = new ArrayList<>();
+        for (Pending pending : unacked.values()) {
+            if (due.size() >= max) {
+                break;
+            }
+            if (pending.sentNanos < sentBeforeNanos) {
+                pending.sentNanos = nowNanos;
+                due.add(pending);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * Apply an ack from the peer. Messages in holes between the acknowledged
+     * ranges become due for retransmission straight away, unless they were
+     * last sent after {@code staleBeforeNanos} and may still be on their way.
+     *
+     * @return sequence numbers acknowledged for the first time, ascending
+     */
+    synchronized List<Long> onAck(Ack ack, long staleBeforeNanos) {
+        if (ack.epoch != localEpoch) {
+            return Collections.emptyList();
+        }
+        List<Long> acked = new ArrayList<>();
+        Iterator<Pending> head = unacked.headMap(ack.cumulative, true).values().iterator();
+        while (head.hasNext()) {
+            Pending pending = head.next();
+            acked.add(pending.seq);
+            byMessage.remove(pending.message);
+            head.remove();
+        }
+        long gapStart = ack.cumulative + 1;
+        for (int i = 0; i < ack.ranges.length; i += 2) {
+            for (Pending hole : unacked.subMap(gapStart, ack.ranges[i]).values()) {
+                if (hole.sentNanos < staleBeforeNanos) {
+                    hole.sentNanos = 0;
+                }
+            }
+            Iterator<Pending> range = unacked.subMap(ack.ranges[i], true, ack.ranges[i + 1], true)
+                    .values().iterator();
+            while (range.hasNext()) {
+                Pending pending = range.next();
+                acked.add(pending.seq);
+                byMessage.remove(pending.message);
+                range.remove();
+            }
+            gapStart = ack.ranges[i + 1] + 1;
+        }
+        Collections.sort(acked);
+        return acked;
+    }
+
+    /**
+     * Accept a data frame from the peer.
+     *
+     * @return messages that are now deliverable, in order; empty for
+     *         duplicates and for messages held behind a gap
+     */
+    synchronized List<Delivery> onData(long epoch, long seq, long floor, String message) {
+        if (epoch != peerEpoch) {
+            peerEpoch = epoch;
+            received = 0;
+            outOfOrder.clear();
+        }
+        ackPending = true;
+        unackedReceived++;
+        if (floor - 1 > received) {
+            received = floor - 1;
+            outOfOrder.headMap(received, true).clear();
+        }
+        if (seq > received && (seq == received + 1 || outOfOrder.size() < window)) {
+            outOfOrder.putIfAbsent(seq, message);
+        }
+        if (outOfOrder.isEmpty() || outOfOrder.firstKey() != received + 1) {
+            return Collections.emptyList();
+        }
+        List<Delivery> deliverable = new ArrayList<>();
+        while (!outOfOrder.isEmpty() && outOfOrder.firstKey() == received + 1) {
+            received++;
+            deliverable.add(new Delivery(received, outOfOrder.pollFirstEntry().getValue()));
+        }
+        return deliverable;
+    }
+
+    /** Whether at least {@code threshold} messages arrived since the last ack went out. */
+    synchronized boolean ackDue(int threshold) {
+        return ackPending && unackedReceived >= threshold;
+    }
+
+    /** The ack to send if anything arrived since the last one, clearing it; otherwise null. */
+    synchronized Ack takeAck() {
+        if (!ackPending) {
+            return null;
+        }
+        ackPending = false;
+        unackedReceived = 0;
+        int count = 0;
+        long[] ranges = new long[ReliableFrame.MAX_ACK_RANGES * 2];
+        for (Long seq : outOfOrder.keySet()) {
+            if (count > 0 && seq == ranges[count - 1] + 1) {
+                ranges[count - 1] = seq;
+            } else if (count < ranges.length) {
+                ranges[count++] = seq;
+                ranges[count++] = seq;
+            } else {
+                break;
+            }
+        }
+        long[] trimmed = new long[count];
+        System.arraycopy(ranges, 0, trimmed, 0, count);
+        return new Ack(peerEpoch, received, trimmed);
+    }
+
+    /** Put an ack back if the frame carrying it never made it to a connection. */
+    synchronized void ackLost() {
+        ackPending = true;
+    }
+}
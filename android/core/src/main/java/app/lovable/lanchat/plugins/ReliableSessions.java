@@ -0,0 +1,137 @@
+package app.lovable.lanchat.plugins;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The {@link ReliableSession} of each device we exchange sequenced messages
+ * with, by device id.
+ *
+ * A session outlives its connections so unacknowledged messages are resent
+ * after a reconnect, but only for {@code ttlMs} after its last connection
+ * closed, or until discovery reports the device gone. Device ids come from an
+ * unauthenticated handshake header, so at most {@code maxSessions} are kept:
+ * a new device pushes out the session that has been idle longest. Sessions
+ * with an open connection are never evicted; the connections bound those.
+ *
+ * Sessions carry an epoch so the peer can tell our sequence numbers apart
+ * from those of an earlier run; {@link #clear()} starts a new one.
+ */
+final class ReliableSessions {
+    static final int DEFAULT_MAX_SESSIONS = 64;
+    static final long DEFAULT_TTL_MS = 10 * 60 * 1000L;
+
+    private static final class Slot {
+        final ReliableSession session;
+        int connections;
+        long idleSinceMillis;
+
+        Slot(ReliableSession session) {
+            this.session = session;
+        }
+    }
+
+    final LongAdder evicted = new LongAdder();
+
+    private final LongSupplier epochs;
+    private final LongSupplier clockMillis;
+    private long localEpoch;
+    private final Map<String, Slot> slots = new HashMap<>();
+    private int maxSessions = DEFAULT_MAX_SESSIONS;
+    private long ttlMs = DEFAULT_TTL_MS;
+
+    ReliableSessions(LongSupplier epochs, LongSupplier clockMillis) {
+        this.epochs = epochs;
+        this.clockMillis = clockMillis;
+        this.localEpoch = epochs.getAsLong();
+    }
+
+    synchronized void setLimits(int maxSessions, long ttlMs) {
+        this.maxSessions = Math.max(1, maxSessions);
+        this.ttlMs = Math.max(0, ttlMs);
+        evictExpired();
+    }
+
+    /** The device's session, created with {@code window} if it has none; pair with {@link #release}. */
+    synchronized ReliableSession open(String deviceId, int window) {
+        evictExpired();
+        Slot slot = slots.get(deviceId);
+        if (slot == null) {
+            if (slots.size() >= maxSessions) {
+                evictLongestIdle();
+            }
+            slot = new Slot(new ReliableSession(localEpoch, window));
+            slots.put(deviceId, slot);
+        }
+        slot.connections++;
+        return slot.session;
+    }
+
+    /** A connection that used the device's session closed. */
+    synchronized void release(String deviceId) {
+        Slot slot = slots.get(deviceId);
+        if (slot != null && slot.connections > 0 && --slot.connections == 0) {
+            slot.idleSinceMillis = clockMillis.getAsLong();
+        }
+    }
+
+    /** Discovery lost the device; drop its session unless it is still connected. */
+    synchronized void expire(String deviceId) {
+        Slot slot = slots.get(deviceId);
+        if (slot != null && slot.connections == 0) {
+            slots.remove(deviceId);
+            evicted.increment();
+        }
+    }
+
+    /** Drop sessions idle for longer than the TTL; cheap enough to call on a timer. */
+    synchronized void evictExpired() {
+        long cutoff = clockMillis.getAsLong() - ttlMs;
+        Iterator<Slot> it = slots.values().iterator();
+        while (it.hasNext()) {
+            Slot slot = it.next();
+            if (slot.connections == 0 && slot.idleSinceMillis <= cutoff) {
+                it.remove();
+                evicted.increment();
+            }
+        }
+    }
+
+    synchronized int size() {
+        return slots.size();
+    }
+
+    /** Messages sent to any device and not yet acknowledged. */
+    synchronized int unackedCount() {
+        int unacked = 0;
+        for (Slot slot : slots.values()) {
+            unacked += slot.session.unackedCount();
+        }
+        return unacked;
+    }
+
+    /** Forget every session and number what follows under a new epoch. */
+    synchronized void clear() {
+        slots.clear();
+        localEpoch = epochs.getAsLong();
+    }
+
+    private void evictLongestIdle() {
+        String oldest = null;
+        long oldestIdleSince = Long.MAX_VALUE;
+        for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+            Slot slot = entry.getValue();
+            if (slot.connections == 0 && slot.idleSinceMillis < oldestIdleSince) {
+                oldest = entry.getKey();
+                oldestIdleSince = slot.idleSinceMillis;
+            }
+        }
+        if (oldest != null) {
+            slots.remove(oldest);
+            evicted.increment();
+        }
+    }
+}
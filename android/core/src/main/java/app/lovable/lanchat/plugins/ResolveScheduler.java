@@ -0,0 +1,219 @@
+package app.lovable.lanchat.plugins;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which discovered service to resolve next, independent of
+ * {@code NsdManager} so it can be driven from tests with a fake clock.
+ *
+ * Many Android versions allow one resolve at a time and fail the rest with
+ * FAILURE_ALREADY_ACTIVE, so only one resolve is ever in flight. Services
+ * wait in a single queue, one entry per service name, with names we have
+ * never resolved ahead of ones we have. A busy error holds the whole queue
+ * back with {@link Backoff}; other errors send the service to the back of the
+ * queue until it runs out of attempts. Resolved addresses are cached for
+ * {@code ttlMs}, so a service that flaps lost and found again is reported
+ * from the cache instead of queueing another resolve.
+ *
+ * @param <S> whatever the caller needs to start a resolve, e.g. NsdServiceInfo
+ */
+final class ResolveScheduler<S> {
+    static final long DEFAULT_TTL_MS = 60_000;
+    static final long DEFAULT_TIMEOUT_MS = 10_000;
+    static final int MAX_ATTEMPTS = 6;
+    private static final int PRUNE_THRESHOLD = 256;
+
+    static final class Address {
+        final String host;
+        final int port;
+        final long resolvedNanos;
+
+        Address(String host, int port, long resolvedNanos) {
+            this.host = host;
+            this.port = port;
+            this.resolvedNanos = resolvedNanos;
+        }
+    }
+
+    static final class Entry<S> {
+        final String name;
+        S service;
+        /** Failed resolves so far. */
+        int attempts;
+
+        Entry(String name, S service) {
+            this.name = name;
+            this.service = service;
+        }
+    }
+
+    private final long ttlNanos;
+    private final long timeoutNanos;
+    private final Backoff backoff;
+    private final Deque<Entry<S>> queue = new ArrayDeque<>();
+    private final Map<String, Entry<S>> queued = new HashMap<>();
+    // Expired entries stay to mark the name as seen until pruned
+    private final Map<String, Address> cache = new HashMap<>();
+    private Entry<S> inFlight;
+    private long inFlightSinceNanos;
+    /** Busy errors in a row; the queue waits for the backoff they imply. */
+    private int busyStreak;
+    private long notBeforeNanos;
+
+    private long retries;
+    private long cacheHits;
+
+    ResolveScheduler(long ttlMs, long timeoutMs, Backoff backoff) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, ttlMs));
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeoutMs));
+        this.backoff = backoff;
+    }
+
+    /**
+     * A service was announced.
+     *
+     * @return its cached address if it was resolved within the TTL, in which
+     *         case nothing is queued; otherwise null
+     */
+    synchronized Address onFound(String name, S service, long nowNanos) {
+        Address cached = cache.get(name);
+        if (cached != null && nowNanos - cached.resolvedNanos < ttlNanos) {
+            cacheHits++;
+            return cached;
+        }
+        Entry<S> entry = queued.get(name);
+        if (entry != null) {
+            entry.service = service;
+            return null;
+        }
+        if (inFlight != null && inFlight.name.equals(name)) {
+            inFlight.service = service;
+            return null;
+        }
+        entry = new Entry<>(name, service);
+        queued.put(name, entry);
+        if (cached == null) {
+            queue.addFirst(entry);
+        } else {
+            queue.addLast(entry);
+        }
+        return null;
+    }
+
+    /** A service went away; a queued resolve for it is dropped, its cached address is kept. */
+    synchronized void onLost(String name) {
+        Entry<S> entry = queued.remove(name);
+        if (entry != null) {
+            queue.remove(entry);
+        }
+    }
+
+    /**
+     * The next service to resolve, which is then in flight until
+     * {@link #onResolved} or {@link #onFailed}; null if one is already in
+     * flight, the queue is empty or backing off.
+     */
+    synchronized Entry<S> poll(long nowNanos) {
+        if (inFlight != null && nowNanos - inFlightSinceNanos >= timeoutNanos) {
+            // The callback never came; treat it like any other failure
+            onFailed(inFlight.name, false, nowNanos);
+        }
+        if (inFlight != null || queue.isEmpty() || nowNanos - notBeforeNanos < 0) {
+            return null;
+        }
+        inFlight = queue.pollFirst();
+        queued.remove(inFlight.name);
+        inFlightSinceNanos = nowNanos;
+        return inFlight;
+    }
+
+    /**
+     * Nanoseconds until {@link #poll} may return something or a resolve in
+     * flight times out, or -1 if there is nothing to wait for.
+     */
+    synchronized long delayNanos(long nowNanos) {
+        if (inFlight != null) {
+            return Math.max(0, inFlightSinceNanos + timeoutNanos - nowNanos);
+        }
+        if (queue.isEmpty()) {
+            return -1;
+        }
+        return Math.max(0, notBeforeNanos - nowNanos);
+    }
+
+    synchronized void onResolved(String name, String host, int port, long nowNanos) {
+        if (inFlight != null && inFlight.name.equals(name)) {
+            inFlight = null;
+        }
+        busyStreak = 0;
+        notBeforeNanos = nowNanos;
+        if (cache.size() >= PRUNE_THRESHOLD) {
+            prune(nowNanos);
+        }
+        cache.put(name, new Address(host, port, nowNanos));
+    }
+
+    /**
+     * A resolve failed; {@code busy} for FAILURE_ALREADY_ACTIVE.
+     *
+     * @return true if the service was queued again
+     */
+    synchronized boolean onFailed(String name, boolean busy, long nowNanos) {
+        if (inFlight == null || !inFlight.name.equals(name)) {
+            return false;
+        }
+        Entry<S> entry = inFlight;
+        inFlight = null;
+        if (busy) {
+            // Someone else holds the resolver; wait and go first once it's free
+            busyStreak++;
+            notBeforeNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(backoff.delayMs(busyStreak));
+        } else {
+            entry.attempts++;
+        }
+        if (entry.attempts >= MAX_ATTEMPTS || queued.containsKey(name)) {
+            return false;
+        }
+        retries++;
+        queued.put(name, entry);
+        if (busy) {
+            queue.addFirst(entry);
+        } else {
+            queue.addLast(entry);
+        }
+        return true;
+    }
+
+    /** Forget queued services and the one in flight; cached addresses are kept. */
+    synchronized void clear() {
+        queue.clear();
+        queued.clear();
+        inFlight = null;
+        busyStreak = 0;
+    }
+
+    synchronized int queued() {
+        return queue.size();
+    }
+
+    synchronized long retries() {
+        return retries;
+    }
+
+    synchronized long cacheHits() {
+        return cacheHits;
+    }
+
+    private void prune(long nowNanos) {
+        for (Iterator<Address> it = cache.values().iterator(); it.hasNext(); ) {
+            if (nowNanos - it.next().resolvedNanos >= ttlNanos) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package app.lovable.lanchat.plugins;
+
+import java.util.Arrays;
+
+/**
+ * Bounded set of recently seen 64-bit message keys for duplicate suppression.
+ *
+ * Two generations of open-addressed long tables: keys go into the current
+ * one, and once it holds half the capacity the older generation is dropped
+ * and the current one takes its place. Lookups check both, so at least the
+ * last {@code capacity / 2} keys are always remembered, in about 16 bytes
+ * per key of capacity and with no allocation after construction.
+ */
+final class SeenSet {
+    private static final long EMPTY = 0;
+
+    private final int generationSize;
+    private long[] current;
+    private long[] previous;
+    private int currentCount;
+
+    SeenSet(int capacity) {
+        generationSize = Math.max(16, capacity / 2);
+        // Load factor stays at or below 0.5
+        int slots = Integer.highestOneBit(generationSize * 2 - 1) << 1;
+        current = new long[slots];
+        previous = new long[slots];
+    }
+
+    /** Record {@code key}; returns false if it was already seen. */
+    synchronized boolean add(long key) {
+        if (key == EMPTY) {
+            key = 1;
+        }
+        if (contains(previous, key) || contains(current, key)) {
+            return false;
+        }
+        if (currentCount >= generationSize) {
+            long[] recycled = previous;
+            Arrays.fill(recycled, EMPTY);
+            previous = current;
+            current = recycled;
+            currentCount = 0;
+        }
+        int mask = current.length - 1;
+        int slot = mix(key) & mask;
+        while (current[slot] != EMPTY) {
+            slot = (slot + 1) & mask;
+        }
+        current[slot] = key;
+        currentCount++;
+        return true;
+    }
+
+    private static boolean contains(long[] table, long key) {
+        int mask = table.length - 1;
+        int slot = mix(key) & mask;
+        while (table[slot] != EMPTY) {
+            if (table[slot] == key) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
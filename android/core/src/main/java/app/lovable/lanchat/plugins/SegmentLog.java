@@ -0,0 +1,283 @@
+package app.lovable.lanchat.plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record log in a directory of memory-mapped segment files.
+ *
+ * Records are only ever appended at the tail and consumed from the head, so
+ * there are no holes: compaction is deleting the segments the head has moved
+ * past. The head offset lives in its own small mapped file. Writes go to the
+ * page cache and survive the process dying; they are not forced to disk.
+ *
+ * Record layout: int total length (header included), int CRC32 of the
+ * payload, long timestamp in ms, payload. A zero length ends a segment, and
+ * recovery stops at the first record whose length or CRC doesn't check out,
+ * so a torn last write is simply overwritten by the next append.
+ */
+final class SegmentLog {
+    static final int RECORD_HEADER_BYTES = 16;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String HEAD_FILE = "head";
+
+    static final class Record {
+        final long timestampMillis;
+        final byte[] data;
+
+        Record(long timestampMillis, byte[] data) {
+            this.timestampMillis = timestampMillis;
+            this.data = data;
+        }
+    }
+
+    private static final class Segment {
+        final long base;
+        final File file;
+        final MappedByteBuffer buffer;
+        int limit;
+
+        Segment(long base, File file, MappedByteBuffer buffer) {
+            this.base = base;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        long end() {
+            return base + limit;
+        }
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+    private final MappedByteBuffer headFile;
+    private final CRC32 crc = new CRC32();
+
+    private long head;
+    private int records;
+    private long bytes;
+
+    SegmentLog(File dir, int segmentBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        this.dir = dir;
+        this.segmentBytes = Math.max(4096, segmentBytes);
+        this.headFile = map(new File(dir, HEAD_FILE), 8);
+        this.head = headFile.getLong(0);
+        recover();
+    }
+
+    /** Append one record at the tail. */
+    synchronized void append(byte[] data, long timestampMillis) throws IOException {
+        int length = RECORD_HEADER_BYTES + data.length;
+        Segment tail = tail();
+        if (tail == null || tail.limit + length > tail.buffer.capacity()) {
+            long base = tail != null ? tail.end() : head;
+            tail = openSegment(base, Math.max(segmentBytes, length));
+            segments.add(tail);
+        }
+
+        ByteBuffer buffer = tail.buffer;
+        int pos = tail.limit;
+        crc.reset();
+        crc.update(data, 0, data.length);
+        buffer.putLong(pos + 8, timestampMillis);
+        buffer.putInt(pos + 4, (int) crc.getValue());
+        ByteBuffer body = buffer.duplicate();
+        body.position(pos + RECORD_HEADER_BYTES);
+        body.put(data);
+        // Length last: until it is written the record doesn't exist
+        buffer.putInt(pos, length);
+
+        tail.limit += length;
+        records++;
+        bytes += data.length;
+    }
+
+    /** Up to {@code max} records from the head, oldest first, without consuming them. */
+    synchronized List<Record> peek(int max) {
+        List<Record> result = new ArrayList<>(Math.min(max, records));
+        long offset = head;
+        for (Segment segment : segments) {
+            if (result.size() >= max) {
+                break;
+            }
+            if (segment.end() <= offset) {
+                continue;
+            }
+            int pos = (int) Math.max(0, offset - segment.base);
+            while (pos < segment.limit && result.size() < max) {
+                ByteBuffer buffer = segment.buffer;
+                int length = buffer.getInt(pos);
+                byte[] data = new byte[length - RECORD_HEADER_BYTES];
+                ByteBuffer body = buffer.duplicate();
+                body.position(pos + RECORD_HEADER_BYTES);
+                body.get(data);
+                result.add(new Record(buffer.getLong(pos + 8), data));
+                pos += length;
+            }
+            offset = segment.base + pos;
+        }
+        return result;
+    }
+
+    /** Consume {@code count} records from the head and drop the segments that are now behind it. */
+    synchronized void advance(int count) {
+        int remaining = Math.min(count, records);
+        for (Segment segment : segments) {
+            if (remaining == 0) {
+                break;
+            }
+            if (segment.end() <= head) {
+                continue;
+            }
+            int pos = (int) Math.max(0, head - segment.base);
+            while (pos < segment.limit && remaining > 0) {
+                int length = segment.buffer.getInt(pos);
+                pos += length;
+                bytes -= length - RECORD_HEADER_BYTES;
+                records--;
+                remaining--;
+            }
+            head = segment.base + pos;
+        }
+        headFile.putLong(0, head);
+        compact();
+    }
+
+    synchronized int size() {
+        return records;
+    }
+
+    /** Payload bytes waiting at or after the head. */
+    synchronized long bytes() {
+        return bytes;
+    }
+
+    /** Delete every file; the log must not be used afterwards. */
+    synchronized void delete() {
+        for (Segment segment : segments) {
+            segment.file.delete();
+        }
+        segments.clear();
+        new File(dir, HEAD_FILE).delete();
+        dir.delete();
+    }
+
+    /**
+     * Delete segments entirely behind the head. A fully consumed tail goes
+     * too, so an empty log takes no disk space.
+     */
+    private void compact() {
+        while (!segments.isEmpty() && segments.get(0).end() <= head) {
+            Segment segment = segments.remove(0);
+            if (!segment.file.delete()) {
+                // Retry on the next compaction rather than appending to a file we wanted gone
+                segments.add(0, segment);
+                return;
+            }
+        }
+    }
+
+    private Segment tail() {
+        return segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        List<Long> bases = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+        }
+        Collections.sort(bases);
+
+        for (long base : bases) {
+            File file = segmentFile(base);
+            Segment segment = new Segment(base, file, map(file, (int) file.length()));
+            segment.limit = scan(segment.buffer);
+            segments.add(segment);
+        }
+        if (!segments.isEmpty()) {
+            head = Math.max(head, segments.get(0).base);
+            head = Math.min(head, tail().end());
+        }
+        headFile.putLong(0, head);
+
+        for (Segment segment : segments) {
+            if (segment.end() <= head) {
+                continue;
+            }
+            int pos = (int) Math.max(0, head - segment.base);
+            while (pos < segment.limit) {
+                int length = segment.buffer.getInt(pos);
+                pos += length;
+                bytes += length - RECORD_HEADER_BYTES;
+                records++;
+            }
+        }
+        compact();
+    }
+
+    /** Length of the valid prefix of a segment. */
+    private int scan(ByteBuffer buffer) {
+        int pos = 0;
+        while (pos + RECORD_HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(pos);
+            if (length < RECORD_HEADER_BYTES || length > buffer.capacity() - pos) {
+                break;
+            }
+            byte[] data = new byte[length - RECORD_HEADER_BYTES];
+            ByteBuffer body = buffer.duplicate();
+            body.position(pos + RECORD_HEADER_BYTES);
+            body.get(data);
+            crc.reset();
+            crc.update(data, 0, data.length);
+            if ((int) crc.getValue() != buffer.getInt(pos + 4)) {
+                break;
+            }
+            pos += length;
+        }
+        // Clear a torn record so a shorter append over it doesn't leave a plausible-looking tail
+        for (int i = pos; i < Math.min(buffer.capacity(), pos + RECORD_HEADER_BYTES); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        return pos;
+    }
+
+    private Segment openSegment(long base, int size) throws IOException {
+        File file = segmentFile(base);
+        return new Segment(base, file, map(file, size));
+    }
+
+    private File segmentFile(long base) {
+        return new File(dir, String.format(Locale.ROOT, "%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    /** Map a file read-write, growing it to {@code size}; the mapping outlives the channel. */
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+        }
+    }
+}
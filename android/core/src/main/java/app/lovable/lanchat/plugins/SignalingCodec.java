@@ -0,0 +1,437 @@
+package app.lovable.lanchat.plugins;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Compact binary encoding for the JSON signaling messages the web layer sends
+ * ({@code {type, from, to, payload}}).
+ *
+ * Known message types are written as a one-byte tag, and the payload shapes we
+ * send most often (typing, seen/delivered receipts, ICE candidates and SDP
+ * offers/answers) are written field by field instead of as JSON text. Anything
+ * else keeps its payload as JSON, so every message the encoder accepts decodes
+ * back to an equivalent JSON string. Messages it cannot represent return
+ * {@code null} from {@link #encode(String)} and should go out as text frames.
+ */
+public final class SignalingCodec {
+    /** Highest binary framing version this build understands. */
+    public static final int PROTOCOL_VERSION = 1;
+
+    /** Handshake header both sides use to advertise their framing version. */
+    public static final String PROTOCOL_HEADER = "X-LanChat-Proto";
+
+    private static final int MAGIC = 0xB0;
+
+    private static final String[] TYPES = {
+        null,
+        "offer", "answer", "ice-candidate", "join", "leave", "message",
+        "typing", "seen", "delivered", "call-offer", "call-answer", "call-end",
+        "peer-list"
+    };
+
+    private static final int TAG_CUSTOM = 0;
+
+    private static final int FLAG_FROM = 1;
+    private static final int FLAG_TO = 1 << 1;
+
+    private static final int PAYLOAD_ABSENT = 0;
+    private static final int PAYLOAD_NULL = 1;
+    private static final int PAYLOAD_JSON = 2;
+    private static final int PAYLOAD_TYPING = 3;
+    private static final int PAYLOAD_MESSAGE_ID = 4;
+    private static final int PAYLOAD_ICE = 5;
+    private static final int PAYLOAD_SDP = 6;
+
+    private static final int FIELD_ABSENT = 0;
+    private static final int FIELD_NULL = 1;
+    private static final int FIELD_VALUE = 2;
+
+    private SignalingCodec() {
+    }
+
+    /**
+     * Encode a JSON signaling message into a binary frame.
+     *
+     * @return the frame, or {@code null} if the message has to be sent as text
+     */
+    public static ByteBuffer encode(String json) {
+        JSONObject message;
+        try {
+            message = new JSONObject(json);
+        } catch (JSONException e) {
+            return null;
+        }
+
+        Object type = message.opt("type");
+        Object from = message.opt("from");
+        Object to = message.opt("to");
+        if (!(type instanceof String)
+                || (from != null && !(from instanceof String))
+                || (to != null && !(to instanceof String))
+                || !hasOnlyKeys(message, "type", "from", "to", "payload")) {
+            return null;
+        }
+
+        Writer out = new Writer(json.length() / 2 + 16);
+        int tag = tagFor((String) type);
+        int flags = (from != null ? FLAG_FROM : 0) | (to != null ? FLAG_TO : 0);
+
+        out.writeByte(MAGIC | PROTOCOL_VERSION);
+        out.writeByte(tag);
+        out.writeByte(flags);
+        if (tag == TAG_CUSTOM) {
+            out.writeString((String) type);
+        }
+        if (from != null) {
+            out.writeString((String) from);
+        }
+        if (to != null) {
+            out.writeString((String) to);
+        }
+        writePayload(out, message);
+        return out.toByteBuffer();
+    }
+
+    /**
+     * Decode a binary frame produced by {@link #encode(String)} back into the
+     * JSON string the web layer expects. The string is written directly rather
+     * than through a JSONObject, since the WebView parses it again anyway.
+     *
+     * @throws IllegalArgumentException if the frame is truncated or not ours
+     */
+    public static String decode(ByteBuffer frame) {
+        ByteBuffer in = frame.duplicate();
+        try {
+            int header = in.get() & 0xFF;
+            if ((header & 0xF0) != MAGIC || (header & 0x0F) > PROTOCOL_VERSION) {
+                throw new IllegalArgumentException("Unsupported frame header: " + header);
+            }
+            int tag = in.get() & 0xFF;
+            int flags = in.get() & 0xFF;
+
+            StringBuilder json = new StringBuilder(in.remaining() + 64);
+            json.append("{\"type\":");
+            if (tag == TAG_CUSTOM) {
+                json.append(JSONObject.quote(readString(in)));
+            } else if (tag < TYPES.length) {
+                json.append('"').append(TYPES[tag]).append('"');
+            } else {
+                throw new IllegalArgumentException("Unknown message tag: " + tag);
+            }
+            if ((flags & FLAG_FROM) != 0) {
+                json.append(",\"from\":").append(JSONObject.quote(readString(in)));
+            }
+            if ((flags & FLAG_TO) != 0) {
+                json.append(",\"to\":").append(JSONObject.quote(readString(in)));
+            }
+            readPayload(in, json);
+            return json.append('}').toString();
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated signaling frame", e);
+        }
+    }
+
+    /**
+     * Cheap read of the message type without parsing the JSON. Relies on the
+     * web layer's JSON.stringify putting {@code type} first, and returns null
+     * for anything else.
+     */
+    public static String peekType(String json) {
+        String prefix = "{\"type\":\"";
+        if (!json.startsWith(prefix)) {
+            return null;
+        }
+        int end = json.indexOf('"', prefix.length());
+        if (end < 0) {
+            return null;
+        }
+        String type = json.substring(prefix.length(), end);
+        return type.indexOf('\\') < 0 ? type : null;
+    }
+
+    /**
+     * Cheap read of {@code payload.messageId}, which receipts such as
+     * {@code seen} carry, without parsing the JSON; null if there is none.
+     */
+    public static String peekMessageId(String json) {
+        String key = "\"messageId\":\"";
+        int start = json.indexOf(key);
+        if (start < 0) {
+            return null;
+        }
+        start += key.length();
+        int end = json.indexOf('"', start);
+        if (end < 0) {
+            return null;
+        }
+        String id = json.substring(start, end);
+        return id.indexOf('\\') < 0 ? id : null;
+    }
+
+    /**
+     * Framing version to use with a peer that advertised {@code remoteHeader}
+     * during the handshake; 0 means text frames only.
+     */
+    public static int negotiate(String remoteHeader) {
+        if (remoteHeader == null || remoteHeader.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Math.min(PROTOCOL_VERSION, Integer.parseInt(remoteHeader.trim())));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static void writePayload(Writer out, JSONObject message) {
+        if (!message.has("payload")) {
+            out.writeByte(PAYLOAD_ABSENT);
+            return;
+        }
+        Object payload = message.opt("payload");
+        if (payload == JSONObject.NULL) {
+            out.writeByte(PAYLOAD_NULL);
+            return;
+        }
+        if (payload instanceof JSONObject) {
+            JSONObject body = (JSONObject) payload;
+            if (isTyping(body)) {
+                out.writeByte(PAYLOAD_TYPING);
+                out.writeByte(body.optBoolean("isTyping") ? 1 : 0);
+                return;
+            }
+            if (isMessageId(body)) {
+                out.writeByte(PAYLOAD_MESSAGE_ID);
+                out.writeString(body.optString("messageId"));
+                return;
+            }
+            if (isIceCandidate(body)) {
+                out.writeByte(PAYLOAD_ICE);
+                out.writeString(body.optString("candidate"));
+                writeOptionalString(out, body, "sdpMid");
+                writeOptionalInt(out, body, "sdpMLineIndex");
+                writeOptionalString(out, body, "usernameFragment");
+                return;
+            }
+            if (isSessionDescription(body)) {
+                JSONObject sdp = body.optJSONObject("sdp");
+                out.writeByte(PAYLOAD_SDP);
+                writeOptionalString(out, body, "username");
+                out.writeString(sdp.optString("type"));
+                out.writeString(sdp.optString("sdp"));
+                return;
+            }
+        }
+        out.writeByte(PAYLOAD_JSON);
+        out.writeString(payload instanceof String ? JSONObject.quote((String) payload) : payload.toString());
+    }
+
+    private static void readPayload(ByteBuffer in, StringBuilder json) {
+        int kind = in.get() & 0xFF;
+        if (kind == PAYLOAD_ABSENT) {
+            return;
+        }
+        json.append(",\"payload\":");
+        switch (kind) {
+            case PAYLOAD_NULL:
+                json.append("null");
+                return;
+            case PAYLOAD_TYPING:
+                json.append("{\"isTyping\":").append(in.get() != 0).append('}');
+                return;
+            case PAYLOAD_MESSAGE_ID:
+                json.append("{\"messageId\":").append(JSONObject.quote(readString(in))).append('}');
+                return;
+            case PAYLOAD_ICE:
+                json.append("{\"candidate\":").append(JSONObject.quote(readString(in)));
+                readOptionalString(in, json, "sdpMid");
+                readOptionalInt(in, json, "sdpMLineIndex");
+                readOptionalString(in, json, "usernameFragment");
+                json.append('}');
+                return;
+            case PAYLOAD_SDP:
+                json.append('{');
+                int mark = json.length();
+                readOptionalString(in, json, "username");
+                if (json.length() > mark) {
+                    // Drop the separator readOptionalString put before the first field
+                    json.deleteCharAt(mark);
+                    json.append(',');
+                }
+                json.append("\"sdp\":{\"type\":").append(JSONObject.quote(readString(in)));
+                json.append(",\"sdp\":").append(JSONObject.quote(readString(in))).append("}}");
+                return;
+            case PAYLOAD_JSON:
+                // Written by our encoder from a parsed value, so it is already valid JSON
+                json.append(readString(in));
+                return;
+            default:
+                throw new IllegalArgumentException("Unknown payload kind: " + kind);
+        }
+    }
+
+    private static boolean isTyping(JSONObject body) {
+        return body.length() == 1 && body.opt("isTyping") instanceof Boolean;
+    }
+
+    private static boolean isMessageId(JSONObject body) {
+        return body.length() == 1 && body.opt("messageId") instanceof String;
+    }
+
+    private static boolean isIceCandidate(JSONObject body) {
+        return body.opt("candidate") instanceof String
+                && hasOnlyKeys(body, "candidate", "sdpMid", "sdpMLineIndex", "usernameFragment")
+                && isOptional(body.opt("sdpMid"), String.class)
+                && isOptional(body.opt("sdpMLineIndex"), Integer.class)
+                && isOptional(body.opt("usernameFragment"), String.class);
+    }
+
+    private static boolean isSessionDescription(JSONObject body) {
+        JSONObject sdp = body.optJSONObject("sdp");
+        return sdp != null
+                && hasOnlyKeys(body, "username", "sdp")
+                && isOptional(body.opt("username"), String.class)
+                && sdp.length() == 2
+                && sdp.opt("type") instanceof String
+                && sdp.opt("sdp") instanceof String;
+    }
+
+    private static boolean isOptional(Object value, Class<?> type) {
+        return value == null || value == JSONObject.NULL || type.isInstance(value);
+    }
+
+    private static boolean hasOnlyKeys(JSONObject object, String... allowed) {
+        Iterator<String> keys = object.keys();
+        while (keys.hasNext()) {
+            if (!Arrays.asList(allowed).contains(keys.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int tagFor(String type) {
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        return TAG_CUSTOM;
+    }
+
+    private static void writeOptionalString(Writer out, JSONObject object, String key) {
+        if (!object.has(key)) {
+            out.writeByte(FIELD_ABSENT);
+        } else if (object.isNull(key)) {
+            out.writeByte(FIELD_NULL);
+        } else {
+            out.writeByte(FIELD_VALUE);
+            out.writeString(object.optString(key));
+        }
+    }
+
+    private static void writeOptionalInt(Writer out, JSONObject object, String key) {
+        if (!object.has(key)) {
+            out.writeByte(FIELD_ABSENT);
+        } else if (object.isNull(key)) {
+            out.writeByte(FIELD_NULL);
+        } else {
+            out.writeByte(FIELD_VALUE);
+            out.writeVarint(object.optInt(key));
+        }
+    }
+
+    private static void readOptionalString(ByteBuffer in, StringBuilder json, String key) {
+        int state = in.get() & 0xFF;
+        if (state == FIELD_NULL) {
+            json.append(",\"").append(key).append("\":null");
+        } else if (state == FIELD_VALUE) {
+            json.append(",\"").append(key).append("\":").append(JSONObject.quote(readString(in)));
+        }
+    }
+
+    private static void readOptionalInt(ByteBuffer in, StringBuilder json, String key) {
+        int state = in.get() & 0xFF;
+        if (state == FIELD_NULL) {
+            json.append(",\"").append(key).append("\":null");
+        } else if (state == FIELD_VALUE) {
+            json.append(",\"").append(key).append("\":").append(readVarint(in));
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("String length out of range: " + length);
+        }
+        if (in.hasArray()) {
+            String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    /** Growable byte sink; avoids ByteArrayOutputStream's synchronization. */
+    private static final class Writer {
+        private byte[] buf;
+        private int len;
+
+        Writer(int capacity) {
+            buf = new byte[Math.max(capacity, 16)];
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        void writeVarint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[len++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[len++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, len, bytes.length);
+            len += bytes.length;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, len).slice();
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.AbstractWebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.drafts.Draft_6455;
+import org.java_websocket.extensions.IExtension;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.SocketFactory;
+
+/**
+ * Threading and socket options shared by the server and every outgoing
+ * client. Zero for a size or count means "leave the library/OS default".
+ * Servers take theirs by extending {@link TunedWebSocketServer}.
+ */
+final class SocketTuning {
+    static final int DEFAULT_CONNECTION_LOST_TIMEOUT_SEC = 60;
+
+    /** Server decoder (worker) threads; 0 keeps the library default of one per core. */
+    final int decoderThreads;
+    final boolean tcpNoDelay;
+    final int receiveBufferSize;
+    final int sendBufferSize;
+    final boolean reuseAddr;
+    /** Library keepalive timeout in seconds; 0 disables it. */
+    final int connectionLostTimeoutSec;
+    /** Largest frame payload accepted from a peer in bytes; 0 means no limit. */
+    final int maxFrameSize;
+
+    SocketTuning(int decoderThreads, boolean tcpNoDelay, int receiveBufferSize, int sendBufferSize,
+            boolean reuseAddr, int connectionLostTimeoutSec, int maxFrameSize) {
+        this.decoderThreads = Math.max(0, decoderThreads);
+        this.tcpNoDelay = tcpNoDelay;
+        this.receiveBufferSize = Math.max(0, receiveBufferSize);
+        this.sendBufferSize = Math.max(0, sendBufferSize);
+        this.reuseAddr = reuseAddr;
+        this.connectionLostTimeoutSec = Math.max(0, connectionLostTimeoutSec);
+        this.maxFrameSize = Math.max(0, maxFrameSize);
+    }
+
+    /** Low-latency defaults: Nagle off and address reuse on, so a quick restart can rebind. */
+    static SocketTuning defaults() {
+        return new SocketTuning(0, true, 0, 0, true, DEFAULT_CONNECTION_LOST_TIMEOUT_SEC, 0);
+    }
+
+    int decoderThreadsOrDefault() {
+        return decoderThreads > 0 ? decoderThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    Draft draft(IExtension extension) {
+        List<IExtension> extensions = new ArrayList<>(1);
+        if (extension != null) {
+            extensions.add(extension);
+        }
+        return new Draft_6455(extensions, maxFrameSize > 0 ? maxFrameSize : Integer.MAX_VALUE);
+    }
+
+    /** Options that must be set before the server starts or the client connects. */
+    void applyTo(AbstractWebSocket endpoint) {
+        endpoint.setTcpNoDelay(tcpNoDelay);
+        endpoint.setReuseAddr(reuseAddr);
+        endpoint.setConnectionLostTimeout(connectionLostTimeoutSec);
+    }
+
+    /** Socket factory for outgoing clients, or null if the defaults are fine. */
+    SocketFactory socketFactory() {
+        if (receiveBufferSize == 0 && sendBufferSize == 0) {
+            return null;
+        }
+        return new SocketFactory() {
+            @Override
+            public Socket createSocket() throws IOException {
+                Socket socket = new Socket();
+                applyBuffers(socket);
+                return socket;
+            }
+
+            @Override
+            public Socket createSocket(String host, int port) throws IOException {
+                return connect(new InetSocketAddress(host, port), null);
+            }
+
+            @Override
+            public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                    throws IOException {
+                return connect(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+            }
+
+            @Override
+            public Socket createSocket(InetAddress host, int port) throws IOException {
+                return connect(new InetSocketAddress(host, port), null);
+            }
+
+            @Override
+            public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                    throws IOException {
+                return connect(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+            }
+
+            private Socket connect(InetSocketAddress remote, InetSocketAddress local) throws IOException {
+                Socket socket = createSocket();
+                if (local != null) {
+                    socket.bind(local);
+                }
+                socket.connect(remote);
+                return socket;
+            }
+        };
+    }
+
+    private void applyBuffers(Socket socket) throws SocketException {
+        if (receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package app.lovable.lanchat.plugins;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Control frame telling a peer which topics we want published messages for.
+ *
+ * <pre>
+ * byte    0xA0 | version
+ * byte    op (1 = subscribe, 2 = unsubscribe, 3 = route)
+ * varint  topic count
+ * string  per topic: varint length + UTF-8
+ * byte    per topic, route only: hops to the nearest subscriber, 0 = none
+ * </pre>
+ *
+ * Only sent to peers that advertised {@link #HEADER}; peers without it
+ * don't filter, so they are sent every published message. Subscribe and
+ * unsubscribe frames are version 1; route frames, which carry
+ * {@link TopicRoutes} interest from behind a relay, are version 2 and only
+ * go to peers that advertised it.
+ */
+final class TopicFrame {
+    /** Handshake header advertising topic subscriptions. */
+    static final String HEADER = "X-LanChat-Topics";
+    static final int VERSION = 2;
+    /** First version with route frames. */
+    static final int ROUTES_VERSION = 2;
+
+    static final int SUBSCRIBE = 1;
+    static final int UNSUBSCRIBE = 2;
+    static final int ROUTE = 3;
+
+    private static final int MAGIC = 0xA0;
+
+    final int op;
+    final List<String> topics;
+    /** Hops per topic for route frames; null otherwise. */
+    final int[] distances;
+
+    private TopicFrame(int op, List<String> topics, int[] distances) {
+        this.op = op;
+        this.topics = topics;
+        this.distances = distances;
+    }
+
+    /** Version to use with a peer that advertised {@code remoteHeader}; 0 if it has no topics. */
+    static int negotiate(String remoteHeader) {
+        if (remoteHeader == null || remoteHeader.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Math.min(VERSION, Integer.parseInt(remoteHeader.trim())));
+        } catch (NumberFormatException e) {
+            // Predates versioned values; it still filters
+            return 1;
+        }
+    }
+
+    static boolean isTopicFrame(ByteBuffer frame) {
+        return frame.remaining() > 0 && (frame.get(frame.position()) & 0xF0) == MAGIC;
+    }
+
+    /** A subscribe or unsubscribe frame. */
+    static ByteBuffer encode(int op, Collection<String> topics) {
+        return encode(1, op, new ArrayList<>(topics), null);
+    }
+
+    /**
+     * Route frames for {@code routes} (topic to hops, 0 to withdraw), split
+     * so no frame has more topics than a peer accepts.
+     */
+    static List<ByteBuffer> encodeRoutes(Map<String, Integer> routes) {
+        List<ByteBuffer> frames = new ArrayList<>();
+        List<String> topics = new ArrayList<>(routes.keySet());
+        for (int from = 0; from < topics.size(); from += TopicIndex.DEFAULT_MAX_TOPICS) {
+            List<String> chunk = topics.subList(from, Math.min(topics.size(), from + TopicIndex.DEFAULT_MAX_TOPICS));
+            int[] distances = new int[chunk.size()];
+            for (int i = 0; i < distances.length; i++) {
+                distances[i] = Math.min(0xFF, routes.get(chunk.get(i)));
+            }
+            frames.add(encode(ROUTES_VERSION, ROUTE, chunk, distances));
+        }
+        return frames;
+    }
+
+    private static ByteBuffer encode(int version, int op, List<String> topics, int[] distances) {
+        List<byte[]> encoded = new ArrayList<>(topics.size());
+        int size = 2 + 5;
+        for (String topic : topics) {
+            byte[] bytes = topic.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            size += 5 + bytes.length + 1;
+        }
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put((byte) (MAGIC | version));
+        out.put((byte) op);
+        putVarint(out, encoded.size());
+        for (int i = 0; i < encoded.size(); i++) {
+            byte[] bytes = encoded.get(i);
+            putVarint(out, bytes.length);
+            out.put(bytes);
+            if (distances != null) {
+                out.put((byte) distances[i]);
+            }
+        }
+        out.flip();
+        return out;
+    }
+
+    /** @throws IllegalArgumentException if the frame is truncated, too long or not one we understand */
+    static TopicFrame parse(ByteBuffer frame) {
+        ByteBuffer in = frame.duplicate();
+        try {
+            int header = in.get() & 0xFF;
+            if ((header & 0xF0) != MAGIC || (header & 0x0F) > VERSION) {
+                throw new IllegalArgumentException("Unsupported header: " + header);
+            }
+            int op = in.get() & 0xFF;
+            boolean route = op == ROUTE && (header & 0x0F) >= ROUTES_VERSION;
+            if (op != SUBSCRIBE && op != UNSUBSCRIBE && !route) {
+                throw new IllegalArgumentException("Unknown op: " + op);
+            }
+            int count = getVarint(in);
+            if (count > TopicIndex.DEFAULT_MAX_TOPICS) {
+                throw new IllegalArgumentException("Too many topics: " + count);
+            }
+            List<String> topics = new ArrayList<>(count);
+            int[] distances = route ? new int[count] : null;
+            for (int i = 0; i < count; i++) {
+                int length = getVarint(in);
+                if (length > TopicIndex.MAX_TOPIC_BYTES || length > in.remaining()) {
+                    throw new IllegalArgumentException("Bad topic length: " + length);
+                }
+                byte[] bytes = new byte[length];
+                in.get(bytes);
+                topics.add(new String(bytes, StandardCharsets.UTF_8));
+                if (route) {
+                    distances[i] = in.get() & 0xFF;
+                }
+            }
+            return new TopicFrame(op, topics, distances);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame", e);
+        }
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            int b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
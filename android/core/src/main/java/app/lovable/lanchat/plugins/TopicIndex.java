@@ -0,0 +1,128 @@
+package app.lovable.lanchat.plugins;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which subscribers want which topics, kept both ways so a publish finds
+ * its subscribers and a closing connection drops its subscriptions without
+ * scanning every topic. Subscribers are whatever the caller keys them by;
+ * the plugin uses the connection.
+ *
+ * Each subscriber is capped at {@code maxTopics}, and topics must be
+ * non-empty and at most {@link #MAX_TOPIC_BYTES} of UTF-8, so one peer
+ * can't grow the index without bound.
+ */
+final class TopicIndex<K> {
+    static final int DEFAULT_MAX_TOPICS = 64;
+    static final int MAX_TOPIC_BYTES = 128;
+
+    private final int maxTopics;
+    private final Map<String, Set<K>> byTopic = new HashMap<>();
+    private final Map<K, Set<String>> bySubscriber = new HashMap<>();
+
+    TopicIndex(int maxTopics) {
+        this.maxTopics = Math.max(1, maxTopics);
+    }
+
+    static boolean isValid(String topic) {
+        return topic != null && !topic.isEmpty()
+                && topic.getBytes(StandardCharsets.UTF_8).length <= MAX_TOPIC_BYTES;
+    }
+
+    /** @return false if the topic is invalid or the subscriber is at its limit; true if now subscribed */
+    synchronized boolean subscribe(K subscriber, String topic) {
+        if (!isValid(topic)) {
+            return false;
+        }
+        Set<String> topics = bySubscriber.get(subscriber);
+        if (topics == null) {
+            topics = new LinkedHashSet<>();
+            bySubscriber.put(subscriber, topics);
+        }
+        if (topics.contains(topic)) {
+            return true;
+        }
+        if (topics.size() >= maxTopics) {
+            return false;
+        }
+        topics.add(topic);
+        Set<K> subscribers = byTopic.get(topic);
+        if (subscribers == null) {
+            subscribers = new LinkedHashSet<>();
+            byTopic.put(topic, subscribers);
+        }
+        subscribers.add(subscriber);
+        return true;
+    }
+
+    /** @return whether the subscriber was subscribed */
+    synchronized boolean unsubscribe(K subscriber, String topic) {
+        Set<String> topics = bySubscriber.get(subscriber);
+        if (topics == null || !topics.remove(topic)) {
+            return false;
+        }
+        if (topics.isEmpty()) {
+            bySubscriber.remove(subscriber);
+        }
+        removeFromTopic(topic, subscriber);
+        return true;
+    }
+
+    /** Drop every subscription of a subscriber that went away; returns its topics. */
+    synchronized Set<String> removeAll(K subscriber) {
+        Set<String> topics = bySubscriber.remove(subscriber);
+        if (topics == null) {
+            return Collections.emptySet();
+        }
+        for (String topic : topics) {
+            removeFromTopic(topic, subscriber);
+        }
+        return topics;
+    }
+
+    synchronized boolean isSubscribed(K subscriber, String topic) {
+        Set<String> topics = bySubscriber.get(subscriber);
+        return topics != null && topics.contains(topic);
+    }
+
+    /** A snapshot of the topic's subscribers, in the order they subscribed. */
+    synchronized Set<K> subscribers(String topic) {
+        Set<K> subscribers = byTopic.get(topic);
+        return subscribers != null ? new LinkedHashSet<>(subscribers) : Collections.<K>emptySet();
+    }
+
+    /** A snapshot of the subscriber's topics. */
+    synchronized Set<String> topics(K subscriber) {
+        Set<String> topics = bySubscriber.get(subscriber);
+        return topics != null ? new LinkedHashSet<>(topics) : Collections.<String>emptySet();
+    }
+
+    /** Subscriptions across all subscribers. */
+    synchronized int size() {
+        int size = 0;
+        for (Set<String> topics : bySubscriber.values()) {
+            size += topics.size();
+        }
+        return size;
+    }
+
+    synchronized void clear() {
+        byTopic.clear();
+        bySubscriber.clear();
+    }
+
+    private void removeFromTopic(String topic, K subscriber) {
+        Set<K> subscribers = byTopic.get(topic);
+        if (subscribers != null) {
+            subscribers.remove(subscriber);
+            if (subscribers.isEmpty()) {
+                byTopic.remove(topic);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package app.lovable.lanchat.plugins;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Topic interest across hops, so a relay only forwards a published message
+ * towards neighbors with a subscriber somewhere behind them.
+ *
+ * Each relaying neighbor that routes topics tells us, per topic, how many
+ * hops away its nearest subscriber is; we tell each of them the same about
+ * everyone else we can reach: a neighbor's own subscriptions (from its
+ * {@link TopicFrame#SUBSCRIBE} frames, kept in a {@link TopicIndex}) count
+ * as one hop, and one more hop is added to whatever other neighbors told
+ * us. A neighbor is never told about routes it told us itself, and routes
+ * longer than {@code maxDistance} are withdrawn, so interest echoing round
+ * a loop after its subscriber left grows until it drops out.
+ *
+ * A neighbor whose routes don't fit in {@code maxRoutes} is sent the
+ * wildcard {@link #ANY} instead, and treated as wanting every topic.
+ */
+final class TopicRoutes<K> {
+    static final int DEFAULT_MAX_ROUTES = 256;
+    /** Route to every topic; not a valid topic, so it can't clash with one. */
+    static final String ANY = "";
+
+    private final int maxRoutes;
+    private final int maxDistance;
+    private final Map<K, Map<String, Integer>> learned = new HashMap<>();
+    private final Map<K, Map<String, Integer>> advertised = new HashMap<>();
+
+    TopicRoutes(int maxRoutes, int maxDistance) {
+        this.maxRoutes = Math.max(1, maxRoutes);
+        this.maxDistance = Math.max(2, maxDistance);
+    }
+
+    /**
+     * Apply a neighbor's {@link TopicFrame#ROUTE} frame; a distance of 0
+     * withdraws the route. Past {@code maxRoutes} the neighbor is assumed
+     * to want everything.
+     */
+    synchronized void update(K neighbor, TopicFrame frame) {
+        Map<String, Integer> routes = learned.get(neighbor);
+        if (routes == null) {
+            routes = new HashMap<>();
+            learned.put(neighbor, routes);
+        }
+        for (int i = 0; i < frame.topics.size(); i++) {
+            String topic = frame.topics.get(i);
+            int distance = frame.distances[i];
+            if (!ANY.equals(topic) && !TopicIndex.isValid(topic)) {
+                continue;
+            }
+            if (distance == 0) {
+                routes.remove(topic);
+            } else if (routes.containsKey(topic) || routes.size() < maxRoutes) {
+                routes.put(topic, distance);
+            } else {
+                routes.put(ANY, 1);
+            }
+        }
+        if (routes.isEmpty()) {
+            learned.remove(neighbor);
+        }
+    }
+
+    /** Whether the neighbor told us of a subscriber to {@code topic} behind it. */
+    synchronized boolean reaches(K neighbor, String topic) {
+        Map<String, Integer> routes = learned.get(neighbor);
+        return routes != null && (routes.containsKey(topic) || routes.containsKey(ANY));
+    }
+
+    /** Forget a neighbor that closed; call {@link #advertise} afterwards. */
+    synchronized void remove(K neighbor) {
+        learned.remove(neighbor);
+        advertised.remove(neighbor);
+    }
+
+    /** Routes learned from all neighbors. */
+    synchronized int size() {
+        int size = 0;
+        for (Map<String, Integer> routes : learned.values()) {
+            size += routes.size();
+        }
+        return size;
+    }
+
+    synchronized void clear() {
+        learned.clear();
+        advertised.clear();
+    }
+
+    /**
+     * Work out what each neighbor that {@code routes} should now be told
+     * and hand the changes to {@code send}, withdrawn routes as distance 0.
+     * {@code send} runs under this object's lock so changes to a neighbor go
+     * out in the order they were made; it should only queue them.
+     *
+     * @param neighbors every connected neighbor
+     * @param direct the neighbors' own subscriptions
+     */
+    synchronized void advertise(Collection<K> neighbors, Predicate<K> routes, TopicIndex<K> direct,
+            BiConsumer<K, Map<String, Integer>> send) {
+        for (K target : neighbors) {
+            if (!routes.test(target)) {
+                continue;
+            }
+            Map<String, Integer> wanted = new HashMap<>();
+            for (K source : neighbors) {
+                if (source.equals(target)) {
+                    continue;
+                }
+                for (String topic : direct.topics(source)) {
+                    addRoute(wanted, topic, 2);
+                }
+                Map<String, Integer> behind = learned.get(source);
+                if (behind != null) {
+                    for (Map.Entry<String, Integer> route : behind.entrySet()) {
+                        addRoute(wanted, route.getKey(), route.getValue() + 1);
+                    }
+                }
+            }
+            if (wanted.size() > maxRoutes) {
+                wanted.clear();
+                wanted.put(ANY, 2);
+            }
+
+            Map<String, Integer> told = advertised.get(target);
+            Map<String, Integer> changes = new LinkedHashMap<>();
+            for (Map.Entry<String, Integer> route : wanted.entrySet()) {
+                if (told == null || !route.getValue().equals(told.get(route.getKey()))) {
+                    changes.put(route.getKey(), route.getValue());
+                }
+            }
+            if (told != null) {
+                for (String topic : told.keySet()) {
+                    if (!wanted.containsKey(topic)) {
+                        changes.put(topic, 0);
+                    }
+                }
+            }
+            advertised.put(target, wanted);
+            if (!changes.isEmpty()) {
+                send.accept(target, changes);
+            }
+        }
+    }
+
+    private void addRoute(Map<String, Integer> wanted, String topic, int distance) {
+        if (distance > maxDistance) {
+            return;
+        }
+        Integer known = wanted.get(topic);
+        if (known == null || distance < known) {
+            wanted.put(topic, distance);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package app.lovable.lanchat.plugins;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Messages and bytes in each direction; safe to bump from any thread without contention. */
+final class TrafficCounters {
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+
+    void recordIn(int bytes) {
+        messagesIn.increment();
+        bytesIn.add(bytes);
+    }
+
+    void recordOut(int bytes) {
+        messagesOut.increment();
+        bytesOut.add(bytes);
+    }
+
+    void recordOut(int messages, long bytes) {
+        messagesOut.add(messages);
+        bytesOut.add(bytes);
+    }
+}
@@ -0,0 +1,73 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.server.DefaultWebSocketServerFactory;
+import org.java_websocket.server.WebSocketServer;
+
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+/**
+ * A server set up from a {@link SocketTuning}. The receive buffer goes on
+ * the listening socket before it binds, since the TCP window scale of each
+ * accepted connection is fixed from the listener's buffer during the
+ * handshake: a larger buffer set on the accepted socket afterwards can't
+ * open the window past 64 KB. Accepted sockets inherit it from there.
+ *
+ * Java-WebSocket 1.5.4 opens, sizes (a fixed 16 KB,
+ * {@code WebSocketImpl.RCVBUF}) and binds the listener in one private
+ * method, so the size is applied from {@link #getMaxPendingConnections},
+ * the last call that method makes before binding.
+ */
+abstract class TunedWebSocketServer extends WebSocketServer {
+    private final SocketTuning tuning;
+
+    TunedWebSocketServer(InetSocketAddress address, SocketTuning tuning, List<Draft> drafts) {
+        super(address, tuning.decoderThreadsOrDefault(), drafts);
+        this.tuning = tuning;
+        tuning.applyTo(this);
+        if (tuning.sendBufferSize > 0) {
+            setWebSocketFactory(new DefaultWebSocketServerFactory() {
+                @Override
+                public SocketChannel wrapChannel(SocketChannel channel, SelectionKey key) {
+                    try {
+                        channel.socket().setSendBufferSize(tuning.sendBufferSize);
+                    } catch (SocketException e) {
+                        // Buffer sizes are only hints; keep the OS default
+                    }
+                    return channel;
+                }
+            });
+        }
+    }
+
+    @Override
+    public int getMaxPendingConnections() {
+        if (tuning.receiveBufferSize > 0) {
+            ServerSocketChannel listener = listener();
+            if (listener != null && !listener.socket().isBound()) {
+                try {
+                    listener.socket().setReceiveBufferSize(tuning.receiveBufferSize);
+                } catch (SocketException e) {
+                    // Keep the library's size
+                }
+            }
+        }
+        return super.getMaxPendingConnections();
+    }
+
+    private ServerSocketChannel listener() {
+        try {
+            Field field = WebSocketServer.class.getDeclaredField("server");
+            field.setAccessible(true);
+            return (ServerSocketChannel) field.get(this);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class BackoffTest {
+
+    @Test
+    public void delays_doubleWithinJitterBandUntilCapped() {
+        Backoff backoff = new Backoff(500, 30_000, new Random(42));
+        long ceiling = 500;
+        for (int attempt = 1; attempt <= 12; attempt++) {
+            for (int i = 0; i < 100; i++) {
+                long delay = backoff.delayMs(attempt);
+                assertTrue("attempt " + attempt + ": " + delay, delay >= ceiling / 2 && delay <= ceiling);
+            }
+            ceiling = Math.min(30_000, ceiling * 2);
+        }
+    }
+
+    @Test
+    public void hugeAttemptCounts_stayAtCap() {
+        Backoff backoff = new Backoff(500, 30_000, new Random(7));
+        assertTrue(backoff.delayMs(Integer.MAX_VALUE) <= 30_000);
+        assertTrue(backoff.delayMs(64) >= 15_000);
+    }
+}
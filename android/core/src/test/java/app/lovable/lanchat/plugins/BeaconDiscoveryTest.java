@@ -0,0 +1,180 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** Two engines talking over loopback UDP, each sending to the other's port. */
+public class BeaconDiscoveryTest {
+    private final List<BeaconDiscovery> engines = new ArrayList<>();
+
+    /** Queues "found:name" and "lost:name" as they happen. */
+    private static final class Events implements BeaconDiscovery.Listener {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+        volatile BeaconDiscovery.Peer lastFound;
+
+        @Override
+        public void onPeerFound(BeaconDiscovery.Peer peer) {
+            lastFound = peer;
+            events.add("found:" + peer.name);
+        }
+
+        @Override
+        public void onPeerLost(BeaconDiscovery.Peer peer) {
+            events.add("lost:" + peer.name);
+        }
+
+        String next(long timeoutMs) throws InterruptedException {
+            return events.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @After
+    public void stopAll() {
+        for (BeaconDiscovery engine : engines) {
+            engine.stop();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket probe = new DatagramSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+
+    private BeaconDiscovery engine(int port, int targetPort, int minMs, int maxMs, Events events) throws IOException {
+        List<InetSocketAddress> targets = Collections.singletonList(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), targetPort));
+        BeaconDiscovery engine = new BeaconDiscovery(port, null, targets, minMs, maxMs, events);
+        engine.start();
+        engines.add(engine);
+        return engine;
+    }
+
+    @Test
+    public void peersFindEachOtherWellUnderASecond() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        Events seenByA = new Events();
+        Events seenByB = new Events();
+        // Slow steady interval: finding each other must not depend on waiting it out
+        BeaconDiscovery a = engine(portA, portB, 2_000, 10_000, seenByA);
+        BeaconDiscovery b = engine(portB, portA, 2_000, 10_000, seenByB);
+
+        long start = System.nanoTime();
+        b.advertise("LANChat-b", "device-b", 9002);
+        a.advertise("LANChat-a", "device-a", 9001);
+        assertEquals("found:LANChat-a", seenByB.next(1_000));
+        assertEquals("found:LANChat-b", seenByA.next(1_000));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < 1_000);
+
+        BeaconDiscovery.Peer peer = seenByA.lastFound;
+        assertEquals("device-b", peer.deviceId);
+        assertEquals(9002, peer.port);
+        assertEquals(InetAddress.getLoopbackAddress().getHostAddress(), peer.ip);
+        assertEquals(BeaconFrame.VERSION, peer.protocolVersion);
+        assertNull("no duplicates", seenByA.next(300));
+    }
+
+    @Test
+    public void goodbyeAndSilence_bothLosePeer() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        Events seenByA = new Events();
+        BeaconDiscovery a = engine(portA, portB, 50, 100, seenByA);
+        BeaconDiscovery b = engine(portB, portA, 50, 100, new Events());
+        a.advertise("LANChat-a", "device-a", 9001);
+
+        b.advertise("LANChat-b", "device-b", 9002);
+        assertEquals("found:LANChat-b", seenByA.next(1_000));
+        b.advertise(null, "device-b", 9002);
+        assertEquals("lost:LANChat-b", seenByA.next(1_000));
+
+        // A single beacon and then silence: expires after three of its 100ms intervals plus slack
+        ByteBuffer beacon = BeaconFrame.encode(false, 9004, 100, 0, "LANChat-c", "device-c");
+        try (DatagramSocket raw = new DatagramSocket()) {
+            raw.send(new DatagramPacket(beacon.array(), beacon.remaining(),
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), portA)));
+        }
+        assertEquals("found:LANChat-c", seenByA.next(1_000));
+        long start = System.nanoTime();
+        assertEquals("lost:LANChat-c", seenByA.next(2_000));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("expired after " + elapsedMs + "ms", elapsedMs >= 700);
+        assertTrue(a.peers().isEmpty());
+    }
+
+    @Test
+    public void portChange_reportedAsLostThenFound() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        Events seenByA = new Events();
+        engine(portA, portB, 50, 200, seenByA);
+        BeaconDiscovery b = engine(portB, portA, 50, 200, new Events());
+
+        b.advertise("LANChat-b", "device-b", 9002);
+        assertEquals("found:LANChat-b", seenByA.next(1_000));
+        b.advertise("LANChat-b", "device-b", 9003);
+        assertEquals("lost:LANChat-b", seenByA.next(1_000));
+        assertEquals("found:LANChat-b", seenByA.next(1_000));
+        assertEquals(9003, seenByA.lastFound.port);
+    }
+
+    @Test
+    public void framesRoundTrip_andForeignDatagramsIgnored() {
+        BeaconFrame beacon = BeaconFrame.parse(BeaconFrame.encode(true, 8765, 70_000, -3, "LANChat-é", "id"));
+        assertTrue(beacon.leaving);
+        assertEquals(8765, beacon.port);
+        assertEquals(0xFFFF, beacon.intervalMs);
+        assertEquals(-3, beacon.seq);
+        assertEquals("LANChat-é", beacon.name);
+        assertEquals("id", beacon.deviceId);
+
+        assertNull(BeaconFrame.parse(ByteBuffer.allocate(0)));
+        assertNull(BeaconFrame.parse(ByteBuffer.wrap("hello".getBytes())));
+        ByteBuffer truncated = BeaconFrame.encode(false, 1, 1, 1, "name", "id");
+        truncated.limit(truncated.limit() - 1);
+        assertNull(BeaconFrame.parse(truncated));
+    }
+
+    @Test
+    public void attributes_carriedAndUpdatedWithoutLosingPeer() throws Exception {
+        int portA = freePort();
+        int portB = freePort();
+        Events seenByA = new Events();
+        engine(portA, portB, 50, 200, seenByA);
+        BeaconDiscovery b = engine(portB, portA, 50, 200, new Events());
+
+        b.advertise("LANChat-b", "device-b", 9002, Collections.singletonMap(PeerAttributes.KEY_CONNECTIONS, "1"));
+        assertEquals("found:LANChat-b", seenByA.next(1_000));
+        assertEquals("1", seenByA.lastFound.attributes.get(PeerAttributes.KEY_CONNECTIONS));
+
+        b.advertise("LANChat-b", "device-b", 9002, Collections.singletonMap(PeerAttributes.KEY_CONNECTIONS, "2"));
+        assertEquals("found:LANChat-b", seenByA.next(1_000));
+        assertEquals("2", seenByA.lastFound.attributes.get(PeerAttributes.KEY_CONNECTIONS));
+        assertNull("an update is not a loss", seenByA.next(300));
+
+        // Attributes that don't fit are dropped rather than failing the beacon
+        Map<String, String> huge = new java.util.LinkedHashMap<>();
+        huge.put("a", new String(new char[400]).replace('\0', 'a'));
+        huge.put("b", new String(new char[400]).replace('\0', 'b'));
+        BeaconFrame parsed = BeaconFrame.parse(BeaconFrame.encode(false, 1, 1, 1, "name", "id", huge));
+        assertEquals(Collections.singleton("a"), parsed.attributes.keySet());
+    }
+}
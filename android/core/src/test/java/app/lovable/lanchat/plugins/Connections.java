@@ -0,0 +1,96 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.framing.Framedata;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/** Open connections with no socket behind them, for driving the registry and queues in tests and benchmarks. */
+final class Connections {
+    private Connections() {
+    }
+
+    /**
+     * A connection that reports itself open and carries a fresh
+     * {@link PeerLink}; every other call is a no-op.
+     *
+     * @param protocolVersion 0 for a peer that only takes text frames
+     */
+    static WebSocket open(String clientId, String deviceId, int protocolVersion) {
+        return open(clientId, deviceId, false, protocolVersion);
+    }
+
+    /** Same, dialed by us if {@code outbound}; the remote address is parsed from an ip:port client id. */
+    static WebSocket open(String clientId, String deviceId, boolean outbound, int protocolVersion) {
+        return open(clientId, deviceId, outbound, protocolVersion, null);
+    }
+
+    /** Same, adding the frames of each sendFrame call to {@code writes} if it isn't null. */
+    static WebSocket open(String clientId, String deviceId, boolean outbound, int protocolVersion,
+            List<List<Framedata>> writes) {
+        return open(clientId, deviceId, outbound, protocolVersion, null, writes, true);
+    }
+
+    /**
+     * Same, with native acks through {@code session}; if {@code connected}
+     * is false sendFrame throws, as it does once the socket has dropped.
+     */
+    static WebSocket open(String clientId, String deviceId, int protocolVersion, ReliableSession session,
+            List<List<Framedata>> writes, boolean connected) {
+        return open(clientId, deviceId, false, protocolVersion, session, writes, connected);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static WebSocket open(String clientId, String deviceId, boolean outbound, int protocolVersion,
+            ReliableSession session, List<List<Framedata>> writes, boolean connected) {
+        PeerLink link = new PeerLink(clientId, deviceId, outbound, protocolVersion,
+                new OutboundQueue(1024, OutboundQueue.OverflowPolicy.DROP_OLDEST, Collections.<String>emptySet()),
+                false, null, session, null, false, false);
+        Object[] attachment = {link};
+        return (WebSocket) Proxy.newProxyInstance(WebSocket.class.getClassLoader(), new Class<?>[] {WebSocket.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isOpen":
+                            return true;
+                        case "getAttachment":
+                            return attachment[0];
+                        case "setAttachment":
+                            attachment[0] = args[0];
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        case "sendFrame":
+                            if (!connected) {
+                                throw new WebsocketNotConnectedException();
+                            }
+                            if (writes != null) {
+                                writes.add(args[0] instanceof Collection
+                                        ? new ArrayList<>((Collection<Framedata>) args[0])
+                                        : Collections.singletonList((Framedata) args[0]));
+                            }
+                            return null;
+                        case "getRemoteSocketAddress":
+                            return remoteAddress(clientId);
+                        case "toString":
+                            return clientId;
+                        default:
+                            return method.getReturnType() == boolean.class ? false : null;
+                    }
+                });
+    }
+
+    private static InetSocketAddress remoteAddress(String clientId) {
+        String address = clientId.startsWith("/") ? clientId.substring(1) : clientId;
+        int colon = address.lastIndexOf(':');
+        return colon < 0 ? null
+                : new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+}
@@ -0,0 +1,53 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.java_websocket.framing.TextFrame;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class DeflateExtensionTest {
+
+    @Test
+    public void smallMessages_leftAlone() throws Exception {
+        DeflateExtension sender = new DeflateExtension(1024);
+        byte[] typing = SignalingSamples.typing().getBytes(StandardCharsets.UTF_8);
+        TextFrame frame = frame(ByteBuffer.wrap(typing));
+
+        sender.encodeFrame(frame);
+
+        assertFalse(frame.isRSV1());
+        assertEquals(ByteBuffer.wrap(typing), frame.getPayloadData());
+    }
+
+    @Test
+    public void sharedReadOnlyPayload_compressesAndRoundTrips() throws Exception {
+        byte[] offer = SignalingSamples.callOffer().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer shared = ByteBuffer.wrap(offer).asReadOnlyBuffer();
+
+        TextFrame frame = frame(shared.duplicate());
+        new DeflateExtension(256).encodeFrame(frame);
+
+        assertTrue(frame.isRSV1());
+        assertTrue(frame.getPayloadData().remaining() < offer.length);
+        assertEquals("shared payload must not be touched", offer.length, shared.remaining());
+
+        new DeflateExtension(256).decodeFrame(frame);
+        assertEquals(ByteBuffer.wrap(offer), frame.getPayloadData());
+    }
+
+    @Test
+    public void copyInstance_keepsThreshold() {
+        DeflateExtension copy = (DeflateExtension) new DeflateExtension(300).copyInstance();
+        assertEquals(300, copy.getThreshold());
+    }
+
+    private static TextFrame frame(ByteBuffer payload) {
+        TextFrame frame = new TextFrame();
+        frame.setPayload(payload);
+        frame.setFin(true);
+        return frame;
+    }
+}
@@ -0,0 +1,240 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FileTransfersTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Records outcomes; latches count down on completion or failure. */
+    private static final class Events implements FileTransfers.Listener {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger progress = new AtomicInteger();
+        final AtomicReference<FileTransfers.Transfer> completed = new AtomicReference<>();
+        final AtomicReference<String> error = new AtomicReference<>();
+
+        @Override
+        public void onStarted(FileTransfers.Transfer transfer) {
+            started.incrementAndGet();
+        }
+
+        @Override
+        public void onProgress(FileTransfers.Transfer transfer) {
+            progress.incrementAndGet();
+        }
+
+        @Override
+        public void onCompleted(FileTransfers.Transfer transfer) {
+            completed.set(transfer);
+            finished.countDown();
+        }
+
+        @Override
+        public void onFailed(FileTransfers.Transfer transfer, String message) {
+            error.set(message);
+            finished.countDown();
+        }
+    }
+
+    /**
+     * One end of an in-memory connection: frames are copied, like the socket
+     * library does, and handed to the other side synchronously.
+     */
+    private static final class Pipe implements FileTransfers.Peer {
+        final String deviceId;
+        FileTransfers remote;
+        Pipe reverse;
+        volatile boolean open = true;
+        /** Close the connection once the remote has received this many chunk bytes, or -1. */
+        volatile long cutAfter = -1;
+        long chunkBytes;
+
+        Pipe(String deviceId) {
+            this.deviceId = deviceId;
+        }
+
+        @Override
+        public String deviceId() {
+            return deviceId;
+        }
+
+        @Override
+        public boolean send(ByteBuffer frame) {
+            if (!open) {
+                return false;
+            }
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame);
+            copy.flip();
+            FileFrame parsed = FileFrame.parse(copy);
+            if (parsed.kind == FileFrame.CHUNK) {
+                chunkBytes += parsed.data.remaining();
+                if (cutAfter >= 0 && chunkBytes > cutAfter) {
+                    open = false;
+                    reverse.open = false;
+                    return false;
+                }
+            }
+            remote.onFrame(reverse, copy);
+            return true;
+        }
+    }
+
+    /** Pipes between a sender on device "a" and a receiver on device "b"; element 0 is a's end. */
+    private static Pipe[] connect(FileTransfers a, FileTransfers b) {
+        Pipe toB = new Pipe("b");
+        Pipe toA = new Pipe("a");
+        toB.remote = b;
+        toB.reverse = toA;
+        toA.remote = a;
+        toA.reverse = toB;
+        return new Pipe[] {toB, toA};
+    }
+
+    private File randomFile(String name, int size) throws IOException {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        File file = folder.newFile(name);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return file;
+    }
+
+    @Test
+    public void transfersWholeFileWithinWindow() throws Exception {
+        File source = randomFile("photo.jpg", 3 * 1024 * 1024 + 123);
+        File inbox = folder.newFolder("inbox");
+        Events sent = new Events();
+        Events received = new Events();
+        FileTransfers a = new FileTransfers(folder.newFolder("unused"), 16 * 1024, 4, 1000, sent);
+        FileTransfers b = new FileTransfers(inbox, 16 * 1024, 4, 1000, received);
+        Pipe[] pipes = connect(a, b);
+
+        a.send(pipes[0], new FileInputStream(source).getChannel(), source.length(), "photo.jpg", "image/jpeg");
+        assertTrue(sent.finished.await(10, TimeUnit.SECONDS));
+        assertTrue(received.finished.await(10, TimeUnit.SECONDS));
+
+        assertNull(sent.error.get());
+        FileTransfers.Transfer done = received.completed.get();
+        assertEquals(new File(inbox, "photo.jpg"), done.file);
+        assertEquals("image/jpeg", done.mimeType);
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(done.file.toPath()));
+        assertEquals(source.length(), a.bytesSent.sum());
+        assertEquals(source.length(), b.bytesReceived.sum());
+        assertTrue("progress is throttled", received.progress.get() < 10);
+        assertTrue(a.active().isEmpty());
+        assertTrue(b.active().isEmpty());
+        a.shutdown();
+    }
+
+    @Test
+    public void resumesFromPartialFileAfterReconnect() throws Exception {
+        int size = 1024 * 1024;
+        File source = randomFile("video.mp4", size);
+        File inbox = folder.newFolder("inbox");
+        Events sent = new Events();
+        Events received = new Events();
+        FileTransfers a = new FileTransfers(folder.newFolder("unused"), 8 * 1024, 8, 0, sent);
+        FileTransfers b = new FileTransfers(inbox, 8 * 1024, 8, 0, received);
+        Pipe[] first = connect(a, b);
+        first[0].cutAfter = size / 3;
+
+        a.send(first[0], new FileInputStream(source).getChannel(), size, "video.mp4", "video/mp4");
+        for (int i = 0; i < 200 && first[0].open; i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(first[0].open);
+        a.onDisconnected(first[0]);
+        b.onDisconnected(first[1]);
+        assertEquals(1, received.started.get());
+        assertEquals(1, sent.finished.getCount());
+
+        Pipe[] second = connect(a, b);
+        b.onConnected(second[1]);
+        a.onConnected(second[0]);
+        assertTrue(sent.finished.await(10, TimeUnit.SECONDS));
+        assertTrue(received.finished.await(10, TimeUnit.SECONDS));
+
+        assertNull(sent.error.get());
+        assertEquals(2, received.started.get());
+        assertArrayEquals(Files.readAllBytes(source.toPath()),
+                Files.readAllBytes(received.completed.get().file.toPath()));
+        assertTrue("resent at most a window: " + second[0].chunkBytes,
+                first[0].chunkBytes + second[0].chunkBytes <= size + 8 * 8 * 1024);
+        assertTrue(second[0].chunkBytes < size);
+        a.shutdown();
+    }
+
+    @Test
+    public void cancelStopsBothSidesAndDropsPartialFile() throws Exception {
+        File source = randomFile("big.bin", 512 * 1024);
+        File inbox = folder.newFolder("inbox");
+        Events sent = new Events();
+        Events received = new Events();
+        FileTransfers a = new FileTransfers(folder.newFolder("unused"), 4 * 1024, 2, 0, sent);
+        FileTransfers b = new FileTransfers(inbox, 4 * 1024, 2, 0, received);
+        Pipe[] pipes = connect(a, b);
+        pipes[0].cutAfter = 64 * 1024;
+
+        FileTransfers.Transfer transfer = a.send(pipes[0], new FileInputStream(source).getChannel(),
+                source.length(), "big.bin", "application/octet-stream");
+        for (int i = 0; i < 200 && pipes[0].open; i++) {
+            Thread.sleep(10);
+        }
+        pipes[0].open = true;
+        pipes[1].open = true;
+        pipes[0].cutAfter = -1;
+        assertTrue(b.cancel(transfer.id));
+
+        assertTrue(sent.finished.await(10, TimeUnit.SECONDS));
+        assertTrue(sent.error.get().startsWith("Cancelled by peer"));
+        assertEquals("Cancelled", received.error.get());
+        assertEquals(0, inbox.list().length);
+        assertFalse(a.cancel(transfer.id));
+        a.shutdown();
+    }
+
+    @Test
+    public void framesRoundTrip() {
+        FileFrame offer = FileFrame.parse(FileFrame.offer(-42, 1L << 33, 65536, "Été.png", "image/png"));
+        assertEquals(FileFrame.OFFER, offer.kind);
+        assertEquals(-42, offer.transferId);
+        assertEquals(1L << 33, offer.value);
+        assertEquals(65536, offer.chunkSize);
+        assertEquals("Été.png", offer.name);
+        assertEquals("image/png", offer.text);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(FileFrame.CHUNK_HEADER_BYTES + 4);
+        FileFrame.chunkHeader(buffer, 7, 1L << 32);
+        buffer.put(new byte[] {1, 2, 3, 4});
+        buffer.flip();
+        assertTrue(FileFrame.isFileFrame(buffer));
+        assertFalse(ReliableFrame.isReliableFrame(buffer));
+        FileFrame chunk = FileFrame.parse(buffer);
+        assertEquals(1L << 32, chunk.value);
+        assertEquals(4, chunk.data.remaining());
+        assertEquals(3, chunk.data.get(2));
+
+        assertEquals("Too big", FileFrame.parse(FileFrame.cancel(1, "Too big")).text);
+        assertEquals(99, FileFrame.parse(FileFrame.ack(1, 99)).value);
+        assertEquals("_.._etc_passwd", FileTransfers.safeName("../../etc/passwd"));
+    }
+}
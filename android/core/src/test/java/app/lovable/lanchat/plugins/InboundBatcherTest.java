@@ -0,0 +1,147 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.java_websocket.WebSocket;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public class InboundBatcherTest {
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final List<List<InboundBatcher.Entry>> batches = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    public void entries_keepRelayAndAckDetails() {
+        InboundBatcher batcher = new InboundBatcher(2, 10_000, timer, batches::add);
+        batcher.add(new InboundBatcher.Entry("10.0.0.2:8765", "{\"type\":\"message\"}", "device-c", 2, 7));
+        batcher.add(from("10.0.0.3:8765", "{\"type\":\"typing\"}"));
+
+        assertEquals(1, batches.size());
+        InboundBatcher.Entry relayed = batches.get(0).get(0);
+        assertEquals("10.0.0.2:8765", relayed.clientId);
+        assertEquals("device-c", relayed.origin);
+        assertEquals(2, relayed.hops);
+        assertEquals(7, relayed.seq);
+        InboundBatcher.Entry direct = batches.get(0).get(1);
+        assertNull(direct.origin);
+        assertEquals(0, direct.seq);
+    }
+
+    @Test
+    public void fullBatch_isDeliveredAtOnce_inArrivalOrder() {
+        InboundBatcher batcher = new InboundBatcher(3, 10_000, timer, batches::add);
+        batcher.add(from("a", "1"));
+        batcher.add(from("b", "2"));
+        assertTrue(batches.isEmpty());
+        batcher.add(from("a", "3"));
+
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList("1", "2", "3"), messages(batches.get(0)));
+        batcher.add(from("a", "4"));
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void partialBatch_isDeliveredAfterTheDelay() throws Exception {
+        InboundBatcher batcher = new InboundBatcher(100, 20, timer, batches::add);
+        batcher.add(from("a", "1"));
+        batcher.add(from("a", "2"));
+        assertTrue(batches.isEmpty());
+
+        awaitBatches(1);
+        assertEquals(Arrays.asList("1", "2"), messages(batches.get(0)));
+        // The timer is rearmed by the next message
+        batcher.add(from("a", "3"));
+        awaitBatches(2);
+        assertEquals(Collections.singletonList("3"), messages(batches.get(1)));
+    }
+
+    @Test
+    public void stoppedTimer_deliversRightAway() {
+        InboundBatcher batcher = new InboundBatcher(100, 10_000, timer, batches::add);
+        timer.shutdownNow();
+        batcher.add(from("a", "1"));
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void flush_deliversWhatIsPending_beforeTheEventThatFollows() {
+        // One stream of events the way JS sees them: messages, then connect/disconnect
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        InboundBatcher batcher = new InboundBatcher(1000, 1, timer, batch -> {
+            for (InboundBatcher.Entry entry : batch) {
+                events.add(entry.message);
+            }
+        });
+        for (int round = 0; round < 200; round++) {
+            batcher.add(from("a", "m" + round));
+            // As onPeerOpen and onPeerClose do; the timer races it
+            batcher.flush();
+            events.add(round % 2 == 0 ? "connected-" + round : "disconnected-" + round);
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int round = 0; round < 200; round++) {
+            expected.add("m" + round);
+            expected.add(round % 2 == 0 ? "connected-" + round : "disconnected-" + round);
+        }
+        assertEquals(expected, events);
+        batcher.flush();
+        assertEquals(expected.size(), events.size());
+    }
+
+    @Test
+    public void entries_useTheClientIdCachedOnTheConnection() {
+        WebSocket conn = Connections.open("/10.0.0.7:40001", "device-g", 1);
+        PeerLink link = conn.getAttachment();
+        RelayFrame relayed = RelayFrame.parse(RelayFrame.encode(3, 1L, "device-h", null, false,
+                ByteBuffer.wrap("{}".getBytes(StandardCharsets.UTF_8))));
+
+        InboundBatcher.Entry direct = InboundBatcher.Entry.of(link, "{}", null, 0);
+        InboundBatcher.Entry viaMesh = InboundBatcher.Entry.of(link, "{}", relayed, 4);
+        // The same string every time, not rebuilt from the socket address
+        assertSame(link.clientId, direct.clientId);
+        assertSame(link.clientId, viaMesh.clientId);
+        assertEquals("device-h", viaMesh.origin);
+        assertEquals(1, viaMesh.hops);
+        assertEquals(4, viaMesh.seq);
+    }
+
+    /** A message from {@code clientId}, made the way the plugin makes its entries. */
+    private static InboundBatcher.Entry from(String clientId, String message) {
+        PeerLink link = Connections.open(clientId, null, 0).getAttachment();
+        return InboundBatcher.Entry.of(link, message, null, 0);
+    }
+
+    private void awaitBatches(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (batches.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, batches.size());
+    }
+
+    private static List<String> messages(List<InboundBatcher.Entry> batch) {
+        List<String> messages = new ArrayList<>();
+        for (InboundBatcher.Entry entry : batch) {
+            messages.add(entry.message);
+        }
+        return messages;
+    }
+}
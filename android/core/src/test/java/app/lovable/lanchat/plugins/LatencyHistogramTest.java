@@ -0,0 +1,46 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void empty_reportsZeros() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentileMs(0.99), 0);
+        assertEquals(0, histogram.meanMs(), 0);
+    }
+
+    @Test
+    public void percentiles_withinAFactorOfTwo() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++) {
+            histogram.record(MS);
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(100 * MS);
+        }
+
+        assertEquals(100, histogram.count());
+        assertEquals(10.9, histogram.meanMs(), 0.001);
+        assertEquals(100, histogram.maxMs(), 0.001);
+        assertInRange(1, histogram.percentileMs(0.5));
+        assertInRange(1, histogram.percentileMs(0.9));
+        assertInRange(100, histogram.percentileMs(0.99));
+    }
+
+    @Test
+    public void percentile_neverAboveMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3 * MS);
+        assertEquals(3, histogram.percentileMs(1), 0.001);
+    }
+
+    private static void assertInRange(double expectedMs, double actualMs) {
+        assertTrue(actualMs + " vs " + expectedMs, actualMs >= expectedMs && actualMs <= 2 * expectedMs);
+    }
+}
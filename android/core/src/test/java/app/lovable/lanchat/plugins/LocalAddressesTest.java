@@ -0,0 +1,53 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class LocalAddressesTest {
+
+    @Test
+    public void interfaceNames_classified() {
+        assertEquals(LocalAddresses.Kind.HOTSPOT, LocalAddresses.classify("ap0"));
+        assertEquals(LocalAddresses.Kind.HOTSPOT, LocalAddresses.classify("swlan0"));
+        assertEquals(LocalAddresses.Kind.HOTSPOT, LocalAddresses.classify("wlan1"));
+        assertEquals(LocalAddresses.Kind.WIFI, LocalAddresses.classify("wlan0"));
+        assertEquals(LocalAddresses.Kind.TETHER, LocalAddresses.classify("rndis0"));
+        assertEquals(LocalAddresses.Kind.TETHER, LocalAddresses.classify("bt-pan"));
+        assertEquals(LocalAddresses.Kind.ETHERNET, LocalAddresses.classify("eth0"));
+        assertEquals(LocalAddresses.Kind.CELLULAR, LocalAddresses.classify("rmnet_data0"));
+        assertEquals(LocalAddresses.Kind.OTHER, LocalAddresses.classify("tun0"));
+    }
+
+    @Test
+    public void hotspotPreferredOverWifi_cellularLast() {
+        LocalAddresses addresses = new LocalAddresses(Arrays.asList(
+                new LocalAddresses.Address("10.64.1.2", "rmnet_data0", LocalAddresses.Kind.CELLULAR, 30),
+                new LocalAddresses.Address("192.168.1.20", "wlan0", LocalAddresses.Kind.WIFI, 24),
+                new LocalAddresses.Address("192.168.43.1", "ap0", LocalAddresses.Kind.HOTSPOT, 24)));
+        assertEquals("192.168.43.1", addresses.preferredIp());
+        assertEquals("10.64.1.2", addresses.addresses.get(2).ip);
+
+        LocalAddresses onlyCellular = new LocalAddresses(Arrays.asList(
+                new LocalAddresses.Address("10.64.1.2", "rmnet_data0", LocalAddresses.Kind.CELLULAR, 30)));
+        assertEquals("10.64.1.2", onlyCellular.preferredIp());
+        assertNull(LocalAddresses.EMPTY.preferredIp());
+    }
+
+    @Test
+    public void equality_ignoresOrderOfDifferentKinds() {
+        LocalAddresses.Address wifi = new LocalAddresses.Address("192.168.1.20", "wlan0", LocalAddresses.Kind.WIFI, 24);
+        LocalAddresses.Address hotspot = new LocalAddresses.Address("192.168.43.1", "ap0", LocalAddresses.Kind.HOTSPOT, 24);
+        assertEquals(new LocalAddresses(Arrays.asList(wifi, hotspot)), new LocalAddresses(Arrays.asList(hotspot, wifi)));
+        assertNotEquals(new LocalAddresses(Arrays.asList(wifi)), new LocalAddresses(Arrays.asList(wifi, hotspot)));
+    }
+
+    @Test
+    public void scan_neverReturnsLoopback() {
+        for (LocalAddresses.Address address : LocalAddresses.scan().addresses) {
+            assertFalse(address.ip, address.ip.startsWith("127."));
+        }
+    }
+}
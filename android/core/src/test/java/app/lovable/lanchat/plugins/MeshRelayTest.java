@@ -0,0 +1,467 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MeshRelayTest {
+    private static final String CHAT = "{\"type\":\"message\",\"from\":\"a\",\"payload\":{\"text\":\"hi\"}}";
+
+    /** A relay whose neighbors are other in-memory nodes; sends are delivered synchronously. */
+    private static final class Node {
+        final String id;
+        final List<MeshRelay.Neighbor> links = new ArrayList<>();
+        final List<String> received = new ArrayList<>();
+        final List<Integer> hops = new ArrayList<>();
+        /** Topics wanted here or behind this node, as its neighbors see it; empty for all. */
+        final Set<String> wants = new HashSet<>();
+        final MeshRelay relay;
+
+        Node(String id, MeshRelay.Limits limits, AtomicLong clock) {
+            this.id = id;
+            this.relay = new MeshRelay(id, limits, () -> links, clock::get, new Random(id.hashCode()));
+        }
+
+        void receive(ByteBuffer frame, MeshRelay.Neighbor from) {
+            RelayFrame delivered = relay.receive(frame, from);
+            if (delivered != null) {
+                received.add(delivered.innerJson());
+                hops.add(delivered.hops + 1);
+            }
+        }
+    }
+
+    private static void connect(Node a, Node b) {
+        MeshRelay.Neighbor[] ends = new MeshRelay.Neighbor[2];
+        ends[0] = neighbor(b, a, ends, 1);
+        ends[1] = neighbor(a, b, ends, 0);
+        a.links.add(ends[0]);
+        b.links.add(ends[1]);
+    }
+
+    /** {@code remote} as seen from {@code local}; frames arrive at remote from ends[reverse]. */
+    private static MeshRelay.Neighbor neighbor(Node remote, Node local, MeshRelay.Neighbor[] ends, int reverse) {
+        return new MeshRelay.Neighbor() {
+            @Override
+            public String deviceId() {
+                return remote.id;
+            }
+
+            @Override
+            public boolean relays() {
+                return true;
+            }
+
+            @Override
+            public boolean wants(String topic) {
+                return remote.wants.isEmpty() || remote.wants.contains(topic);
+            }
+
+            @Override
+            public void sendRelay(ByteBuffer frame) {
+                remote.receive(frame, ends[reverse]);
+            }
+
+            @Override
+            public void sendPlain(String json) {
+                remote.received.add(json);
+            }
+        };
+    }
+
+    private static List<Node> nodes(int count, MeshRelay.Limits limits, AtomicLong clock) {
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            nodes.add(new Node(String.valueOf((char) ('a' + i)), limits, clock));
+        }
+        return nodes;
+    }
+
+    @Test
+    public void addressedMessage_crossesALineOfRelays() {
+        List<Node> line = nodes(4, MeshRelay.Limits.defaults(), new AtomicLong());
+        for (int i = 0; i < 3; i++) {
+            connect(line.get(i), line.get(i + 1));
+        }
+
+        line.get(0).relay.originate(CHAT, "d", 0);
+
+        assertEquals(Collections.singletonList(CHAT), line.get(3).received);
+        assertEquals(Collections.singletonList(3), line.get(3).hops);
+        assertTrue(line.get(1).received.isEmpty());
+        assertTrue(line.get(2).received.isEmpty());
+        assertEquals(1, line.get(2).relay.forwarded.sum());
+    }
+
+    @Test
+    public void floodInAFullMesh_isDeliveredOnceEverywhere() {
+        List<Node> mesh = nodes(5, MeshRelay.Limits.defaults(), new AtomicLong());
+        for (int i = 0; i < mesh.size(); i++) {
+            for (int j = i + 1; j < mesh.size(); j++) {
+                connect(mesh.get(i), mesh.get(j));
+            }
+        }
+
+        mesh.get(0).relay.originate("{\"type\":\"announce\"}", null, 0);
+
+        long duplicates = 0;
+        for (Node node : mesh.subList(1, mesh.size())) {
+            assertEquals(node.id, 1, node.received.size());
+            duplicates += node.relay.duplicates.sum();
+        }
+        assertTrue(mesh.get(0).received.isEmpty());
+        assertTrue(duplicates > 0);
+    }
+
+    @Test
+    public void ttl_limitsHowFarAMessageTravels() {
+        List<Node> line = nodes(5, MeshRelay.Limits.defaults(), new AtomicLong());
+        for (int i = 0; i < 4; i++) {
+            connect(line.get(i), line.get(i + 1));
+        }
+
+        line.get(0).relay.originate(CHAT, null, 2);
+
+        assertEquals(1, line.get(1).received.size());
+        assertEquals(1, line.get(2).received.size());
+        assertTrue(line.get(3).received.isEmpty());
+        assertEquals(1, line.get(2).relay.expired.sum());
+    }
+
+    @Test
+    public void incomingTtl_isClampedToTheHopsOwnMaximum() {
+        MeshRelay.Limits limits = new MeshRelay.Limits(4, 2, 0, 1, 64, 4096);
+        List<Node> line = nodes(5, limits, new AtomicLong());
+        for (int i = 0; i < 4; i++) {
+            connect(line.get(i), line.get(i + 1));
+        }
+        // Pretend a peer with a larger limit sent TTL 200
+        ByteBuffer frame = RelayFrame.encode(200, 42, "x", null, false,
+                ByteBuffer.wrap(CHAT.getBytes()));
+
+        line.get(0).receive(frame, null);
+
+        assertEquals(1, line.get(1).received.size());
+        assertTrue(line.get(2).received.isEmpty());
+    }
+
+    @Test
+    public void forwarding_isRateLimitedPerNeighbor() {
+        AtomicLong clock = new AtomicLong();
+        MeshRelay.Limits limits = new MeshRelay.Limits(4, 8, 10, 5, 1024, 4096);
+        List<Node> line = nodes(3, limits, clock);
+        connect(line.get(0), line.get(1));
+        connect(line.get(1), line.get(2));
+
+        for (int i = 0; i < 20; i++) {
+            line.get(0).relay.originate(CHAT, "c", 0);
+        }
+        assertEquals(5, line.get(2).received.size());
+        assertEquals(15, line.get(1).relay.rateLimited.sum());
+
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(300));
+        for (int i = 0; i < 20; i++) {
+            line.get(0).relay.originate(CHAT, "c", 0);
+        }
+        assertEquals(8, line.get(2).received.size());
+    }
+
+    @Test
+    public void frames_roundTripAndRejectGarbage() {
+        ByteBuffer frame = RelayFrame.encode(3, -7L, "origin-ü", "dest", false, ByteBuffer.wrap(CHAT.getBytes()));
+        RelayFrame parsed = RelayFrame.parse(frame);
+        assertEquals(3, parsed.ttl);
+        assertEquals(0, parsed.hops);
+        assertEquals(-7L, parsed.messageId);
+        assertEquals("origin-ü", parsed.origin);
+        assertEquals("dest", parsed.destination);
+        assertEquals(CHAT, parsed.innerJson());
+
+        RelayFrame next = RelayFrame.parse(RelayFrame.nextHop(frame, 8));
+        assertEquals(2, next.ttl);
+        assertEquals(1, next.hops);
+        assertEquals(3, RelayFrame.parse(frame).ttl);
+
+        assertTrue(RelayFrame.isRelayFrame(frame));
+        assertFalse(RelayFrame.isRelayFrame(SignalingCodec.encode(CHAT)));
+        ByteBuffer truncated = frame.duplicate();
+        truncated.limit(10);
+        try {
+            RelayFrame.parse(truncated);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+
+    @Test
+    public void topicFrames_carryTheirTopic_andSkipPlainNeighborsThatDontWantIt() {
+        ByteBuffer plain = RelayFrame.encode(3, 1L, "a", null, false, ByteBuffer.wrap(CHAT.getBytes()));
+        // Without a topic it stays readable by devices that predate topics
+        assertEquals(0xC1, plain.get(0) & 0xFF);
+        assertNull(RelayFrame.parse(plain).topic);
+        ByteBuffer published = RelayFrame.encode(3, 2L, "a", null, "room-1", false,
+                ByteBuffer.wrap(CHAT.getBytes()));
+        assertEquals(0xC0 | RelayFrame.VERSION, published.get(0) & 0xFF);
+        RelayFrame parsed = RelayFrame.parse(published);
+        assertEquals("room-1", parsed.topic);
+        assertNull(parsed.destination);
+        assertEquals(CHAT, parsed.innerJson());
+
+        Node a = new Node("a", MeshRelay.Limits.defaults(), new AtomicLong());
+        List<String> plainReceived = new ArrayList<>();
+        for (String wanted : new String[] {"room-1", "room-2"}) {
+            a.links.add(new MeshRelay.Neighbor() {
+                @Override
+                public String deviceId() {
+                    return "plain-" + wanted;
+                }
+
+                @Override
+                public boolean relays() {
+                    return false;
+                }
+
+                @Override
+                public boolean wants(String topic) {
+                    return wanted.equals(topic);
+                }
+
+                @Override
+                public void sendRelay(ByteBuffer frame) {
+                    fail("Plain neighbors never get relay frames");
+                }
+
+                @Override
+                public void sendPlain(String json) {
+                    plainReceived.add(wanted);
+                }
+            });
+        }
+        Node b = new Node("b", MeshRelay.Limits.defaults(), new AtomicLong());
+        connect(a, b);
+
+        a.relay.originate(CHAT, null, 0, "room-1");
+
+        assertEquals(Collections.singletonList("room-1"), plainReceived);
+        // A relaying neighbor that doesn't say what it wants gets it either way
+        assertEquals(Collections.singletonList(CHAT), b.received);
+    }
+
+    @Test
+    public void topicFrames_onlyGoTowardsSubscribers() {
+        // a - b - c, with d also hanging off b; only c subscribed
+        List<Node> nodes = nodes(4, MeshRelay.Limits.defaults(), new AtomicLong());
+        Node a = nodes.get(0);
+        Node b = nodes.get(1);
+        Node c = nodes.get(2);
+        Node d = nodes.get(3);
+        connect(a, b);
+        connect(b, c);
+        connect(b, d);
+        b.wants.add("room-1");
+        c.wants.add("room-1");
+        d.wants.add("room-2");
+
+        a.relay.originate(CHAT, null, 0, "room-1");
+
+        assertEquals(Collections.singletonList(CHAT), c.received);
+        assertTrue(d.received.isEmpty());
+        assertEquals(1, b.relay.forwarded.sum());
+        assertEquals(1, b.relay.filtered.sum());
+    }
+
+    @Test
+    public void seenSet_remembersAtLeastHalfItsCapacity() {
+        SeenSet seen = new SeenSet(1000);
+        for (long key = 1; key <= 10_000; key++) {
+            assertTrue(seen.add(key));
+            long recent = Math.max(1, key - 499);
+            assertFalse(seen.add(recent));
+        }
+        assertTrue(seen.add(1));
+    }
+
+    /** A relay node on real sockets: a server plus clients, device ids exchanged in the handshake. */
+    private static final class SocketNode {
+        final String id;
+        final MeshRelay relay;
+        final List<MeshRelay.Neighbor> links = new CopyOnWriteArrayList<>();
+        final List<String> received = new CopyOnWriteArrayList<>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final WebSocketServer server;
+        final List<WebSocketClient> clients = new ArrayList<>();
+
+        SocketNode(String id) {
+            this.id = id;
+            this.relay = new MeshRelay(id, MeshRelay.Limits.defaults(), () -> links, System::nanoTime,
+                    new Random());
+            server = new WebSocketServer(new InetSocketAddress("127.0.0.1", 0)) {
+                @Override
+                public void onOpen(WebSocket conn, ClientHandshake handshake) {
+                    attach(conn, handshake.getFieldValue(PeerRegistry.DEVICE_HEADER));
+                }
+
+                @Override
+                public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+                }
+
+                @Override
+                public void onMessage(WebSocket conn, String message) {
+                }
+
+                @Override
+                public void onMessage(WebSocket conn, ByteBuffer message) {
+                    onFrame(conn, message);
+                }
+
+                @Override
+                public void onError(WebSocket conn, Exception ex) {
+                }
+
+                @Override
+                public void onStart() {
+                    started.countDown();
+                }
+            };
+            server.setReuseAddr(true);
+            server.start();
+        }
+
+        int port() throws InterruptedException {
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            return server.getPort();
+        }
+
+        void dial(SocketNode other) throws Exception {
+            CountDownLatch open = new CountDownLatch(1);
+            WebSocketClient client = new WebSocketClient(new URI("ws://127.0.0.1:" + other.port()),
+                    Collections.singletonMap(PeerRegistry.DEVICE_HEADER, id)) {
+                @Override
+                public void onOpen(ServerHandshake handshake) {
+                    attach(this, other.id);
+                    open.countDown();
+                }
+
+                @Override
+                public void onMessage(String message) {
+                }
+
+                @Override
+                public void onMessage(ByteBuffer bytes) {
+                    onFrame(this, bytes);
+                }
+
+                @Override
+                public void onClose(int code, String reason, boolean remote) {
+                }
+
+                @Override
+                public void onError(Exception ex) {
+                }
+            };
+            clients.add(client);
+            client.connect();
+            assertTrue(open.await(5, TimeUnit.SECONDS));
+        }
+
+        void attach(WebSocket conn, String deviceId) {
+            MeshRelay.Neighbor neighbor = new MeshRelay.Neighbor() {
+                @Override
+                public String deviceId() {
+                    return deviceId;
+                }
+
+                @Override
+                public boolean relays() {
+                    return true;
+                }
+
+                @Override
+                public boolean wants(String topic) {
+                    return true;
+                }
+
+                @Override
+                public void sendRelay(ByteBuffer frame) {
+                    conn.send(frame);
+                }
+
+                @Override
+                public void sendPlain(String json) {
+                    conn.send(json);
+                }
+            };
+            conn.setAttachment(neighbor);
+            links.add(neighbor);
+        }
+
+        void onFrame(WebSocket conn, ByteBuffer bytes) {
+            RelayFrame frame = relay.receive(bytes, conn.getAttachment());
+            if (frame != null) {
+                received.add(frame.innerJson());
+            }
+        }
+
+        void close() throws Exception {
+            for (WebSocketClient client : clients) {
+                client.closeBlocking();
+            }
+            server.stop(1000);
+        }
+    }
+
+    @Test
+    public void relayCores_forwardOverLoopbackSockets() throws Exception {
+        // a - b - c - d in a line, plus a shortcut b - d that creates duplicates
+        List<SocketNode> nodes = new ArrayList<>();
+        for (String id : new String[] {"a", "b", "c", "d"}) {
+            nodes.add(new SocketNode(id));
+        }
+        try {
+            nodes.get(0).dial(nodes.get(1));
+            nodes.get(1).dial(nodes.get(2));
+            nodes.get(2).dial(nodes.get(3));
+            nodes.get(1).dial(nodes.get(3));
+            Thread.sleep(200);
+
+            nodes.get(0).relay.originate(CHAT, "c", 0);
+            nodes.get(0).relay.originate("{\"type\":\"announce\"}", null, 0);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline
+                    && (nodes.get(2).received.size() < 2 || nodes.get(3).received.size() < 1)) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+
+            assertEquals(1, nodes.get(1).received.size());
+            assertEquals(2, nodes.get(2).received.size());
+            assertEquals(Collections.singletonList("{\"type\":\"announce\"}"), nodes.get(3).received);
+            assertTrue(nodes.get(2).relay.duplicates.sum() + nodes.get(3).relay.duplicates.sum() > 0);
+        } finally {
+            for (SocketNode node : nodes) {
+                node.close();
+            }
+        }
+    }
+}
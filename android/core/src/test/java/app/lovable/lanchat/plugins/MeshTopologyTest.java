@@ -0,0 +1,179 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class MeshTopologyTest {
+
+    /** A room where every device sees every other, dialing and dropping links as its plan says. */
+    private static final class Room {
+        final int maxDegree;
+        final Map<String, MeshTopology> devices = new HashMap<>();
+        final Map<String, Set<String>> links = new HashMap<>();
+        long now = 1;
+
+        Room(int size, int maxDegree) {
+            this.maxDegree = maxDegree;
+            for (int i = 0; i < size; i++) {
+                String id = String.format("device-%02d", i);
+                devices.put(id, new MeshTopology(id, maxDegree, 30_000));
+                links.put(id, new HashSet<>());
+            }
+            for (String id : devices.keySet()) {
+                for (String other : devices.keySet()) {
+                    devices.get(id).upsert(new MeshTopology.Candidate(other, "10.0.0.1", 8765, 0));
+                }
+            }
+        }
+
+        void leave(String id) {
+            devices.remove(id);
+            for (String other : links.remove(id)) {
+                links.get(other).remove(id);
+                devices.get(other).onDisconnected(id);
+            }
+            for (MeshTopology topology : devices.values()) {
+                topology.remove(id);
+            }
+        }
+
+        /** Run every device's plan until nothing changes. */
+        void settle() {
+            for (int round = 0; round < 20; round++) {
+                boolean changed = false;
+                for (Map.Entry<String, MeshTopology> device : devices.entrySet()) {
+                    String id = device.getKey();
+                    MeshTopology.Plan plan = device.getValue().plan(now);
+                    for (MeshTopology.Candidate target : plan.dial) {
+                        links.get(id).add(target.deviceId);
+                        links.get(target.deviceId).add(id);
+                        device.getValue().onConnected(target.deviceId);
+                        devices.get(target.deviceId).onConnected(id);
+                        changed = true;
+                    }
+                    for (String target : plan.drop) {
+                        links.get(id).remove(target);
+                        links.get(target).remove(id);
+                        device.getValue().onDisconnected(target);
+                        devices.get(target).onDisconnected(id);
+                        if (MeshTopology.dials(target, id)) {
+                            devices.get(target).onRefused(id, now);
+                        }
+                        changed = true;
+                    }
+                }
+                now += 1_000_000;
+                if (!changed) {
+                    return;
+                }
+            }
+            fail("did not settle");
+        }
+
+        boolean connected() {
+            String start = links.keySet().iterator().next();
+            Set<String> seen = new HashSet<>();
+            Deque<String> queue = new ArrayDeque<>();
+            queue.add(start);
+            seen.add(start);
+            while (!queue.isEmpty()) {
+                for (String next : links.get(queue.poll())) {
+                    if (seen.add(next)) {
+                        queue.add(next);
+                    }
+                }
+            }
+            return seen.size() == links.size();
+        }
+
+        int edges() {
+            int ends = 0;
+            for (Set<String> neighbors : links.values()) {
+                ends += neighbors.size();
+            }
+            return ends / 2;
+        }
+    }
+
+    @Test
+    public void fiftyDevices_boundedDegreeAndStillConnected() {
+        Room room = new Room(50, 6);
+        room.settle();
+        assertTrue(room.connected());
+        for (Map.Entry<String, Set<String>> entry : room.links.entrySet()) {
+            assertTrue(entry.getKey() + " has " + entry.getValue().size(), entry.getValue().size() <= 6);
+        }
+        assertTrue("edges: " + room.edges(), room.edges() < 50 * 49 / 2 / 4);
+
+        // Rebalance after a fifth of the room walks out
+        for (int i = 0; i < 50; i += 5) {
+            room.leave(String.format("device-%02d", i));
+        }
+        room.settle();
+        assertTrue(room.connected());
+        for (Set<String> neighbors : room.links.values()) {
+            assertTrue(neighbors.size() <= 6);
+        }
+    }
+
+    @Test
+    public void exactlyOneSideDials() {
+        for (int i = 0; i < 100; i++) {
+            String a = "device-" + i;
+            String b = "device-" + (i * 7 + 3);
+            if (!a.equals(b)) {
+                assertNotEquals(a + "/" + b, MeshTopology.dials(a, b), MeshTopology.dials(b, a));
+            }
+        }
+    }
+
+    @Test
+    public void extras_preferLowRttAndLowLoad() {
+        MeshTopology topology = new MeshTopology("m", 4, 30_000);
+        // Ring neighbors of "m" are "l" and "n" whatever they cost
+        topology.upsert(new MeshTopology.Candidate("l", "10.0.0.1", 1, 0));
+        topology.upsert(new MeshTopology.Candidate("n", "10.0.0.2", 1, 0));
+        topology.upsert(new MeshTopology.Candidate("a", "10.0.0.3", 1, 0));
+        topology.upsert(new MeshTopology.Candidate("b", "10.0.0.4", 1, 12));
+        topology.upsert(new MeshTopology.Candidate("c", "10.0.0.5", 1, 0));
+        topology.upsert(new MeshTopology.Candidate("d", "10.0.0.6", 1, 0));
+        topology.onRtt("c", 5);
+        topology.onRtt("d", 200);
+
+        Set<String> desired = topology.desired();
+        assertTrue(desired.contains("l"));
+        assertTrue(desired.contains("n"));
+        assertTrue(desired.contains("c"));
+        assertTrue(desired.contains("a"));
+        assertEquals(4, desired.size());
+        assertEquals("d", topology.find("10.0.0.6:1").deviceId);
+    }
+
+    @Test
+    public void overBudget_dropsWorstNonRingLink_andRefusedPeerCoolsDown() {
+        MeshTopology topology = new MeshTopology("m", 2, 1_000);
+        topology.upsert(new MeshTopology.Candidate("l", "10.0.0.1", 1, 0));
+        topology.upsert(new MeshTopology.Candidate("n", "10.0.0.2", 1, 0));
+        topology.upsert(new MeshTopology.Candidate("z", "10.0.0.3", 1, 0));
+        topology.onConnected("l");
+        topology.onConnected("n");
+        topology.onConnected("z");
+        MeshTopology.Plan plan = topology.plan(0);
+        assertEquals(1, plan.drop.size());
+        assertEquals("z", plan.drop.get(0));
+
+        topology.onDisconnected("l");
+        topology.onRefused("l", 0);
+        assertTrue(topology.plan(500_000_000L).dial.isEmpty());
+        boolean mDialsL = MeshTopology.dials("m", "l");
+        assertEquals(mDialsL, !topology.plan(1_000_000_000L).dial.isEmpty());
+    }
+}
@@ -0,0 +1,113 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class OutboundQueueTest {
+    private static OutboundQueue queue(int capacity, OutboundQueue.OverflowPolicy policy, String... coalesced) {
+        return new OutboundQueue(capacity, policy, new HashSet<>(Arrays.asList(coalesced)));
+    }
+
+    private static OutboundMessage chat(int n) {
+        return new OutboundMessage("{\"type\":\"message\",\"payload\":{\"n\":" + n + "}}");
+    }
+
+    private static OutboundMessage typing(boolean isTyping) {
+        return new OutboundMessage("{\"type\":\"typing\",\"payload\":{\"isTyping\":" + isTyping + "}}");
+    }
+
+    private static OutboundMessage seen(String messageId) {
+        return new OutboundMessage("{\"type\":\"seen\",\"payload\":{\"messageId\":\"" + messageId + "\"}}");
+    }
+
+    private static List<String> drain(OutboundQueue queue) {
+        List<String> texts = new ArrayList<>();
+        OutboundMessage message;
+        while ((message = queue.poll()) != null) {
+            texts.add(message.text);
+        }
+        return texts;
+    }
+
+    @Test
+    public void dropOldest_keepsTheNewestWhenFull() {
+        OutboundQueue queue = queue(2, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(chat(0)));
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(chat(1)));
+        assertEquals(OutboundQueue.Result.DROPPED_OLDEST, queue.offer(chat(2)));
+
+        assertEquals(Arrays.asList(chat(1).text, chat(2).text), drain(queue));
+        assertEquals(1, queue.dropped());
+        assertEquals(2, queue.sent());
+    }
+
+    @Test
+    public void reject_refusesNewMessagesWhenFull() {
+        OutboundQueue queue = queue(1, OutboundQueue.OverflowPolicy.REJECT);
+        queue.offer(chat(0));
+        assertEquals(OutboundQueue.Result.REJECTED, queue.offer(chat(1)));
+
+        assertEquals(Collections.singletonList(chat(0).text), drain(queue));
+        assertEquals(1, queue.rejected());
+        assertEquals(0, queue.dropped());
+    }
+
+    @Test
+    public void disconnect_dropsEverythingWhenFull() {
+        OutboundQueue queue = queue(2, OutboundQueue.OverflowPolicy.DISCONNECT);
+        queue.offer(chat(0));
+        queue.offer(chat(1));
+        assertEquals(OutboundQueue.Result.OVERFLOW_DISCONNECT, queue.offer(chat(2)));
+
+        assertEquals(0, queue.depth());
+        assertEquals(3, queue.dropped());
+    }
+
+    @Test
+    public void coalescedTypes_keepOnlyTheLatest_andMoveBehindNewerMessages() {
+        OutboundQueue queue = queue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST, "typing");
+        queue.offer(typing(true));
+        queue.offer(chat(0));
+        assertEquals(OutboundQueue.Result.COALESCED, queue.offer(typing(false)));
+
+        assertEquals(Arrays.asList(chat(0).text, typing(false).text), drain(queue));
+        assertEquals(1, queue.coalesced());
+    }
+
+    @Test
+    public void receipts_onlyCoalesceForTheSameMessage() {
+        OutboundQueue queue = queue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST, "seen");
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(seen("m1")));
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(seen("m2")));
+        assertEquals(OutboundQueue.Result.QUEUED, queue.offer(seen("m3")));
+        assertEquals(OutboundQueue.Result.COALESCED, queue.offer(seen("m2")));
+
+        assertEquals(Arrays.asList(seen("m1").text, seen("m3").text, seen("m2").text), drain(queue));
+    }
+
+    @Test
+    public void drainClaim_isHeldUntilAPollFindsTheQueueEmpty() {
+        OutboundQueue queue = queue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        queue.offer(chat(0));
+        assertTrue(queue.markDraining());
+        // A second sender must not schedule another drain while one is pending
+        queue.offer(chat(1));
+        assertFalse(queue.markDraining());
+
+        assertNotNull(queue.poll());
+        assertFalse(queue.markDraining());
+        assertNotNull(queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.markDraining());
+
+        queue.clear();
+        assertTrue(queue.markDraining());
+    }
+}
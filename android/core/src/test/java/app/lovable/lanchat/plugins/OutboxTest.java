@@ -0,0 +1,133 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OutboxTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    private Outbox open(int maxMessages, long maxAgeMs) throws Exception {
+        return new Outbox(tmp.getRoot(), maxMessages, maxAgeMs, 4096, now::get);
+    }
+
+    @Test
+    public void messages_comeOutInOrderAndSurviveReopen() throws Exception {
+        Outbox outbox = open(100, 0);
+        for (int i = 0; i < 5; i++) {
+            outbox.append("phone-b", "{\"type\":\"chat\",\"n\":" + i + "}");
+        }
+        assertTrue(outbox.markFlushing("phone-b"));
+        assertEquals(2, outbox.peek("phone-b", 2).size());
+        // Not removed: the connection dropped before the batch went out
+
+        Outbox reopened = open(100, 0);
+        assertEquals(Collections.singletonMap("phone-b", 5), reopened.pendingByDevice());
+        assertEquals(Arrays.asList("{\"type\":\"chat\",\"n\":0}", "{\"type\":\"chat\",\"n\":1}"),
+                reopened.peek("phone-b", 2));
+        reopened.remove("phone-b");
+        assertEquals("{\"type\":\"chat\",\"n\":2}", reopened.peek("phone-b", 10).get(0));
+        reopened.remove("phone-b");
+        assertEquals(0, reopened.pending("phone-b"));
+        assertEquals(5, reopened.forwarded());
+    }
+
+    @Test
+    public void retention_dropsOldestAndExpired() throws Exception {
+        Outbox outbox = open(3, 60_000);
+        for (int i = 0; i < 5; i++) {
+            outbox.append("phone-b", "m" + i);
+            now.addAndGet(10_000);
+        }
+        assertEquals(3, outbox.pending("phone-b"));
+        assertEquals(2, outbox.dropped());
+
+        // m4 was stored 10 s ago, m3 20 s ago; 45 s later only m4 is under a minute old
+        now.addAndGet(45_000);
+        assertEquals(Collections.singletonList("m4"), outbox.peek("phone-b", 10));
+        assertEquals(2, outbox.expired());
+    }
+
+    @Test
+    public void ids_followTheirMessages_throughDropsAndPartialRemoves() throws Exception {
+        Outbox outbox = open(3, 0);
+        long[] ids = new long[5];
+        for (int i = 0; i < 5; i++) {
+            ids[i] = outbox.append("phone-b", "m" + i);
+        }
+        // m0 and m1 were dropped to stay within three
+        assertEquals(Arrays.asList("m2", "m3", "m4"), outbox.peek("phone-b", 10));
+        assertEquals(Arrays.asList(ids[2], ids[3], ids[4]), outbox.peekedIds("phone-b"));
+
+        outbox.remove("phone-b", 1);
+        assertEquals(Arrays.asList("m3", "m4"), outbox.peek("phone-b", 10));
+        assertEquals(Arrays.asList(ids[3], ids[4]), outbox.peekedIds("phone-b"));
+        assertEquals(1, outbox.forwarded());
+
+        // Messages from an earlier run get ids of their own
+        Outbox reopened = open(3, 0);
+        reopened.peek("phone-b", 10);
+        assertEquals(2, reopened.peekedIds("phone-b").size());
+        assertTrue(reopened.append("phone-b", "m5") > 0);
+    }
+
+    @Test
+    public void drainedSegments_areDeleted() throws Exception {
+        Outbox outbox = open(1000, 0);
+        char[] filler = new char[1000];
+        Arrays.fill(filler, 'x');
+        for (int i = 0; i < 20; i++) {
+            outbox.append("phone-b", i + new String(filler));
+        }
+        File logDir = new File(tmp.getRoot(), Outbox.encode("phone-b"));
+        assertTrue(logDir.list().length > 5);
+
+        outbox.peek("phone-b", 10);
+        outbox.remove("phone-b");
+        int segmentsLeft = logDir.list().length;
+        assertTrue(segmentsLeft < 5);
+
+        outbox.peek("phone-b", 10);
+        outbox.remove("phone-b");
+        assertFalse(logDir.exists());
+    }
+
+    @Test
+    public void tornWrite_isDiscardedOnRecovery() throws Exception {
+        File dir = tmp.newFolder("log");
+        SegmentLog log = new SegmentLog(dir, 4096);
+        log.append("first".getBytes("UTF-8"), 1);
+        log.append("second".getBytes("UTF-8"), 2);
+
+        // Corrupt the second record's payload as if the process died mid-write
+        File segment = dir.listFiles((d, name) -> name.endsWith(".seg"))[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(SegmentLog.RECORD_HEADER_BYTES + 5 + SegmentLog.RECORD_HEADER_BYTES);
+            raf.write('X');
+        }
+
+        SegmentLog recovered = new SegmentLog(dir, 4096);
+        assertEquals(1, recovered.size());
+        recovered.append("third".getBytes("UTF-8"), 3);
+        assertEquals(2, recovered.size());
+        assertEquals("third", new String(recovered.peek(2).get(1).data, "UTF-8"));
+        assertEquals(3, recovered.peek(2).get(1).timestampMillis);
+    }
+
+    @Test
+    public void deviceIds_roundTripThroughDirectoryNames() {
+        assertEquals("a1b2/..:c", Outbox.decode(Outbox.encode("a1b2/..:c")));
+        assertNull(Outbox.decode("zz"));
+    }
+}
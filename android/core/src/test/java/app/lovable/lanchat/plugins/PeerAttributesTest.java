@@ -0,0 +1,64 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class PeerAttributesTest {
+
+    @Test
+    public void txtRoundTrip_fromNsdBytes() {
+        PeerAttributes attributes = new PeerAttributes("device-a", "Ana", 1, Arrays.asList("deflate"),
+                Arrays.asList("binary", "relay", "ack", "file"), 3, 8765);
+        Map<String, byte[]> nsd = new HashMap<>();
+        for (Map.Entry<String, String> entry : attributes.toTxt().entrySet()) {
+            nsd.put(entry.getKey(), entry.getValue().getBytes(StandardCharsets.UTF_8));
+        }
+        PeerAttributes parsed = PeerAttributes.fromTxt(nsd);
+        assertEquals(attributes, parsed);
+        assertEquals("Ana", parsed.displayName);
+        assertEquals(Arrays.asList("binary", "relay", "ack", "file"), parsed.framing);
+        assertEquals(3, parsed.connections);
+        assertEquals(8765, parsed.port);
+    }
+
+    @Test
+    public void missingAndMalformedValues_readAsUnknown() {
+        Map<String, Object> txt = new HashMap<>();
+        txt.put(PeerAttributes.KEY_DEVICE_ID, "device-b");
+        txt.put(PeerAttributes.KEY_CONNECTIONS, "lots");
+        txt.put(PeerAttributes.KEY_CODECS, null);
+        txt.put("future", "ignored");
+        PeerAttributes parsed = PeerAttributes.fromTxt(txt);
+        assertEquals("device-b", parsed.deviceId);
+        assertEquals(PeerAttributes.UNKNOWN, parsed.connections);
+        assertEquals(PeerAttributes.UNKNOWN, parsed.protocolVersion);
+        assertTrue(parsed.codecs.isEmpty());
+
+        assertTrue(PeerAttributes.fromTxt(null).isEmpty());
+        assertTrue(PeerAttributes.fromTxt(Collections.emptyMap()).isEmpty());
+    }
+
+    @Test
+    public void longValues_keepEveryEntryWithinDnsSdLimit() {
+        String longName = new String(new char[300]).replace('\0', 'x');
+        List<String> manyCodecs = Collections.nCopies(100, "codec");
+        PeerAttributes attributes = new PeerAttributes("device-c", longName, 1, manyCodecs,
+                Collections.emptyList(), 0, 8765);
+        Map<String, String> txt = attributes.toTxt();
+        assertFalse("a name can't be cut, so it is left out", txt.containsKey(PeerAttributes.KEY_DISPLAY_NAME));
+        for (Map.Entry<String, String> entry : txt.entrySet()) {
+            assertTrue(entry.getKey(), entry.getKey().length() + 1 + entry.getValue().length()
+                    <= PeerAttributes.MAX_ENTRY_BYTES);
+        }
+        // Cut at a whole codec
+        assertTrue(txt.get(PeerAttributes.KEY_CODECS).endsWith(",codec"));
+    }
+}
@@ -0,0 +1,92 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PeerCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static PeerAttributes attributes(String deviceId) {
+        return new PeerAttributes(deviceId, "Ada", 2, Arrays.asList("deflate"),
+                Arrays.asList("binary", "relay"), 3, 8765);
+    }
+
+    @Test
+    public void savedPeers_loadBackWithAttributes() throws Exception {
+        PeerCache cache = new PeerCache(new File(folder.getRoot(), "peers.cache"), 64, 60_000);
+        cache.save(Arrays.asList(
+                new PeerCache.Entry("lanchat-a", "192.168.1.10", 8765, attributes("device-a"), 1_000),
+                new PeerCache.Entry("lanchat-b", "192.168.1.11", 65000, PeerAttributes.EMPTY, 2_000)));
+
+        List<PeerCache.Entry> loaded = cache.load(5_000);
+        assertEquals(2, loaded.size());
+        // Most recently seen first
+        assertEquals("lanchat-b", loaded.get(0).name);
+        assertEquals(65000, loaded.get(0).port);
+        assertTrue(loaded.get(0).attributes.isEmpty());
+        PeerCache.Entry a = loaded.get(1);
+        assertEquals("192.168.1.10", a.ip);
+        assertEquals(1_000, a.lastSeenMillis);
+        assertEquals(attributes("device-a"), a.attributes);
+        assertEquals("device-a", a.attributes.deviceId);
+    }
+
+    @Test
+    public void load_dropsPeersOlderThanMaxAge_andKeepsOnlyTheNewest() throws Exception {
+        PeerCache cache = new PeerCache(new File(folder.getRoot(), "peers.cache"), 3, 10_000);
+        List<PeerCache.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            entries.add(new PeerCache.Entry("peer-" + i, "10.0.0." + i, 8765, PeerAttributes.EMPTY, i * 5_000L));
+        }
+        Collections.shuffle(entries);
+        cache.save(entries);
+
+        // peer-4, peer-3 and peer-2 were kept; peer-2 is past the age limit by now
+        List<PeerCache.Entry> loaded = cache.load(22_000);
+        assertEquals(2, loaded.size());
+        assertEquals("peer-4", loaded.get(0).name);
+        assertEquals("peer-3", loaded.get(1).name);
+    }
+
+    @Test
+    public void missingOrDamagedFile_readsAsEmpty() throws Exception {
+        File file = new File(folder.getRoot(), "peers.cache");
+        PeerCache cache = new PeerCache(file, 64, 60_000);
+        assertTrue(cache.load(0).isEmpty());
+
+        cache.save(Collections.singletonList(
+                new PeerCache.Entry("lanchat-a", "192.168.1.10", 8765, attributes("device-a"), 0)));
+        assertEquals(1, cache.load(0).size());
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(raw.length() - 1);
+            int last = raw.read();
+            raw.seek(raw.length() - 1);
+            raw.write(last ^ 0xFF);
+        }
+        assertTrue(cache.load(0).isEmpty());
+
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not a cache".getBytes("UTF-8"));
+        }
+        assertTrue(cache.load(0).isEmpty());
+
+        // A later save replaces the damaged file
+        cache.save(Collections.singletonList(
+                new PeerCache.Entry("lanchat-b", "192.168.1.11", 8765, PeerAttributes.EMPTY, 0)));
+        assertEquals("lanchat-b", cache.load(0).get(0).name);
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+}
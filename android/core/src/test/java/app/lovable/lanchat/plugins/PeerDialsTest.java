@@ -0,0 +1,254 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.server.WebSocketServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class PeerDialsTest {
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final LongAdder reconnects = new LongAdder();
+    private final LongAdder reconnectAttempts = new LongAdder();
+    private final Peer peer = new Peer();
+    private final Dialer dialer = new Dialer();
+    private final PeerDials dials = new PeerDials(dialer, () -> scheduler, reconnects, reconnectAttempts);
+    private String clientId;
+
+    /** The remote end: counts the connections that reach it. */
+    private static final class Peer extends WebSocketServer {
+        final CountDownLatch started = new CountDownLatch(1);
+        final List<WebSocket> accepted = new CopyOnWriteArrayList<>();
+
+        Peer() {
+            super(new InetSocketAddress("127.0.0.1", 0));
+            setReuseAddr(true);
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            accepted.add(conn);
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message) {
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+
+        void closeAll(int code) {
+            for (WebSocket conn : accepted) {
+                conn.close(code, "test");
+            }
+        }
+    }
+
+    /** Builds clients that report back to the table, as the plugin's do. */
+    private final class Dialer implements PeerDials.Dialer {
+        final List<WebSocketClient> clients = new CopyOnWriteArrayList<>();
+        final AtomicInteger opens = new AtomicInteger();
+        volatile boolean connectedElsewhere;
+
+        @Override
+        public boolean connected(PeerDial dial) {
+            return connectedElsewhere;
+        }
+
+        @Override
+        public WebSocketClient newClient(PeerDial dial) {
+            WebSocketClient client = new WebSocketClient(URI.create("ws://" + dial.ip + ":" + dial.port)) {
+                @Override
+                public void onOpen(ServerHandshake handshake) {
+                    dials.opened(dial, this);
+                    opens.incrementAndGet();
+                }
+
+                @Override
+                public void onMessage(String message) {
+                }
+
+                @Override
+                public void onClose(int code, String reason, boolean remote) {
+                    dials.closed(dial, this, code != 1000);
+                }
+
+                @Override
+                public void onError(Exception ex) {
+                }
+            };
+            clients.add(client);
+            return client;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        peer.start();
+        assertTrue(peer.started.await(10, TimeUnit.SECONDS));
+        clientId = "127.0.0.1:" + peer.getPort();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dials.clear();
+        for (WebSocketClient client : dialer.clients) {
+            // Not closeBlocking: a client closed while still connecting may never report it
+            client.close();
+        }
+        peer.stop(1000);
+        scheduler.shutdownNow();
+    }
+
+    private PeerDial.State ensure() throws Exception {
+        return dials.ensure(clientId, "127.0.0.1", peer.getPort(), false, 0);
+    }
+
+    private void awaitState(PeerDial.State state) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (dials.stateOf(clientId) != state) {
+            assertTrue("still " + dials.stateOf(clientId), System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void awaitAccepted(int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (peer.accepted.size() < count) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void concurrentEnsures_shareOneConnectAttempt() throws Exception {
+        int threads = 8;
+        CyclicBarrier barrier = new CyclicBarrier(threads);
+        List<Thread> callers = new ArrayList<>();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread caller = new Thread(() -> {
+                try {
+                    barrier.await();
+                    for (int round = 0; round < 50; round++) {
+                        assertNotEquals(PeerDial.State.BACKOFF, ensure());
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            callers.add(caller);
+            caller.start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        assertEquals(new ArrayList<Throwable>(), errors);
+
+        awaitState(PeerDial.State.OPEN);
+        assertEquals(PeerDial.State.OPEN, ensure());
+        assertEquals(1, dialer.clients.size());
+        assertEquals(1, dialer.opens.get());
+        awaitAccepted(1);
+        Thread.sleep(100);
+        assertEquals(1, peer.accepted.size());
+    }
+
+    @Test
+    public void cancelThenEnsure_startsAFreshAttempt_andTheOldOneCantUndoIt() throws Exception {
+        ensure();
+        WebSocketClient first = dialer.clients.get(0);
+        dials.cancel(clientId);
+        assertNull(dials.stateOf(clientId));
+
+        ensure();
+        assertEquals(2, dialer.clients.size());
+        // The cancelled client closing, or opening late, must not touch the new dial
+        first.close();
+        awaitState(PeerDial.State.OPEN);
+        Thread.sleep(50);
+        assertEquals(PeerDial.State.OPEN, dials.stateOf(clientId));
+        assertEquals(2, dialer.clients.size());
+        assertEquals(0, reconnectAttempts.sum());
+    }
+
+    @Test
+    public void droppedConnection_isRetried_andEnsureSkipsTheWait() throws Exception {
+        dials.configure(new Backoff(1, 1, new Random(1)), 0);
+        ensure();
+        awaitState(PeerDial.State.OPEN);
+        awaitAccepted(1);
+
+        peer.closeAll(1011);
+        awaitAccepted(2);
+        awaitState(PeerDial.State.OPEN);
+        assertEquals(2, dialer.clients.size());
+        assertEquals(1, reconnectAttempts.sum());
+        assertEquals(1, reconnects.sum());
+
+        // A long wait is cut short when the peer is asked for again
+        dials.configure(new Backoff(60000, 60000, new Random(1)), 0);
+        peer.closeAll(1011);
+        awaitState(PeerDial.State.BACKOFF);
+        assertEquals(PeerDial.State.CONNECTING, ensure());
+        awaitState(PeerDial.State.OPEN);
+        assertEquals(3, dialer.clients.size());
+        assertEquals(2, reconnects.sum());
+    }
+
+    @Test
+    public void retry_givesUpWhenThePeerReachedUsMeanwhile_orOnPurposeCloses() throws Exception {
+        dials.configure(new Backoff(50, 50, new Random(1)), 0);
+        ensure();
+        awaitState(PeerDial.State.OPEN);
+        awaitAccepted(1);
+
+        dialer.connectedElsewhere = true;
+        peer.closeAll(1011);
+        awaitState(null);
+        assertEquals(1, dialer.clients.size());
+
+        dialer.connectedElsewhere = false;
+        ensure();
+        awaitState(PeerDial.State.OPEN);
+        awaitAccepted(2);
+        peer.accepted.get(1).close(1000, "bye");
+        awaitState(null);
+        assertEquals(2, dialer.clients.size());
+        assertEquals(1, reconnectAttempts.sum());
+    }
+}
@@ -0,0 +1,53 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class PeerHealthTest {
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void rttAndJitter_fromEchoedPayload() {
+        PeerHealth health = new PeerHealth();
+        assertEquals(-1, health.rttMs(), 0);
+
+        assertTrue(health.onPong(health.nextPing(0), 10 * MS));
+        assertEquals(10, health.rttMs(), 0.001);
+        assertEquals(0, health.jitterMs(), 0.001);
+
+        assertTrue(health.onPong(health.nextPing(1000 * MS), 1026 * MS));
+        assertEquals(12, health.rttMs(), 0.001);
+        assertEquals(1, health.jitterMs(), 0.001);
+        assertEquals(10, health.minRttMs(), 0.001);
+        assertEquals(0, health.loss(), 0);
+    }
+
+    @Test
+    public void unansweredPings_countAsMissedUntilAPongArrives() {
+        PeerHealth health = new PeerHealth();
+        health.onPong(health.nextPing(0), MS);
+
+        ByteBuffer late = health.nextPing(1000 * MS);
+        health.nextPing(2000 * MS);
+        health.nextPing(3000 * MS);
+        assertEquals(2, health.consecutiveMissed());
+        assertEquals(2 / 3.0, health.loss(), 0.001);
+
+        // A late pong doesn't undo the loss but proves the peer is alive
+        assertTrue(health.onPong(late, 3100 * MS));
+        assertEquals(0, health.consecutiveMissed());
+        assertEquals(2 / 3.0, health.loss(), 0.001);
+    }
+
+    @Test
+    public void foreignPongs_ignored() {
+        PeerHealth health = new PeerHealth();
+        health.nextPing(0);
+        assertFalse(health.onPong(ByteBuffer.allocate(0), MS));
+        assertFalse(health.onPong(null, MS));
+        assertEquals(0, health.pongsReceived());
+    }
+}
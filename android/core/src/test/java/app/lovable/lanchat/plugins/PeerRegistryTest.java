@@ -0,0 +1,118 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.java_websocket.WebSocket;
+import org.junit.Test;
+
+import java.util.Collections;
+
+public class PeerRegistryTest {
+    private final PeerRegistry registry = new PeerRegistry();
+
+    public PeerRegistryTest() {
+        registry.setLocalDeviceId("device-b");
+    }
+
+    @Test
+    public void tieBreak_keepsTheSocketDialedByTheSmallerDeviceId() {
+        // device-a < device-b: the socket device-a dialed to us wins
+        WebSocket dialedByUs = Connections.open("10.0.0.1:8765", "device-a", true, 1);
+        WebSocket dialedByA = Connections.open("/10.0.0.1:40001", "device-a", false, 1);
+        assertNull(registry.add(dialedByUs));
+        assertSame(dialedByUs, registry.add(dialedByA));
+        assertSame(dialedByA, registry.get("device-a"));
+        assertSame(dialedByA, registry.get("10.0.0.1:8765"));
+
+        // device-b < device-c: the socket we dialed wins, whichever opened first
+        WebSocket dialedByC = Connections.open("/10.0.0.3:40002", "device-c", false, 1);
+        WebSocket dialedToC = Connections.open("10.0.0.3:8765", "device-c", true, 1);
+        assertNull(registry.add(dialedByC));
+        assertSame(dialedByC, registry.add(dialedToC));
+        assertSame(dialedToC, registry.get("device-c"));
+
+        assertEquals(2, registry.primaries().size());
+        assertEquals(4, registry.all().size());
+    }
+
+    @Test
+    public void sameSideRedial_replacesTheStaleSocket() {
+        WebSocket first = Connections.open("/10.0.0.1:40001", "device-a", false, 1);
+        WebSocket second = Connections.open("/10.0.0.1:40002", "device-a", false, 1);
+        registry.add(first);
+        assertSame(first, registry.add(second));
+        assertSame(second, registry.get("device-a"));
+    }
+
+    @Test
+    public void removingTheRedundantSocket_keepsTheDeviceReachable() {
+        WebSocket dialedByUs = Connections.open("10.0.0.1:8765", "device-a", true, 1);
+        WebSocket dialedByA = Connections.open("/10.0.0.1:40001", "device-a", false, 1);
+        registry.add(dialedByUs);
+        registry.add(dialedByA);
+
+        assertFalse(registry.remove(dialedByUs));
+        assertSame(dialedByA, registry.get("device-a"));
+        assertTrue(registry.remove(dialedByA));
+        assertNull(registry.get("device-a"));
+        assertNull(registry.get("10.0.0.1:8765"));
+        assertTrue(registry.all().isEmpty());
+    }
+
+    @Test
+    public void aliases_resolveWhileConnected_andNameTheDeviceAfterwards() {
+        WebSocket conn = Connections.open("/10.0.0.5:40000", "device-a", false, 1);
+        registry.add(conn);
+        registry.alias("10.0.0.5:8765", "device-a");
+        assertSame(conn, registry.get("10.0.0.5:8765"));
+        assertSame(conn, registry.findByHost("10.0.0.5"));
+
+        registry.remove(conn);
+        assertNull(registry.get("10.0.0.5:8765"));
+        assertEquals("device-a", registry.deviceIdOf("10.0.0.5:8765"));
+        assertEquals("device-a", registry.deviceIdOf("/10.0.0.5:40000"));
+        assertEquals("device-a", registry.deviceIdOf("device-a"));
+        assertNull(registry.deviceIdOf("device-z"));
+    }
+
+    @Test
+    public void reconnects_keepOneKnownClientIdPerDevice() {
+        for (int port = 40000; port < 40010; port++) {
+            WebSocket conn = Connections.open("/10.0.0.1:" + port, "device-a", false, 1);
+            registry.add(conn);
+            registry.remove(conn);
+        }
+        assertEquals(1, registry.knownCount());
+        assertEquals("device-a", registry.deviceIdOf("/10.0.0.1:40009"));
+        assertNull(registry.deviceIdOf("/10.0.0.1:40000"));
+    }
+
+    @Test
+    public void knownDevices_areBounded_forgettingTheLeastRecent() {
+        for (int i = 0; i < PeerRegistry.MAX_KNOWN_DEVICES + 10; i++) {
+            WebSocket conn = Connections.open("/10.0.1." + (i % 250) + ":" + (40000 + i), "device-x" + i, false, 1);
+            registry.add(conn);
+            registry.remove(conn);
+        }
+        assertEquals(PeerRegistry.MAX_KNOWN_DEVICES, registry.knownCount());
+        assertNull(registry.deviceIdOf("device-x0"));
+        assertEquals("device-x265", registry.deviceIdOf("device-x265"));
+
+        registry.clear();
+        assertEquals(0, registry.knownCount());
+        assertNull(registry.deviceIdOf("device-x265"));
+    }
+
+    @Test
+    public void sameClientId_returnsTheSocketItReplaces() {
+        WebSocket old = Connections.open("10.0.0.9:8765", null, true, 0);
+        WebSocket redialed = Connections.open("10.0.0.9:8765", null, true, 0);
+        assertNull(registry.add(old));
+        assertSame(old, registry.add(redialed));
+        assertEquals(Collections.singletonList(redialed), registry.primaries());
+
+        // The old socket closing must not take the new one with it
+        assertFalse(registry.remove(old));
+        assertSame(redialed, registry.get("10.0.0.9:8765"));
+    }
+}
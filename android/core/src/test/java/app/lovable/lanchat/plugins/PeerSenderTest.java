@@ -0,0 +1,232 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.BinaryFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.framing.TextFrame;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class PeerSenderTest {
+    private static final String CHAT = "{\"type\":\"message\",\"payload\":{\"text\":\"hi\"}}";
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    private final TrafficCounters traffic = new TrafficCounters();
+    private final LongAdder sendFailures = new LongAdder();
+    private final PeerSender sender = new PeerSender(() -> writer, traffic, new LatencyHistogram(), sendFailures);
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        writer.shutdownNow();
+    }
+
+    @Test
+    public void broadcast_queuesOneSharedMessage_andEachConnectionWritesItsForm() throws Exception {
+        List<List<Framedata>> binaryWrites = new CopyOnWriteArrayList<>();
+        List<List<Framedata>> textWrites = new CopyOnWriteArrayList<>();
+        List<WebSocket> connections = Arrays.asList(
+                Connections.open("10.0.0.1:8765", "device-a", true, 1, binaryWrites),
+                Connections.open("10.0.0.2:8765", "device-b", true, 1, binaryWrites),
+                Connections.open("10.0.0.3:8765", "device-c", true, 0, textWrites));
+        OutboundMessage message = new OutboundMessage(CHAT);
+
+        Set<WebSocket> drains = new HashSet<>();
+        assertEquals(3, sender.broadcast(connections, message, drains));
+        assertEquals(new HashSet<>(connections), drains);
+        for (WebSocket conn : connections) {
+            // The same instance everywhere, so it is serialized once per wire format
+            OutboundQueue queue = ((PeerLink) conn.getAttachment()).queue;
+            assertSame(message, queue.poll());
+            // Empty again, which also releases the writer claim
+            assertNull(queue.poll());
+        }
+
+        sender.broadcast(connections, message);
+        awaitWrites(binaryWrites, 2);
+        awaitWrites(textWrites, 1);
+        ByteBuffer encoded = SignalingCodec.encode(CHAT);
+        for (List<Framedata> write : binaryWrites) {
+            assertTrue(write.get(0) instanceof BinaryFrame);
+            assertEquals(encoded, write.get(0).getPayloadData());
+        }
+        assertTrue(textWrites.get(0).get(0) instanceof TextFrame);
+        assertEquals(CHAT, StandardCharsets.UTF_8.decode(textWrites.get(0).get(0).getPayloadData()).toString());
+        assertEquals(3, traffic.messagesOut.sum());
+    }
+
+    @Test
+    public void multicast_resolvesEveryKindOfId_andQueuesOncePerConnection() throws Exception {
+        PeerRegistry peers = new PeerRegistry();
+        peers.setLocalDeviceId("device-m");
+        List<List<Framedata>> writes = new CopyOnWriteArrayList<>();
+        WebSocket dialed = Connections.open("10.0.0.1:8765", "device-a", true, 1, writes);
+        WebSocket inbound = Connections.open("/10.0.0.2:40001", "device-b", false, 1, writes);
+        peers.add(dialed);
+        peers.add(inbound);
+        peers.alias("10.0.0.2:8765", "device-b");
+
+        PeerSender.Multicast result = sender.multicast(peers,
+                Arrays.asList("10.0.0.1:8765", "device-a", "10.0.0.2:8765", "/10.0.0.2:40001", "device-z", "away"),
+                new OutboundMessage(CHAT),
+                (clientId, target, message) -> clientId.equals("away") && target == null);
+
+        assertEquals(Arrays.asList("10.0.0.1:8765", "device-a", "10.0.0.2:8765", "/10.0.0.2:40001"), result.queued);
+        assertEquals(Collections.singletonList("away"), result.stored);
+        assertEquals(Collections.singletonList("device-z"), result.failed);
+        assertEquals(1, sendFailures.sum());
+        awaitWrites(writes, 2);
+        Thread.sleep(50);
+        assertEquals(2, writes.size());
+    }
+
+    @Test
+    public void multicast_reportsFullQueuesAsFailed() {
+        PeerRegistry peers = new PeerRegistry();
+        WebSocket conn = Connections.open("10.0.0.1:8765", "device-a", true, 1);
+        PeerLink link = conn.getAttachment();
+        OutboundQueue full = new OutboundQueue(1, OutboundQueue.OverflowPolicy.REJECT, Collections.<String>emptySet());
+        conn.setAttachment(new PeerLink(link.clientId, link.deviceId, true, 1, full,
+                false, null, null, null, false, false));
+        full.offer(new OutboundMessage(CHAT));
+        peers.add(conn);
+
+        PeerSender.Multicast result = sender.multicast(peers, Collections.singletonList("device-a"),
+                new OutboundMessage(CHAT), null);
+        assertEquals(Collections.singletonList("device-a"), result.failed);
+        assertTrue(result.queued.isEmpty());
+    }
+
+    @Test
+    public void drain_writesAtMostABatchPerCall_untilTheQueueIsEmpty() throws Exception {
+        List<List<Framedata>> writes = new CopyOnWriteArrayList<>();
+        WebSocket conn = Connections.open("10.0.0.1:8765", "device-a", true, 1, writes);
+        Set<WebSocket> drains = new HashSet<>();
+        for (int i = 0; i < PeerSender.DRAIN_BATCH + 8; i++) {
+            sender.enqueue(conn, new OutboundMessage(CHAT), drains);
+        }
+        // One writer claim however many were queued
+        assertEquals(Collections.singleton(conn), drains);
+
+        sender.startDrains(drains);
+        awaitWrites(writes, 2);
+        assertEquals(PeerSender.DRAIN_BATCH, writes.get(0).size());
+        assertEquals(8, writes.get(1).size());
+        assertEquals(0, ((PeerLink) conn.getAttachment()).queue.depth());
+    }
+
+    @Test
+    public void stoppedWriter_dropsWhatIsQueued() {
+        PeerSender stopped = new PeerSender(() -> null, traffic, new LatencyHistogram(), sendFailures);
+        WebSocket conn = Connections.open("10.0.0.1:8765", "device-a", true, 1);
+        assertEquals(OutboundQueue.Result.QUEUED, stopped.enqueue(conn, new OutboundMessage(CHAT)));
+        assertEquals(0, ((PeerLink) conn.getAttachment()).queue.depth());
+    }
+
+    @Test
+    public void storedMessages_goOutSequenced_andTheirAcksNameTheStoredIds() throws Exception {
+        Outbox box = new Outbox(tmp.getRoot(), 100, 0, 4096, System::currentTimeMillis);
+        long first = box.append("device-a", "{\"type\":\"message\",\"n\":1}");
+        long second = box.append("device-a", "{\"type\":\"message\",\"n\":2}");
+        ReliableSession session = new ReliableSession(7, 16);
+        List<List<Framedata>> writes = new ArrayList<>();
+        WebSocket conn = Connections.open("/10.0.0.1:40001", "device-a", 0, session, writes, true);
+
+        Map<Long, Long> storedBySeq = new HashMap<>();
+        assertTrue(box.markFlushing("device-a"));
+        assertEquals(2, sender.sendStored(conn, box, "device-a", PeerSender.DRAIN_BATCH,
+                (storedId, seq) -> storedBySeq.put(seq, storedId)));
+        assertEquals(0, box.pending("device-a"));
+        assertEquals(1, writes.size());
+
+        // The peer takes both in order and acks them; each ack maps back to what send() reported as stored
+        ReliableSession peer = new ReliableSession(9, 16);
+        List<String> delivered = new ArrayList<>();
+        for (Framedata frame : writes.get(0)) {
+            ReliableFrame data = ReliableFrame.parse(frame.getPayloadData());
+            for (ReliableSession.Delivery delivery : peer.onData(data.epoch, data.seq, data.floor, data.innerJson())) {
+                delivered.add(delivery.message);
+            }
+        }
+        assertEquals(Arrays.asList("{\"type\":\"message\",\"n\":1}", "{\"type\":\"message\",\"n\":2}"),
+                delivered);
+        List<Long> acked = new ArrayList<>();
+        for (long seq : session.onAck(peer.takeAck(), 0)) {
+            acked.add(storedBySeq.get(seq));
+        }
+        assertEquals(Arrays.asList(first, second), acked);
+    }
+
+    @Test
+    public void storedMessages_whoseWriteFails_areLeftToTheSession_andNotSentAgain() throws Exception {
+        Outbox box = new Outbox(tmp.getRoot(), 100, 0, 4096, System::currentTimeMillis);
+        box.append("device-a", CHAT);
+        ReliableSession session = new ReliableSession(7, 16);
+        WebSocket dropped = Connections.open("/10.0.0.1:40001", "device-a", 0, session, null, false);
+
+        assertTrue(box.markFlushing("device-a"));
+        assertEquals(-1, sender.sendStored(dropped, box, "device-a", PeerSender.DRAIN_BATCH, (storedId, seq) -> { }));
+        box.doneFlushing("device-a");
+        assertEquals(0, box.pending("device-a"));
+        assertEquals(1, session.unackedCount());
+
+        // The next connection's flush has nothing left; the retransmit timer resends the one copy
+        List<List<Framedata>> writes = new ArrayList<>();
+        WebSocket reconnected = Connections.open("/10.0.0.1:40002", "device-a", 0, session, writes, true);
+        assertFalse(box.markFlushing("device-a"));
+        assertEquals(0, sender.sendStored(reconnected, box, "device-a", PeerSender.DRAIN_BATCH,
+                (storedId, seq) -> fail()));
+        assertTrue(writes.isEmpty());
+        assertEquals(1, session.due(Long.MAX_VALUE, System.nanoTime(), 10).size());
+    }
+
+    @Test
+    public void storedMessages_withoutAcks_stayStoredUntilTheSocketTakesThem() throws Exception {
+        Outbox box = new Outbox(tmp.getRoot(), 100, 0, 4096, System::currentTimeMillis);
+        box.append("device-a", CHAT);
+        WebSocket dropped = Connections.open("/10.0.0.1:40001", "device-a", 0, null, null, false);
+
+        assertTrue(box.markFlushing("device-a"));
+        assertEquals(-1, sender.sendStored(dropped, box, "device-a", PeerSender.DRAIN_BATCH, (storedId, seq) -> fail()));
+        box.doneFlushing("device-a");
+        assertEquals(1, box.pending("device-a"));
+
+        List<List<Framedata>> writes = new ArrayList<>();
+        WebSocket reconnected = Connections.open("/10.0.0.1:40002", "device-a", 0, null, writes, true);
+        assertTrue(box.markFlushing("device-a"));
+        assertEquals(1, sender.sendStored(reconnected, box, "device-a", PeerSender.DRAIN_BATCH,
+                (storedId, seq) -> fail()));
+        assertEquals(0, box.pending("device-a"));
+        assertEquals(1, writes.size());
+    }
+
+    private static void awaitWrites(List<List<Framedata>> writes, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (writes.size() < count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, writes.size());
+    }
+}
@@ -0,0 +1,96 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class PeerTableTest {
+
+    @Test
+    public void delta_reportsAddsUpdatesAndRemovesSinceVersion() {
+        PeerTable table = new PeerTable(PeerTable.DEFAULT_MAX_TOMBSTONES);
+        table.put("a", "192.168.1.2", 9001);
+        table.put("b", "192.168.1.3", 9001);
+        long seen = table.since(0).version;
+        assertEquals(2, table.since(0).added.size());
+
+        table.put("a", "192.168.1.9", 9001);
+        table.remove("b");
+        table.put("c", "192.168.1.4", 9001);
+        PeerTable.Delta delta = table.since(seen);
+        assertFalse(delta.reset);
+        assertEquals("c", delta.added.get(0).name);
+        assertEquals("192.168.1.9", delta.updated.get(0).ip);
+        assertEquals("192.168.1.3", delta.removed.get(0).ip);
+        assertEquals(1, delta.added.size());
+        assertEquals(1, delta.updated.size());
+        assertEquals(1, delta.removed.size());
+
+        assertTrue(table.since(delta.version).isEmpty());
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void unchangedPut_doesNotBumpVersion() {
+        PeerTable table = new PeerTable(PeerTable.DEFAULT_MAX_TOMBSTONES);
+        assertTrue(table.put("a", "192.168.1.2", 9001));
+        long version = table.version();
+        assertFalse(table.put("a", "192.168.1.2", 9001));
+        assertNull(table.remove("missing"));
+        assertEquals(version, table.version());
+    }
+
+    @Test
+    public void foundThenLostInsideWindow_cancelsOut() {
+        PeerTable table = new PeerTable(PeerTable.DEFAULT_MAX_TOMBSTONES);
+        table.put("a", "192.168.1.2", 9001);
+        long seen = table.version();
+
+        table.put("flap", "192.168.1.5", 9001);
+        table.remove("flap");
+        assertTrue(table.since(seen).isEmpty());
+
+        // Lost then found again is an update, not a remove and an add
+        table.remove("a");
+        table.put("a", "192.168.1.2", 9002);
+        PeerTable.Delta delta = table.since(seen);
+        assertTrue(delta.removed.isEmpty());
+        assertEquals(1, delta.added.size());
+        assertEquals(9002, delta.added.get(0).port);
+    }
+
+    @Test
+    public void prunedTombstones_forceReset() {
+        PeerTable table = new PeerTable(2);
+        for (int i = 0; i < 4; i++) {
+            table.put("p" + i, "10.0.0." + i, 9001);
+        }
+        long seen = table.version();
+        table.remove("p0");
+        table.remove("p1");
+        assertFalse(table.since(seen).reset);
+        table.remove("p2");
+
+        PeerTable.Delta delta = table.since(seen);
+        assertTrue(delta.reset);
+        assertEquals(1, delta.added.size());
+        assertEquals("p3", delta.added.get(0).name);
+
+        // A version from a previous process is also answered with a full table
+        assertTrue(table.since(table.version() + 10).reset);
+    }
+
+    @Test
+    public void attributeChange_isAnUpdate_andNullKeepsKnownAttributes() {
+        PeerTable table = new PeerTable(PeerTable.DEFAULT_MAX_TOMBSTONES);
+        PeerAttributes idle = PeerAttributes.EMPTY.withConnections(0);
+        table.put("a", "192.168.1.2", 9001, idle);
+        long seen = table.version();
+
+        assertFalse(table.put("a", "192.168.1.2", 9001, null));
+        assertTrue(table.put("a", "192.168.1.2", 9001, idle.withConnections(4)));
+        PeerTable.Delta delta = table.since(seen);
+        assertEquals(1, delta.updated.size());
+        assertEquals(4, delta.updated.get(0).attributes.connections);
+    }
+}
@@ -0,0 +1,179 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ReliableSessionTest {
+    private static final long SENDER_EPOCH = 0x5EED;
+
+    private static List<String> texts(List<ReliableSession.Delivery> deliveries) {
+        List<String> texts = new ArrayList<>();
+        for (ReliableSession.Delivery delivery : deliveries) {
+            texts.add(delivery.message);
+        }
+        return texts;
+    }
+
+    /** Encode a data frame the way the plugin does and parse it back, as the receiving side sees it. */
+    private static ReliableFrame wire(ReliableSession sender, OutboundMessage message, ReliableSession.Ack ack) {
+        long seq = sender.seqOf(message);
+        ByteBuffer bytes = ReliableFrame.data(sender.localEpoch, seq, sender.floor(), ack, false,
+                message.textPayload());
+        assertTrue(ReliableFrame.isReliableFrame(bytes));
+        assertFalse(RelayFrame.isRelayFrame(bytes));
+        return ReliableFrame.parse(bytes);
+    }
+
+    @Test
+    public void deliversInOrderExactlyOnceAcrossReordering() {
+        ReliableSession receiver = new ReliableSession(1, 16);
+
+        assertEquals(Collections.singletonList("m1"), texts(receiver.onData(SENDER_EPOCH, 1, 1, "m1")));
+        assertTrue(receiver.onData(SENDER_EPOCH, 3, 1, "m3").isEmpty());
+        assertTrue(receiver.onData(SENDER_EPOCH, 4, 1, "m4").isEmpty());
+        assertTrue("duplicate", receiver.onData(SENDER_EPOCH, 1, 1, "m1").isEmpty());
+        assertTrue("duplicate held", receiver.onData(SENDER_EPOCH, 3, 1, "m3").isEmpty());
+        assertEquals(Arrays.asList("m2", "m3", "m4"), texts(receiver.onData(SENDER_EPOCH, 2, 1, "m2")));
+        assertTrue(receiver.onData(SENDER_EPOCH, 2, 1, "m2").isEmpty());
+    }
+
+    @Test
+    public void ackCarriesCumulativeAndSelectiveRanges() {
+        ReliableSession receiver = new ReliableSession(1, 64);
+        assertNull("nothing to ack yet", receiver.takeAck());
+        for (long seq : new long[] {1, 2, 4, 5, 8}) {
+            receiver.onData(SENDER_EPOCH, seq, 1, "m" + seq);
+        }
+        assertTrue(receiver.ackDue(5));
+        assertFalse(receiver.ackDue(6));
+
+        ReliableSession.Ack ack = receiver.takeAck();
+        assertEquals(SENDER_EPOCH, ack.epoch);
+        assertEquals(2, ack.cumulative);
+        assertArrayEquals(new long[] {4, 5, 8, 8}, ack.ranges);
+        assertNull("cleared once taken", receiver.takeAck());
+
+        ByteBuffer bytes = ReliableFrame.ack(ack);
+        ReliableFrame parsed = ReliableFrame.parse(bytes);
+        assertEquals(ReliableFrame.ACK, parsed.kind);
+        assertEquals(2, parsed.ack.cumulative);
+        assertArrayEquals(ack.ranges, parsed.ack.ranges);
+    }
+
+    @Test
+    public void selectiveAckMakesHolesDueAndReleasesWindow() {
+        ReliableSession sender = new ReliableSession(SENDER_EPOCH, 4);
+        OutboundMessage[] messages = new OutboundMessage[5];
+        for (int i = 0; i < 4; i++) {
+            messages[i] = new OutboundMessage("{\"type\":\"message\",\"n\":" + i + "}");
+            assertEquals(i + 1, sender.assign(messages[i], 100));
+        }
+        messages[4] = new OutboundMessage("{\"type\":\"message\",\"n\":4}");
+        assertEquals("window full", -1, sender.assign(messages[4], 100));
+        assertTrue(sender.due(50, 200, 10).isEmpty());
+
+        List<Long> acked = sender.onAck(new ReliableSession.Ack(SENDER_EPOCH, 1, new long[] {3, 4}), 150);
+        assertEquals(Arrays.asList(1L, 3L, 4L), acked);
+        assertEquals(1, sender.unackedCount());
+        assertEquals(2, sender.floor());
+        assertEquals(-1, sender.seqOf(messages[0]));
+
+        List<ReliableSession.Pending> due = sender.due(150, 300, 10);
+        assertEquals(1, due.size());
+        assertEquals(2, due.get(0).seq);
+        assertTrue("stamped as sent", sender.due(150, 300, 10).isEmpty());
+
+        assertTrue("other epoch ignored",
+                sender.onAck(new ReliableSession.Ack(SENDER_EPOCH + 1, 9, new long[0]), 0).isEmpty());
+        assertEquals(5, sender.assign(messages[4], 400));
+    }
+
+    @Test
+    public void resendAfterReconnectIsDeduplicated() {
+        ReliableSession sender = new ReliableSession(SENDER_EPOCH, 32);
+        ReliableSession receiver = new ReliableSession(7, 32);
+        List<String> delivered = new ArrayList<>();
+        List<OutboundMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            OutboundMessage message = new OutboundMessage("{\"type\":\"message\",\"n\":" + i + "}");
+            sender.assign(message, 10);
+            messages.add(message);
+        }
+
+        // First connection gets 0..3 across, then drops before any ack comes back
+        for (int i = 0; i < 4; i++) {
+            ReliableFrame frame = wire(sender, messages.get(i), null);
+            delivered.addAll(texts(receiver.onData(frame.epoch, frame.seq, frame.floor, frame.innerJson())));
+        }
+        assertEquals(6, sender.unackedCount());
+
+        // Reconnected: everything unacked goes again, with the receiver's ack piggybacked on its own traffic
+        for (ReliableSession.Pending pending : sender.due(20, 30, 32)) {
+            ReliableFrame frame = wire(sender, pending.message, null);
+            delivered.addAll(texts(receiver.onData(frame.epoch, frame.seq, frame.floor, frame.innerJson())));
+        }
+        assertEquals(6, delivered.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(messages.get(i).text, delivered.get(i));
+        }
+
+        OutboundMessage reply = new OutboundMessage("{\"type\":\"message\",\"reply\":true}");
+        receiver.assign(reply, 40);
+        ReliableFrame back = wire(receiver, reply, receiver.takeAck());
+        assertEquals(6, back.ack.cumulative);
+        assertEquals(6, sender.onAck(back.ack, 40).size());
+        assertEquals(0, sender.unackedCount());
+    }
+
+    @Test
+    public void restartedPeersResynchronise() {
+        ReliableSession receiver = new ReliableSession(1, 16);
+        receiver.onData(SENDER_EPOCH, 1, 1, "a1");
+        receiver.onData(SENDER_EPOCH, 2, 1, "a2");
+
+        // Sender restarted: new epoch, numbering starts over
+        assertEquals(Collections.singletonList("b1"), texts(receiver.onData(SENDER_EPOCH + 1, 1, 1, "b1")));
+
+        // Receiver restarted: floor says everything below 10 was acked already
+        ReliableSession fresh = new ReliableSession(2, 16);
+        assertTrue(fresh.onData(SENDER_EPOCH, 11, 10, "m11").isEmpty());
+        assertEquals(Arrays.asList("m10", "m11"), texts(fresh.onData(SENDER_EPOCH, 10, 10, "m10")));
+        assertEquals(11, fresh.takeAck().cumulative);
+    }
+
+    @Test
+    public void dataFrameRoundTripsBinaryInnerAndPiggybackedAck() throws Exception {
+        String json = SignalingSamples.chat();
+        ByteBuffer inner = SignalingCodec.encode(json);
+        assertNotNull(inner);
+        ReliableSession.Ack ack = new ReliableSession.Ack(-3, 300, new long[] {302, 310, 1000, 1000});
+        ByteBuffer bytes = ReliableFrame.data(Long.MIN_VALUE, 1L << 40, 1L << 39, ack, true, inner);
+
+        ReliableFrame frame = ReliableFrame.parse(bytes);
+        assertEquals(ReliableFrame.DATA, frame.kind);
+        assertEquals(Long.MIN_VALUE, frame.epoch);
+        assertEquals(1L << 40, frame.seq);
+        assertEquals(1L << 39, frame.floor);
+        assertEquals(-3, frame.ack.epoch);
+        assertArrayEquals(ack.ranges, frame.ack.ranges);
+        assertEquals(SignalingCodec.decode(inner), frame.innerJson());
+
+        ByteBuffer text = ByteBuffer.wrap("{\"a\":1}".getBytes(StandardCharsets.UTF_8));
+        assertEquals("{\"a\":1}", ReliableFrame.parse(ReliableFrame.data(1, 1, 1, null, false, text)).innerJson());
+
+        ByteBuffer truncated = ByteBuffer.wrap(Arrays.copyOf(bytes.array(), 6));
+        try {
+            ReliableFrame.parse(truncated);
+            fail("truncated frame accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReliableSessionsTest {
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final AtomicLong epochs = new AtomicLong(100);
+    private final ReliableSessions sessions = new ReliableSessions(epochs::incrementAndGet, now::get);
+
+    @Test
+    public void session_survivesAReconnect_butNotTheTtl() {
+        sessions.setLimits(8, 60_000);
+        ReliableSession first = sessions.open("phone-b", 16);
+        first.assign(new OutboundMessage("{\"type\":\"message\"}"), 0);
+        sessions.release("phone-b");
+
+        now.addAndGet(30_000);
+        assertSame(first, sessions.open("phone-b", 16));
+        sessions.release("phone-b");
+
+        now.addAndGet(60_000);
+        sessions.evictExpired();
+        assertEquals(0, sessions.size());
+        assertEquals(0, sessions.unackedCount());
+        assertEquals(1, sessions.evicted.sum());
+        assertNotSame(first, sessions.open("phone-b", 16));
+    }
+
+    @Test
+    public void connectedSessions_areNeverEvicted() {
+        sessions.setLimits(2, 60_000);
+        sessions.open("phone-b", 16);
+        // Two sockets to the same device while the tie-break runs
+        sessions.open("phone-c", 16);
+        sessions.open("phone-c", 16);
+        sessions.release("phone-c");
+
+        now.addAndGet(120_000);
+        sessions.evictExpired();
+        sessions.expire("phone-b");
+        assertEquals(2, sessions.size());
+        // Over the cap with nothing idle to push out
+        sessions.open("phone-d", 16);
+        assertEquals(3, sessions.size());
+    }
+
+    @Test
+    public void newDevices_pushOutTheLongestIdle() {
+        sessions.setLimits(2, 600_000);
+        ReliableSession b = sessions.open("phone-b", 16);
+        sessions.open("phone-c", 16);
+        sessions.release("phone-b");
+        now.addAndGet(1_000);
+        sessions.release("phone-c");
+
+        sessions.open("phone-d", 16);
+        assertEquals(2, sessions.size());
+        assertNotSame(b, sessions.open("phone-b", 16));
+        assertEquals(2, sessions.evicted.sum());
+    }
+
+    @Test
+    public void expiredFromDiscovery_dropsAnIdleSession() {
+        sessions.open("phone-b", 16);
+        sessions.release("phone-b");
+        sessions.expire("phone-b");
+        assertEquals(0, sessions.size());
+    }
+
+    @Test
+    public void clear_startsANewEpoch() {
+        long before = sessions.open("phone-b", 16).localEpoch;
+        sessions.clear();
+        // A connection closing after the stop doesn't bring anything back
+        sessions.release("phone-b");
+        assertEquals(0, sessions.size());
+        assertNotEquals(before, sessions.open("phone-b", 16).localEpoch);
+    }
+}
@@ -0,0 +1,141 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class ResolveSchedulerTest {
+    private static final long MS = 1_000_000L;
+
+    private static ResolveScheduler<String> scheduler() {
+        return new ResolveScheduler<>(60_000, 10_000, new Backoff(50, 2_000, new Random(1)));
+    }
+
+    @Test
+    public void oneResolveInFlight_duplicatesCollapsed() {
+        ResolveScheduler<String> resolves = scheduler();
+        resolves.onFound("a", "a1", 0);
+        resolves.onFound("b", "b1", 0);
+        resolves.onFound("a", "a2", 0);
+        assertEquals(2, resolves.queued());
+
+        ResolveScheduler.Entry<String> first = resolves.poll(0);
+        assertNotNull(first);
+        assertNull("only one in flight", resolves.poll(0));
+        resolves.onFound(first.name, "again", 0);
+        assertEquals(1, resolves.queued());
+
+        resolves.onResolved(first.name, "10.0.0.1", 8765, MS);
+        ResolveScheduler.Entry<String> second = resolves.poll(MS);
+        assertNotEquals(first.name, second.name);
+        if (second.name.equals("a")) {
+            assertEquals("latest announcement wins", "a2", second.service);
+        }
+        resolves.onResolved(second.name, "10.0.0.2", 8765, 2 * MS);
+        assertNull(resolves.poll(2 * MS));
+        assertEquals(-1, resolves.delayNanos(2 * MS));
+    }
+
+    @Test
+    public void busyErrors_backOffAndRetryFirst() {
+        ResolveScheduler<String> resolves = scheduler();
+        resolves.onFound("a", "a", 0);
+        resolves.onFound("b", "b", 0);
+        String name = resolves.poll(0).name;
+
+        assertTrue(resolves.onFailed(name, true, 0));
+        long wait = resolves.delayNanos(0);
+        assertTrue("waits " + wait, wait >= 25 * MS && wait <= 50 * MS);
+        assertNull(resolves.poll(wait - 1));
+        assertEquals(name, resolves.poll(wait).name);
+
+        // A second busy error in a row waits longer
+        assertTrue(resolves.onFailed(name, true, wait));
+        assertTrue(resolves.delayNanos(wait) >= 50 * MS);
+        assertEquals(2, resolves.retries());
+    }
+
+    @Test
+    public void otherErrors_giveUpAfterMaxAttempts() {
+        ResolveScheduler<String> resolves = scheduler();
+        resolves.onFound("a", "a", 0);
+        int polls = 0;
+        long now = 0;
+        while (true) {
+            ResolveScheduler.Entry<String> entry = resolves.poll(now);
+            if (entry == null) {
+                break;
+            }
+            polls++;
+            resolves.onFailed(entry.name, false, now);
+            now += MS;
+        }
+        assertEquals(ResolveScheduler.MAX_ATTEMPTS, polls);
+        assertEquals(0, resolves.queued());
+    }
+
+    @Test
+    public void unansweredResolve_timesOut() {
+        ResolveScheduler<String> resolves = scheduler();
+        resolves.onFound("a", "a", 0);
+        resolves.onFound("b", "b", 0);
+        String stuck = resolves.poll(0).name;
+        assertEquals(10_000 * MS, resolves.delayNanos(0));
+
+        ResolveScheduler.Entry<String> next = resolves.poll(10_000 * MS);
+        assertNotNull(next);
+        assertNotEquals(stuck, next.name);
+        assertEquals(1, resolves.queued());
+    }
+
+    @Test
+    public void neverSeenPeers_jumpAheadOfCachedOnes() {
+        ResolveScheduler<String> resolves = new ResolveScheduler<>(1_000, 10_000, new Backoff(50, 2_000, new Random(1)));
+        resolves.onFound("old", "old", 0);
+        resolves.onResolved(resolves.poll(0).name, "10.0.0.1", 1, 0);
+
+        long later = 5_000 * MS;
+        assertNull("expired", resolves.onFound("old", "old", later));
+        resolves.onFound("new1", "new1", later);
+        resolves.onFound("new2", "new2", later);
+        Set<String> firstTwo = new HashSet<>();
+        for (int i = 0; i < 2; i++) {
+            ResolveScheduler.Entry<String> entry = resolves.poll(later);
+            firstTwo.add(entry.name);
+            resolves.onResolved(entry.name, "10.0.0.2", 1, later);
+        }
+        assertFalse(firstTwo.contains("old"));
+        assertEquals("old", resolves.poll(later).name);
+    }
+
+    @Test
+    public void flapsWithinTtl_servedFromCache() {
+        ResolveScheduler<String> resolves = scheduler();
+        resolves.onFound("a", "a", 0);
+        resolves.onResolved(resolves.poll(0).name, "10.0.0.7", 8765, MS);
+
+        resolves.onLost("a");
+        ResolveScheduler.Address cached = resolves.onFound("a", "a", 30_000 * MS);
+        assertNotNull(cached);
+        assertEquals("10.0.0.7", cached.host);
+        assertEquals(8765, cached.port);
+        assertEquals(0, resolves.queued());
+        assertEquals(1, resolves.cacheHits());
+
+        assertNull(resolves.onFound("a", "a", 61_000 * MS));
+        assertEquals(1, resolves.queued());
+    }
+
+    @Test
+    public void lostBeforeResolve_dropsQueuedEntry() {
+        ResolveScheduler<String> resolves = scheduler();
+        resolves.onFound("a", "a", 0);
+        resolves.onLost("a");
+        assertEquals(0, resolves.queued());
+        assertNull(resolves.poll(0));
+    }
+}
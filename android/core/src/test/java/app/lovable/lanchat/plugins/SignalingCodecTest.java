@@ -0,0 +1,96 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+public class SignalingCodecTest {
+
+    @Test
+    public void knownShapes_roundTrip() throws Exception {
+        String[] messages = {
+            SignalingSamples.callOffer(),
+            SignalingSamples.iceCandidate(),
+            SignalingSamples.typing(),
+            SignalingSamples.seen(),
+            SignalingSamples.chat(),
+        };
+        for (String json : messages) {
+            ByteBuffer frame = SignalingCodec.encode(json);
+            assertNotNull(json, frame);
+            assertTrue("binary frame should be smaller: " + json, frame.remaining() < json.length());
+            assertJsonEquals(json, SignalingCodec.decode(frame));
+        }
+    }
+
+    @Test
+    public void nullablesAndCustomTypes_roundTrip() throws Exception {
+        String[] messages = {
+            "{\"type\":\"call-end\",\"from\":\"a\",\"to\":\"b\",\"payload\":null}",
+            "{\"type\":\"leave\",\"from\":\"a\"}",
+            "{\"type\":\"ice-candidate\",\"from\":\"a\",\"payload\":{\"candidate\":\"\",\"sdpMid\":null,\"sdpMLineIndex\":null}}",
+            "{\"type\":\"future-thing\",\"from\":\"a\",\"payload\":[1,\"two\",{\"three\":3}]}",
+            "{\"type\":\"message\",\"payload\":\"just a string\"}",
+        };
+        for (String json : messages) {
+            ByteBuffer frame = SignalingCodec.encode(json);
+            assertNotNull(json, frame);
+            assertJsonEquals(json, SignalingCodec.decode(frame));
+        }
+    }
+
+    @Test
+    public void unsupportedMessages_fallBackToText() {
+        assertNull(SignalingCodec.encode("not json"));
+        assertNull(SignalingCodec.encode("{\"from\":\"a\"}"));
+        assertNull(SignalingCodec.encode("{\"type\":\"join\",\"extra\":1}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedFrame_isRejected() throws Exception {
+        ByteBuffer frame = SignalingCodec.encode(SignalingSamples.iceCandidate());
+        frame.limit(frame.limit() - 4);
+        SignalingCodec.decode(frame);
+    }
+
+    @Test
+    public void negotiate_picksCommonVersion() {
+        assertEquals(0, SignalingCodec.negotiate(null));
+        assertEquals(0, SignalingCodec.negotiate(""));
+        assertEquals(0, SignalingCodec.negotiate("garbage"));
+        assertEquals(SignalingCodec.PROTOCOL_VERSION, SignalingCodec.negotiate("99"));
+    }
+
+    private static void assertJsonEquals(String expected, String actual) throws Exception {
+        assertEquals(normalize(new JSONObject(expected)), normalize(new JSONObject(actual)));
+    }
+
+    /** Key order is not significant; compare on a sorted rendering. */
+    private static String normalize(Object value) throws Exception {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            TreeMap<String, String> sorted = new TreeMap<>();
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                sorted.put(key, normalize(object.get(key)));
+            }
+            return sorted.toString();
+        }
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            StringBuilder out = new StringBuilder("[");
+            for (int i = 0; i < array.length(); i++) {
+                out.append(normalize(array.get(i))).append(',');
+            }
+            return out.append(']').toString();
+        }
+        return String.valueOf(value);
+    }
+}
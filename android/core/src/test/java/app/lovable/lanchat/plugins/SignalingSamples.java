@@ -0,0 +1,121 @@
+package app.lovable.lanchat.plugins;
+
+import org.json.JSONObject;
+
+/**
+ * Signaling messages shaped exactly like the ones usePeerNetwork sends, for use
+ * in tests and benchmarks.
+ */
+final class SignalingSamples {
+    static final String FROM = "5f0c7a52-3f1e-4c8e-9a51-0d6f2b8e7c11";
+    static final String TO = "b2d94e17-8a3c-47f0-b6e2-9c1d5a7f3e20";
+
+    static final String OFFER_SDP = "v=0\r\n"
+            + "o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n"
+            + "s=-\r\n"
+            + "t=0 0\r\n"
+            + "a=group:BUNDLE 0\r\n"
+            + "a=extmap-allow-mixed\r\n"
+            + "a=msid-semantic: WMS 9d3b4f0c-6a1e-4f7a-8b2c-3e5d7f9a1b2c\r\n"
+            + "m=audio 9 UDP/TLS/RTP/SAVPF 111 63 9 0 8 13 110 126\r\n"
+            + "c=IN IP4 0.0.0.0\r\n"
+            + "a=rtcp:9 IN IP4 0.0.0.0\r\n"
+            + "a=ice-ufrag:Xk3p\r\n"
+            + "a=ice-pwd:8vF2mQ9zL1rT6yH0wB4nC7dE\r\n"
+            + "a=ice-options:trickle\r\n"
+            + "a=fingerprint:sha-256 4A:1F:9C:22:7B:E0:5D:83:16:AF:C4:39:0E:72:D8:5B:"
+            + "91:6C:2E:F7:A3:48:0B:DD:65:1A:8F:C2:37:E9:04:BB\r\n"
+            + "a=setup:actpass\r\n"
+            + "a=mid:0\r\n"
+            + "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n"
+            + "a=extmap:2 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+            + "a=extmap:3 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01\r\n"
+            + "a=extmap:4 urn:ietf:params:rtp-hdrext:sdes:mid\r\n"
+            + "a=sendrecv\r\n"
+            + "a=msid:9d3b4f0c-6a1e-4f7a-8b2c-3e5d7f9a1b2c 2c7e1a9f-4b3d-4e8a-9f0c-6d5b3a1e7f2d\r\n"
+            + "a=rtcp-mux\r\n"
+            + "a=rtcp-rsize\r\n"
+            + "a=rtpmap:111 opus/48000/2\r\n"
+            + "a=rtcp-fb:111 transport-cc\r\n"
+            + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+            + "a=rtpmap:63 red/48000/2\r\n"
+            + "a=fmtp:63 111/111\r\n"
+            + "a=rtpmap:9 G722/8000\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n"
+            + "a=rtpmap:8 PCMA/8000\r\n"
+            + "a=rtpmap:13 CN/8000\r\n"
+            + "a=rtpmap:110 telephone-event/48000\r\n"
+            + "a=rtpmap:126 telephone-event/8000\r\n"
+            + "a=ssrc:1507315402 cname:r7Qm2Kx9Vb4Tz1Lp\r\n"
+            + "a=ssrc:1507315402 msid:9d3b4f0c-6a1e-4f7a-8b2c-3e5d7f9a1b2c "
+            + "2c7e1a9f-4b3d-4e8a-9f0c-6d5b3a1e7f2d\r\n";
+
+    static final String CANDIDATE =
+            "candidate:3327459137 1 udp 2122260223 192.168.43.187 51234 typ host generation 0 "
+            + "ufrag Xk3p network-id 1 network-cost 10";
+
+    private SignalingSamples() {
+    }
+
+    static String callOffer() throws Exception {
+        JSONObject sdp = new JSONObject().put("type", "offer").put("sdp", OFFER_SDP);
+        JSONObject payload = new JSONObject().put("username", "Priya").put("sdp", sdp);
+        return message("call-offer", payload);
+    }
+
+    static String iceCandidate() throws Exception {
+        JSONObject payload = new JSONObject()
+                .put("candidate", CANDIDATE)
+                .put("sdpMid", "0")
+                .put("sdpMLineIndex", 0)
+                .put("usernameFragment", "Xk3p");
+        return message("ice-candidate", payload);
+    }
+
+    static String typing() throws Exception {
+        return message("typing", new JSONObject().put("isTyping", true));
+    }
+
+    static String seen() throws Exception {
+        return message("seen", new JSONObject().put("messageId", "0c8f4e2a-7b1d-4a9e-b3f6-5d2c8a1e9f47"));
+    }
+
+    static String chat() throws Exception {
+        JSONObject payload = new JSONObject()
+                .put("id", "0c8f4e2a-7b1d-4a9e-b3f6-5d2c8a1e9f47")
+                .put("senderId", FROM)
+                .put("receiverId", TO)
+                .put("content", "Meet at the north entrance after the talk?")
+                .put("timestamp", "2026-10-16T09:41:27.512Z")
+                .put("status", "sending")
+                .put("type", "text");
+        return message("message", payload);
+    }
+
+    /** The sample for a benchmark parameter: offer, ice, typing, seen or chat. */
+    static String byName(String name) throws Exception {
+        switch (name) {
+            case "offer":
+                return callOffer();
+            case "ice":
+                return iceCandidate();
+            case "typing":
+                return typing();
+            case "seen":
+                return seen();
+            case "chat":
+                return chat();
+            default:
+                throw new IllegalArgumentException("No sample named " + name);
+        }
+    }
+
+    private static String message(String type, Object payload) throws Exception {
+        return new JSONObject()
+                .put("type", type)
+                .put("from", FROM)
+                .put("to", TO)
+                .put("payload", payload)
+                .toString();
+    }
+}
@@ -0,0 +1,210 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.ServerHandshake;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SocketTuningTest {
+    private final List<Server> servers = new ArrayList<>();
+    private final List<Client> clients = new ArrayList<>();
+
+    /** Loopback server built the way the plugin builds its own from a tuning block. */
+    private static final class Server extends TunedWebSocketServer {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        final List<String> received = new CopyOnWriteArrayList<>();
+        final List<Socket> accepted = new CopyOnWriteArrayList<>();
+
+        Server(SocketTuning tuning, int port) {
+            super(new InetSocketAddress("127.0.0.1", port), tuning, Collections.singletonList(tuning.draft(null)));
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            accepted.add(((SocketChannel) ((WebSocketImpl) conn).getChannel()).socket());
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            received.add(message);
+            conn.send(message);
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message) {
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+            if (conn == null) {
+                // Failed to bind or the selector died
+                error.set(ex);
+                started.countDown();
+            }
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+    }
+
+    /** Outgoing client with the same tuning, as connectToPeer sets it up. */
+    private static final class Client extends WebSocketClient {
+        final CountDownLatch closed = new CountDownLatch(1);
+        final CountDownLatch echoed = new CountDownLatch(1);
+        final AtomicInteger closeCode = new AtomicInteger();
+
+        Client(SocketTuning tuning, int port) {
+            super(URI.create("ws://127.0.0.1:" + port), tuning.draft(null));
+            tuning.applyTo(this);
+            if (tuning.socketFactory() != null) {
+                setSocketFactory(tuning.socketFactory());
+            }
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshake) {
+        }
+
+        @Override
+        public void onMessage(String message) {
+            echoed.countDown();
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            closeCode.set(code);
+            closed.countDown();
+        }
+
+        @Override
+        public void onError(Exception ex) {
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (Client client : clients) {
+            client.closeBlocking();
+        }
+        for (Server server : servers) {
+            server.stop(1000);
+        }
+    }
+
+    private Server start(SocketTuning tuning, int port) throws InterruptedException {
+        Server server = new Server(tuning, port);
+        servers.add(server);
+        server.start();
+        assertTrue(server.started.await(10, TimeUnit.SECONDS));
+        return server;
+    }
+
+    private Client connect(SocketTuning tuning, Server server) throws InterruptedException {
+        Client client = new Client(tuning, server.getPort());
+        clients.add(client);
+        assertTrue(client.connectBlocking(10, TimeUnit.SECONDS));
+        return client;
+    }
+
+    @Test
+    public void immediateRestartRebindsThePort() throws Exception {
+        SocketTuning tuning = SocketTuning.defaults();
+        Server first = start(tuning, 0);
+        int port = first.getPort();
+        // Live connections leave sockets on the port in TIME_WAIT once the server closes them
+        for (int i = 0; i < 3; i++) {
+            Client client = connect(tuning, first);
+            client.send("hello");
+            assertTrue(client.echoed.await(5, TimeUnit.SECONDS));
+        }
+        first.stop(1000);
+        servers.remove(first);
+
+        Server second = start(tuning, port);
+        assertNull(second.error.get());
+        assertEquals(port, second.getPort());
+        Client client = connect(tuning, second);
+        client.send("again");
+        assertTrue(client.echoed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void oversizedFrameClosesTheConnection() throws Exception {
+        SocketTuning tuning = new SocketTuning(1, true, 0, 0, true, 0, 1024);
+        Server server = start(tuning, 0);
+        Client client = connect(SocketTuning.defaults(), server);
+
+        client.send(repeat('a', 512));
+        assertTrue(client.echoed.await(5, TimeUnit.SECONDS));
+        client.send(repeat('b', 4096));
+        assertTrue(client.closed.await(5, TimeUnit.SECONDS));
+
+        assertEquals(CloseFrame.TOOBIG, client.closeCode.get());
+        assertEquals(1, server.received.size());
+    }
+
+    @Test
+    public void clientAppliesBufferSizes() throws Exception {
+        SocketTuning tuning = new SocketTuning(1, true, 64 * 1024, 64 * 1024, true, 0, 0);
+        Server server = start(tuning, 0);
+        Client client = connect(tuning, server);
+
+        assertTrue(client.getSocket().getTcpNoDelay());
+        // The OS may round the size, but not leave it unset
+        assertTrue(client.getSocket().getReceiveBufferSize() > 0);
+        client.send("hello");
+        assertTrue(client.echoed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void acceptedSocketsInheritTheListenersReceiveBuffer() throws Exception {
+        // Above 64 KB, where the window scale agreed on at accept time starts to matter
+        SocketTuning tuning = new SocketTuning(1, true, 256 * 1024, 0, true, 0, 0);
+        Server server = start(tuning, 0);
+        Client client = connect(SocketTuning.defaults(), server);
+        client.send("hello");
+        assertTrue(client.echoed.await(5, TimeUnit.SECONDS));
+        assertTrue(server.accepted.get(0).getReceiveBufferSize() > 64 * 1024);
+
+        // Without a size the library's 16 KB stays on the listener
+        Server untuned = start(SocketTuning.defaults(), 0);
+        Client other = connect(SocketTuning.defaults(), untuned);
+        other.send("hello");
+        assertTrue(other.echoed.await(5, TimeUnit.SECONDS));
+        assertTrue(untuned.accepted.get(0).getReceiveBufferSize() <= 64 * 1024);
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
@@ -0,0 +1,287 @@
+package app.lovable.lanchat.plugins;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.exceptions.InvalidDataException;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.handshake.Handshakedata;
+import org.java_websocket.handshake.ServerHandshake;
+import org.java_websocket.handshake.ServerHandshakeBuilder;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One simulated device for {@link SwarmSimulator}: a WebSocket server and
+ * outgoing clients from the same library, with the plugin's handshake
+ * headers, duplicate-socket tie-break and {@link PeerSender}, but no
+ * Capacitor. Messages that arrive are decoded as the plugin
+ * would and handed to the listener instead of JS.
+ */
+final class SwarmNode {
+    // Same close code the plugin uses for the socket that lost the tie-break
+    static final int CLOSE_DUPLICATE = 4001;
+    private static final int QUEUE_CAPACITY = 256;
+
+    interface Listener {
+        void onMessage(SwarmNode node, String json, long receivedNanos);
+    }
+
+    final String deviceId;
+    final LongAdder duplicatesClosed = new LongAdder();
+    final TrafficCounters traffic = new TrafficCounters();
+    final LatencyHistogram sendLatency = new LatencyHistogram();
+    final LongAdder sendFailures = new LongAdder();
+
+    private final Listener listener;
+    private final SocketTuning tuning = SocketTuning.defaults();
+    private final PeerRegistry peers = new PeerRegistry();
+    // Outgoing clients by the device they dial; guarded by itself
+    private final Map<String, WebSocketClient> dials = new HashMap<>();
+    private volatile ScheduledExecutorService writer;
+    private final PeerSender sender = new PeerSender(() -> writer, traffic, sendLatency, sendFailures);
+    private Server server;
+    private int port;
+
+    SwarmNode(String deviceId, Listener listener) {
+        this.deviceId = deviceId;
+        this.listener = listener;
+        peers.setLocalDeviceId(deviceId);
+    }
+
+    /** Start the server on {@code port}, 0 for any free one, and wait until it listens. */
+    synchronized void start(int port) throws InterruptedException {
+        writer = Executors.newSingleThreadScheduledExecutor();
+        server = new Server(new InetSocketAddress("127.0.0.1", port));
+        server.start();
+        if (!server.started.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException(deviceId + " did not start");
+        }
+        this.port = server.getPort();
+    }
+
+    synchronized int port() {
+        return port;
+    }
+
+    /** Connect to another node, as connectToPeer does; replaces a client that closed. */
+    void dial(SwarmNode other) {
+        WebSocketClient client;
+        synchronized (dials) {
+            WebSocketClient existing = dials.get(other.deviceId);
+            if (existing != null && !existing.isClosed()) {
+                return;
+            }
+            Map<String, String> headers = new HashMap<>();
+            headers.put(SignalingCodec.PROTOCOL_HEADER, String.valueOf(SignalingCodec.PROTOCOL_VERSION));
+            headers.put(PeerRegistry.DEVICE_HEADER, deviceId);
+            String clientId = "127.0.0.1:" + other.port();
+            client = new WebSocketClient(URI.create("ws://" + clientId), tuning.draft(null), headers) {
+                @Override
+                public void onOpen(ServerHandshake handshake) {
+                    onPeerOpen(this, clientId, handshake);
+                }
+
+                @Override
+                public void onMessage(String message) {
+                    listener.onMessage(SwarmNode.this, message, System.nanoTime());
+                }
+
+                @Override
+                public void onMessage(ByteBuffer bytes) {
+                    onBinaryMessage(bytes);
+                }
+
+                @Override
+                public void onClose(int code, String reason, boolean remote) {
+                    onPeerClose(this);
+                }
+
+                @Override
+                public void onError(Exception ex) {
+                    // Refused or reset; onClose follows
+                }
+            };
+            tuning.applyTo(client);
+            dials.put(other.deviceId, client);
+        }
+        client.connect();
+    }
+
+    boolean isConnected(String deviceId) {
+        return peers.get(deviceId) != null;
+    }
+
+    /** One open connection per device. */
+    int peerCount() {
+        return peers.primaries().size();
+    }
+
+    /** Open sockets on this node, including redundant ones that are still closing. */
+    int socketCount() {
+        int open = 0;
+        for (WebSocket conn : peers.all()) {
+            if (conn.isOpen()) {
+                open++;
+            }
+        }
+        return open;
+    }
+
+    /** Queue a message for one device, as send() does; false if it isn't connected. */
+    boolean send(String toDeviceId, String json) {
+        WebSocket conn = peers.get(toDeviceId);
+        return conn != null && accepted(sender.enqueue(conn, new OutboundMessage(json)));
+    }
+
+    /** One shared message to every connected device, as broadcast() does; returns how many. */
+    int broadcast(String json) {
+        return sender.broadcast(peers.primaries(), new OutboundMessage(json));
+    }
+
+    /** Drop every connection without a close handshake, as when the device loses Wi-Fi. */
+    void dropConnections() {
+        for (WebSocket conn : peers.all()) {
+            conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Dropped");
+        }
+        List<WebSocketClient> clients;
+        synchronized (dials) {
+            clients = new ArrayList<>(dials.values());
+            dials.clear();
+        }
+        for (WebSocketClient client : clients) {
+            if (!client.isOpen()) {
+                client.close();
+            }
+        }
+    }
+
+    /** Crash: drop every connection and stop listening, so peers only see the sockets die. */
+    void crash() throws InterruptedException {
+        dropConnections();
+        stop();
+    }
+
+    synchronized void stop() throws InterruptedException {
+        if (server != null) {
+            server.stop(1000);
+            server = null;
+        }
+        synchronized (dials) {
+            for (WebSocketClient client : dials.values()) {
+                client.close();
+            }
+            dials.clear();
+        }
+        if (writer != null) {
+            writer.shutdownNow();
+            writer = null;
+        }
+        peers.clear();
+    }
+
+    private void onPeerOpen(WebSocket conn, String clientId, Handshakedata handshake) {
+        String peerId = handshake.getFieldValue(PeerRegistry.DEVICE_HEADER);
+        int version = SignalingCodec.negotiate(handshake.getFieldValue(SignalingCodec.PROTOCOL_HEADER));
+        PeerLink link = new PeerLink(clientId, peerId.isEmpty() ? null : peerId, conn instanceof WebSocketClient,
+                version, new OutboundQueue(QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.DROP_OLDEST,
+                        Collections.<String>emptySet()),
+                false, null, null, null, false, false);
+        conn.setAttachment(link);
+        WebSocket redundant = peers.add(conn);
+        if (redundant != null) {
+            // Same as the plugin's closeRedundant
+            PeerLink loser = redundant.getAttachment();
+            WebSocket survivor = peers.get(loser.deviceId);
+            for (OutboundMessage message : loser.queue.takeAll()) {
+                if (survivor != null) {
+                    sender.enqueue(survivor, message);
+                }
+            }
+            duplicatesClosed.increment();
+            redundant.close(CLOSE_DUPLICATE, "Duplicate connection");
+        }
+    }
+
+    private void onPeerClose(WebSocket conn) {
+        PeerLink link = conn.getAttachment();
+        if (link == null) {
+            return;
+        }
+        link.queue.clear();
+        peers.remove(conn);
+    }
+
+    private void onBinaryMessage(ByteBuffer bytes) {
+        long now = System.nanoTime();
+        listener.onMessage(this, SignalingCodec.decode(bytes), now);
+    }
+
+    private static boolean accepted(OutboundQueue.Result result) {
+        return result != OutboundQueue.Result.REJECTED && result != OutboundQueue.Result.OVERFLOW_DISCONNECT;
+    }
+
+    private final class Server extends TunedWebSocketServer {
+        final CountDownLatch started = new CountDownLatch(1);
+
+        Server(InetSocketAddress address) {
+            super(address, tuning, Collections.singletonList(tuning.draft(null)));
+        }
+
+        @Override
+        public ServerHandshakeBuilder onWebsocketHandshakeReceivedAsServer(WebSocket conn, Draft draft,
+                ClientHandshake request) throws InvalidDataException {
+            ServerHandshakeBuilder builder = super.onWebsocketHandshakeReceivedAsServer(conn, draft, request);
+            if (request.hasFieldValue(SignalingCodec.PROTOCOL_HEADER)) {
+                builder.put(SignalingCodec.PROTOCOL_HEADER, String.valueOf(SignalingCodec.PROTOCOL_VERSION));
+            }
+            if (request.hasFieldValue(PeerRegistry.DEVICE_HEADER)) {
+                builder.put(PeerRegistry.DEVICE_HEADER, deviceId);
+            }
+            return builder;
+        }
+
+        @Override
+        public void onOpen(WebSocket conn, ClientHandshake handshake) {
+            onPeerOpen(conn, conn.getRemoteSocketAddress().toString(), handshake);
+        }
+
+        @Override
+        public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+            onPeerClose(conn);
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, String message) {
+            listener.onMessage(SwarmNode.this, message, System.nanoTime());
+        }
+
+        @Override
+        public void onMessage(WebSocket conn, ByteBuffer message) {
+            onBinaryMessage(message);
+        }
+
+        @Override
+        public void onError(WebSocket conn, Exception ex) {
+            // Connection errors are followed by onClose
+        }
+
+        @Override
+        public void onStart() {
+            started.countDown();
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package app.lovable.lanchat.plugins;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load run of the WebSocket mesh: {@code nodes} {@link SwarmNode}s
+ * on 127.0.0.1, one port each, replaying what a room of phones does. All of
+ * them dial each other at once, as on discovery; every node broadcasts a
+ * burst of chat messages; pairs of nodes set up calls and trickle ICE
+ * candidates; one callee crashes halfway through its trickle and comes back;
+ * and every node drops all its sockets and reconnects. One line per phase
+ * gives delivery latency (exact, from per-message send times), throughput,
+ * open sockets by the registries and by the kernel, peak threads and heap.
+ *
+ * Options are {@code key=value}: {@code nodes} (20), {@code burst} chat
+ * messages per node (10), {@code calls} (nodes / 2), {@code candidates} per
+ * side of a call (20) and {@code trickleMs} between them (2).
+ *
+ * Run with: {@code ./gradlew :core:swarm -Pswarm='nodes=100 burst=20'},
+ * or from the IDE.
+ */
+public class SwarmSimulator implements SwarmNode.Listener {
+    private static final String TOKEN = "sim-";
+    private static final long MESH_TIMEOUT_MS = 60_000;
+    private static final long DELIVERY_TIMEOUT_MS = 30_000;
+    private static final long POLL_MS = 5;
+    // After a crash, how long without a delivery before the rest count as lost
+    private static final long SETTLE_MS = 500;
+
+    /** What one phase measured. */
+    static final class Phase {
+        final String name;
+        final long startNanos = System.nanoTime();
+        final LongAdder expected = new LongAdder();
+        final LongAdder delivered = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        // Send time of every message stamped in this phase, by sequence number
+        final Map<Long, Long> sentAt = new ConcurrentHashMap<>();
+        // Guarded by itself
+        private final List<Long> latencies = new ArrayList<>();
+        boolean complete;
+        long elapsedNanos;
+        int sockets;
+        int kernelSockets;
+        int peakThreads;
+        long heapBytes;
+        String note = "";
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        void record(long latencyNanos) {
+            synchronized (latencies) {
+                latencies.add(latencyNanos);
+            }
+            delivered.increment();
+        }
+
+        /** Delivery latency at {@code percentile}, in ms; 0 if nothing was delivered. */
+        double latencyMs(int percentile) {
+            long[] sorted;
+            synchronized (latencies) {
+                sorted = new long[latencies.size()];
+                for (int i = 0; i < sorted.length; i++) {
+                    sorted[i] = latencies.get(i);
+                }
+            }
+            if (sorted.length == 0) {
+                return 0;
+            }
+            Arrays.sort(sorted);
+            return sorted[(sorted.length - 1) * percentile / 100] / 1e6;
+        }
+
+        double messagesPerSecond() {
+            return elapsedNanos == 0 ? 0 : delivered.sum() * 1e9 / elapsedNanos;
+        }
+    }
+
+    private final int burst;
+    private final int calls;
+    private final int candidates;
+    private final long trickleMs;
+    private final List<SwarmNode> nodes = new ArrayList<>();
+    private final AtomicLong nextSeq = new AtomicLong();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private ScheduledExecutorService timer;
+    private volatile Phase current;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Integer> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+            options.put(arg.substring(0, eq), Integer.parseInt(arg.substring(eq + 1)));
+        }
+        int nodes = options.getOrDefault("nodes", 20);
+        SwarmSimulator simulator = new SwarmSimulator(nodes, options.getOrDefault("burst", 10),
+                options.getOrDefault("calls", nodes / 2), options.getOrDefault("candidates", 20),
+                options.getOrDefault("trickleMs", 2));
+        System.out.printf("%d nodes, %d cores, max heap %d MB%n", nodes,
+                Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() >> 20);
+        System.out.printf("%-12s %8s %13s %9s %8s %8s %8s %8s %8s %8s  %s%n", "phase", "ms", "delivered",
+                "msg/s", "p50 ms", "p99 ms", "sockets", "kernel", "threads", "heap MB", "notes");
+        for (Phase phase : simulator.run()) {
+            System.out.printf("%-12s %8d %13s %9.0f %8.2f %8.2f %8d %8d %8d %8d  %s%s%n", phase.name,
+                    phase.elapsedNanos / 1_000_000, phase.delivered.sum() + "/" + phase.expected.sum(),
+                    phase.messagesPerSecond(), phase.latencyMs(50), phase.latencyMs(99), phase.sockets,
+                    phase.kernelSockets, phase.peakThreads, phase.heapBytes >> 20,
+                    phase.complete ? "" : "INCOMPLETE ", phase.note);
+        }
+    }
+
+    SwarmSimulator(int nodes, int burst, int calls, int candidates, long trickleMs) {
+        if (nodes < 2) {
+            throw new IllegalArgumentException("A swarm needs at least two nodes");
+        }
+        for (int i = 0; i < nodes; i++) {
+            this.nodes.add(new SwarmNode(String.format("device-%03d", i), this));
+        }
+        this.burst = burst;
+        this.calls = Math.max(1, Math.min(calls, nodes / 2));
+        this.candidates = candidates;
+        this.trickleMs = trickleMs;
+    }
+
+    /** Every phase in order, each finished before the next starts. */
+    List<Phase> run() throws Exception {
+        timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            for (SwarmNode node : nodes) {
+                node.start(0);
+            }
+            List<Phase> phases = new ArrayList<>();
+            phases.add(joinStorm());
+            phases.add(chatBurst());
+            phases.add(iceTrickle());
+            phases.add(dropMidCall());
+            phases.add(massReconnect());
+            return phases;
+        } finally {
+            timer.shutdownNow();
+            for (SwarmNode node : nodes) {
+                node.stop();
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(SwarmNode node, String json, long receivedNanos) {
+        Phase phase = current;
+        int at = json.indexOf(TOKEN);
+        if (phase == null || at < 0) {
+            return;
+        }
+        int start = at + TOKEN.length();
+        int end = start;
+        while (end < json.length() && Character.isDigit(json.charAt(end))) {
+            end++;
+        }
+        // Late arrivals from an earlier phase aren't stamped in this one
+        Long sent = phase.sentAt.get(Long.parseLong(json.substring(start, end)));
+        if (sent != null) {
+            phase.record(receivedNanos - sent);
+        }
+    }
+
+    /** Every node dials every other at once; the tie-break leaves one socket per pair. */
+    private Phase joinStorm() throws InterruptedException {
+        Phase phase = begin("join storm");
+        long duplicates = duplicatesClosed();
+        dialAll();
+        phase.complete = awaitMesh();
+        finish(phase);
+        phase.note = (duplicatesClosed() - duplicates) + " duplicate sockets closed by the tie-break";
+        return phase;
+    }
+
+    /** Every node broadcasts {@code burst} chat messages to the whole group, round-robin. */
+    private Phase chatBurst() throws Exception {
+        Phase phase = begin("group chat");
+        for (int round = 0; round < burst; round++) {
+            for (SwarmNode node : nodes) {
+                long seq = stamp(phase);
+                phase.expected.add(node.broadcast(chat(node, null, seq)));
+            }
+        }
+        phase.complete = awaitDeliveries(phase);
+        finish(phase);
+        return phase;
+    }
+
+    /** {@code calls} disjoint pairs set up a call at the same time, trickling candidates both ways. */
+    private Phase iceTrickle() throws Exception {
+        Phase phase = begin("ice trickle");
+        List<ScheduledFuture<?>> trickles = new ArrayList<>();
+        for (int i = 0; i < calls; i++) {
+            trickles.addAll(call(phase, nodes.get(2 * i), nodes.get(2 * i + 1), null));
+        }
+        await(trickles);
+        phase.complete = awaitDeliveries(phase);
+        finish(phase);
+        phase.note = calls + " calls, " + phase.failed.sum() + " sends failed";
+        return phase;
+    }
+
+    /**
+     * A callee crashes halfway through its trickle. Reports how long the caller
+     * took to see the socket die and how many messages were lost, then restarts
+     * the callee on its old port and waits for the full mesh again.
+     */
+    private Phase dropMidCall() throws Exception {
+        Phase phase = begin("drop in call");
+        SwarmNode caller = nodes.get(0);
+        SwarmNode callee = nodes.get(1);
+        int port = callee.port();
+        long[] crashedAt = new long[1];
+        List<ScheduledFuture<?>> trickle = call(phase, caller, callee, () -> {
+            crashedAt[0] = System.nanoTime();
+            try {
+                callee.crash();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        await(trickle);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MESH_TIMEOUT_MS);
+        while (caller.isConnected(callee.deviceId) && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        long detectedMs = (System.nanoTime() - crashedAt[0]) / 1_000_000;
+        settle(phase);
+        long lost = phase.expected.sum() - phase.delivered.sum();
+
+        long rejoinStart = System.nanoTime();
+        callee.start(port);
+        for (SwarmNode node : nodes) {
+            if (node != callee) {
+                node.dial(callee);
+                callee.dial(node);
+            }
+        }
+        phase.complete = awaitMesh();
+        long rejoinMs = (System.nanoTime() - rejoinStart) / 1_000_000;
+        finish(phase);
+        phase.note = "drop seen after " + detectedMs + " ms, " + lost + " queued lost, "
+                + phase.failed.sum() + " sends failed, rejoined in " + rejoinMs + " ms";
+        return phase;
+    }
+
+    /** Every node loses every socket at once, as when the access point restarts, then all redial. */
+    private Phase massReconnect() throws InterruptedException {
+        Phase phase = begin("reconnect");
+        for (SwarmNode node : nodes) {
+            node.dropConnections();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MESH_TIMEOUT_MS);
+        while (openSockets() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(POLL_MS);
+        }
+        long dropMs = (System.nanoTime() - phase.startNanos) / 1_000_000;
+        dialAll();
+        phase.complete = awaitMesh();
+        finish(phase);
+        phase.note = "all sockets closed in " + dropMs + " ms";
+        return phase;
+    }
+
+    /**
+     * Offer, answer, then {@code candidates} ICE candidates each way,
+     * {@code trickleMs} apart. {@code halfway} runs on the timer after half of
+     * them, and nothing more is sent from a node once it has stopped.
+     */
+    private List<ScheduledFuture<?>> call(Phase phase, SwarmNode caller, SwarmNode callee, Runnable halfway) {
+        List<ScheduledFuture<?>> steps = new ArrayList<>();
+        boolean[] stopped = new boolean[1];
+        steps.add(timer.schedule(() -> send(phase, caller, callee, "call-offer"), 0, TimeUnit.MILLISECONDS));
+        steps.add(timer.schedule(() -> send(phase, callee, caller, "call-answer"), trickleMs, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < candidates; i++) {
+            boolean drop = halfway != null && i == candidates / 2;
+            steps.add(timer.schedule(() -> {
+                if (drop) {
+                    halfway.run();
+                    stopped[0] = true;
+                }
+                send(phase, caller, callee, "ice-candidate");
+                if (!stopped[0]) {
+                    send(phase, callee, caller, "ice-candidate");
+                }
+            }, (i + 2) * trickleMs, TimeUnit.MILLISECONDS));
+        }
+        return steps;
+    }
+
+    private void send(Phase phase, SwarmNode from, SwarmNode to, String type) {
+        long seq = stamp(phase);
+        String json;
+        try {
+            json = "ice-candidate".equals(type) ? candidate(from, to, seq) : description(type, from, to, seq);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        if (from.send(to.deviceId, json)) {
+            phase.expected.increment();
+        } else {
+            phase.sentAt.remove(seq);
+            phase.failed.increment();
+        }
+    }
+
+    private long stamp(Phase phase) {
+        long seq = nextSeq.getAndIncrement();
+        phase.sentAt.put(seq, System.nanoTime());
+        return seq;
+    }
+
+    private void dialAll() {
+        for (SwarmNode node : nodes) {
+            for (SwarmNode other : nodes) {
+                if (other != node) {
+                    node.dial(other);
+                }
+            }
+        }
+    }
+
+    /** Wait until every node has every other as a peer and the tie-break losers have closed. */
+    private boolean awaitMesh() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MESH_TIMEOUT_MS);
+        while (System.nanoTime() < deadline) {
+            boolean full = openSockets() == nodes.size() * (nodes.size() - 1);
+            for (SwarmNode node : nodes) {
+                if (node.peerCount() < nodes.size() - 1) {
+                    full = false;
+                    break;
+                }
+            }
+            if (full) {
+                return true;
+            }
+            Thread.sleep(POLL_MS);
+        }
+        return false;
+    }
+
+    private boolean awaitDeliveries(Phase phase) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DELIVERY_TIMEOUT_MS);
+        while (phase.delivered.sum() < phase.expected.sum()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(1);
+        }
+        return true;
+    }
+
+    /** Wait until everything sent arrived, or nothing more has for {@link #SETTLE_MS}. */
+    private static void settle(Phase phase) throws InterruptedException {
+        long last = phase.delivered.sum();
+        long quietSince = System.nanoTime();
+        while (last < phase.expected.sum()
+                && System.nanoTime() - quietSince < TimeUnit.MILLISECONDS.toNanos(SETTLE_MS)) {
+            Thread.sleep(1);
+            long now = phase.delivered.sum();
+            if (now != last) {
+                last = now;
+                quietSince = System.nanoTime();
+            }
+        }
+    }
+
+    private static void await(List<ScheduledFuture<?>> steps) throws Exception {
+        for (ScheduledFuture<?> step : steps) {
+            step.get();
+        }
+    }
+
+    private Phase begin(String name) {
+        threads.resetPeakThreadCount();
+        Phase phase = new Phase(name);
+        current = phase;
+        return phase;
+    }
+
+    private void finish(Phase phase) {
+        phase.elapsedNanos = System.nanoTime() - phase.startNanos;
+        phase.sockets = openSockets();
+        phase.kernelSockets = kernelSockets();
+        phase.peakThreads = threads.getPeakThreadCount();
+        phase.heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private int openSockets() {
+        int open = 0;
+        for (SwarmNode node : nodes) {
+            open += node.socketCount();
+        }
+        return open;
+    }
+
+    private long duplicatesClosed() {
+        long closed = 0;
+        for (SwarmNode node : nodes) {
+            closed += node.duplicatesClosed.sum();
+        }
+        return closed;
+    }
+
+    /** Socket descriptors this process holds, listeners included; -1 off Linux. */
+    private static int kernelSockets() {
+        File[] fds = new File("/proc/self/fd").listFiles();
+        if (fds == null) {
+            return -1;
+        }
+        int sockets = 0;
+        for (File fd : fds) {
+            try {
+                if (Files.readSymbolicLink(fd.toPath()).toString().startsWith("socket:")) {
+                    sockets++;
+                }
+            } catch (IOException | UnsupportedOperationException e) {
+                // Closed since it was listed
+            }
+        }
+        return sockets;
+    }
+
+    private static String chat(SwarmNode from, SwarmNode to, long seq) throws Exception {
+        JSONObject payload = new JSONObject()
+                .put("id", TOKEN + seq)
+                .put("senderId", from.deviceId)
+                .put("content", "Meet at the north entrance after the talk?")
+                .put("timestamp", "2026-10-16T09:41:27.512Z")
+                .put("status", "sending")
+                .put("type", "text");
+        if (to != null) {
+            payload.put("receiverId", to.deviceId);
+        }
+        return message("message", from, to, payload);
+    }
+
+    private static String description(String type, SwarmNode from, SwarmNode to, long seq) throws Exception {
+        JSONObject sdp = new JSONObject()
+                .put("type", "call-offer".equals(type) ? "offer" : "answer")
+                .put("sdp", SignalingSamples.OFFER_SDP);
+        return message(type, from, to, new JSONObject().put("username", TOKEN + seq).put("sdp", sdp));
+    }
+
+    private static String candidate(SwarmNode from, SwarmNode to, long seq) throws Exception {
+        JSONObject payload = new JSONObject()
+                .put("candidate", SignalingSamples.CANDIDATE)
+                .put("sdpMid", "0")
+                .put("sdpMLineIndex", 0)
+                .put("usernameFragment", TOKEN + seq);
+        return message("ice-candidate", from, to, payload);
+    }
+
+    private static String message(String type, SwarmNode from, SwarmNode to, JSONObject payload) throws Exception {
+        JSONObject message = new JSONObject().put("type", type).put("from", from.deviceId);
+        if (to != null) {
+            message.put("to", to.deviceId);
+        }
+        return message.put("payload", payload).toString();
+    }
+}
@@ -0,0 +1,33 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.List;
+
+public class SwarmSimulatorTest {
+    @Test
+    public void smallSwarm_meshesDeliversEverythingAndRecoversFromDrops() throws Exception {
+        List<SwarmSimulator.Phase> phases = new SwarmSimulator(4, 3, 2, 6, 1).run();
+
+        assertEquals(5, phases.size());
+        for (SwarmSimulator.Phase phase : phases) {
+            assertTrue(phase.name + " did not finish", phase.complete);
+        }
+        SwarmSimulator.Phase chat = phases.get(1);
+        // Every node's broadcasts reach the three others
+        assertEquals(4 * 3 * 3, chat.expected.sum());
+        assertEquals(chat.expected.sum(), chat.delivered.sum());
+        assertTrue(chat.latencyMs(99) >= chat.latencyMs(50));
+
+        SwarmSimulator.Phase trickle = phases.get(2);
+        // Offer, answer and six candidates each way, for two calls
+        assertEquals(2 * (2 + 2 * 6), trickle.delivered.sum());
+        assertEquals(0, trickle.failed.sum());
+
+        SwarmSimulator.Phase reconnect = phases.get(4);
+        // One socket per pair, counted at both ends
+        assertEquals(4 * 3, reconnect.sockets);
+    }
+}
@@ -0,0 +1,82 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+public class TopicIndexTest {
+
+    @Test
+    public void subscribers_areFoundByTopic_andDroppedWithTheirConnection() {
+        TopicIndex<String> index = new TopicIndex<>(8);
+        assertTrue(index.subscribe("conn-a", "room-1"));
+        assertTrue(index.subscribe("conn-b", "room-1"));
+        assertTrue(index.subscribe("conn-a", "call-7"));
+        // Subscribing twice is a no-op
+        assertTrue(index.subscribe("conn-a", "room-1"));
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList("conn-a", "conn-b")), index.subscribers("room-1"));
+        assertEquals(Collections.singleton("conn-a"), index.subscribers("call-7"));
+        assertTrue(index.subscribers("room-2").isEmpty());
+        assertEquals(3, index.size());
+
+        assertTrue(index.unsubscribe("conn-b", "room-1"));
+        assertFalse(index.unsubscribe("conn-b", "room-1"));
+        assertEquals(Collections.singleton("conn-a"), index.subscribers("room-1"));
+
+        assertEquals(new LinkedHashSet<>(Arrays.asList("room-1", "call-7")), index.removeAll("conn-a"));
+        assertTrue(index.subscribers("room-1").isEmpty());
+        assertFalse(index.isSubscribed("conn-a", "call-7"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void subscriptions_areBoundedPerSubscriber() {
+        TopicIndex<String> index = new TopicIndex<>(2);
+        assertTrue(index.subscribe("conn-a", "t1"));
+        assertTrue(index.subscribe("conn-a", "t2"));
+        assertFalse(index.subscribe("conn-a", "t3"));
+        assertTrue(index.subscribe("conn-b", "t3"));
+
+        char[] tooLong = new char[TopicIndex.MAX_TOPIC_BYTES + 1];
+        Arrays.fill(tooLong, 'x');
+        assertFalse(index.subscribe("conn-b", new String(tooLong)));
+        assertFalse(index.subscribe("conn-b", ""));
+        assertEquals(3, index.size());
+    }
+
+    @Test
+    public void frames_roundTripAndRejectGarbage() {
+        ByteBuffer frame = TopicFrame.encode(TopicFrame.SUBSCRIBE, Arrays.asList("room-1", "café"));
+        assertTrue(TopicFrame.isTopicFrame(frame));
+        assertFalse(TopicFrame.isTopicFrame(RelayFrame.encode(1, 1L, "a", null, false, ByteBuffer.allocate(0))));
+        TopicFrame parsed = TopicFrame.parse(frame);
+        assertEquals(TopicFrame.SUBSCRIBE, parsed.op);
+        assertEquals(Arrays.asList("room-1", "café"), parsed.topics);
+
+        assertEquals(TopicFrame.UNSUBSCRIBE,
+                TopicFrame.parse(TopicFrame.encode(TopicFrame.UNSUBSCRIBE, Collections.singleton("x"))).op);
+
+        ByteBuffer truncated = frame.duplicate();
+        truncated.limit(frame.limit() - 1);
+        try {
+            TopicFrame.parse(truncated);
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+        String[] tooMany = new String[TopicIndex.DEFAULT_MAX_TOPICS + 1];
+        Arrays.fill(tooMany, "t");
+        try {
+            TopicFrame.parse(TopicFrame.encode(TopicFrame.SUBSCRIBE, Arrays.asList(tooMany)));
+            fail();
+        } catch (IllegalArgumentException expected) {
+            // ok
+        }
+    }
+}
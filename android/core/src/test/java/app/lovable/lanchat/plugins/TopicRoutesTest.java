@@ -0,0 +1,174 @@
+package app.lovable.lanchat.plugins;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+public class TopicRoutesTest {
+    /** Devices exchanging subscriptions and route frames the way the plugin does, one frame at a time. */
+    private static final class Mesh {
+        final Map<String, TopicRoutes<String>> routes = new HashMap<>();
+        final Map<String, TopicIndex<String>> direct = new HashMap<>();
+        final Map<String, List<String>> links = new HashMap<>();
+        final Queue<Runnable> wire = new ArrayDeque<>();
+
+        Mesh(String... ids) {
+            for (String id : ids) {
+                routes.put(id, new TopicRoutes<>(TopicRoutes.DEFAULT_MAX_ROUTES, MeshRelay.Limits.DEFAULT_MAX_TTL));
+                direct.put(id, new TopicIndex<>(TopicIndex.DEFAULT_MAX_TOPICS));
+                links.put(id, new ArrayList<>());
+            }
+        }
+
+        void connect(String a, String b) {
+            links.get(a).add(b);
+            links.get(b).add(a);
+            advertise(a);
+            advertise(b);
+            settle();
+        }
+
+        void subscribe(String id, String topic, boolean subscribed) {
+            for (String neighbor : links.get(id)) {
+                wire.add(() -> {
+                    if (subscribed) {
+                        direct.get(neighbor).subscribe(id, topic);
+                    } else {
+                        direct.get(neighbor).unsubscribe(id, topic);
+                    }
+                    advertise(neighbor);
+                });
+            }
+            settle();
+        }
+
+        void advertise(String id) {
+            routes.get(id).advertise(links.get(id), neighbor -> true, direct.get(id), (to, changes) -> {
+                for (ByteBuffer frame : TopicFrame.encodeRoutes(changes)) {
+                    wire.add(() -> {
+                        routes.get(to).update(id, TopicFrame.parse(frame));
+                        advertise(to);
+                    });
+                }
+            });
+        }
+
+        void settle() {
+            Runnable next;
+            while ((next = wire.poll()) != null) {
+                next.run();
+            }
+        }
+
+        boolean reaches(String from, String through, String topic) {
+            return direct.get(from).isSubscribed(through, topic) || routes.get(from).reaches(through, topic);
+        }
+
+        int routeCount() {
+            int count = 0;
+            for (TopicRoutes<String> table : routes.values()) {
+                count += table.size();
+            }
+            return count;
+        }
+    }
+
+    @Test
+    public void routeFrames_roundTrip_andStayReadableAsVersionTwo() {
+        Map<String, Integer> changes = new LinkedHashMap<>();
+        changes.put("room-1", 3);
+        changes.put("call-9", 0);
+        ByteBuffer frame = TopicFrame.encodeRoutes(changes).get(0);
+        assertTrue(TopicFrame.isTopicFrame(frame));
+        assertEquals(0xA0 | TopicFrame.ROUTES_VERSION, frame.get(0) & 0xFF);
+
+        TopicFrame parsed = TopicFrame.parse(frame);
+        assertEquals(TopicFrame.ROUTE, parsed.op);
+        assertEquals(new ArrayList<>(changes.keySet()), parsed.topics);
+        assertArrayEquals(new int[] {3, 0}, parsed.distances);
+        // Subscriptions keep the version older peers parse
+        assertEquals(0xA1, TopicFrame.encode(TopicFrame.SUBSCRIBE, Collections.singleton("x")).get(0) & 0xFF);
+
+        Map<String, Integer> many = new LinkedHashMap<>();
+        for (int i = 0; i < TopicIndex.DEFAULT_MAX_TOPICS + 1; i++) {
+            many.put("t" + i, 2);
+        }
+        assertEquals(2, TopicFrame.encodeRoutes(many).size());
+        assertEquals(2, TopicFrame.negotiate("2"));
+        assertEquals(2, TopicFrame.negotiate("7"));
+        assertEquals(0, TopicFrame.negotiate(""));
+    }
+
+    @Test
+    public void interest_spreadsAlongALine_andIsWithdrawnWithTheSubscription() {
+        Mesh mesh = new Mesh("a", "b", "c", "d");
+        mesh.connect("a", "b");
+        mesh.connect("b", "c");
+        mesh.connect("c", "d");
+
+        mesh.subscribe("d", "room-1", true);
+        assertTrue(mesh.reaches("a", "b", "room-1"));
+        assertTrue(mesh.reaches("b", "c", "room-1"));
+        assertTrue(mesh.reaches("c", "d", "room-1"));
+        // Nobody is told about routes back through themselves
+        assertFalse(mesh.reaches("c", "b", "room-1"));
+        assertFalse(mesh.reaches("a", "b", "room-2"));
+
+        mesh.subscribe("d", "room-1", false);
+        assertFalse(mesh.reaches("a", "b", "room-1"));
+        assertEquals(0, mesh.routeCount());
+    }
+
+    @Test
+    public void interestEchoingRoundALoop_diesOutOnceTheSubscriberLeaves() {
+        // A ring with the subscriber hanging off it, so every ring device has two ways to it
+        Mesh mesh = new Mesh("a", "b", "c", "d", "sub");
+        mesh.connect("a", "b");
+        mesh.connect("b", "c");
+        mesh.connect("c", "d");
+        mesh.connect("d", "a");
+        mesh.connect("a", "sub");
+        mesh.subscribe("sub", "room-1", true);
+        assertTrue(mesh.reaches("c", "b", "room-1"));
+        assertTrue(mesh.reaches("c", "d", "room-1"));
+
+        mesh.subscribe("sub", "room-1", false);
+        assertEquals(0, mesh.routeCount());
+        for (String id : new String[] {"a", "b", "c", "d"}) {
+            for (String neighbor : mesh.links.get(id)) {
+                assertFalse(id + " via " + neighbor, mesh.reaches(id, neighbor, "room-1"));
+            }
+        }
+    }
+
+    @Test
+    public void tooManyRoutes_fallBackToEverything() {
+        TopicRoutes<String> routes = new TopicRoutes<>(2, 8);
+        Map<String, Integer> learned = new LinkedHashMap<>();
+        learned.put("t1", 2);
+        learned.put("t2", 2);
+        learned.put("t3", 2);
+        routes.update("b", TopicFrame.parse(TopicFrame.encodeRoutes(learned).get(0)));
+        assertTrue(routes.reaches("b", "anything"));
+
+        TopicIndex<String> direct = new TopicIndex<>(8);
+        direct.subscribe("c", "t4");
+        List<Map<String, Integer>> told = new ArrayList<>();
+        routes.advertise(Arrays.asList("b", "c", "d"), "d"::equals, direct, (to, changes) -> told.add(changes));
+        assertEquals(Collections.singletonList(Collections.singletonMap(TopicRoutes.ANY, 2)), told);
+
+        routes.remove("b");
+        assertFalse(routes.reaches("b", "anything"));
+    }
+}
@@ -1,20 +1,25 @@
 import { useState, useEffect, useCallback, useRef } from 'react';
 import { Peer, P2PMessage, SignalingMessage, LocalProfile } from '@/types/p2p';
 import { saveMessage, getMessages, updateMessageStatus, savePeer, getPeers } from '@/lib/storage';
-import LanDiscovery, { DiscoveredPeer } from '@/plugins/LanDiscovery';
-import WebSocketServer from '@/plugins/WebSocketServer';
+import LanDiscovery, { DiscoveredPeer, PeersDelta } from '@/plugins/LanDiscovery';
+import WebSocketServer, { MessageDeliveryBatch, OutboxFlushedBatch, SendBatchEntry, WebSocketTopologyOptions } from '@/plugins/WebSocketServer';
 
 interface UsePeerNetworkProps {
   profile: LocalProfile | null;
   onMessage?: (message: P2PMessage) => void;
   onTyping?: (peerId: string, isTyping: boolean) => void;
   onCallOffer?: (fromPeer: Peer) => void;
+  // Native topology manager settings; large rooms can opt in to keeping a bounded set of links
+  // and relaying to everyone else (default off: every discovered peer is connected to)
+  topology?: WebSocketTopologyOptions;
 }
 
 const WS_PORT = 8765;
 const SERVICE_PREFIX = 'LC_';
+// How long bursty messages wait to share a sendBatch call
+const SEND_BATCH_DELAY_MS = 10;
 
-export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: UsePeerNetworkProps) {
+export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer, topology }: UsePeerNetworkProps) {
   const [peers, setPeers] = useState<Peer[]>([]);
   const [isConnected, setIsConnected] = useState(false);
   const [myIp, setMyIp] = useState<string>('');
@@ -31,6 +36,10 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
   const peerIdToClientIdRef = useRef<Map<string, string>>(new Map());
   const clientIdToPeerIdRef = useRef<Map<string, string>>(new Map());
   const ipToPeerIdRef = useRef<Map<string, string>>(new Map());
+  // Chat messages awaiting a native ack, by `${deviceId}:${seq}` from WebSocketServer.send
+  const pendingDeliveryRef = useRef<Map<string, string>>(new Map());
+  // Chat messages the native outbox is holding for an away device, by storedId until outboxFlushed gives their seq
+  const pendingStoredRef = useRef<Map<number, string>>(new Map());
 
   // Initialize network discovery and WebSocket server
   useEffect(() => {
@@ -60,7 +69,17 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
     };
 
     initialize();
-    return () => { cleanup = true; };
+
+    // Joining Wi-Fi or starting a hotspot changes the address peers should dial
+    const addressListener = LanDiscovery.addListener('localAddressChanged', ({ ip }) => {
+      console.log('[usePeerNetwork] Local address changed:', ip);
+      if (!cleanup) setMyIp(ip);
+    });
+
+    return () => {
+      cleanup = true;
+      addressListener.then(listener => listener.remove()).catch(() => {});
+    };
   }, [profile]);
 
   // Mapping helper functions (not hooks, just regular functions using refs)
@@ -145,11 +164,17 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
       
       if (clientId) {
         console.log('[usePeerNetwork] Sending to peer:', peerId, 'via clientId:', clientId);
-        await WebSocketServer.send({ clientId, data: JSON.stringify(message) });
+        const result = await WebSocketServer.send({ clientId, data: JSON.stringify(message) });
+        if (message.type === 'message' && result?.seq !== undefined) {
+          pendingDeliveryRef.current.set(`${result.deviceId}:${result.seq}`, message.payload.id);
+        } else if (message.type === 'message' && result?.storedId !== undefined) {
+          pendingStoredRef.current.set(result.storedId, message.payload.id);
+        }
         return true;
       } else {
-        console.log('[usePeerNetwork] No clientId for peer:', peerId, 'falling back to broadcast');
-        await WebSocketServer.broadcast({ data: JSON.stringify(message) });
+        // Only the peer's own device subscribes to its topic; older peers filter by message.to
+        console.log('[usePeerNetwork] No clientId for peer:', peerId, 'publishing to its topic');
+        await WebSocketServer.publish({ topic: `peer:${peerId}`, data: JSON.stringify(message) });
         return true;
       }
     } catch (error) {
@@ -158,6 +183,41 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
     }
   }, [getClientIdForPeer]);
 
+  // Bursty small messages (ICE candidates, seen receipts) are queued briefly and sent in one sendBatch call
+  const queuedSendsRef = useRef<{ peerId: string; message: SignalingMessage }[]>([]);
+  const queuedSendsTimerRef = useRef<ReturnType<typeof setTimeout> | null>(null);
+
+  const flushQueuedSends = useCallback(async () => {
+    queuedSendsTimerRef.current = null;
+    const queued = queuedSendsRef.current;
+    queuedSendsRef.current = [];
+    const entries: SendBatchEntry[] = [];
+    for (const { peerId, message } of queued) {
+      const clientId = getClientIdForPeer(peerId);
+      if (clientId) {
+        entries.push({ clientId, data: JSON.stringify(message) });
+      } else {
+        await sendToPeer(peerId, message);
+      }
+    }
+    if (entries.length === 0) return;
+    try {
+      const { failed, results } = await WebSocketServer.sendBatch({ entries });
+      if (failed > 0) {
+        console.warn('[usePeerNetwork] sendBatch failures:', results.filter(r => !r.ok));
+      }
+    } catch (error) {
+      console.error('[usePeerNetwork] sendBatch error:', error);
+    }
+  }, [getClientIdForPeer, sendToPeer]);
+
+  const queueToPeer = useCallback((peerId: string, message: SignalingMessage) => {
+    queuedSendsRef.current.push({ peerId, message });
+    if (!queuedSendsTimerRef.current) {
+      queuedSendsTimerRef.current = setTimeout(flushQueuedSends, SEND_BATCH_DELAY_MS);
+    }
+  }, [flushQueuedSends]);
+
   // Create WebRTC peer connection
   const createPeerConnection = useCallback((peerId: string): RTCPeerConnection => {
     console.log('[WebRTC] Creating peer connection with STUN servers...');
@@ -177,7 +237,7 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
     pc.onicecandidate = (event) => {
       if (event.candidate && profile) {
         console.log('[WebRTC] 📤 ICE candidate:', event.candidate.candidate.substring(0, 80));
-        sendToPeer(peerId, {
+        queueToPeer(peerId, {
           type: 'ice-candidate',
           from: profile.id,
           to: peerId,
@@ -245,7 +305,7 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
     };
 
     return pc;
-  }, [profile, sendToPeer]);
+  }, [profile, queueToPeer]);
 
   const handleCallEnd = useCallback((peerId: string) => {
     setLocalStream(prev => {
@@ -306,7 +366,7 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
     }
   }, [createPeerConnection]);
 
-  const handleIncomingMessage = useCallback((messageData: any, senderId: string) => {
+  const handleIncomingMessage = useCallback((messageData: any, senderId: string, nativeAck = false) => {
     const message: P2PMessage = {
       ...messageData,
       timestamp: new Date(messageData.timestamp),
@@ -316,7 +376,8 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
     saveMessage(message);
     onMessage?.(message);
 
-    if (profile) {
+    // With native acks the sender already learns about delivery from the plugin
+    if (profile && !nativeAck) {
       sendToPeer(senderId, {
         type: 'delivered',
         from: profile.id,
@@ -327,7 +388,7 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
   }, [profile, onMessage, sendToPeer]);
 
   // Handle incoming WebSocket messages
-  const handleIncomingData = useCallback((data: string, clientId?: string) => {
+  const handleIncomingData = useCallback((data: string, clientId?: string, seq?: number) => {
     try {
       const message: SignalingMessage = JSON.parse(data);
       console.log('[usePeerNetwork] Received:', message.type, 'from:', message.from);
@@ -342,7 +403,7 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
 
       switch (message.type) {
         case 'message':
-          handleIncomingMessage(message.payload, message.from);
+          handleIncomingMessage(message.payload, message.from, seq !== undefined);
           break;
         case 'typing':
           onTyping?.(message.from, message.payload.isTyping);
@@ -350,9 +411,13 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
         case 'delivered':
           updateMessageStatus(message.payload.messageId, 'delivered');
           break;
-        case 'seen':
-          updateMessageStatus(message.payload.messageId, 'seen');
+        case 'seen': {
+          const seenIds: string[] = Array.isArray(message.payload.messageIds)
+            ? message.payload.messageIds
+            : [message.payload.messageId];
+          seenIds.forEach(id => updateMessageStatus(id, 'seen'));
           break;
+        }
         case 'join': {
           // PRIORITY 1: Extract IP from clientId (WebSocket connection) - this is the real IP
           let peerIp: string | null = null;
@@ -502,18 +567,55 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
 
     try {
       setIsScanning(true);
-      await WebSocketServer.start({ port: WS_PORT });
+      const started = await WebSocketServer.start({ port: WS_PORT, topology });
+      // Lets other devices reach us by profile id before they know our clientId
+      await WebSocketServer.subscribe({ topics: [`peer:${profile.id}`] });
 
       await WebSocketServer.addListener('messageReceived', (data) => {
-        handleIncomingData(data.data, data.clientId);
+        handleIncomingData(data.data, data.clientId, data.seq);
+      });
+
+      await WebSocketServer.addListener('messagesDelivered', (data: MessageDeliveryBatch) => {
+        for (const { deviceId, seqs } of data.deliveries) {
+          for (const seq of seqs) {
+            const key = `${deviceId}:${seq}`;
+            const messageId = pendingDeliveryRef.current.get(key);
+            if (messageId) {
+              pendingDeliveryRef.current.delete(key);
+              updateMessageStatus(messageId, 'delivered');
+            }
+          }
+        }
+      });
+
+      await WebSocketServer.addListener('outboxFlushed', (data: OutboxFlushedBatch) => {
+        for (const { storedId, seq } of data.messages) {
+          const messageId = pendingStoredRef.current.get(storedId);
+          if (messageId) {
+            pendingStoredRef.current.delete(storedId);
+            pendingDeliveryRef.current.set(`${data.deviceId}:${seq}`, messageId);
+          }
+        }
       });
 
+      // Advertised so others can tell how busy we are before connecting
+      const advertiseConnectionCount = async () => {
+        try {
+          const { clients } = await WebSocketServer.getConnectedClients();
+          await LanDiscovery.updateAdvertisement({ connections: clients.length });
+        } catch (error) {
+          console.warn('[usePeerNetwork] Failed to update advertisement:', error);
+        }
+      };
+
       await WebSocketServer.addListener('clientConnected', async (data) => {
         console.log('[usePeerNetwork] Client connected:', data.clientId);
+        advertiseConnectionCount();
       });
 
       await WebSocketServer.addListener('clientDisconnected', async (data) => {
         console.log('[usePeerNetwork] Client disconnected:', data.clientId);
+        advertiseConnectionCount();
         const peerId = getPeerIdForClient(data.clientId);
         if (peerId) {
           setPeers(prev => prev.map(p => 
@@ -525,12 +627,17 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
 
       await LanDiscovery.startAdvertising({
         serviceName: `${SERVICE_PREFIX}${profile.id}`,
-        port: WS_PORT
+        port: WS_PORT,
+        attributes: {
+          displayName: profile.username,
+          codecs: ['deflate'],
+          // Whatever the server negotiates with the start options it was given
+          framing: started.framing,
+          connections: 0,
+        },
       });
 
-      await LanDiscovery.startDiscovery({ serviceType: '_lanchat._tcp.' });
-
-      await LanDiscovery.addListener('peerFound', async (discoveredPeer: DiscoveredPeer) => {
+      const onPeerFound = async (discoveredPeer: DiscoveredPeer) => {
         console.log('[usePeerNetwork] Peer found:', discoveredPeer);
         
         // FILTER: Skip invalid IPs
@@ -547,21 +654,28 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
         }
         
         try {
-          const result = await WebSocketServer.connectToPeer({
-            ip: discoveredPeer.ip,
-            port: discoveredPeer.port
-          });
-
-          const clientId = result.clientId || `${discoveredPeer.ip}:${discoveredPeer.port}`;
+          // With the topology manager on, devices that advertise their id are linked (or relayed to) natively
+          const managedDeviceId = started.topology ? discoveredPeer.attributes?.deviceId : undefined;
+          let clientId = managedDeviceId;
+          if (!clientId) {
+            const result = await WebSocketServer.connectToPeer({
+              ip: discoveredPeer.ip,
+              port: discoveredPeer.port
+            });
+            clientId = result.clientId || `${discoveredPeer.ip}:${discoveredPeer.port}`;
+          }
 
           const advertisedId = discoveredPeer.id || discoveredPeer.name;
           const peerId = advertisedId?.startsWith(SERVICE_PREFIX)
             ? advertisedId.slice(SERVICE_PREFIX.length)
             : advertisedId;
 
-          const inferredUsername = advertisedId?.startsWith(SERVICE_PREFIX)
-            ? 'Device'
-            : (discoveredPeer.name?.split('-')[0] || 'Device');
+          // Advertised attributes give us the name and device before the join arrives
+          const attributes = discoveredPeer.attributes;
+          const inferredUsername = attributes?.displayName
+            || (advertisedId?.startsWith(SERVICE_PREFIX)
+              ? 'Device'
+              : (discoveredPeer.name?.split('-')[0] || 'Device'));
 
           registerPeerConnection(peerId, clientId, discoveredPeer.ip);
 
@@ -571,6 +685,7 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
             ip: discoveredPeer.ip,
             isOnline: true,
             lastSeen: new Date(),
+            ...(attributes?.deviceId ? { deviceId: attributes.deviceId } : {}),
           };
 
           // Deduplicate using IP - merge with existing peer at same IP
@@ -618,9 +733,9 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
         } catch (error) {
           console.error('[usePeerNetwork] Failed to connect to peer:', error);
         }
-      });
+      };
 
-      await LanDiscovery.addListener('peerLost', (discoveredPeer: DiscoveredPeer) => {
+      const onPeerLost = (discoveredPeer: DiscoveredPeer) => {
         console.log('[usePeerNetwork] Peer lost:', discoveredPeer);
 
         const advertisedId = discoveredPeer.id || discoveredPeer.name;
@@ -632,7 +747,30 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
           p.id === peerId ? { ...p, isOnline: false, lastSeen: new Date() } : p
         ));
         removePeerMapping(peerId);
-      });
+      };
+
+      // Discovery changes arrive batched; a peer that flapped within a batch never shows up
+      const discoveredAddresses = new Map<string, string>();
+      const applyPeersDelta = (delta: PeersDelta) => {
+        delta.removed.forEach(peer => {
+          discoveredAddresses.delete(peer.id);
+          onPeerLost(peer);
+        });
+        [...delta.added, ...delta.updated].forEach(peer => {
+          // Only a new address needs a connection; attribute updates like the connection count don't
+          const address = `${peer.ip}:${peer.port}`;
+          if (discoveredAddresses.get(peer.id) === address) return;
+          discoveredAddresses.set(peer.id, address);
+          onPeerFound(peer);
+        });
+      };
+      await LanDiscovery.addListener('peersChanged', applyPeersDelta);
+
+      // Peers cached from the last run are in the table before discovery starts
+      applyPeersDelta(await LanDiscovery.getPeersSince({ version: 0 }));
+
+      // Listeners first: beacons can find a peer within milliseconds of starting
+      await LanDiscovery.startDiscovery({ serviceType: '_lanchat._tcp.', beacon: { enabled: true } });
 
       setIsConnected(true);
       setIsScanning(false);
@@ -645,7 +783,7 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
       setIsScanning(false);
       setIsConnected(true);
     }
-  }, [profile, myIp, myDeviceId, myDeviceName, handleIncomingData, registerPeerConnection, removePeerMapping, getPeerIdForClient, sendToPeer]);
+  }, [profile, topology, myIp, myDeviceId, myDeviceName, handleIncomingData, registerPeerConnection, removePeerMapping, getPeerIdForClient, sendToPeer]);
 
   // Go offline
   const goOffline = useCallback(async () => {
@@ -688,7 +826,7 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
       await new Promise(resolve => setTimeout(resolve, 300));
       
       // Restart discovery to find new peers
-      await LanDiscovery.startDiscovery({ serviceType: '_lanchat._tcp.' });
+      await LanDiscovery.startDiscovery({ serviceType: '_lanchat._tcp.', beacon: { enabled: true } });
       
       console.log('[usePeerNetwork] Refresh complete, discovery restarted');
     } catch (error) {
@@ -796,17 +934,16 @@ export function usePeerNetwork({ profile, onMessage, onTyping, onCallOffer }: Us
   }, [profile, sendToPeer]);
 
   const markAsSeen = useCallback((messageIds: string[], senderId: string) => {
-    if (!profile) return;
-    messageIds.forEach(messageId => {
-      updateMessageStatus(messageId, 'seen');
-      sendToPeer(senderId, {
-        type: 'seen',
-        from: profile.id,
-        to: senderId,
-        payload: { messageId },
-      });
+    if (!profile || messageIds.length === 0) return;
+    messageIds.forEach(messageId => updateMessageStatus(messageId, 'seen'));
+    // One receipt for all of them; messageId alone is what older builds read
+    queueToPeer(senderId, {
+      type: 'seen',
+      from: profile.id,
+      to: senderId,
+      payload: { messageId: messageIds[0], messageIds },
     });
-  }, [profile, sendToPeer]);
+  }, [profile, queueToPeer]);
 
   const initiateCall = useCallback(async (peerId: string) => {
     if (!profile) return;
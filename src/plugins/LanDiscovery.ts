@@ -4,7 +4,7 @@ import type { LanDiscoveryPlugin, DiscoveredPeer } from './LanDiscoveryTypes';
 import { LanDiscoveryWeb } from './LanDiscoveryWeb';
 
 // Re-export types for convenience
-export type { DiscoveredPeer, LanDiscoveryPlugin } from './LanDiscoveryTypes';
+export type { DiscoveredPeer, LanDiscoveryMetrics, LanDiscoveryPlugin, LanBeaconOptions, BeaconMetrics, LocalAddress, LocalAddresses, LocalAddressKind, PeersDelta, PeerAttributes, AdvertisedAttributes, PeerCacheMetrics } from './LanDiscoveryTypes';
 
 // Use web fallback on web platform, native plugin on native
 let LanDiscovery: LanDiscoveryPlugin;
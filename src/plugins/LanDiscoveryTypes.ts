@@ -1,21 +1,142 @@
 // LAN Discovery Plugin Types - shared between native and web implementations
 
+import type { LatencySummary } from './WebSocketServerTypes';
+
+// Advertised in the NSD TXT record and in beacons, so known before connecting
+export interface PeerAttributes {
+  deviceId?: string;
+  displayName?: string;
+  // SignalingCodec protocol version
+  protocolVersion?: number;
+  // e.g. 'deflate'
+  codecs: string[];
+  // e.g. 'binary', 'relay', 'ack', 'file', 'topic', as WebSocketServer.start() reports them
+  framing: string[];
+  // Open connections when last advertised
+  connections?: number;
+  port?: number;
+}
+
+// What the app chooses to advertise; device id, protocol version and port are filled in natively
+export interface AdvertisedAttributes {
+  displayName?: string;
+  codecs?: string[];
+  framing?: string[];
+  connections?: number;
+}
+
 export interface DiscoveredPeer {
   id: string;
   name: string;
   ip: string;
   port: number;
+  // Missing for peers that don't advertise any
+  attributes?: PeerAttributes;
+}
+
+// Payload of peersChanged and result of getPeersSince
+export interface PeersDelta {
+  // Pass to getPeersSince to get what changed after this
+  version: number;
+  // The version asked for was unknown or too old: added is the whole table and any other peer is gone
+  reset: boolean;
+  added: DiscoveredPeer[];
+  // Peers whose address or attributes changed
+  updated: DiscoveredPeer[];
+  // Last known address of each removed peer
+  removed: DiscoveredPeer[];
+}
+
+export type LocalAddressKind = 'hotspot' | 'wifi' | 'tether' | 'ethernet' | 'other' | 'cellular';
+
+export interface LocalAddress {
+  ip: string;
+  interface: string;
+  kind: LocalAddressKind;
+  prefixLength: number;
+}
+
+// Result of getLocalAddresses and payload of the localAddressChanged event
+export interface LocalAddresses {
+  // The address to advertise, same as getLocalIp
+  ip: string;
+  // Best first: hotspot, Wi-Fi, tether, ethernet, other, cellular
+  addresses: LocalAddress[];
+}
+
+// UDP beacons sent alongside NSD; peers seen by either show up once in peersChanged
+export interface LanBeaconOptions {
+  // Off by default
+  enabled?: boolean;
+  // UDP port every device beacons and listens on (default 8766)
+  port?: number;
+  // Send to this multicast group instead of each interface's broadcast address
+  multicastGroup?: string;
+  // Interval right after starting or seeing a new device (default 250), doubling up to maxIntervalMs (default 4000)
+  minIntervalMs?: number;
+  maxIntervalMs?: number;
+}
+
+export interface BeaconMetrics {
+  sent: number;
+  received: number;
+  // Devices whose beacons haven't expired
+  peers: number;
+}
+
+// Peers from the last run, seeded into the table at launch until discovery confirms or expires them
+export interface PeerCacheMetrics {
+  loaded: number;
+  confirmed: number;
+  expired: number;
+}
+
+export interface LanDiscoveryMetrics {
+  servicesFound: number;
+  servicesLost: number;
+  resolvesStarted: number;
+  resolvesSucceeded: number;
+  resolvesFailed: number;
+  // Resolves queued again after failing, mostly because another resolve was active
+  resolveRetries: number;
+  // Announcements answered from the resolve cache
+  resolveCacheHits: number;
+  // Services waiting for their turn to resolve
+  resolveQueue: number;
+  // From resolveService() to its callback
+  resolveLatency: LatencySummary;
+  // From onServiceFound to the service being resolved
+  foundToResolved: LatencySummary;
+  peers: number;
+  // Bumped on every add, update and remove
+  peerTableVersion: number;
+  peersChangedEvents: number;
+  // localAddressChanged events fired
+  addressChanges: number;
+  peerCache: PeerCacheMetrics;
+  // Missing unless beacon discovery is enabled
+  beacons?: BeaconMetrics;
 }
 
 export interface LanDiscoveryPlugin {
   // Start advertising this device on the LAN
-  startAdvertising(options: { serviceName: string; port: number }): Promise<void>;
+  startAdvertising(options: { serviceName: string; port: number; attributes?: AdvertisedAttributes }): Promise<void>;
+  
+  // Change the advertised attributes; beacons carry them at once, NSD re-registers at most every 5s
+  updateAdvertisement(options: AdvertisedAttributes): Promise<void>;
   
   // Stop advertising
   stopAdvertising(): Promise<void>;
   
-  // Start discovering other devices on LAN
-  startDiscovery(options: { serviceType: string }): Promise<void>;
+  // Start discovering other devices on LAN; metricsIntervalMs > 0 enables the metrics event.
+  // Services are resolved one at a time; resolved addresses are reused for resolveCacheTtlMs
+  // (default 60000) and a resolve without an answer is given up after resolveTimeoutMs (default 10000)
+  // beacon enables UDP beacon discovery as well
+  // Peer changes are batched into one peersChanged event per peersChangedDebounceMs (default 100);
+  // peerEvents also sends the older per-peer peerFound/peerLost events.
+  // Peers cached from the last run are already in the table; those not seen again within
+  // cachedPeerTtlMs (default 10000) are removed
+  startDiscovery(options: { serviceType: string; metricsIntervalMs?: number; resolveCacheTtlMs?: number; resolveTimeoutMs?: number; beacon?: LanBeaconOptions; peersChangedDebounceMs?: number; peerEvents?: boolean; cachedPeerTtlMs?: number }): Promise<void>;
   
   // Stop discovery
   stopDiscovery(): Promise<void>;
@@ -23,15 +144,38 @@ export interface LanDiscoveryPlugin {
   // Get list of discovered peers
   getDiscoveredPeers(): Promise<{ peers: DiscoveredPeer[] }>;
   
-  // Get this device's local IP address
+  // Get only what changed since a version from an earlier delta; 0 gets everything
+  getPeersSince(options: { version: number }): Promise<PeersDelta>;
+  
+  // Get this device's local IP address; cached and kept up to date as the network changes
   getLocalIp(): Promise<{ ip: string }>;
   
+  // Get every usable IPv4 address with the kind of interface it is on
+  getLocalAddresses(): Promise<LocalAddresses>;
+  
   // Get persistent device identifier (ANDROID_ID) and device name
   getDeviceId(): Promise<{ deviceId: string; deviceName: string }>;
   
-  // Add listener for peer discovery events
+  // Get discovery and resolve counters and latencies
+  getMetrics(): Promise<LanDiscoveryMetrics>;
+  
+  // Add listener for batched peer changes; a peer found and lost within one batch is left out
+  addListener(
+    eventName: 'peersChanged',
+    listenerFunc: (delta: PeersDelta) => void
+  ): Promise<{ remove: () => void }>;
+  // Per-peer events, only sent when startDiscovery was given peerEvents
   addListener(
     eventName: 'peerFound' | 'peerLost',
     listenerFunc: (peer: DiscoveredPeer) => void
   ): Promise<{ remove: () => void }>;
+  addListener(
+    eventName: 'metrics',
+    listenerFunc: (metrics: LanDiscoveryMetrics) => void
+  ): Promise<{ remove: () => void }>;
+  // Fires when Wi-Fi, hotspot or tethering changes the device's addresses
+  addListener(
+    eventName: 'localAddressChanged',
+    listenerFunc: (addresses: LocalAddresses) => void
+  ): Promise<{ remove: () => void }>;
 }
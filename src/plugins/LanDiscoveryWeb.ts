@@ -1,6 +1,6 @@
 // Web fallback for LAN Discovery - uses BroadcastChannel for same-device testing
 import { WebPlugin } from '@capacitor/core';
-import type { LanDiscoveryPlugin, DiscoveredPeer } from './LanDiscoveryTypes';
+import type { LanDiscoveryPlugin, DiscoveredPeer, LanDiscoveryMetrics, LanBeaconOptions, LocalAddresses, PeersDelta, AdvertisedAttributes } from './LanDiscoveryTypes';
 
 export class LanDiscoveryWeb extends WebPlugin implements LanDiscoveryPlugin {
   private broadcastChannel: BroadcastChannel | null = null;
@@ -8,11 +8,15 @@ export class LanDiscoveryWeb extends WebPlugin implements LanDiscoveryPlugin {
   private serviceName: string = '';
   private port: number = 0;
   private isAdvertising: boolean = false;
+  private attributes: AdvertisedAttributes = {};
   private discoveryInterval: number | null = null;
+  private peerTableVersion: number = 0;
+  private peerEvents: boolean = false;
 
-  async startAdvertising(options: { serviceName: string; port: number }): Promise<void> {
+  async startAdvertising(options: { serviceName: string; port: number; attributes?: AdvertisedAttributes }): Promise<void> {
     this.serviceName = options.serviceName;
     this.port = options.port;
+    this.attributes = options.attributes ?? {};
     this.isAdvertising = true;
     
     if (!this.broadcastChannel) {
@@ -21,17 +25,34 @@ export class LanDiscoveryWeb extends WebPlugin implements LanDiscoveryPlugin {
     }
     
     // Announce ourselves
-    this.broadcastChannel.postMessage({
+    this.announce();
+    
+    console.log('[LanDiscoveryWeb] Started advertising:', options.serviceName);
+  }
+
+  async updateAdvertisement(options: AdvertisedAttributes): Promise<void> {
+    this.attributes = { ...this.attributes, ...options };
+    if (this.isAdvertising) {
+      this.announce();
+    }
+  }
+
+  private announce() {
+    this.broadcastChannel?.postMessage({
       type: 'announce',
       peer: {
         id: this.serviceName,
         name: this.serviceName,
         ip: '127.0.0.1',
-        port: this.port
+        port: this.port,
+        attributes: {
+          ...this.attributes,
+          codecs: this.attributes.codecs ?? [],
+          framing: this.attributes.framing ?? [],
+          port: this.port,
+        },
       }
     });
-    
-    console.log('[LanDiscoveryWeb] Started advertising:', options.serviceName);
   }
 
   async stopAdvertising(): Promise<void> {
@@ -45,7 +66,8 @@ export class LanDiscoveryWeb extends WebPlugin implements LanDiscoveryPlugin {
     console.log('[LanDiscoveryWeb] Stopped advertising');
   }
 
-  async startDiscovery(options: { serviceType: string }): Promise<void> {
+  async startDiscovery(options: { serviceType: string; metricsIntervalMs?: number; resolveCacheTtlMs?: number; resolveTimeoutMs?: number; beacon?: LanBeaconOptions; peersChangedDebounceMs?: number; peerEvents?: boolean }): Promise<void> {
+    this.peerEvents = options.peerEvents ?? false;
     if (!this.broadcastChannel) {
       this.broadcastChannel = new BroadcastChannel('lan-chat-discovery');
       this.setupBroadcastListener();
@@ -74,11 +96,26 @@ export class LanDiscoveryWeb extends WebPlugin implements LanDiscoveryPlugin {
     return { peers: Array.from(this.discoveredPeers.values()) };
   }
 
+  // No history is kept here, so every answer is the whole table
+  async getPeersSince(_options: { version: number }): Promise<PeersDelta> {
+    return {
+      version: this.peerTableVersion,
+      reset: true,
+      added: Array.from(this.discoveredPeers.values()),
+      updated: [],
+      removed: [],
+    };
+  }
+
   async getLocalIp(): Promise<{ ip: string }> {
     // In browser, we can't get real IP - return localhost
     return { ip: '127.0.0.1' };
   }
 
+  async getLocalAddresses(): Promise<LocalAddresses> {
+    return { ip: '127.0.0.1', addresses: [] };
+  }
+
   async getDeviceId(): Promise<{ deviceId: string; deviceName: string }> {
     // Web fallback: Use stored ID or create new one
     let deviceId = localStorage.getItem('device_id');
@@ -90,6 +127,39 @@ export class LanDiscoveryWeb extends WebPlugin implements LanDiscoveryPlugin {
     return { deviceId, deviceName };
   }
 
+  async getMetrics(): Promise<LanDiscoveryMetrics> {
+    const latency = { count: 0, meanMs: 0, p50Ms: 0, p90Ms: 0, p99Ms: 0, maxMs: 0 };
+    return {
+      servicesFound: 0,
+      servicesLost: 0,
+      resolvesStarted: 0,
+      resolvesSucceeded: 0,
+      resolvesFailed: 0,
+      resolveRetries: 0,
+      resolveCacheHits: 0,
+      resolveQueue: 0,
+      resolveLatency: latency,
+      foundToResolved: latency,
+      peers: this.discoveredPeers.size,
+      peerTableVersion: this.peerTableVersion,
+      peersChangedEvents: this.peerTableVersion,
+      addressChanges: 0,
+      peerCache: { loaded: 0, confirmed: 0, expired: 0 },
+    };
+  }
+
+  private notifyPeersChanged(change: Partial<PeersDelta>) {
+    this.peerTableVersion++;
+    this.notifyListeners('peersChanged', {
+      version: this.peerTableVersion,
+      reset: false,
+      added: [],
+      updated: [],
+      removed: [],
+      ...change,
+    });
+  }
+
   private setupBroadcastListener() {
     if (!this.broadcastChannel) return;
     
@@ -99,8 +169,15 @@ export class LanDiscoveryWeb extends WebPlugin implements LanDiscoveryPlugin {
       switch (data.type) {
         case 'announce':
           if (data.peer.id !== this.serviceName) {
+            const known = this.discoveredPeers.get(data.peer.id);
+            if (known && JSON.stringify(known) === JSON.stringify(data.peer)) {
+              break;
+            }
             this.discoveredPeers.set(data.peer.id, data.peer);
-            this.notifyListeners('peerFound', data.peer);
+            if (this.peerEvents) {
+              this.notifyListeners('peerFound', data.peer);
+            }
+            this.notifyPeersChanged(known ? { updated: [data.peer] } : { added: [data.peer] });
           }
           break;
           
@@ -108,22 +185,17 @@ export class LanDiscoveryWeb extends WebPlugin implements LanDiscoveryPlugin {
           const peer = this.discoveredPeers.get(data.peerId);
           if (peer) {
             this.discoveredPeers.delete(data.peerId);
-            this.notifyListeners('peerLost', peer);
+            if (this.peerEvents) {
+              this.notifyListeners('peerLost', peer);
+            }
+            this.notifyPeersChanged({ removed: [peer] });
           }
           break;
           
         case 'discovery-request':
           // Re-announce ourselves if advertising
           if (this.isAdvertising) {
-            this.broadcastChannel?.postMessage({
-              type: 'announce',
-              peer: {
-                id: this.serviceName,
-                name: this.serviceName,
-                ip: '127.0.0.1',
-                port: this.port
-              }
-            });
+            this.announce();
           }
           break;
       }
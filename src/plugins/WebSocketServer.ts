@@ -4,7 +4,7 @@ import type { WebSocketServerPlugin, WebSocketMessage } from './WebSocketServerT
 import { WebSocketServerWeb } from './WebSocketServerWeb';
 
 // Re-export types for convenience
-export type { WebSocketServerPlugin, WebSocketMessage } from './WebSocketServerTypes';
+export type { WebSocketServerPlugin, WebSocketMessage, WebSocketMessageBatch, ConnectedPeer, PeerStats, PeerConnectionState, PendingPeerConnection, WebSocketServerTuning, WebSocketServerMetrics, LatencySummary, TrafficMetrics, OutboxStats, WebSocketRelayOptions, RelayMetrics, WebSocketAckOptions, MessageDeliveryBatch, AckMetrics, WebSocketFileOptions, FileTransferEvent, FileMetrics, WebSocketTopologyOptions, TopologyMetrics, WarmStartMetrics, SendBatchEntry, SendBatchResult, TopicMetrics, WebSocketServerStartResult, OutboxFlushedBatch } from './WebSocketServerTypes';
 
 // Use web fallback on web platform, native plugin on native
 let WebSocketServer: WebSocketServerPlugin;
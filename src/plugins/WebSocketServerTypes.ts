@@ -3,33 +3,446 @@
 export interface WebSocketMessage {
   clientId: string;
   data: string;
+  // Set for messages that arrived through the relay: the sending device and hops travelled.
+  // clientId is then the neighbor that forwarded it.
+  origin?: string;
+  hops?: number;
+  // Set for messages sent over a connection with native acks; the sender is told it was delivered
+  seq?: number;
+}
+
+// Payload of the messagesReceived event when batchInbound is enabled
+export interface WebSocketMessageBatch {
+  messages: WebSocketMessage[];
+}
+
+// Threading and socket options for the server; outgoing peer connections use them too
+export interface WebSocketServerTuning {
+  // Server decoder threads, 0 for one per core (default 0)
+  decoderThreads?: number;
+  // Disable Nagle's algorithm (default true)
+  tcpNoDelay?: boolean;
+  // SO_RCVBUF / SO_SNDBUF in bytes, 0 for the OS default (default 0)
+  receiveBufferSize?: number;
+  sendBufferSize?: number;
+  // SO_REUSEADDR, so a quick stop/start can rebind the port (default true)
+  reuseAddr?: boolean;
+  // The library's own keepalive timeout in seconds, 0 disables it (default 60)
+  connectionLostTimeoutSec?: number;
+  // Close connections that send a larger frame payload, 0 for no limit (default 0)
+  maxFrameSize?: number;
+}
+
+// Multi-hop relay between peers that both enable it; each hop enforces its own limits
+export interface WebSocketRelayOptions {
+  // Forward and accept relay frames (default true)
+  enabled?: boolean;
+  // Hops a relayed message may travel when relay() gets no ttl (default 4)
+  defaultTtl?: number;
+  // Larger TTLs, ours or from other devices, are capped to this (default 8)
+  maxTtl?: number;
+  // Frames per second forwarded on behalf of one neighbor, 0 for no limit (default 50)
+  ratePerSec?: number;
+  // Token bucket size for ratePerSec (default 100)
+  burst?: number;
+  // Recent message ids remembered to drop duplicates (default 4096)
+  seenCapacity?: number;
+  // Relay frames larger than this are dropped (default 65536)
+  maxFrameBytes?: number;
+}
+
+// Bounded-degree mesh for large rooms: devices from LanDiscovery are dialed natively and the
+// rest of the room is reached through the relay, which must be enabled
+export interface WebSocketTopologyOptions {
+  // Off by default; when on, don't call connectToPeer for every discovered peer
+  enabled?: boolean;
+  // Direct links per device, including the two that keep the room connected (default 6)
+  maxDegree?: number;
+  // Wait this long before dialing a device again that closed our link to stay in its budget (default 30000)
+  cooldownMs?: number;
+  // Look again at RTTs and loads this often, 0 only on changes (default 5000)
+  rebalanceIntervalMs?: number;
+}
+
+export interface TopologyMetrics {
+  // Devices discovery reports with a device id
+  known: number;
+  // Direct links open now
+  degree: number;
+  dials: number;
+  // Links closed to stay within maxDegree
+  drops: number;
+  // send() calls delivered through the relay instead of a direct link
+  relayedSends: number;
+}
+
+// Per-device sequence numbers and acks, used with peers that enable them too
+export interface WebSocketAckOptions {
+  // Sequence messages and acknowledge them natively (default true)
+  enabled?: boolean;
+  // Messages per device sent but not yet acked; send() rejects once it is full (default 1024)
+  window?: number;
+  // Interval for standalone acks and messagesDelivered events (default 200)
+  ackDelayMs?: number;
+  // Ack straight away once this many messages arrived since the last ack (default 64)
+  ackEvery?: number;
+  // Resend a message that has gone unacked this long on an open connection (default 3000)
+  retransmitTimeoutMs?: number;
+  // Devices whose unacked messages are kept; past this the one idle longest is dropped (default 64)
+  maxSessions?: number;
+  // Drop a device's unacked messages this long after its last connection closed (default 600000)
+  sessionTtlMs?: number;
+}
+
+// Payload of the messagesDelivered event: sequence numbers from send() the peer acknowledged
+export interface MessageDeliveryBatch {
+  deliveries: { clientId: string; deviceId: string; seqs: number[] }[];
+}
+
+// Payload of the outboxFlushed event: the seq each stored message from send() went out under,
+// for matching it in messagesDelivered
+export interface OutboxFlushedBatch {
+  deviceId: string;
+  messages: { storedId: number; seq: number }[];
+}
+
+// Native file transfer to peers that enable it too; received files go to the app's files/transfers
+export interface WebSocketFileOptions {
+  // Send and accept files (default true)
+  enabled?: boolean;
+  // Bytes per binary frame (default 65536)
+  chunkSize?: number;
+  // Chunks in flight before waiting for the receiver's ack (default 16)
+  windowChunks?: number;
+  // Minimum interval between transferProgress events per transfer (default 250)
+  progressIntervalMs?: number;
+}
+
+// Payload of the transferStarted, transferProgress, transferCompleted and transferFailed events
+export interface FileTransferEvent {
+  transferId: string;
+  direction: 'send' | 'receive';
+  deviceId: string;
+  name: string;
+  mimeType: string;
+  size: number;
+  // Acknowledged bytes when sending, written bytes when receiving; in transferStarted, where it resumes
+  bytes: number;
+  // transferCompleted when receiving: where the file was saved
+  path?: string;
+  // transferFailed only
+  error?: string;
+}
+
+export interface FileMetrics {
+  active: number;
+  bytesSent: number;
+  bytesReceived: number;
+  completed: number;
+  failed: number;
+}
+
+export interface AckMetrics {
+  // Sent to all devices and not yet acknowledged
+  unacked: number;
+  retransmits: number;
+  // Standalone ack frames; most acks ride on outgoing messages
+  acksSent: number;
+  // Devices with sequencing state, connected or not
+  sessions: number;
+  // Sessions dropped for being idle too long, expired from discovery or over maxSessions
+  sessionsEvicted: number;
+}
+
+export interface RelayMetrics {
+  originated: number;
+  delivered: number;
+  forwarded: number;
+  duplicates: number;
+  // Arrived for other devices with no TTL left
+  expired: number;
+  rateLimited: number;
+  // Topic messages not sent to a neighbor because neither it nor anyone behind it subscribed
+  filtered: number;
+  // Malformed or oversized
+  rejected: number;
+}
+
+export interface WebSocketServerStartOptions {
+  port: number;
+  // Identity sent in the handshake so each device pair keeps one connection (default ANDROID_ID)
+  deviceId?: string;
+  // Send signaling as compact binary frames to peers that support it (default true)
+  binaryFrames?: boolean;
+  // Negotiate permessage-deflate with peers (default true)
+  compression?: boolean;
+  // Only compress messages of at least this many bytes, e.g. SDP (default 1024)
+  compressionThreshold?: number;
+  // Maximum frames queued per connection before overflowPolicy applies (default 256)
+  queueCapacity?: number;
+  // What to do when a peer's queue is full (default 'drop-oldest')
+  overflowPolicy?: 'drop-oldest' | 'reject' | 'disconnect';
+  // Message types where only the latest queued one per peer is kept, per payload.messageId if present (default ['typing'])
+  coalesceTypes?: string[];
+  // Deliver inbound messages as batched messagesReceived events instead of messageReceived (default false)
+  batchInbound?: boolean;
+  // Flush a batch once it holds this many messages (default 32)
+  inboundBatchSize?: number;
+  // ...or this long after its first message arrived (default 20)
+  inboundBatchDelayMs?: number;
+  // Interval of the RTT/liveness pings sent to every peer, 0 disables them (default 2000)
+  pingIntervalMs?: number;
+  // Close a connection after this many pings in a row go unanswered (default 3)
+  maxMissedPongs?: number;
+  // Interval of the peerStats event, 0 disables it (default 5000)
+  peerStatsIntervalMs?: number;
+  // Interval of the metrics event, 0 disables it (default 0)
+  metricsIntervalMs?: number;
+  // First reconnect delay after an outgoing connection drops; doubles per retry with jitter (default 500)
+  reconnectBaseDelayMs?: number;
+  // Upper bound for the reconnect delay (default 30000)
+  reconnectMaxDelayMs?: number;
+  // Give up after this many failed retries in a row, 0 retries forever (default 8)
+  maxReconnectAttempts?: number;
+  // Messages kept on disk per unreachable device until it reconnects, 0 disables the outbox (default 500)
+  outboxMaxMessages?: number;
+  // Stored messages older than this are dropped instead of delivered (default 86400000, one day)
+  outboxMaxAgeMs?: number;
+  // Exchange topic subscriptions with peers that support them, so publish() only reaches
+  // subscribers (default true)
+  topics?: boolean;
+  tuning?: WebSocketServerTuning;
+  relay?: WebSocketRelayOptions;
+  acks?: WebSocketAckOptions;
+  files?: WebSocketFileOptions;
+  topology?: WebSocketTopologyOptions;
+}
+
+export type PeerConnectionState = 'connecting' | 'open' | 'backoff';
+
+// An outgoing connection that is being established or waiting to retry
+export interface PendingPeerConnection {
+  clientId: string;
+  state: PeerConnectionState;
+  attempts: number;
+}
+
+// One connection per device; deviceId is missing for peers that don't send one
+export interface ConnectedPeer {
+  clientId: string;
+  deviceId?: string;
+  outbound: boolean;
+  // Whether permessage-deflate was negotiated on this connection
+  compression: boolean;
+}
+
+// Link quality from ping/pong; rttMs, minRttMs and jitterMs are missing until the first pong
+export interface PeerStats {
+  clientId: string;
+  deviceId?: string;
+  rttMs?: number;
+  minRttMs?: number;
+  jitterMs?: number;
+  // Fraction of the last 32 pings that went unanswered, 0..1
+  loss: number;
+  pingsSent: number;
+  pongsReceived: number;
+  // Unanswered pings in a row
+  missedPongs: number;
+  lastPongAgoMs?: number;
+}
+
+// Latency distribution; percentiles are bucket upper bounds, accurate to a factor of two
+export interface LatencySummary {
+  count: number;
+  meanMs: number;
+  p50Ms: number;
+  p90Ms: number;
+  p99Ms: number;
+  maxMs: number;
+}
+
+// Payload bytes before compression; text frames count UTF-16 characters
+export interface TrafficMetrics {
+  messagesIn: number;
+  bytesIn: number;
+  messagesOut: number;
+  bytesOut: number;
+}
+
+export interface WebSocketServerMetrics {
+  totals: TrafficMetrics;
+  peers: (TrafficMetrics & { clientId: string; deviceId?: string })[];
+  sendFailures: number;
+  connects: number;
+  disconnects: number;
+  reconnectAttempts: number;
+  reconnects: number;
+  // From send()/broadcast() until the frame is handed to the socket
+  sendLatency: LatencySummary;
+  // Missing when the relay is disabled
+  relay?: RelayMetrics;
+  // Missing when acks are disabled
+  acks?: AckMetrics;
+  // Missing when file transfer is disabled
+  files?: FileMetrics;
+  // Missing unless the topology manager is on
+  topology?: TopologyMetrics;
+  topics: TopicMetrics;
+  warmStart: WarmStartMetrics;
+}
+
+export interface TopicMetrics {
+  // Topics this device subscribed to
+  subscribed: number;
+  // Subscriptions of connected peers, summed
+  remoteSubscriptions: number;
+  // Topics relaying peers told us they have subscribers for behind them
+  routes: number;
+  published: number;
+  // Connections a publish() left out because they aren't subscribed
+  skipped: number;
+  // Relayed messages for topics we aren't subscribed to, forwarded but not delivered here
+  filtered: number;
+}
+
+export interface WarmStartMetrics {
+  // MainActivity started the server from the last start() options before the web app loaded
+  prewarmed: boolean;
+  // From the plugin loading to the first peer connecting; missing until one has
+  firstPeerMs?: number;
+}
+
+export interface OutboundQueueStats {
+  clientId: string;
+  depth: number;
+  capacity: number;
+  sent: number;
+  dropped: number;
+  coalesced: number;
+  rejected: number;
+}
+
+// Store-and-forward outbox for devices that were unreachable when a message was sent
+export interface OutboxStats {
+  devices: { deviceId: string; pending: number }[];
+  pending: number;
+  stored: number;
+  forwarded: number;
+  // Dropped to stay within outboxMaxMessages
+  dropped: number;
+  expired: number;
+}
+
+// One entry of sendBatch; the result of each is what send() would have returned
+export interface SendBatchEntry {
+  clientId: string;
+  data: string;
+}
+
+export interface SendBatchResult {
+  clientId: string;
+  ok: boolean;
+  // Why send() would have rejected
+  error?: string;
+  stored?: boolean;
+  storedId?: number;
+  seq?: number;
+  deviceId?: string;
+  relayed?: boolean;
+  messageId?: string;
+}
+
+export interface WebSocketServerStartResult {
+  port: number;
+  // The server MainActivity started with the same options was kept
+  prewarmed?: boolean;
+  // Framing negotiated with peers that offer it, e.g. 'binary', 'relay', 'ack', 'file', 'topic'
+  framing: string[];
+  // Whether the topology manager is on, and so dials devices that advertise an id
+  topology: boolean;
 }
 
 export interface WebSocketServerPlugin {
-  // Start WebSocket server on specified port
-  start(options: { port: number }): Promise<{ port: number }>;
+  // Start WebSocket server on specified port; prewarmed when the server MainActivity started
+  // with the same options is kept. The options are saved for that until stop() is called
+  start(options: WebSocketServerStartOptions): Promise<WebSocketServerStartResult>;
   
   // Stop the server
   stop(): Promise<void>;
   
-  // Send message to a specific client
-  send(options: { clientId: string; data: string }): Promise<void>;
+  // Send message to a specific client. If its device is known but unreachable the message is
+  // stored and delivered, in order, when it reconnects; typing/seen are never stored. A stored message
+  // gets its seq when it goes out, reported with its storedId in outboxFlushed.
+  // With native acks it gets a per-device seq, reported back in messagesDelivered once the peer has it.
+  // With the topology manager on, a device in the room without a direct link gets it through the relay.
+  send(options: { clientId: string; data: string }): Promise<{ stored?: boolean; storedId?: number; seq?: number; deviceId?: string; relayed?: boolean; messageId?: string }>;
   
-  // Broadcast message to all clients
+  // Send many messages in one bridge call, e.g. trickled ICE candidates or receipts; each
+  // connection's messages are written together. Results are in the order of the entries
+  sendBatch(options: { entries: SendBatchEntry[] }): Promise<{ results: SendBatchResult[]; sent: number; failed: number }>;
+  
+  // Broadcast message to all clients; with the topology manager on it floods through the relay
   broadcast(options: { data: string }): Promise<void>;
   
-  // Connect to another peer's WebSocket server
-  connectToPeer(options: { ip: string; port: number }): Promise<{ clientId: string }>;
+  // Send one message to a subset of clients; the payload is encoded once for all of them
+  multicast(options: { clientIds: string[]; data: string }): Promise<{ queued: string[]; stored?: string[]; failed: string[] }>;
+  
+  // Subscribe this device to topics (rooms, call ids); peers then send it what is published to them.
+  // At most 64 topics of up to 128 bytes; the rest come back in rejected
+  subscribe(options: { topics: string[] }): Promise<{ topics: string[]; rejected: string[] }>;
   
-  // Disconnect from a peer
+  unsubscribe(options: { topics: string[] }): Promise<{ topics: string[]; rejected: string[] }>;
+  
+  // Send to the peers subscribed to topic. Peers without topic support get it anyway, as with
+  // broadcast. With the topology manager on, subscribers behind a relaying peer are reached through
+  // the relay (relayed: true), which only forwards it towards them; relaying peers without topic
+  // routes still get everything published
+  publish(options: { topic: string; data: string }): Promise<{ sent?: number; skipped?: number; relayed?: boolean }>;
+  
+  // Send through the mesh: to deviceId over as many hops as needed, or to every device in range
+  // without deviceId. Intermediate devices forward natively, without waking their WebView.
+  relay(options: { data: string; deviceId?: string; ttl?: number }): Promise<{ messageId: string }>;
+  
+  // Send a file path, file:// or content:// URI to a connected peer natively, in binary chunks.
+  // name and mimeType default to the file's own. Progress comes as transfer events; if the
+  // connection drops the transfer waits and resumes from what the peer already has.
+  sendFile(options: { clientId: string; path: string; name?: string; mimeType?: string }): Promise<{ transferId: string; size: number; name: string }>;
+  
+  // Stop a transfer in either direction; the other side gets transferFailed
+  cancelTransfer(options: { transferId: string }): Promise<void>;
+  
+  // Connect to another peer's WebSocket server. Only one attempt per peer is in flight;
+  // dropped connections are retried until disconnectFromPeer is called.
+  // compression and compressionThreshold default to the values passed to start()
+  connectToPeer(options: {
+    ip: string;
+    port: number;
+    compression?: boolean;
+    compressionThreshold?: number;
+  }): Promise<{ clientId: string; deviceId?: string; state: PeerConnectionState }>;
+  
+  // Disconnect from a peer and stop reconnecting to it
   disconnectFromPeer(options: { clientId: string }): Promise<void>;
   
   // Get list of connected clients
-  getConnectedClients(): Promise<{ clients: string[] }>;
+  getConnectedClients(): Promise<{ clients: string[]; peers?: ConnectedPeer[]; pending?: PendingPeerConnection[] }>;
+  
+  // Get outbound queue depth and drop counters per connection
+  getQueueStats(): Promise<{ queues: OutboundQueueStats[]; totalDepth: number; totalDropped: number; outbox?: OutboxStats }>;
+  
+  // Get RTT, jitter and loss per connected peer
+  getPeerStats(): Promise<{ peers: PeerStats[] }>;
+  
+  // Get traffic counters and send-path latency
+  getMetrics(): Promise<WebSocketServerMetrics>;
   
-  // Add listener for WebSocket events
+  // Add listener for WebSocket events; peerStats delivers { peers: PeerStats[] }, metrics a WebSocketServerMetrics,
+  // messagesDelivered a MessageDeliveryBatch, outboxFlushed an OutboxFlushedBatch, transfer* events a FileTransferEvent
   addListener(
-    eventName: 'clientConnected' | 'clientDisconnected' | 'messageReceived',
+    eventName: 'clientConnected' | 'clientDisconnected' | 'messageReceived' | 'messagesReceived' | 'messagesDelivered'
+      | 'outboxFlushed' | 'peerStats' | 'metrics'
+      | 'transferStarted' | 'transferProgress' | 'transferCompleted' | 'transferFailed',
     listenerFunc: (data: any) => void
   ): Promise<{ remove: () => void }>;
 }
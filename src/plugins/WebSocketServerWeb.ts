@@ -1,14 +1,24 @@
 // Web fallback for WebSocket Server - uses BroadcastChannel for same-device messaging
 import { WebPlugin } from '@capacitor/core';
-import type { WebSocketServerPlugin } from './WebSocketServerTypes';
+import type {
+  ConnectedPeer,
+  OutboundQueueStats,
+  PeerConnectionState,
+  PeerStats,
+  SendBatchEntry,
+  SendBatchResult,
+  WebSocketServerMetrics,
+  WebSocketServerPlugin,
+  WebSocketServerStartResult } from './WebSocketServerTypes';
 
 export class WebSocketServerWeb extends WebPlugin implements WebSocketServerPlugin {
   private broadcastChannel: BroadcastChannel | null = null;
   private myId: string = '';
   private connectedPeers: Set<string> = new Set();
   private peerSockets: Map<string, WebSocket> = new Map();
+  private topics: Set<string> = new Set();
 
-  async start(options: { port: number }): Promise<{ port: number }> {
+  async start(options: { port: number }): Promise<WebSocketServerStartResult> {
     this.myId = `web-${Date.now()}-${Math.random().toString(36).substr(2, 9)}`;
     
     if (!this.broadcastChannel) {
@@ -17,7 +27,8 @@ export class WebSocketServerWeb extends WebPlugin implements WebSocketServerPlug
     }
     
     console.log('[WebSocketServerWeb] Started server simulation on port:', options.port);
-    return { port: options.port };
+    // The BroadcastChannel simulation has none of the native framing
+    return { port: options.port, framing: [], topology: false };
   }
 
   async stop(): Promise<void> {
@@ -29,12 +40,12 @@ export class WebSocketServerWeb extends WebPlugin implements WebSocketServerPlug
     console.log('[WebSocketServerWeb] Stopped server');
   }
 
-  async send(options: { clientId: string; data: string }): Promise<void> {
+  async send(options: { clientId: string; data: string }): Promise<{ stored?: boolean; seq?: number; deviceId?: string; relayed?: boolean; messageId?: string }> {
     // Try direct WebSocket first
     const ws = this.peerSockets.get(options.clientId);
     if (ws && ws.readyState === WebSocket.OPEN) {
       ws.send(options.data);
-      return;
+      return {};
     }
     
     // Fallback to broadcast channel
@@ -44,6 +55,15 @@ export class WebSocketServerWeb extends WebPlugin implements WebSocketServerPlug
       to: options.clientId,
       data: options.data
     });
+    return {};
+  }
+
+  async sendBatch(options: { entries: SendBatchEntry[] }): Promise<{ results: SendBatchResult[]; sent: number; failed: number }> {
+    const results: SendBatchResult[] = [];
+    for (const { clientId, data } of options.entries) {
+      results.push({ clientId, ok: true, ...(await this.send({ clientId, data })) });
+    }
+    return { results, sent: results.length, failed: 0 };
   }
 
   async broadcast(options: { data: string }): Promise<void> {
@@ -62,7 +82,56 @@ export class WebSocketServerWeb extends WebPlugin implements WebSocketServerPlug
     });
   }
 
-  async connectToPeer(options: { ip: string; port: number }): Promise<{ clientId: string }> {
+  async subscribe(options: { topics: string[] }): Promise<{ topics: string[]; rejected: string[] }> {
+    options.topics.forEach(topic => this.topics.add(topic));
+    return { topics: [...this.topics], rejected: [] };
+  }
+
+  async unsubscribe(options: { topics: string[] }): Promise<{ topics: string[]; rejected: string[] }> {
+    options.topics.forEach(topic => this.topics.delete(topic));
+    return { topics: [...this.topics], rejected: [] };
+  }
+
+  async publish(options: { topic: string; data: string }): Promise<{ sent?: number; skipped?: number; relayed?: boolean }> {
+    // Tabs don't exchange subscriptions, so everyone gets it and the app filters
+    await this.broadcast({ data: options.data });
+    return { sent: this.peerSockets.size, skipped: 0 };
+  }
+
+  async relay(options: { data: string; deviceId?: string; ttl?: number }): Promise<{ messageId: string }> {
+    // Every tab on the BroadcastChannel is one hop away; there is nothing to relay through
+    await this.broadcast({ data: options.data });
+    return { messageId: crypto.randomUUID() };
+  }
+
+  async multicast(options: { clientIds: string[]; data: string }): Promise<{ queued: string[]; failed: string[] }> {
+    const queued: string[] = [];
+    const failed: string[] = [];
+    for (const clientId of options.clientIds) {
+      const ws = this.peerSockets.get(clientId);
+      if (ws && ws.readyState === WebSocket.OPEN) {
+        ws.send(options.data);
+        queued.push(clientId);
+      } else if (this.connectedPeers.has(clientId)) {
+        await this.send({ clientId, data: options.data });
+        queued.push(clientId);
+      } else {
+        failed.push(clientId);
+      }
+    }
+    return { queued, failed };
+  }
+
+  async sendFile(_options: { clientId: string; path: string; name?: string; mimeType?: string }): Promise<{ transferId: string; size: number; name: string }> {
+    // Browsers have no file paths to stream from
+    throw this.unavailable('sendFile is only available on native platforms');
+  }
+
+  async cancelTransfer(_options: { transferId: string }): Promise<void> {
+    throw this.unavailable('cancelTransfer is only available on native platforms');
+  }
+
+  async connectToPeer(options: { ip: string; port: number }): Promise<{ clientId: string; state: PeerConnectionState }> {
     const clientId = `${options.ip}:${options.port}`;
     
     // In web context, try to connect via WebSocket if the address is valid
@@ -101,7 +170,7 @@ export class WebSocketServerWeb extends WebPlugin implements WebSocketServerPlug
     // For same-device testing, just track the ID
     this.connectedPeers.add(clientId);
     
-    return { clientId };
+    return { clientId, state: 'connecting' };
   }
 
   async disconnectFromPeer(options: { clientId: string }): Promise<void> {
@@ -113,10 +182,36 @@ export class WebSocketServerWeb extends WebPlugin implements WebSocketServerPlug
     this.connectedPeers.delete(options.clientId);
   }
 
-  async getConnectedClients(): Promise<{ clients: string[] }> {
+  async getConnectedClients(): Promise<{ clients: string[]; peers?: ConnectedPeer[] }> {
     return { clients: Array.from(this.connectedPeers) };
   }
 
+  async getMetrics(): Promise<WebSocketServerMetrics> {
+    const latency = { count: 0, meanMs: 0, p50Ms: 0, p90Ms: 0, p99Ms: 0, maxMs: 0 };
+    return {
+      totals: { messagesIn: 0, bytesIn: 0, messagesOut: 0, bytesOut: 0 },
+      peers: [],
+      sendFailures: 0,
+      connects: 0,
+      disconnects: 0,
+      reconnectAttempts: 0,
+      reconnects: 0,
+      sendLatency: latency,
+      topics: { subscribed: this.topics.size, remoteSubscriptions: 0, routes: 0, published: 0, skipped: 0, filtered: 0 },
+      warmStart: { prewarmed: false },
+    };
+  }
+
+  async getPeerStats(): Promise<{ peers: PeerStats[] }> {
+    // The browser answers pings itself and doesn't expose them
+    return { peers: [] };
+  }
+
+  async getQueueStats(): Promise<{ queues: OutboundQueueStats[]; totalDepth: number; totalDropped: number }> {
+    // Browser WebSockets buffer internally; there is no native queue to report
+    return { queues: [], totalDepth: 0, totalDropped: 0 };
+  }
+
   private setupBroadcastListener() {
     if (!this.broadcastChannel) return;
     